@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import uniarchive.models.archive.IMArchive;
+
+/**
+ * Benchmark for storing conversations and replies in the
+ * archive database, as done when importing.
+ */
+public class ArchiveInsertBenchmark extends Benchmark
+{
+	protected static final int CONVERSATIONS = 500;
+	protected static final int REPLIES_PER_CONVERSATION = 20;
+	
+	protected SyntheticData _data;
+	protected IMArchive _archive;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._data = data;
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		this._archive = this._data.createArchive(CONVERSATIONS, REPLIES_PER_CONVERSATION);
+		
+		return CONVERSATIONS;
+	}
+	
+	@Override
+	public void afterRun() throws Exception
+	{
+		this._archive.delete();
+	}
+}
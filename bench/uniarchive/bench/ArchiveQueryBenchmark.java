@@ -0,0 +1,63 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.util.List;
+
+import uniarchive.models.archive.ConversationsQuery;
+import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.ConversationsQuery.SortKey;
+import uniarchive.models.archive.IMArchive.Conversation;
+import uniarchive.models.archive.IMArchive.Conversation.Reply;
+
+/**
+ * Benchmark for browsing the conversations in an archive, as
+ * done by the conversations view: the list is fetched window by
+ * window, sorted by date, and the replies are loaded for each
+ * window. (Orderings by contact are cached by the archive after
+ * the first window, so they would not be measured repeatedly.)
+ */
+public class ArchiveQueryBenchmark extends Benchmark
+{
+	protected static final int CONVERSATIONS = 2000;
+	protected static final int REPLIES_PER_CONVERSATION = 20;
+	protected static final int WINDOW_SIZE = 128;
+	
+	protected IMArchive _archive;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._archive = data.createArchive(CONVERSATIONS, REPLIES_PER_CONVERSATION);
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		ConversationsQuery query = new ConversationsQuery();
+		query.sortKeys.clear();
+		query.sortKeys.add(SortKey.BY_DATE);
+		
+		int count = 0;
+		for (int offset=0; ; offset+=WINDOW_SIZE)
+		{
+			List<Conversation> window = this._archive.queryConversations(query, offset, WINDOW_SIZE);
+			if (window.isEmpty()) break;
+			
+			for (List<Reply> replies : this._archive.getReplies(window)) sink += replies.size();
+			count += window.size();
+		}
+		
+		return count;
+	}
+	
+	@Override
+	public void tearDown() throws Exception
+	{
+		this._archive.delete();
+	}
+}
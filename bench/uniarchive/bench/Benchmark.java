@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+/**
+ * Base class for benchmarks run by BenchmarkRunner.
+ * 
+ * A benchmark prepares its inputs in setUp(), and then run() is
+ * called repeatedly, first for warming up and then for measuring.
+ * Only run() is timed. Work that must be repeated for each run
+ * but should not be measured (e.g. discarding the data created by
+ * the previous run) goes in beforeRun() and afterRun().
+ */
+public abstract class Benchmark
+{
+	/**
+	 * A value computed from the benchmark results, so that the
+	 * work cannot be optimized away.
+	 */
+	public static volatile long sink;
+	
+	/**
+	 * Gets the name under which the benchmark's results are
+	 * recorded.
+	 * 
+	 * @return The name of the benchmark
+	 */
+	public String getName()
+	{
+		String name = this.getClass().getSimpleName();
+		
+		return name.endsWith("Benchmark") ? name.substring(0, name.length()-9) : name;
+	}
+	
+	/**
+	 * Prepares the inputs for the benchmark.
+	 * 
+	 * @param data The generator for synthetic inputs
+	 */
+	public void setUp(SyntheticData data) throws Exception
+	{
+	}
+	
+	/**
+	 * Prepares for a run of the benchmark. This is not timed.
+	 */
+	public void beforeRun() throws Exception
+	{
+	}
+	
+	/**
+	 * Runs the benchmark once.
+	 * 
+	 * @return The number of operations (e.g. replies or
+	 *         conversations) processed
+	 */
+	public abstract int run() throws Exception;
+	
+	/**
+	 * Cleans up after a run of the benchmark. This is not timed.
+	 */
+	public void afterRun() throws Exception
+	{
+	}
+	
+	/**
+	 * Releases the inputs for the benchmark.
+	 */
+	public void tearDown() throws Exception
+	{
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import uniarchive.models.archive.ArchiveDb;
+
+/**
+ * Runs the benchmarks and records their results.
+ * 
+ * Usage: BenchmarkRunner [--warmup N] [--runs N] [--seed N]
+ *        [--output FILE] [--baseline FILE] [--threshold PERCENT]
+ *        [BENCHMARK...]
+ * 
+ * Each benchmark is run a number of times for warming up and then
+ * a number of times for measuring. The results are printed and
+ * written to a file in a tab-separated format (see writeResults()).
+ * If the results of an earlier run are given as a baseline, any
+ * benchmark whose throughput dropped by more than the threshold is
+ * reported as a regression, and the exit status is non-zero.
+ * 
+ * The archive database is created in the current directory, so
+ * this should be run in a directory of its own.
+ */
+public abstract class BenchmarkRunner
+{
+	protected static final int DEFAULT_WARMUP_RUNS = 5;
+	protected static final int DEFAULT_MEASURED_RUNS = 10;
+	protected static final double DEFAULT_THRESHOLD = 10.0;
+	
+	protected static final String RESULTS_HEADER = "benchmark\truns\tops\tmean_ms\tmin_ms\tstddev_ms\tops_per_sec";
+	
+	/**
+	 * Creates all the available benchmarks.
+	 * 
+	 * @return A list of benchmarks
+	 */
+	public static List<Benchmark> createBenchmarks()
+	{
+		return Arrays.asList(new Benchmark[] {
+			new GaimReaderBenchmark(),
+			new YahooReaderBenchmark(),
+			new MsnReaderBenchmark(),
+			new DigsbyReaderBenchmark(),
+			new ArchiveInsertBenchmark(),
+			new ArchiveQueryBenchmark(),
+			new PackedArchiveQueryBenchmark(),
+			new SearchBenchmark(),
+			new JsonWriteBenchmark(),
+			new JsonReadBenchmark(),
+			new SmileyMatchingBenchmark(),
+			new ChatViewHtmlBenchmark()
+		});
+	}
+	
+	/**
+	 * Main program.
+	 * 
+	 * @param args The command-line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		System.setProperty("java.awt.headless", "true");
+		
+		int warmupRuns = DEFAULT_WARMUP_RUNS;
+		int measuredRuns = DEFAULT_MEASURED_RUNS;
+		long seed = SyntheticData.DEFAULT_SEED;
+		File output = null;
+		File baseline = null;
+		double threshold = DEFAULT_THRESHOLD;
+		List<String> selected = new ArrayList<String>();
+		
+		for (int i=0; i<args.length; i++)
+		{
+			if (args[i].equals("--warmup")) warmupRuns = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--runs")) measuredRuns = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("--output")) output = new File(args[++i]);
+			else if (args[i].equals("--baseline")) baseline = new File(args[++i]);
+			else if (args[i].equals("--threshold")) threshold = Double.parseDouble(args[++i]);
+			else if (args[i].startsWith("--")) throw new RuntimeException("Unknown option '"+args[i]+"'");
+			else selected.add(args[i]);
+		}
+		
+		File workDir = new File("bench-inputs");
+		if (workDir.exists()) deleteRecursively(workDir); // Leftovers from an interrupted run
+		workDir.mkdirs();
+		SyntheticData data = new SyntheticData(seed, workDir);
+		
+		List<Result> results = new ArrayList<Result>();
+		try
+		{
+			for (Benchmark benchmark : createBenchmarks())
+			{
+				if (!selected.isEmpty() && !selected.contains(benchmark.getName())) continue;
+				
+				Result result = runBenchmark(benchmark, data, warmupRuns, measuredRuns);
+				System.out.println(result.toLine());
+				results.add(result);
+			}
+		}
+		finally
+		{
+			ArchiveDb.getInstance().close();
+			deleteRecursively(workDir);
+		}
+		
+		if (output != null) writeResults(output, results, seed);
+		
+		if ((baseline != null) && (compareResults(readResults(baseline), results, threshold) > 0))
+			System.exit(3);
+	}
+	
+	/**
+	 * Runs a benchmark.
+	 * 
+	 * @param benchmark The benchmark
+	 * @param data The generator for synthetic inputs
+	 * @param warmupRuns The number of runs for warming up
+	 * @param measuredRuns The number of runs for measuring
+	 * @return The results of the benchmark
+	 */
+	public static Result runBenchmark(Benchmark benchmark, SyntheticData data, int warmupRuns,
+			int measuredRuns) throws Exception
+	{
+		long[] times = new long[measuredRuns];
+		int ops = 0;
+		
+		benchmark.setUp(data);
+		try
+		{
+			for (int i=0; i<warmupRuns+measuredRuns; i++)
+			{
+				benchmark.beforeRun();
+				long start = System.nanoTime();
+				ops = benchmark.run();
+				long time = System.nanoTime() - start;
+				benchmark.afterRun();
+				
+				if (i >= warmupRuns) times[i-warmupRuns] = time;
+			}
+		}
+		finally
+		{
+			benchmark.tearDown();
+		}
+		
+		return new Result(benchmark.getName(), times, ops);
+	}
+	
+	/**
+	 * Writes benchmark results to a file. The file contains
+	 * comment lines (starting with '#') describing the
+	 * environment, a header line, and then one line per
+	 * benchmark with tab-separated fields.
+	 * 
+	 * @param file The file
+	 * @param results The results
+	 * @param seed The seed used for generating the inputs
+	 */
+	public static void writeResults(File file, List<Result> results, long seed) throws IOException
+	{
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		
+		writer.println("# UniArchive benchmark results");
+		writer.println("# date="+new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())+
+				" java="+System.getProperty("java.version")+
+				" os="+System.getProperty("os.name")+" "+System.getProperty("os.arch")+
+				" cpus="+Runtime.getRuntime().availableProcessors()+
+				" seed="+seed);
+		writer.println(RESULTS_HEADER);
+		for (Result result : results) writer.println(result.toLine());
+		
+		writer.close();
+	}
+	
+	/**
+	 * Reads the throughput of each benchmark from a results file.
+	 * 
+	 * @param file The file
+	 * @return A map from benchmark names to operations per second
+	 */
+	public static Map<String,Double> readResults(File file) throws IOException
+	{
+		Map<String,Double> throughputs = new TreeMap<String,Double>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			if (line.startsWith("#") || line.equals(RESULTS_HEADER) || (line.trim().length() == 0)) continue;
+			
+			String[] fields = line.split("\t");
+			throughputs.put(fields[0], Double.parseDouble(fields[fields.length-1]));
+		}
+		reader.close();
+		
+		return throughputs;
+	}
+	
+	/**
+	 * Compares benchmark results against a baseline and prints
+	 * the change in throughput for each benchmark.
+	 * 
+	 * @param baseline The baseline throughputs
+	 * @param results The new results
+	 * @param threshold The drop in throughput, in percent, above
+	 *                  which a regression is reported
+	 * @return The number of regressions
+	 */
+	public static int compareResults(Map<String,Double> baseline, List<Result> results, double threshold)
+	{
+		int regressions = 0;
+		
+		for (Result result : results)
+		{
+			Double previous = baseline.get(result.name);
+			if (previous == null) continue;
+			
+			double change = (result.getOpsPerSecond() / previous - 1.0) * 100.0;
+			boolean regression = (change < -threshold);
+			if (regression) regressions++;
+			
+			System.out.println(String.format(Locale.US, "%s\t%+.1f%%%s", result.name, change, regression ? "\tREGRESSION" : ""));
+		}
+		
+		return regressions;
+	}
+	
+	/**
+	 * Deletes a file or folder, along with all its contents.
+	 * 
+	 * @param file The file or folder to delete
+	 */
+	public static void deleteRecursively(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children) deleteRecursively(child);
+		
+		if (!file.delete() && file.exists()) throw new RuntimeException("Cannot delete '"+file+"'");
+	}
+	
+	/**
+	 * Structure class for the results of a benchmark.
+	 */
+	public static class Result
+	{
+		public final String name;
+		public final long[] times;
+		public final int ops;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param name The name of the benchmark
+		 * @param times The duration of each measured run, in
+		 *              nanoseconds
+		 * @param ops The number of operations per run
+		 */
+		public Result(String name, long[] times, int ops)
+		{
+			this.name = name;
+			this.times = times;
+			this.ops = ops;
+		}
+		
+		/**
+		 * Gets the mean duration of a run.
+		 * 
+		 * @return The duration, in nanoseconds
+		 */
+		public double getMean()
+		{
+			double sum = 0.0;
+			for (long time : this.times) sum += time;
+			
+			return sum / Math.max(1, this.times.length);
+		}
+		
+		/**
+		 * Gets the number of operations performed per second,
+		 * on average.
+		 * 
+		 * @return The throughput
+		 */
+		public double getOpsPerSecond()
+		{
+			return this.ops * 1e9 / Math.max(1.0, this.getMean());
+		}
+		
+		/**
+		 * Formats the results as a line in a results file.
+		 * 
+		 * @return The formatted line
+		 */
+		public String toLine()
+		{
+			double mean = this.getMean();
+			long min = Long.MAX_VALUE;
+			double variance = 0.0;
+			for (long time : this.times)
+			{
+				min = Math.min(min, time);
+				variance += (time - mean) * (time - mean);
+			}
+			variance /= Math.max(1, this.times.length);
+			
+			return String.format(Locale.US, "%s\t%d\t%d\t%.3f\t%.3f\t%.3f\t%.1f", this.name, this.times.length, this.ops,
+					mean / 1e6, min / 1e6, Math.sqrt(variance) / 1e6, this.getOpsPerSecond());
+		}
+	}
+}
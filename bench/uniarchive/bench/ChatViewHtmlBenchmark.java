@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.util.List;
+
+import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.IMArchive.Conversation;
+import uniarchive.models.archive.IMArchive.Conversation.Reply;
+import uniarchive.widgets.ChatView;
+
+/**
+ * Benchmark for generating the HTML code with which the chat
+ * view displays replies (escaping, word breaking and smiley
+ * substitution included).
+ */
+public class ChatViewHtmlBenchmark extends Benchmark
+{
+	protected static final int CONVERSATIONS = 100;
+	protected static final int REPLIES_PER_CONVERSATION = 100;
+	
+	protected IMArchive _archive;
+	protected List<Conversation> _conversations;
+	protected List<List<Reply>> _replies;
+	protected HtmlChatView _view;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._archive = data.createArchive(CONVERSATIONS, REPLIES_PER_CONVERSATION);
+		this._conversations = this._archive.getConversations();
+		this._replies = this._archive.getReplies(this._conversations);
+		this._view = new HtmlChatView();
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		int count = 0;
+		
+		for (int j=0; j<this._replies.size(); j++)
+		{
+			List<Reply> replies = this._replies.get(j);
+			this._view.colorizeSpeakers(this._conversations.get(j));
+			for (int i=0; i<replies.size(); i++)
+			{
+				sink += this._view.getReplyHtml(replies.get(i), i).length();
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	@Override
+	public void tearDown() throws Exception
+	{
+		this._archive.delete();
+	}
+	
+	/**
+	 * A chat view that exposes its HTML generation functions.
+	 */
+	protected static class HtmlChatView extends ChatView
+	{
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Assigns colors to the speakers of a conversation, as
+		 * is done when the conversation is set.
+		 * 
+		 * @param conv A conversation
+		 */
+		public void colorizeSpeakers(Conversation conv)
+		{
+			this._speakerColors = this._colorizeSpeakers(conv);
+		}
+		
+		/**
+		 * Gets the HTML code for a reply.
+		 * 
+		 * @param reply An IM reply
+		 * @param index The reply index in the conversation
+		 * @return HTML code for displaying the reply
+		 */
+		public String getReplyHtml(Reply reply, int index)
+		{
+			return this._getReplyHtml(reply, index);
+		}
+	}
+}
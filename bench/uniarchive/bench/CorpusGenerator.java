@@ -0,0 +1,625 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.IMArchiveJsonWriter;
+
+/**
+ * Generates large corpora of synthetic IM archives in the formats
+ * understood by the importers, for load testing.
+ * 
+ * Usage: CorpusGenerator [--output FOLDER] [--seed N] [--formats F,...]
+ *        [--conversations N | --size SIZE] [--replies N] [--reply-words N]
+ *        [--contacts N] [--conference-ratio R] [--smiley-density D]
+ * 
+ * The formats are: pidgin, yahoo, msn, digsby and json. Each one is
+ * generated in a subfolder of the output folder, with the layout
+ * expected by the corresponding import job:
+ * 
+ *   pidgin/logs/yahoo/me_local/{buddy}/{date}.txt|.html
+ *   yahoo/Profiles/me_local/Archive/{Messages|Conferences}/{buddy}/{date}-me_local.dat
+ *   msn/{buddy}{number}.xml                   (one session per conversation)
+ *   digsby/logs/yahoo/me_local/{buddy}_yahoo/{date}.html
+ *   json/archive.json
+ * 
+ * The amount of data is given either as a number of conversations
+ * or as a size (e.g. 500M, 20G), per format. The output is fully
+ * determined by the seed and the other options.
+ */
+public class CorpusGenerator
+{
+	public static final String[] FORMATS = { "pidgin", "yahoo", "msn", "digsby", "json" };
+	
+	protected static final String LOCAL_ACCOUNT = "me_local";
+	protected static final String LOCAL_NAME = "Me";
+	protected static final int CALIBRATION_CONVERSATIONS = 50;
+	
+	protected SyntheticData _data;
+	protected File _outputDir;
+	protected int _conversations = 1000;
+	protected long _size = 0;
+	protected int _repliesPerConversation = 50;
+	
+	protected int _convCount;
+	protected long _byteCount;
+	protected List<File> _openLogs = new ArrayList<File>();
+	
+	// Date formats by pattern (see _formatDate). The generator is
+	// single-threaded, so they can be shared.
+	protected Map<String,SimpleDateFormat> _dateFormats = new HashMap<String,SimpleDateFormat>();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param data The generator for synthetic replies, which also
+	 *             holds the seed, number of contacts, conference
+	 *             ratio, etc.
+	 * @param outputDir The folder in which the corpus is generated
+	 */
+	public CorpusGenerator(SyntheticData data, File outputDir)
+	{
+		this._data = data;
+		this._outputDir = outputDir;
+	}
+	
+	/**
+	 * Sets the number of conversations generated for each format.
+	 * 
+	 * @param conversations The number of conversations
+	 */
+	public void setConversations(int conversations)
+	{
+		this._conversations = conversations;
+		this._size = 0;
+	}
+	
+	/**
+	 * Sets the approximate size of the data generated for each
+	 * format. This overrides the number of conversations.
+	 * 
+	 * @param size The size, in bytes
+	 */
+	public void setSize(long size)
+	{
+		this._size = size;
+	}
+	
+	/**
+	 * Sets the average number of replies in a conversation.
+	 * 
+	 * @param replies The number of replies
+	 */
+	public void setRepliesPerConversation(int replies)
+	{
+		this._repliesPerConversation = replies;
+	}
+	
+	/**
+	 * Main program.
+	 * 
+	 * @param args The command-line arguments
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		System.setProperty("java.awt.headless", "true");
+		
+		File output = new File("corpus");
+		long seed = SyntheticData.DEFAULT_SEED;
+		List<String> formats = Arrays.asList(FORMATS);
+		Integer conversations = null, replies = null, maxWords = null, contacts = null;
+		Long size = null;
+		Double conferenceRatio = null, smileyDensity = null;
+		
+		for (int i=0; i<args.length; i++)
+		{
+			if (i == args.length-1) throw new RuntimeException("Missing value for option '"+args[i]+"'");
+			
+			if (args[i].equals("--output")) output = new File(args[++i]);
+			else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("--formats")) formats = Arrays.asList(args[++i].split(","));
+			else if (args[i].equals("--conversations")) conversations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--size")) size = parseSize(args[++i]);
+			else if (args[i].equals("--replies")) replies = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--reply-words")) maxWords = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--contacts")) contacts = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--conference-ratio")) conferenceRatio = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--smiley-density")) smileyDensity = Double.parseDouble(args[++i]);
+			else throw new RuntimeException("Unknown option '"+args[i]+"'");
+		}
+		for (String format : formats)
+			if (!Arrays.asList(FORMATS).contains(format)) throw new RuntimeException("Unknown format '"+format+"'");
+		
+		String[] existing = output.list();
+		if ((existing != null) && (existing.length > 0))
+			throw new RuntimeException("Output folder '"+output+"' is not empty");
+		
+		SyntheticData data = new SyntheticData(seed, output);
+		data.setConferenceRatio(0.1);
+		if (maxWords != null) data.setMaxWords(maxWords);
+		if (contacts != null) data.setContactCount(contacts);
+		if (conferenceRatio != null) data.setConferenceRatio(conferenceRatio);
+		if (smileyDensity != null) data.setSmileyDensity(smileyDensity);
+		
+		CorpusGenerator generator = new CorpusGenerator(data, output);
+		if (conversations != null) generator.setConversations(conversations);
+		if (size != null) generator.setSize(size);
+		if (replies != null) generator.setRepliesPerConversation(replies);
+		
+		for (String format : formats)
+		{
+			long start = System.currentTimeMillis();
+			generator.generate(format);
+			System.out.println(String.format(Locale.US, "%s\tconversations=%d\tbytes=%d\ttime_ms=%d", format,
+					generator.getConversationCount(), generator.getByteCount(), System.currentTimeMillis() - start));
+		}
+	}
+	
+	/**
+	 * Parses a size such as 1500, 64K, 500M or 20G.
+	 * 
+	 * @param text The size text
+	 * @return The size, in bytes
+	 */
+	public static long parseSize(String text)
+	{
+		text = text.trim().toUpperCase();
+		long multiplier = 1;
+		
+		if (text.endsWith("K")) multiplier = 1L << 10;
+		else if (text.endsWith("M")) multiplier = 1L << 20;
+		else if (text.endsWith("G")) multiplier = 1L << 30;
+		if (multiplier != 1) text = text.substring(0, text.length()-1);
+		
+		return (long)(Double.parseDouble(text) * multiplier);
+	}
+	
+	/**
+	 * Gets the number of conversations generated for the last
+	 * format.
+	 * 
+	 * @return The number of conversations
+	 */
+	public int getConversationCount()
+	{
+		return this._convCount;
+	}
+	
+	/**
+	 * Gets the number of bytes generated for the last format.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getByteCount()
+	{
+		return this._byteCount;
+	}
+	
+	/**
+	 * Generates the corpus for a given format.
+	 * 
+	 * @param format The format (one of FORMATS)
+	 */
+	public void generate(String format) throws Exception
+	{
+		this._convCount = 0;
+		this._byteCount = 0;
+		
+		if (format.equals("json"))
+		{
+			this._generateJson();
+			return;
+		}
+		
+		// Conversations are distributed among the contacts in turn,
+		// so that each contact's conversations come in chronological
+		// order and can simply be appended to its log files
+		Random random = this._data.newRandom(format);
+		int contacts = this._data.getContactCount();
+		long[] nextDates = new long[contacts];
+		for (int i=0; i<contacts; i++) nextDates[i] = SyntheticData.BASE_DATE + random.nextInt(24) * 3600000L;
+		int[] sessionCounts = new int[contacts];
+		
+		while ((this._size > 0) ? (this._byteCount < this._size) : (this._convCount < this._conversations))
+		{
+			int contact = this._convCount % contacts;
+			long date = nextDates[contact];
+			nextDates[contact] += (1 + random.nextInt(72)) * 3600000L;
+			
+			// Digsby logs have no conference indicators
+			boolean conference = !format.equals("digsby") && this._data.isConference(random);
+			int[] participants = conference ? this._data.conferenceParticipants(random, contact) : new int[] { contact };
+			int replies = 1 + random.nextInt(2 * this._repliesPerConversation);
+			
+			if (format.equals("pidgin"))
+				this._byteCount += this._writePidginConversation(random, date, participants, conference, replies);
+			else if (format.equals("yahoo"))
+				this._byteCount += this._writeYahooConversation(random, date, participants, conference, replies);
+			else if (format.equals("msn"))
+				this._byteCount += this._writeMsnConversation(random, date, participants, conference, replies, ++sessionCounts[contact]);
+			else if (format.equals("digsby"))
+				this._byteCount += this._writeDigsbyConversation(random, date, participants, replies);
+			else
+				throw new RuntimeException("Unknown format '"+format+"'");
+			
+			this._convCount++;
+		}
+		
+		this._closeMsnLogs();
+	}
+	
+	/**
+	 * Writes a conversation in the Gaim/Pidgin format, in a file
+	 * of its own. Half of the conversations are written as plain
+	 * text, and the other half as HTML.
+	 * 
+	 * @param random The random number generator to use
+	 * @param date The date of the conversation
+	 * @param participants The contacts taking part
+	 * @param conference Whether the conversation is a conference
+	 * @param replies The number of replies
+	 * @return The number of bytes written
+	 */
+	protected long _writePidginConversation(Random random, long date, int[] participants, boolean conference,
+			int replies) throws IOException
+	{
+		boolean html = random.nextBoolean();
+		String remote = _buddyName(participants[0]);
+		if (conference) remote += "-"+(this._convCount + 1);
+		
+		File folder = new File(this._outputDir, "pidgin/logs/yahoo/"+LOCAL_ACCOUNT+"/"+remote+(conference ? ".chat" : ""));
+		File file = new File(folder, _formatDate("yyyy-MM-dd.HHmmss", date)+"+0000UTC"+(html ? ".html" : ".txt"));
+		long initialSize = file.length();
+		Writer writer = this._createWriter(file, false);
+		
+		String header = "Conversation with "+remote+" at "+_formatDate("EEE dd MMM yyyy hh:mm:ss a", date)+" UTC"+
+				" on "+LOCAL_ACCOUNT+" (yahoo)";
+		if (html)
+		{
+			writer.write("<html><head><meta http-equiv=\"content-type\" content=\"text/html; charset=UTF-8\">"+
+					"<title>"+header+"</title></head><body><h3>"+header+"</h3>\n");
+		}
+		else writer.write(header+"\n");
+		
+		if (conference)
+		{
+			for (int participant : participants)
+			{
+				String line = _buddyName(participant)+" entered the room.";
+				String time = "("+_formatDate("HH:mm:ss", date)+")";
+				writer.write(html ? "<font size=\"2\">"+time+"</font><b> "+line+"</b><br/>\n" : time+" "+line+"\n");
+			}
+		}
+		
+		for (int i=0; i<replies; i++)
+		{
+			date += random.nextInt(60000);
+			int speaker = random.nextInt(participants.length+1);
+			String sender = (speaker == 0) ? LOCAL_ACCOUNT : _buddyName(participants[speaker-1]);
+			String text = this._data.replyText(random);
+			String time = "("+_formatDate("HH:mm:ss", date)+")";
+			
+			if (html)
+			{
+				writer.write("<font color=\""+((speaker == 0) ? "#16569E" : "#A82F2F")+"\"><font size=\"2\">"+time+
+						"</font> <b>"+sender+":</b></font> "+
+						SyntheticData._xmlEscape(text).replace("\n", "<br/>")+"<br/>\n");
+			}
+			else writer.write(time+" "+sender+": "+text+"\n");
+		}
+		
+		if (html) writer.write("</body></html>\n");
+		writer.close();
+		
+		return file.length() - initialSize;
+	}
+	
+	/**
+	 * Writes a conversation in the Yahoo Messenger binary archive
+	 * format. Conversations with the same contact on the same day
+	 * are stored in the same file, as Yahoo Messenger does.
+	 * 
+	 * @param random The random number generator to use
+	 * @param date The date of the conversation
+	 * @param participants The contacts taking part
+	 * @param conference Whether the conversation is a conference
+	 * @param replies The number of replies
+	 * @return The number of bytes written
+	 */
+	protected long _writeYahooConversation(Random random, long date, int[] participants, boolean conference,
+			int replies) throws IOException
+	{
+		File folder = new File(this._outputDir, "yahoo/Profiles/"+LOCAL_ACCOUNT+"/Archive/"+
+				(conference ? "Conferences" : "Messages")+"/"+_buddyName(participants[0]));
+		File file = new File(folder, _formatDate("yyyyMMdd", date)+"-"+LOCAL_ACCOUNT+".dat");
+		long initialSize = file.length();
+		folder.mkdirs();
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file, true));
+		long seconds = date / 1000;
+		
+		SyntheticData.writeYahooRecord(output, LOCAL_ACCOUNT, seconds, SyntheticData.YAHOO_START_CONV, 0, "", "");
+		if (conference)
+		{
+			for (int participant : participants)
+				SyntheticData.writeYahooRecord(output, LOCAL_ACCOUNT, seconds, SyntheticData.YAHOO_CONF_JOIN, 1, "",
+						_buddyName(participant));
+		}
+		
+		for (int i=0; i<replies; i++)
+		{
+			seconds += random.nextInt(60);
+			int speaker = random.nextInt(participants.length+1);
+			String text = this._data.replyText(random);
+			
+			if (conference)
+				SyntheticData.writeYahooRecord(output, LOCAL_ACCOUNT, seconds, SyntheticData.YAHOO_CONF_MESSAGE,
+						(speaker == 0) ? 0 : 1, text, (speaker == 0) ? "" : _buddyName(participants[speaker-1]));
+			else
+				SyntheticData.writeYahooRecord(output, LOCAL_ACCOUNT, seconds, SyntheticData.YAHOO_MESSAGE,
+						(speaker == 0) ? 0 : 1, text, "");
+		}
+		
+		if (conference)
+		{
+			for (int participant : participants)
+				SyntheticData.writeYahooRecord(output, LOCAL_ACCOUNT, seconds, SyntheticData.YAHOO_CONF_LEAVE, 1, "",
+						_buddyName(participant));
+		}
+		output.close();
+		
+		return file.length() - initialSize;
+	}
+	
+	/**
+	 * Writes a conversation in the MSN Messenger XML log format,
+	 * as a session in the log of the hosting contact. The log is
+	 * completed by _closeMsnLogs().
+	 * 
+	 * @param random The random number generator to use
+	 * @param date The date of the conversation
+	 * @param participants The contacts taking part
+	 * @param conference Whether the conversation is a conference
+	 * @param replies The number of replies
+	 * @param sessionId The session ID of the conversation
+	 * @return The number of bytes written
+	 */
+	protected long _writeMsnConversation(Random random, long date, int[] participants, boolean conference,
+			int replies, int sessionId) throws IOException
+	{
+		File file = new File(this._outputDir, "msn/"+_buddyName(participants[0])+(1000000000L + participants[0])+".xml");
+		long initialSize = file.length();
+		Writer writer = this._createWriter(file, true);
+		
+		if (initialSize == 0)
+		{
+			writer.write("<?xml version=\"1.0\"?>\n<?xml-stylesheet type='text/xsl' href='MessageLog.xsl'?>\n"+
+					"<Log FirstSessionID=\"1\">\n");
+			this._openLogs.add(file);
+		}
+		
+		String session = " SessionID=\""+sessionId+"\"";
+		if (conference)
+		{
+			for (int i=1; i<participants.length; i++)
+				writer.write("<Join "+_msnDate(date)+session+"><From><User FriendlyName=\""+_friendlyName(participants[i])+
+						"\"/></From><Text>"+_friendlyName(participants[i])+" has joined the conversation.</Text></Join>\n");
+		}
+		
+		for (int i=0; i<replies; i++)
+		{
+			date += random.nextInt(60000);
+			int speaker = random.nextInt(participants.length+1);
+			String sender = (speaker == 0) ? LOCAL_NAME : _friendlyName(participants[speaker-1]);
+			
+			// Note: the importer requires that every message be either
+			// sent or received by the local account
+			writer.write("<Message "+_msnDate(date)+session+"><From><User FriendlyName=\""+sender+"\"/></From><To>");
+			if (speaker != 0)
+				writer.write("<User FriendlyName=\""+LOCAL_NAME+"\"/>");
+			else
+				for (int participant : participants)
+					writer.write("<User FriendlyName=\""+_friendlyName(participant)+"\"/>");
+			writer.write("</To><Text Style=\"font-family:Segoe UI; color:#000000; \">"+
+					SyntheticData._xmlEscape(this._data.replyText(random))+"</Text></Message>\n");
+		}
+		
+		if (conference)
+		{
+			for (int i=1; i<participants.length; i++)
+				writer.write("<Leave "+_msnDate(date)+session+"><From><User FriendlyName=\""+_friendlyName(participants[i])+
+						"\"/></From><Text>"+_friendlyName(participants[i])+" has left the conversation.</Text></Leave>\n");
+		}
+		writer.close();
+		
+		return file.length() - initialSize;
+	}
+	
+	/**
+	 * Adds the closing tag to all the MSN logs written.
+	 */
+	protected void _closeMsnLogs() throws IOException
+	{
+		for (File file : this._openLogs)
+		{
+			Writer writer = this._createWriter(file, true);
+			writer.write("</Log>\n");
+			writer.close();
+			this._byteCount += 7;
+		}
+		
+		this._openLogs.clear();
+	}
+	
+	/**
+	 * Writes a conversation in the Digsby HTML log format.
+	 * Conversations with the same contact on the same day are
+	 * stored in the same file, as Digsby does.
+	 * 
+	 * @param random The random number generator to use
+	 * @param date The date of the conversation
+	 * @param participants The contacts taking part
+	 * @param replies The number of replies
+	 * @return The number of bytes written
+	 */
+	protected long _writeDigsbyConversation(Random random, long date, int[] participants, int replies)
+			throws IOException
+	{
+		String remote = _buddyName(participants[0]);
+		String day = _formatDate("yyyy-MM-dd", date);
+		File file = new File(this._outputDir, "digsby/logs/yahoo/"+LOCAL_ACCOUNT+"/"+remote+"_yahoo/"+day+".html");
+		long initialSize = file.length();
+		Writer writer = this._createWriter(file, true);
+		
+		if (initialSize == 0)
+		{
+			writer.write("<HTML><HEAD><meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\" />"+
+					"<title>IM Logs with "+remote+" on "+day+"</title></HEAD><BODY>\n");
+		}
+		
+		for (int i=0; i<replies; i++)
+		{
+			date += random.nextInt(60000);
+			boolean outgoing = random.nextBoolean();
+			writer.write("<div class=\""+(outgoing ? "outgoing" : "incoming")+" message\" auto=\"False\""+
+					" timestamp=\""+_formatDate("yyyy-MM-dd HH:mm:ss", date)+"\">"+
+					"<span class=\"buddy\">"+(outgoing ? LOCAL_ACCOUNT : remote)+"</span> "+
+					"<span class=\"msgcontent\">"+
+					SyntheticData._xmlEscape(this._data.replyText(random)).replace("\n", "<br />")+"</span></div>\n");
+		}
+		writer.close();
+		
+		return file.length() - initialSize;
+	}
+	
+	/**
+	 * Generates the corpus in the UniArchive JSON format. The
+	 * conversations are first created in a temporary archive, so
+	 * when a size is given, the number of conversations is
+	 * estimated from a small sample.
+	 */
+	protected void _generateJson() throws Exception
+	{
+		int conversations = this._conversations;
+		
+		if (this._size > 0)
+		{
+			IMArchive sample = this._data.createArchive(CALIBRATION_CONVERSATIONS, this._repliesPerConversation);
+			CharArrayWriter output = new CharArrayWriter();
+			IMArchiveJsonWriter writer = new IMArchiveJsonWriter(output);
+			writer.writeArchive(sample, null);
+			writer.close();
+			sample.delete();
+			
+			conversations = (int)Math.max(1, this._size * CALIBRATION_CONVERSATIONS / output.size());
+		}
+		
+		IMArchive archive = this._data.createArchive(conversations, this._repliesPerConversation);
+		try
+		{
+			File file = new File(this._outputDir, "json/archive.json");
+			file.getParentFile().mkdirs();
+			IMArchiveJsonWriter writer = new IMArchiveJsonWriter(file);
+			writer.writeArchive(archive, null);
+			writer.close();
+			
+			this._convCount = conversations;
+			this._byteCount = file.length();
+		}
+		finally
+		{
+			archive.delete();
+		}
+	}
+	
+	/**
+	 * Opens a log file for writing text in UTF-8 encoding,
+	 * creating its folder if necessary.
+	 * 
+	 * @param file The file
+	 * @param append Whether to append to the file
+	 * @return A writer
+	 */
+	protected Writer _createWriter(File file, boolean append) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		
+		return new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file, append)), "UTF-8");
+	}
+	
+	/**
+	 * Gets the account name of a contact.
+	 * 
+	 * @param contact The index of the contact
+	 * @return The account name
+	 */
+	protected static String _buddyName(int contact)
+	{
+		return "buddy"+contact;
+	}
+	
+	/**
+	 * Gets the MSN friendly name of a contact.
+	 * 
+	 * @param contact The index of the contact
+	 * @return The friendly name
+	 */
+	protected static String _friendlyName(int contact)
+	{
+		return "Buddy "+contact;
+	}
+	
+	/**
+	 * Formats the date attributes of an MSN log entry.
+	 * 
+	 * @param date The date
+	 * @return The attributes text
+	 */
+	protected String _msnDate(long date)
+	{
+		return "Date=\""+_formatDate("M/d/yyyy", date)+"\" Time=\""+_formatDate("h:mm:ss a", date)+"\""+
+				" DateTime=\""+_formatDate("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", date)+"\"";
+	}
+	
+	/**
+	 * Formats a date in UTC.
+	 * 
+	 * @param pattern The date pattern
+	 * @param date The date
+	 * @return The formatted date
+	 */
+	protected String _formatDate(String pattern, long date)
+	{
+		SimpleDateFormat format = this._dateFormats.get(pattern);
+		if (format == null)
+		{
+			format = new SimpleDateFormat(pattern, Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			this._dateFormats.put(pattern, format);
+		}
+		
+		return format.format(new Date(date));
+	}
+}
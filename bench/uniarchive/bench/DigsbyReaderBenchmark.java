@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.File;
+
+import uniarchive.models.digsby_import.DigsbyConversationReader;
+import uniarchive.models.digsby_import.RawReply;
+
+/**
+ * Benchmark for reading replies from a conversation file in
+ * the Digsby HTML format.
+ */
+public class DigsbyReaderBenchmark extends Benchmark
+{
+	protected static final int REPLIES = 20000;
+	
+	protected File _file;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._file = data.writeDigsbyConversation(REPLIES);
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		DigsbyConversationReader reader = new DigsbyConversationReader(this._file, 0, Integer.MAX_VALUE);
+		
+		int count = 0;
+		while (reader.hasNext())
+		{
+			RawReply reply = reader.next();
+			if (reply == null) break;
+			sink += reply.hashCode();
+			count++;
+		}
+		
+		return count;
+	}
+}
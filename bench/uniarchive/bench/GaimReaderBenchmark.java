@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.File;
+import java.util.Date;
+
+import uniarchive.models.gaim_import.GaimConversationReader;
+import uniarchive.models.gaim_import.RawReply;
+
+/**
+ * Benchmark for reading replies from a conversation file in
+ * the Gaim/Pidgin plain text format.
+ */
+public class GaimReaderBenchmark extends Benchmark
+{
+	protected static final int REPLIES = 20000;
+	
+	protected File _file;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._file = data.writeGaimConversation(REPLIES);
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		GaimConversationReader reader = new GaimConversationReader(this._file, new Date(0));
+		
+		int count = 0;
+		while (reader.hasNext())
+		{
+			RawReply reply = reader.next();
+			if (reply == null) break;
+			sink += reply.hashCode();
+			count++;
+		}
+		
+		return count;
+	}
+}
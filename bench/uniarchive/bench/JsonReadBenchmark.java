@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+
+import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.IMArchiveJsonReader;
+import uniarchive.models.archive.IMArchiveJsonWriter;
+
+/**
+ * Benchmark for loading an archive in JSON format (from memory,
+ * so that disk speed does not come into play) into the database.
+ */
+public class JsonReadBenchmark extends Benchmark
+{
+	protected static final int CONVERSATIONS = 2000;
+	protected static final int REPLIES_PER_CONVERSATION = 20;
+	
+	protected char[] _json;
+	protected IMArchive _loaded;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		IMArchive archive = data.createArchive(CONVERSATIONS, REPLIES_PER_CONVERSATION);
+		
+		CharArrayWriter output = new CharArrayWriter();
+		IMArchiveJsonWriter writer = new IMArchiveJsonWriter(output);
+		writer.writeArchive(archive, null);
+		writer.close();
+		this._json = output.toCharArray();
+		
+		archive.delete();
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		this._loaded = new IMArchiveJsonReader(new CharArrayReader(this._json)).readArchive(null);
+		
+		return CONVERSATIONS;
+	}
+	
+	@Override
+	public void afterRun() throws Exception
+	{
+		this._loaded.delete();
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.CharArrayWriter;
+
+import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.IMArchiveJsonWriter;
+
+/**
+ * Benchmark for exporting an archive in JSON format (to memory,
+ * so that disk speed does not come into play).
+ */
+public class JsonWriteBenchmark extends Benchmark
+{
+	protected static final int CONVERSATIONS = 2000;
+	protected static final int REPLIES_PER_CONVERSATION = 20;
+	
+	protected IMArchive _archive;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._archive = data.createArchive(CONVERSATIONS, REPLIES_PER_CONVERSATION);
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		CharArrayWriter output = new CharArrayWriter();
+		IMArchiveJsonWriter writer = new IMArchiveJsonWriter(output);
+		writer.writeArchive(this._archive, null);
+		writer.close();
+		sink += output.size();
+		
+		return CONVERSATIONS;
+	}
+	
+	@Override
+	public void tearDown() throws Exception
+	{
+		this._archive.delete();
+	}
+}
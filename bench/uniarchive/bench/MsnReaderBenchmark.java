@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.File;
+
+import uniarchive.models.msn_import.MsnConversationReader;
+import uniarchive.models.msn_import.RawReply;
+
+/**
+ * Benchmark for reading replies from a conversation file in
+ * the MSN Messenger XML format.
+ */
+public class MsnReaderBenchmark extends Benchmark
+{
+	protected static final int REPLIES = 20000;
+	
+	protected File _file;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._file = data.writeMsnConversation(REPLIES);
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		MsnConversationReader reader = new MsnConversationReader(this._file, -1);
+		
+		int count = 0;
+		while (reader.hasNext())
+		{
+			RawReply reply = reader.next();
+			if (reply == null) break;
+			sink += reply.hashCode();
+			count++;
+		}
+		
+		return count;
+	}
+}
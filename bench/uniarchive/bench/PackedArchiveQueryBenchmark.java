@@ -0,0 +1,25 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+/**
+ * Benchmark for browsing the conversations in an archive whose
+ * replies have been packed into compressed blocks (see
+ * IMArchive.packReplies()). The workload is the same as that of
+ * ArchiveQueryBenchmark, so that the two storage layouts can be
+ * compared directly.
+ */
+public class PackedArchiveQueryBenchmark extends ArchiveQueryBenchmark
+{
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		super.setUp(data);
+		
+		this._archive.packReplies(null);
+	}
+}
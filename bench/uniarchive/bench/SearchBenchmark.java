@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.util.regex.Pattern;
+
+import uniarchive.models.archive.ConversationsQuery;
+import uniarchive.models.archive.IMArchive;
+
+/**
+ * Benchmark for searching the replies in all the conversations
+ * of an archive for a pattern that is rarely matched.
+ */
+public class SearchBenchmark extends Benchmark
+{
+	protected static final int CONVERSATIONS = 2000;
+	protected static final int REPLIES_PER_CONVERSATION = 20;
+	
+	protected IMArchive _archive;
+	protected Pattern _pattern = Pattern.compile("deadline tomorrow", Pattern.CASE_INSENSITIVE);
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._archive = data.createArchive(CONVERSATIONS, REPLIES_PER_CONVERSATION);
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		sink += this._archive.searchConversations(new ConversationsQuery(), this._pattern,
+				Integer.MAX_VALUE, null).size();
+		
+		return CONVERSATIONS;
+	}
+	
+	@Override
+	public void tearDown() throws Exception
+	{
+		this._archive.delete();
+	}
+}
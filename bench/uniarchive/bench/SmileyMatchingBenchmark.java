@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import uniarchive.graphics.SmileyManager;
+import uniarchive.models.archive.IMService;
+
+/**
+ * Benchmark for finding the smileys in reply texts, as done
+ * for every reply displayed.
+ */
+public class SmileyMatchingBenchmark extends Benchmark
+{
+	protected static final int REPLIES = 20000;
+	
+	protected String[] _texts;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		Random random = data.newRandom("smileys");
+		
+		this._texts = new String[REPLIES];
+		for (int i=0; i<REPLIES; i++) this._texts[i] = data.replyText(random);
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		SmileyManager manager = SmileyManager.getInstance();
+		
+		for (IMService service : IMService.values())
+		{
+			Pattern pattern = manager.getDetectionPattern(service);
+			if (pattern == null) continue;
+			
+			for (String text : this._texts)
+			{
+				Matcher matcher = pattern.matcher(text);
+				while (matcher.find())
+					if (manager.getSmiley(service, matcher.group()) != null) sink++;
+			}
+		}
+		
+		return REPLIES;
+	}
+}
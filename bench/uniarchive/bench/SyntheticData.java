@@ -0,0 +1,455 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.IMService;
+import uniarchive.models.archive.IMArchive.Account;
+import uniarchive.models.archive.IMArchive.Contact;
+import uniarchive.models.archive.IMArchive.Conversation;
+import uniarchive.models.archive.IMArchive.Group;
+import uniarchive.models.archive.IMArchive.Conversation.Speaker;
+
+/**
+ * Generator for the synthetic inputs used by the benchmarks.
+ * 
+ * All inputs are derived from a fixed seed, and each kind of
+ * input uses its own random sequence, so that the same inputs
+ * are produced regardless of which benchmarks are run, or in
+ * what order.
+ */
+public class SyntheticData
+{
+	public static final long DEFAULT_SEED = 20110101L;
+	
+	protected static final long BASE_DATE = 1293876000000L; // 2011-01-01 10:00:00 UTC
+	
+	protected static final String[] WORDS = {
+		"the", "a", "and", "you", "I", "to", "it", "is", "that", "what", "ok", "yes", "no", "lol",
+		"meeting", "tomorrow", "tonight", "really", "think", "know", "about", "going", "home",
+		"work", "project", "deadline", "coffee", "later", "maybe", "cool", "thanks", "sure",
+		"http://www.example.com/some/long/path?query=value", "supercalifragilistic", "<b>", "&amp;"
+	};
+	
+	protected static final String[] SMILEYS = { ":)", ":D", ";)", ":(", ":P", ":-)", ":-*", "8-)" };
+	
+	public static final int YAHOO_START_CONV = 0;
+	public static final int YAHOO_MESSAGE = 6;
+	public static final int YAHOO_CONF_JOIN = 25;
+	public static final int YAHOO_CONF_LEAVE = 27;
+	public static final int YAHOO_CONF_MESSAGE = 29;
+	
+	protected long _seed;
+	protected File _workDir;
+	protected int _fileCount = 0;
+	
+	protected int _maxWords = 20;
+	protected double _smileyDensity = 0.125;
+	protected int _contactCount = 50;
+	protected double _conferenceRatio = 0.0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param seed The seed from which all inputs are derived
+	 * @param workDir The directory in which input files are
+	 *                created
+	 */
+	public SyntheticData(long seed, File workDir)
+	{
+		this._seed = seed;
+		this._workDir = workDir;
+	}
+	
+	/**
+	 * Gets the seed from which all inputs are derived.
+	 * 
+	 * @return The seed
+	 */
+	public long getSeed()
+	{
+		return this._seed;
+	}
+	
+	/**
+	 * Sets the maximum length of a generated reply.
+	 * 
+	 * @param maxWords The maximum number of words (and smileys)
+	 *                 in a reply
+	 */
+	public void setMaxWords(int maxWords)
+	{
+		this._maxWords = maxWords;
+	}
+	
+	/**
+	 * Sets the proportion of smileys among the words of
+	 * generated replies.
+	 * 
+	 * @param smileyDensity A value between 0 and 1
+	 */
+	public void setSmileyDensity(double smileyDensity)
+	{
+		this._smileyDensity = smileyDensity;
+	}
+	
+	/**
+	 * Sets the number of contacts in generated archives.
+	 * 
+	 * @param contactCount The number of contacts
+	 */
+	public void setContactCount(int contactCount)
+	{
+		this._contactCount = contactCount;
+	}
+	
+	/**
+	 * Gets the number of contacts in generated archives.
+	 * 
+	 * @return The number of contacts
+	 */
+	public int getContactCount()
+	{
+		return this._contactCount;
+	}
+	
+	/**
+	 * Sets the proportion of conferences among the generated
+	 * conversations.
+	 * 
+	 * @param conferenceRatio A value between 0 and 1
+	 */
+	public void setConferenceRatio(double conferenceRatio)
+	{
+		this._conferenceRatio = conferenceRatio;
+	}
+	
+	/**
+	 * Decides whether a generated conversation is a conference.
+	 * 
+	 * @param random The random number generator to use
+	 * @return True if the conversation is a conference
+	 */
+	public boolean isConference(Random random)
+	{
+		return (this._conferenceRatio > 0.0) && (random.nextDouble() < this._conferenceRatio);
+	}
+	
+	/**
+	 * Chooses the participants in a conference, other than the
+	 * local account.
+	 * 
+	 * @param random The random number generator to use
+	 * @param host The index of the contact hosting the
+	 *             conference
+	 * @return The indexes of the participating contacts, the
+	 *         host being the first
+	 */
+	public int[] conferenceParticipants(Random random, int host)
+	{
+		int[] participants = new int[Math.min(this._contactCount, 2 + random.nextInt(4))];
+		int offset = random.nextInt(this._contactCount - participants.length + 1);
+		
+		participants[0] = host;
+		for (int i=1; i<participants.length; i++)
+			participants[i] = (host + offset + i) % this._contactCount;
+		
+		return participants;
+	}
+	
+	/**
+	 * Creates a random number generator for a given kind of
+	 * input.
+	 * 
+	 * @param purpose The kind of input to be generated
+	 * @return A random number generator
+	 */
+	public Random newRandom(String purpose)
+	{
+		return new Random(this._seed * 31 + purpose.hashCode());
+	}
+	
+	/**
+	 * Generates the text of a reply: a few words, sometimes with
+	 * smileys or several lines (see setMaxWords() and
+	 * setSmileyDensity()).
+	 * 
+	 * @param random The random number generator to use
+	 * @return The reply text
+	 */
+	public String replyText(Random random)
+	{
+		StringBuilder text = new StringBuilder();
+		
+		int words = 1 + random.nextInt(this._maxWords);
+		for (int i=0; i<words; i++)
+		{
+			if (i > 0) text.append((random.nextInt(15) == 0) ? '\n' : ' ');
+			if (random.nextDouble() < this._smileyDensity)
+				text.append(SMILEYS[random.nextInt(SMILEYS.length)]);
+			else
+				text.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		
+		return text.toString();
+	}
+	
+	/**
+	 * Creates a temporary archive containing a number of
+	 * conversations between a local account and a set of
+	 * contacts (see setContactCount() and setConferenceRatio()).
+	 * 
+	 * @param conversations The number of conversations
+	 * @param repliesPerConversation The average number of replies
+	 *                               per conversation
+	 * @return The archive
+	 */
+	public IMArchive createArchive(int conversations, int repliesPerConversation) throws Exception
+	{
+		Random random = this.newRandom("archive");
+		IMArchive archive = new IMArchive();
+		
+		archive.startBulkUpdate();
+		try
+		{
+			Account local = archive.createIdentity("Me").createAccount(IMService.YAHOO, "me_local");
+			Account[] remotes = new Account[this._contactCount];
+			for (int i=0; i<remotes.length; i++)
+			{
+				Group group = archive.createGroup("Group "+(i % 5));
+				Contact contact = group.createContact("Contact "+i);
+				remotes[i] = contact.createAccount(IMService.YAHOO, "buddy"+i);
+			}
+			
+			for (int i=0; i<conversations; i++)
+			{
+				int host = random.nextInt(remotes.length);
+				boolean conference = this.isConference(random);
+				int[] participants = conference ? this.conferenceParticipants(random, host) : new int[] { host };
+				long date = BASE_DATE + i * 3600000L + random.nextInt(3600000);
+				Conversation conv = archive.createConversation(new Date(date), local, remotes[host], conference);
+				
+				Speaker[] speakers = new Speaker[participants.length+1];
+				speakers[0] = conv.addSpeaker("Me", local);
+				for (int j=0; j<participants.length; j++)
+					speakers[j+1] = conv.addSpeaker(remotes[participants[j]].name, remotes[participants[j]]);
+				
+				int replies = 1 + random.nextInt(2 * repliesPerConversation);
+				for (int j=0; j<replies; j++)
+				{
+					date += random.nextInt(60000);
+					conv.addReply(new Date(date), speakers[random.nextInt(speakers.length)], this.replyText(random));
+				}
+			}
+		}
+		finally
+		{
+			archive.endBulkUpdate();
+		}
+		
+		return archive;
+	}
+	
+	/**
+	 * Writes a conversation in the Gaim/Pidgin plain text log
+	 * format.
+	 * 
+	 * @param replies The number of replies
+	 * @return The conversation file
+	 */
+	public File writeGaimConversation(int replies) throws IOException
+	{
+		Random random = this.newRandom("gaim");
+		File file = this._newFile("2011-01-01.100000+0000UTC.txt");
+		Writer writer = this._openWriter(file);
+		
+		writer.write("Conversation with buddy at Sat 01 Jan 2011 10:00:00 AM UTC on me_local (yahoo)\n");
+		int seconds = 0;
+		for (int i=0; i<replies; i++)
+		{
+			seconds = (seconds + random.nextInt(60)) % 86400;
+			writer.write(String.format("(%02d:%02d:%02d) %s: %s\n", seconds / 3600, (seconds / 60) % 60, seconds % 60,
+					random.nextBoolean() ? "me_local" : "buddy", this.replyText(random)));
+		}
+		writer.close();
+		
+		return file;
+	}
+	
+	/**
+	 * Writes a conversation in the Yahoo Messenger binary
+	 * archive format.
+	 * 
+	 * @param localAccount The name of the local account (used
+	 *                     for encoding the replies)
+	 * @param replies The number of replies
+	 * @return The conversation file
+	 */
+	public File writeYahooConversation(String localAccount, int replies) throws IOException
+	{
+		Random random = this.newRandom("yahoo");
+		File file = this._newFile("20110101-"+localAccount+".dat");
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+		
+		long date = BASE_DATE / 1000;
+		for (int i=0; i<replies; i++)
+		{
+			date += random.nextInt(60);
+			writeYahooRecord(output, localAccount, date, YAHOO_MESSAGE, random.nextInt(2), this.replyText(random), "");
+		}
+		output.close();
+		
+		return file;
+	}
+	
+	/**
+	 * Writes a record in the Yahoo Messenger binary archive
+	 * format. The text is encoded with the local account name,
+	 * as Yahoo Messenger does.
+	 * 
+	 * @param output The stream to write to
+	 * @param localAccount The name of the local account
+	 * @param date The date of the record, in seconds
+	 * @param type The record type (one of the YAHOO_* constants)
+	 * @param direction 0 for records sent by the local account,
+	 *                  1 for records received
+	 * @param text The text of the record
+	 * @param extra The extra data (e.g. the sender of a
+	 *              conference message)
+	 */
+	public static void writeYahooRecord(OutputStream output, String localAccount, long date, int type, int direction,
+			String text, String extra) throws IOException
+	{
+		byte[] textBytes = text.getBytes("UTF-8");
+		for (int i=0; i<textBytes.length; i++) textBytes[i] ^= localAccount.codePointAt(i % localAccount.length());
+		byte[] extraBytes = extra.getBytes("UTF-8");
+		
+		ByteBuffer record = ByteBuffer.allocate(20 + textBytes.length + extraBytes.length);
+		record.order(ByteOrder.LITTLE_ENDIAN);
+		record.putInt((int)date);
+		record.putInt(type);
+		record.putInt(direction);
+		record.putInt(textBytes.length);
+		record.put(textBytes);
+		record.putInt(extraBytes.length);
+		record.put(extraBytes);
+		output.write(record.array());
+	}
+	
+	/**
+	 * Writes a conversation in the MSN Messenger XML log format.
+	 * 
+	 * @param replies The number of replies
+	 * @return The conversation file
+	 */
+	public File writeMsnConversation(int replies) throws IOException
+	{
+		Random random = this.newRandom("msn");
+		File file = this._newFile("buddy1234.xml");
+		Writer writer = this._openWriter(file);
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		
+		writer.write("<?xml version=\"1.0\"?>\n<Log FirstSessionID=\"1\" LastSessionID=\"1\">\n");
+		long date = BASE_DATE;
+		for (int i=0; i<replies; i++)
+		{
+			date += random.nextInt(60000);
+			boolean outgoing = random.nextBoolean();
+			writer.write("<Message DateTime=\""+dateFormat.format(new Date(date))+"\" SessionID=\"1\">"+
+					"<From><User FriendlyName=\""+(outgoing ? "Me" : "Buddy")+"\"/></From>"+
+					"<To><User FriendlyName=\""+(outgoing ? "Buddy" : "Me")+"\"/></To>"+
+					"<Text>"+_xmlEscape(this.replyText(random))+"</Text></Message>\n");
+		}
+		writer.write("</Log>\n");
+		writer.close();
+		
+		return file;
+	}
+	
+	/**
+	 * Writes a conversation in the Digsby HTML log format.
+	 * 
+	 * @param replies The number of replies
+	 * @return The conversation file
+	 */
+	public File writeDigsbyConversation(int replies) throws IOException
+	{
+		Random random = this.newRandom("digsby");
+		File file = this._newFile("2011-01-01.html");
+		Writer writer = this._openWriter(file);
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		
+		writer.write("<html><head><title>IM Logs with buddy on 2011-01-01</title></head><body>\n");
+		long date = BASE_DATE;
+		for (int i=0; i<replies; i++)
+		{
+			date += random.nextInt(60000);
+			boolean outgoing = random.nextBoolean();
+			writer.write("<div class=\""+(outgoing ? "outgoing" : "incoming")+" message\" auto=\"False\""+
+					" timestamp=\""+dateFormat.format(new Date(date))+"\">"+
+					"<span class=\"buddy\">"+(outgoing ? "me_local" : "buddy")+"</span> "+
+					"<span class=\"msgcontent\">"+_xmlEscape(this.replyText(random)).replace("\n", "<br />")+"</span>"+
+					"</div>\n");
+		}
+		writer.write("</body></html>\n");
+		writer.close();
+		
+		return file;
+	}
+	
+	/**
+	 * Creates a new file in the work directory.
+	 * 
+	 * @param suffix The name of the file, which is prefixed
+	 *               with a unique number
+	 * @return The file
+	 */
+	protected File _newFile(String suffix)
+	{
+		this._fileCount++;
+		
+		return new File(this._workDir, this._fileCount+"-"+suffix);
+	}
+	
+	/**
+	 * Opens a file for writing text in UTF-8 encoding.
+	 * 
+	 * @param file The file
+	 * @return A writer
+	 */
+	protected Writer _openWriter(File file) throws IOException
+	{
+		return new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file)), "UTF-8");
+	}
+	
+	/**
+	 * Escapes the characters with special meaning in XML.
+	 * 
+	 * @param text A text
+	 * @return The escaped text
+	 */
+	protected static String _xmlEscape(String text)
+	{
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
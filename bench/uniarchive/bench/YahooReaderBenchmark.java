@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.bench;
+
+import java.io.File;
+
+import uniarchive.models.yahoo_import.YahooConversationReader;
+import uniarchive.models.yahoo_import.RawReply;
+
+/**
+ * Benchmark for reading replies from a conversation file in
+ * the Yahoo Messenger binary format.
+ */
+public class YahooReaderBenchmark extends Benchmark
+{
+	protected static final int REPLIES = 20000;
+	
+	protected File _file;
+	
+	@Override
+	public void setUp(SyntheticData data) throws Exception
+	{
+		this._file = data.writeYahooConversation("me_local", REPLIES);
+	}
+	
+	@Override
+	public int run() throws Exception
+	{
+		YahooConversationReader reader = new YahooConversationReader(this._file, "me_local", "buddy", 0, -1);
+		
+		int count = 0;
+		while (reader.hasNext())
+		{
+			RawReply reply = reader.next();
+			if (reply == null) break;
+			sink += reply.hashCode();
+			count++;
+		}
+		
+		return count;
+	}
+}
@@ -9,18 +9,27 @@ package uniarchive;
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
 
+import uniarchive.cli.CommandLine;
 import uniarchive.forms.MainForm;
 import uniarchive.graphics.IconManager;
 import uniarchive.graphics.SmileyManager;
+import uniarchive.models.Metrics;
 import uniarchive.models.archive.ArchiveDb;
 
 /**
  * Main class.
+ * 
+ * When started with arguments, the program runs the command they
+ * specify without a GUI (see CommandLine) and exits.
  */
 public abstract class Main
 {
 	public static String[] programArgs = null;
 	
+	protected static final Metrics.Timer STARTUP_TIMER = Metrics.timer("app.startup");
+	
+	protected static long _startTime;
+	
 	/**
 	 * Main program.
 	 * 
@@ -29,6 +38,13 @@ public abstract class Main
 	public static void main(String[] args) throws Exception
 	{
 		Main.programArgs = args;
+		Main._startTime = STARTUP_TIMER.start();
+		
+		if (args.length > 0)
+		{
+			System.setProperty("java.awt.headless", "true");
+			System.exit(CommandLine.run(args));
+		}
 		
 		// Initialize the GUI in the Swing event thread	
 		javax.swing.SwingUtilities.invokeLater(new Runnable() {
@@ -58,6 +74,9 @@ public abstract class Main
 			
 			MainForm mainForm = new MainForm();
 			mainForm.setVisible(true);
+			
+			// Time taken until the main window appears
+			STARTUP_TIMER.stop(Main._startTime);
 		}
 		catch (Exception e)
 		{
@@ -0,0 +1,732 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.cli;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import uniarchive.models.Metrics;
+import uniarchive.models.ProgressEvent;
+import uniarchive.models.ProgressListener;
+import uniarchive.models.archive.ArchiveDb;
+import uniarchive.models.archive.ConversationsQuery;
+import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.IMArchiveBinaryReader;
+import uniarchive.models.archive.IMArchiveBinaryWriter;
+import uniarchive.models.archive.IMArchiveJsonReader;
+import uniarchive.models.archive.IMArchiveJsonWriter;
+import uniarchive.models.archive.IMArchive.Conversation;
+import uniarchive.models.archive.IMArchive.Conversation.Reply;
+import uniarchive.models.digsby_import.DigsbyImportJob;
+import uniarchive.models.gaim_import.GaimImportJob;
+import uniarchive.models.import_common.Feedback;
+import uniarchive.models.import_common.ImportRules;
+import uniarchive.models.import_common.OperationStatus;
+import uniarchive.models.import_common.UnresolvedAliasesQuery;
+import uniarchive.models.msn_import.MsnImportJob;
+import uniarchive.models.yahoo_import.YahooImportJob;
+
+/**
+ * Class for running archive operations from the command line,
+ * without a GUI. This is used when the program is started with
+ * arguments.
+ * 
+ * The queries normally answered by the user during an import
+ * are answered according to a rules file (see ImportRules).
+ * 
+ * Progress messages are printed to the standard error stream.
+ * The standard output receives the results of the command, in
+ * the form of tab-separated lines, ending with a 'stats' line
+ * that gives the time taken and the amount of data processed,
+ * as name=value pairs. With --metrics, the performance metrics
+ * collected during the command (see Metrics) are also printed,
+ * as 'metric' lines before the 'stats' line.
+ */
+public abstract class CommandLine
+{
+	protected static final String USAGE =
+		"Usage: uniarchive COMMAND ARGUMENTS [OPTIONS]\n"+
+		"\n"+
+		"Commands:\n"+
+		"  list\n"+
+		"      Lists the archives in the database.\n"+
+		"  import gaim|msn|yahoo|digsby FOLDER ARCHIVE [--rules FILE] [--replace]\n"+
+		"      Imports the logs in FOLDER and merges them into ARCHIVE (or replaces\n"+
+		"      its data). Import queries are answered according to the rules file.\n"+
+		"  import-json FILE ARCHIVE [--replace] [--threads N]\n"+
+		"      Loads an exported archive (JSON, compressed JSON, binary or an\n"+
+		"      increment) and merges it into ARCHIVE (or replaces its data).\n"+
+		"  merge SOURCE DEST [--accounting-only] [--replace]\n"+
+		"      Merges archive SOURCE into archive DEST (or replaces its data).\n"+
+		"  export ARCHIVE FILE [--incremental] [--compression LEVEL] [--threads N]\n"+
+		"      Exports ARCHIVE in the format given by the extension of FILE. An\n"+
+		"      incremental export only includes the conversations added since the\n"+
+		"      last one.\n"+
+		"  search ARCHIVE REGEX [--ignore-case] [--max-results N] [--from DATE] [--to DATE]\n"+
+		"      Lists the conversations whose replies match a regular expression.\n"+
+		"      Only conversations started from --from (inclusive) up to --to\n"+
+		"      (exclusive) are searched. Dates are given as YYYY-MM-DD.\n"+
+		"  pack-replies ARCHIVE [--unpack]\n"+
+		"      Packs the replies in ARCHIVE into compressed blocks (or unpacks\n"+
+		"      them), then reads them all back. The space used by the database\n"+
+		"      before and after is reported.\n"+
+		"  sweep\n"+
+		"      Removes the data in the database that does not belong to any\n"+
+		"      archive. This scans every table, so it may take a while.\n"+
+		"\n"+
+		"Options for all commands:\n"+
+		"  --metrics\n"+
+		"      Prints the performance metrics collected during the command.\n"+
+		"  --metrics-file FILE\n"+
+		"      Writes the performance metrics to FILE.\n";
+	
+	protected static final String[] FLAG_OPTIONS = { "replace", "accounting-only", "incremental", "ignore-case", "unpack", "metrics" };
+	protected static final String[] VALUE_OPTIONS = { "rules", "threads", "compression", "max-results", "from", "to", "metrics-file" };
+	
+	protected static final int DEFAULT_MAX_RESULTS = 1000;
+	protected static final int READ_BATCH_SIZE = 128;
+	
+	protected static PrintStream _out = System.out;
+	protected static PrintStream _err = System.err;
+	
+	/**
+	 * Runs a command.
+	 * 
+	 * @param args The command-line arguments
+	 * @return The exit status (0 for success)
+	 */
+	public static int run(String[] args)
+	{
+		List<String> positional = new ArrayList<String>();
+		Map<String,String> options = new LinkedHashMap<String,String>();
+		
+		try
+		{
+			_parseArguments(args, positional, options);
+			if (positional.isEmpty()) throw new UsageException("No command given");
+			
+			String command = positional.remove(0);
+			Stats stats = new Stats(command);
+			
+			ArchiveDb.getInstance();
+			stats.lap("startup_ms");
+			
+			if (command.equals("list")) _list(positional, options, stats);
+			else if (command.equals("import")) _import(positional, options, stats);
+			else if (command.equals("import-json")) _importJson(positional, options, stats);
+			else if (command.equals("merge")) _merge(positional, options, stats);
+			else if (command.equals("export")) _export(positional, options, stats);
+			else if (command.equals("search")) _search(positional, options, stats);
+			else if (command.equals("pack-replies")) _packReplies(positional, options, stats);
+			else if (command.equals("sweep")) _sweep(positional, options, stats);
+			else throw new UsageException("Unknown command '"+command+"'");
+			
+			if (options.containsKey("metrics"))
+				for (Metrics.Snapshot snapshot : Metrics.snapshot()) _out.println("metric\t"+snapshot.toLine());
+			if (options.containsKey("metrics-file")) Metrics.writeReport(new File(options.get("metrics-file")));
+			
+			stats.print(_out);
+			
+			return 0;
+		}
+		catch (UsageException e)
+		{
+			_err.println(e.getMessage()+"\n");
+			_err.print(USAGE);
+			
+			return 2;
+		}
+		catch (Exception e)
+		{
+			_err.println("Error: "+e.getMessage());
+			
+			return 1;
+		}
+		finally
+		{
+			ArchiveDb.getInstance().close();
+		}
+	}
+	
+	/**
+	 * Executes the 'list' command.
+	 * 
+	 * @param args The positional arguments
+	 * @param options The options
+	 * @param stats The statistics for the command
+	 */
+	protected static void _list(List<String> args, Map<String,String> options, Stats stats) throws Exception
+	{
+		_checkArguments(args, 0);
+		
+		List<String> names = ArchiveDb.getInstance().getArchives();
+		for (String name : names) _out.println("archive\t"+name);
+		
+		stats.put("archives", names.size());
+	}
+	
+	/**
+	 * Executes the 'import' command.
+	 * 
+	 * @param args The positional arguments
+	 * @param options The options
+	 * @param stats The statistics for the command
+	 */
+	protected static void _import(List<String> args, Map<String,String> options, Stats stats) throws Exception
+	{
+		_checkArguments(args, 3);
+		
+		String format = args.get(0);
+		File folder = new File(args.get(1));
+		ImportRules rules = options.containsKey("rules") ? new ImportRules(new File(options.get("rules"))) : new ImportRules();
+		ProgressListener listener = new ProgressPrinter();
+		
+		if (!folder.isDirectory()) throw new RuntimeException("Cannot find folder '"+folder+"'");
+		
+		IMArchive imported;
+		if (format.equals("gaim"))
+		{
+			GaimImportJob job = new GaimImportJob(folder, listener);
+			List<String> localNames = rules.answer(job.runPhase1());
+			job.runPhase2(localNames);
+			imported = job.runPhase4(rules.answer(job.runPhase3()));
+		}
+		else if (format.equals("msn"))
+		{
+			MsnImportJob job = new MsnImportJob(folder, listener);
+			List<String> localNames = rules.answer(job.runPhase1());
+			Feedback feedback = job.runPhase2(localNames);
+			_checkStatus(feedback, "The local names are not valid");
+			Object result = job.runPhase3(rules.answer((UnresolvedAliasesQuery)feedback));
+			_checkStatus(result, "The alias resolution is not valid");
+			imported = (IMArchive)result;
+		}
+		else if (format.equals("yahoo"))
+		{
+			imported = new YahooImportJob(folder, listener).run();
+		}
+		else if (format.equals("digsby"))
+		{
+			imported = new DigsbyImportJob(folder, listener).run();
+		}
+		else throw new UsageException("Unknown import format '"+format+"'");
+		
+		stats.lap("import_ms");
+		stats.put("conversations", imported.countConversationsInQuery(new ConversationsQuery()));
+		
+		_storeArchive(imported, args.get(2), options.containsKey("replace"), false);
+		stats.lap("store_ms");
+	}
+	
+	/**
+	 * Executes the 'import-json' command.
+	 * 
+	 * @param args The positional arguments
+	 * @param options The options
+	 * @param stats The statistics for the command
+	 */
+	protected static void _importJson(List<String> args, Map<String,String> options, Stats stats) throws Exception
+	{
+		_checkArguments(args, 2);
+		
+		File file = new File(args.get(0));
+		if (!file.isFile()) throw new RuntimeException("Cannot find file '"+file+"'");
+		
+		IMArchive loaded;
+		if (IMArchiveBinaryReader.isBinaryArchive(file))
+		{
+			IMArchiveBinaryReader reader = new IMArchiveBinaryReader(file);
+			try
+			{
+				loaded = reader.readArchive(new ProgressPrinter());
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		else
+		{
+			IMArchiveJsonReader reader = new IMArchiveJsonReader(file);
+			try
+			{
+				reader.setThreadCount(_getIntOption(options, "threads", Runtime.getRuntime().availableProcessors()));
+				loaded = reader.readArchive(new ProgressPrinter());
+				stats.put("incremental", reader.isIncremental() ? 1 : 0);
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		
+		stats.lap("read_ms");
+		stats.putThroughput("read", file.length(), stats.get("read_ms"));
+		stats.put("conversations", loaded.countConversationsInQuery(new ConversationsQuery()));
+		
+		_storeArchive(loaded, args.get(1), options.containsKey("replace"), false);
+		stats.lap("store_ms");
+	}
+	
+	/**
+	 * Executes the 'merge' command.
+	 * 
+	 * @param args The positional arguments
+	 * @param options The options
+	 * @param stats The statistics for the command
+	 */
+	protected static void _merge(List<String> args, Map<String,String> options, Stats stats) throws Exception
+	{
+		_checkArguments(args, 2);
+		
+		IMArchive source = _openArchive(args.get(0));
+		IMArchive destination = new IMArchive(args.get(1));
+		boolean accountingOnly = options.containsKey("accounting-only");
+		
+		if (options.containsKey("replace"))
+			destination.replaceData(source, accountingOnly, new ProgressPrinter());
+		else
+			destination.mergeData(source, accountingOnly, new ProgressPrinter());
+		
+		stats.lap("merge_ms");
+		stats.put("conversations", destination.countConversationsInQuery(new ConversationsQuery()));
+	}
+	
+	/**
+	 * Executes the 'export' command.
+	 * 
+	 * @param args The positional arguments
+	 * @param options The options
+	 * @param stats The statistics for the command
+	 */
+	protected static void _export(List<String> args, Map<String,String> options, Stats stats) throws Exception
+	{
+		_checkArguments(args, 2);
+		
+		IMArchive archive = _openArchive(args.get(0));
+		File file = new File(args.get(1));
+		boolean incremental = options.containsKey("incremental");
+		
+		if (file.getName().toLowerCase().endsWith(IMArchiveBinaryWriter.FILE_SUFFIX))
+		{
+			if (incremental) throw new UsageException("Incremental exports are only available in JSON format");
+			
+			IMArchiveBinaryWriter writer = new IMArchiveBinaryWriter(file);
+			writer.writeArchive(archive, new ProgressPrinter());
+			writer.close();
+		}
+		else
+		{
+			int defaultLevel = IMArchiveJsonWriter.isCompressedFileName(file) ?
+					IMArchiveJsonWriter.DEFAULT_COMPRESSION_LEVEL : IMArchiveJsonWriter.NO_COMPRESSION;
+			IMArchiveJsonWriter writer = new IMArchiveJsonWriter(file, _getIntOption(options, "compression", defaultLevel));
+			writer.setThreadCount(_getIntOption(options, "threads", Runtime.getRuntime().availableProcessors()));
+			
+			int checkpoint = -1;
+			if (incremental)
+				checkpoint = writer.writeIncrement(archive, new ProgressPrinter());
+			else
+				writer.writeArchive(archive, new ProgressPrinter());
+			writer.close();
+			
+			if (incremental)
+			{
+				archive.setExportCheckpoint(checkpoint);
+				stats.put("checkpoint", checkpoint);
+			}
+		}
+		
+		stats.lap("write_ms");
+		stats.putThroughput("write", file.length(), stats.get("write_ms"));
+	}
+	
+	/**
+	 * Executes the 'search' command.
+	 * 
+	 * @param args The positional arguments
+	 * @param options The options
+	 * @param stats The statistics for the command
+	 */
+	protected static void _search(List<String> args, Map<String,String> options, Stats stats) throws Exception
+	{
+		_checkArguments(args, 2);
+		
+		IMArchive archive = _openArchive(args.get(0));
+		Pattern pattern = Pattern.compile(args.get(1), options.containsKey("ignore-case") ?
+				(Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE) : 0);
+		int maxResults = _getIntOption(options, "max-results", DEFAULT_MAX_RESULTS);
+		
+		ConversationsQuery query = new ConversationsQuery();
+		query.dateFrom = _getDateOption(options, "from");
+		query.dateTo = _getDateOption(options, "to");
+		
+		List<Conversation> results = archive.searchConversations(query, pattern, maxResults, new ProgressPrinter());
+		
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		for (Conversation conv : results)
+			_out.println("result\t"+conv.sqlId+"\t"+dateFormat.format(conv.dateStarted)+"\t"+
+					conv.localAccount.service.shortName+":"+conv.localAccount.name+"\t"+
+					conv.remoteAccount.service.shortName+":"+conv.remoteAccount.name);
+		
+		stats.lap("search_ms");
+		stats.put("results", results.size());
+	}
+	
+	/**
+	 * Executes the 'pack-replies' command.
+	 * 
+	 * @param args The positional arguments
+	 * @param options The options
+	 * @param stats The statistics for the command
+	 */
+	protected static void _packReplies(List<String> args, Map<String,String> options, Stats stats) throws Exception
+	{
+		_checkArguments(args, 1);
+		
+		IMArchive archive = _openArchive(args.get(0));
+		ArchiveDb db = ArchiveDb.getInstance();
+		
+		stats.put("used_bytes_before", db.getUsedBytes());
+		if (options.containsKey("unpack"))
+			stats.put("replies", archive.unpackReplies(new ProgressPrinter()));
+		else
+			stats.put("replies", archive.packReplies(new ProgressPrinter()));
+		stats.lap("pack_ms");
+		stats.put("used_bytes_after", db.getUsedBytes());
+		
+		// Read back every reply, so that the read speed of both
+		// layouts can be compared
+		List<Conversation> conversations = archive.getConversations(new ConversationsQuery());
+		long replies = 0;
+		for (int i=0; i<conversations.size(); i+=READ_BATCH_SIZE)
+		{
+			List<Conversation> batch = conversations.subList(i, Math.min(i+READ_BATCH_SIZE, conversations.size()));
+			for (List<Reply> convReplies : archive.getReplies(batch)) replies += convReplies.size();
+		}
+		stats.lap("read_ms");
+		stats.put("read_replies", replies);
+		stats.put("read_replies_per_sec", replies * 1000L / Math.max(1L, stats.get("read_ms")));
+	}
+	
+	/**
+	 * Executes the 'sweep' command.
+	 * 
+	 * @param args The positional arguments
+	 * @param options The options
+	 * @param stats The statistics for the command
+	 */
+	protected static void _sweep(List<String> args, Map<String,String> options, Stats stats) throws Exception
+	{
+		_checkArguments(args, 0);
+		
+		_err.println("Sweeping orphaned data...");
+		ArchiveDb.getInstance().sweepOrphans();
+		
+		stats.lap("sweep_ms");
+	}
+	
+	/**
+	 * Stores the data in a temporary archive into a named
+	 * archive, and deletes the temporary archive.
+	 * 
+	 * @param source The temporary archive
+	 * @param destName The name of the destination archive (it
+	 *                 is created if it does not exist)
+	 * @param replace True if the data is to replace that in the
+	 *                destination, false if it is to be merged
+	 * @param accountingOnly True if only accounting data is to
+	 *                       be stored
+	 */
+	protected static void _storeArchive(IMArchive source, String destName, boolean replace,
+			boolean accountingOnly) throws Exception
+	{
+		try
+		{
+			IMArchive destination = new IMArchive(destName);
+			
+			if (replace)
+				destination.replaceData(source, accountingOnly, new ProgressPrinter());
+			else
+				destination.mergeData(source, accountingOnly, new ProgressPrinter());
+		}
+		finally
+		{
+			source.delete();
+		}
+	}
+	
+	/**
+	 * Connects to an existing archive.
+	 * 
+	 * @param name The name of the archive
+	 * @return The archive
+	 */
+	protected static IMArchive _openArchive(String name) throws Exception
+	{
+		if (!ArchiveDb.getInstance().getArchives().contains(name))
+			throw new RuntimeException("There is no archive named '"+name+"'");
+		
+		return new IMArchive(name);
+	}
+	
+	/**
+	 * Checks the feedback from an import phase, and throws an
+	 * exception if it reports errors.
+	 * 
+	 * @param feedback The feedback object
+	 * @param message A description of the problem
+	 */
+	protected static void _checkStatus(Object feedback, String message)
+	{
+		if (!(feedback instanceof OperationStatus)) return;
+		
+		StringBuilder buf = new StringBuilder(message+":");
+		for (String error : ((OperationStatus)feedback).errors) buf.append("\n").append(error);
+		
+		throw new RuntimeException(buf.toString());
+	}
+	
+	/**
+	 * Separates the command-line arguments into positional
+	 * arguments and options.
+	 * 
+	 * @param args The command-line arguments
+	 * @param positional The list that receives the positional
+	 *                   arguments
+	 * @param options The map that receives the options (flags
+	 *                map to null)
+	 */
+	protected static void _parseArguments(String[] args, List<String> positional, Map<String,String> options)
+	{
+		for (int i=0; i<args.length; i++)
+		{
+			if (!args[i].startsWith("--"))
+			{
+				positional.add(args[i]);
+				continue;
+			}
+			
+			String name = args[i].substring(2);
+			if (_contains(FLAG_OPTIONS, name))
+			{
+				options.put(name, null);
+			}
+			else if (_contains(VALUE_OPTIONS, name))
+			{
+				if (i+1 == args.length) throw new UsageException("Option '"+args[i]+"' requires a value");
+				options.put(name, args[++i]);
+			}
+			else throw new UsageException("Unknown option '"+args[i]+"'");
+		}
+	}
+	
+	/**
+	 * Checks the number of positional arguments for a command.
+	 * 
+	 * @param args The positional arguments
+	 * @param count The expected number of arguments
+	 */
+	protected static void _checkArguments(List<String> args, int count)
+	{
+		if (args.size() != count)
+			throw new UsageException("Expecting "+count+" arguments, found "+args.size());
+	}
+	
+	/**
+	 * Gets the value of an integer option.
+	 * 
+	 * @param options The options
+	 * @param name The name of the option
+	 * @param defaultValue The value returned if the option
+	 *                     is absent
+	 * @return The value of the option
+	 */
+	protected static int _getIntOption(Map<String,String> options, String name, int defaultValue)
+	{
+		if (!options.containsKey(name)) return defaultValue;
+		
+		try
+		{
+			return Integer.parseInt(options.get(name));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new UsageException("Option '--"+name+"' requires an integer value");
+		}
+	}
+	
+	/**
+	 * Gets the value of a date option, given as YYYY-MM-DD
+	 * (in local time).
+	 * 
+	 * @param options The options
+	 * @param name The name of the option
+	 * @return The value of the option, or null if it is absent
+	 */
+	protected static Date _getDateOption(Map<String,String> options, String name)
+	{
+		if (!options.containsKey(name)) return null;
+		
+		try
+		{
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+			format.setLenient(false);
+			
+			return format.parse(options.get(name));
+		}
+		catch (ParseException e)
+		{
+			throw new UsageException("Option '--"+name+"' requires a date of the form YYYY-MM-DD");
+		}
+	}
+	
+	/**
+	 * Checks whether an array contains a given string.
+	 * 
+	 * @param array An array of strings
+	 * @param string The string to look for
+	 * @return True if the string is in the array
+	 */
+	protected static boolean _contains(String[] array, String string)
+	{
+		for (String item : array) if (item.equals(string)) return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Exception class for errors in the command-line arguments.
+	 */
+	protected static class UsageException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param message A description of the error
+		 */
+		public UsageException(String message)
+		{
+			super(message);
+		}
+	}
+	
+	/**
+	 * Progress listener that prints the description of each
+	 * operation in progress, as it changes.
+	 */
+	protected static class ProgressPrinter implements ProgressListener
+	{
+		protected String _lastComment = null;
+		
+		@Override
+		public void onProgress(ProgressEvent progEvent)
+		{
+			if ((progEvent.comment == null) || progEvent.comment.equals(this._lastComment)) return;
+			
+			this._lastComment = progEvent.comment;
+			_err.println(progEvent.comment);
+		}
+	}
+	
+	/**
+	 * Class for gathering the statistics of a command.
+	 */
+	protected static class Stats
+	{
+		protected Map<String,Long> _values = new LinkedHashMap<String,Long>();
+		protected String _command;
+		protected long _startTime;
+		protected long _lapTime;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param command The name of the command
+		 */
+		public Stats(String command)
+		{
+			this._command = command;
+			this._startTime = this._lapTime = System.nanoTime();
+		}
+		
+		/**
+		 * Records a statistic.
+		 * 
+		 * @param name The name of the statistic
+		 * @param value Its value
+		 */
+		public void put(String name, long value)
+		{
+			this._values.put(name, value);
+		}
+		
+		/**
+		 * Gets a recorded statistic.
+		 * 
+		 * @param name The name of the statistic
+		 * @return Its value
+		 */
+		public long get(String name)
+		{
+			return this._values.get(name);
+		}
+		
+		/**
+		 * Records the time elapsed since the previous lap (or
+		 * since the start of the command), in milliseconds.
+		 * 
+		 * @param name The name of the statistic
+		 */
+		public void lap(String name)
+		{
+			long now = System.nanoTime();
+			
+			this.put(name, (now - this._lapTime) / 1000000L);
+			this._lapTime = now;
+		}
+		
+		/**
+		 * Records an amount of data transferred and the
+		 * corresponding throughput.
+		 * 
+		 * @param prefix The prefix for the statistics names
+		 * @param bytes The number of bytes transferred
+		 * @param millis The time taken, in milliseconds
+		 */
+		public void putThroughput(String prefix, long bytes, long millis)
+		{
+			this.put(prefix+"_bytes", bytes);
+			this.put(prefix+"_bytes_per_sec", bytes * 1000L / Math.max(1L, millis));
+		}
+		
+		/**
+		 * Prints the statistics as a single line.
+		 * 
+		 * @param out The stream to print to
+		 */
+		public void print(PrintStream out)
+		{
+			StringBuilder buf = new StringBuilder("stats\tcommand=").append(this._command);
+			
+			this.put("total_ms", (System.nanoTime() - this._startTime) / 1000000L);
+			for (Map.Entry<String,Long> entry : this._values.entrySet())
+				buf.append('\t').append(entry.getKey()).append('=').append(entry.getValue());
+			
+			out.println(buf.toString());
+		}
+	}
+}
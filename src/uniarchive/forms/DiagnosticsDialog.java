@@ -0,0 +1,213 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.forms;
+
+import java.awt.BorderLayout;
+import java.awt.Dialog;
+import java.awt.Dimension;
+import java.awt.Window;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.util.List;
+
+import javax.swing.AbstractButton;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.border.EmptyBorder;
+import javax.swing.table.DefaultTableModel;
+
+import uniarchive.models.Metrics;
+import uniarchive.widgets.HorizEtchedLine;
+import uniarchive.widgets.UIUtils;
+
+/**
+ * Class for a dialog that displays the performance metrics
+ * collected by the program (see Metrics) and allows them to
+ * be saved to a file.
+ */
+public class DiagnosticsDialog extends JDialog
+{
+	private static final long serialVersionUID = 1;
+	
+	protected static final String COMMAND_REFRESH = "refresh";
+	protected static final String COMMAND_RESET = "reset";
+	protected static final String COMMAND_SAVE = "save";
+	protected static final String COMMAND_CLOSE = "close";
+	
+	protected JTable _metricsTable;
+	protected DefaultTableModel _metricsModel;
+	protected JFileChooser _fileChooser;
+	
+	protected CommandButtonListener _cmdButtonListener = new CommandButtonListener();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param owner The parent window for this dialog
+	 */
+	public DiagnosticsDialog(Window owner)
+	{
+		super(owner, "Diagnostics", Dialog.DEFAULT_MODALITY_TYPE);
+		
+		this._initUI();
+	}
+	
+	/**
+	 * Shows the dialog.
+	 */
+	public void showDialog()
+	{
+		this._refresh();
+		
+		this.setVisible(true); // Function blocks here
+	}
+	
+	/**
+	 * Reloads the metrics displayed in the table.
+	 */
+	protected void _refresh()
+	{
+		this._metricsModel.setRowCount(0);
+		
+		List<Metrics.Snapshot> snapshots = Metrics.snapshot();
+		for (Metrics.Snapshot snapshot : snapshots)
+			this._metricsModel.addRow(snapshot.toLine().split("\t"));
+	}
+	
+	/**
+	 * Reacts to the pressing of the "reset" button.
+	 */
+	protected void _doReset()
+	{
+		Metrics.reset();
+		this._refresh();
+	}
+	
+	/**
+	 * Reacts to the pressing of the "save" button.
+	 */
+	protected void _doSave()
+	{
+		if (this._fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+		File file = this._fileChooser.getSelectedFile();
+		
+		try
+		{
+			Metrics.writeReport(file);
+		}
+		catch (Exception e)
+		{
+			JOptionPane.showMessageDialog(this, "Could not save metrics:\n"+e.getMessage(), "Error",
+					JOptionPane.ERROR_MESSAGE);
+		}
+	}
+	
+	/**
+	 * Initializes the form GUI.
+	 */
+	protected void _initUI()
+	{
+		this.setLayout(new BorderLayout());
+		
+		this.add(this._createMainPanel(), BorderLayout.CENTER);
+		this.add(this._createBottomPanel(), BorderLayout.SOUTH);
+		
+		this._fileChooser = new JFileChooser();
+		this._fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+		this._fileChooser.setDialogTitle("Save Metrics");
+		
+		Dimension screenSize = java.awt.Toolkit.getDefaultToolkit().getScreenSize();
+		this.setSize(new Dimension(screenSize.width*4/7, screenSize.height*3/7));
+		this.setLocationRelativeTo(this.getOwner());
+	}
+	
+	/**
+	 * Initializes the main panel and all child controls.
+	 * 
+	 * @return A newly created JPanel
+	 */
+	protected JPanel _createMainPanel()
+	{
+		this._metricsModel = new DefaultTableModel(Metrics.REPORT_HEADER.split("\t"), 0)
+			{
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				public boolean isCellEditable(int row, int column) { return false; }
+			};
+		this._metricsTable = new JTable(this._metricsModel);
+		this._metricsTable.setAutoCreateRowSorter(true);
+		this._metricsTable.getColumnModel().getColumn(0).setPreferredWidth(
+				this._metricsTable.getFont().getSize()*16);
+		
+		JPanel mainPanel = new JPanel(new BorderLayout());
+		mainPanel.add(new JScrollPane(this._metricsTable), BorderLayout.CENTER);
+		mainPanel.setBorder(new EmptyBorder(8,8,8,8));
+		
+		return mainPanel;
+	}
+	
+	/**
+	 * Initializes the bottom panel and all child controls.
+	 * 
+	 * @return A newly created JPanel
+	 */
+	protected JPanel _createBottomPanel()
+	{
+		Box panel = new Box(BoxLayout.X_AXIS);
+		
+		JButton refreshButton = UIUtils.makeButton("Refresh", null, this._cmdButtonListener, COMMAND_REFRESH);
+		JButton resetButton = UIUtils.makeButton("Reset", "delete", this._cmdButtonListener, COMMAND_RESET);
+		JButton saveButton = UIUtils.makeButton("Save...", "drive", this._cmdButtonListener, COMMAND_SAVE);
+		JButton closeButton = UIUtils.makeButton("Close", "accept", this._cmdButtonListener, COMMAND_CLOSE);
+		
+		panel.add(refreshButton);
+		panel.add(Box.createHorizontalStrut(8));
+		panel.add(resetButton);
+		panel.add(Box.createHorizontalStrut(8));
+		panel.add(saveButton);
+		panel.add(Box.createHorizontalGlue());
+		panel.add(closeButton);
+		panel.setBorder(new EmptyBorder(8,8,8,8));
+		
+		JPanel superPanel = new JPanel(new BorderLayout());
+		superPanel.add(new HorizEtchedLine(), BorderLayout.NORTH);
+		superPanel.add(panel, BorderLayout.CENTER);
+		
+		return superPanel;
+	}
+	
+	/**
+	 * Internal class that listens to click events on command
+	 * buttons contained in this form and starts the corresponding
+	 * actions.
+	 */
+	protected class CommandButtonListener implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent evt)
+		{
+			if (evt.getSource() instanceof AbstractButton)
+			{
+				String commandId = evt.getActionCommand();
+				
+				if (commandId.equals(DiagnosticsDialog.COMMAND_REFRESH)) { _refresh(); }
+				else if (commandId.equals(DiagnosticsDialog.COMMAND_RESET)) { _doReset(); }
+				else if (commandId.equals(DiagnosticsDialog.COMMAND_SAVE)) { _doSave(); }
+				else if (commandId.equals(DiagnosticsDialog.COMMAND_CLOSE)) { setVisible(false); }
+			}
+		}
+	}
+}
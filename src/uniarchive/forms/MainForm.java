@@ -42,9 +42,12 @@ import uniarchive.forms.importing.YahooImportDialog;
 import uniarchive.graphics.IconManager;
 import uniarchive.models.ProgressEvent;
 import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
 import uniarchive.models.archive.ArchiveDb;
 import uniarchive.models.archive.ConversationsQuery;
 import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.IMArchiveBinaryReader;
+import uniarchive.models.archive.IMArchiveBinaryWriter;
 import uniarchive.models.archive.IMArchiveEvent;
 import uniarchive.models.archive.IMArchiveJsonReader;
 import uniarchive.models.archive.IMArchiveJsonWriter;
@@ -72,6 +75,8 @@ public class MainForm extends JFrame
 	protected static final String COMMAND_CONNECT = "connect";
 	protected static final String COMMAND_DISCONNECT = "disconnect";
 	protected static final String COMMAND_END_PROGRAM = "endProgram";
+	protected static final String COMMAND_SHOW_DIAGNOSTICS = "showDiagnostics";
+	protected static final String COMMAND_SWEEP_ORPHANS = "sweepOrphans";
 	
 	protected static final String COMMAND_EXPORT_TO_FILE = "exportToFile";
 	
@@ -105,6 +110,8 @@ public class MainForm extends JFrame
 	protected ChatView _chatView;
 	
 	protected JFileChooser _fileChooser;
+	protected FileNameExtensionFilter _compressedFileFilter;
+	protected FileNameExtensionFilter _binaryFileFilter;
 	protected GaimImportDialog _gaimImportForm;
 	protected YahooImportDialog _yahooImportForm;
 	protected DigsbyImportDialog _digsbyImportForm;
@@ -112,6 +119,7 @@ public class MainForm extends JFrame
 	protected NewArchiveDialog _newArchiveDialog;
 	protected ImportFinishedDialog _importFinishedDialog;
 	protected ProgressDialog _progressDialog;
+	protected DiagnosticsDialog _diagnosticsDialog;
 	
 	protected JMenu _menuOperations;
 	protected JMenu _menuSearch;
@@ -119,6 +127,7 @@ public class MainForm extends JFrame
 	protected JMenu _menuExport;
 	protected JMenu _menuImportFromArchive;
 	protected JMenuItem _menuItemDisconnect;
+	protected JMenuItem _menuItemSweepOrphans;
 	protected JMenuItem _menuItemAddGroup;
 	protected JMenuItem _menuItemAddContact;
 	protected JMenuItem _menuItemAddIdentity;
@@ -190,6 +199,10 @@ public class MainForm extends JFrame
 		this._fileChooser = new JFileChooser();
 		this._fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
 		this._fileChooser.setMultiSelectionEnabled(false);
+		this._binaryFileFilter = new FileNameExtensionFilter("IM Archive in Binary Format (*.uab)", "uab");
+		this._fileChooser.addChoosableFileFilter(this._binaryFileFilter);
+		this._compressedFileFilter = new FileNameExtensionFilter("Compressed IM Archive in JSON Format (*.json.gz)", "gz");
+		this._fileChooser.addChoosableFileFilter(this._compressedFileFilter);
 		this._fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("IM Archive in JSON Format (*.json)", "json"));
 		
 		// Import forms
@@ -202,6 +215,7 @@ public class MainForm extends JFrame
 		this._progressDialog = new ProgressDialog(this);
 		this._newArchiveDialog = new NewArchiveDialog(this);
 		this._importFinishedDialog = new ImportFinishedDialog(this);
+		this._diagnosticsDialog = new DiagnosticsDialog(this);
 	}
 	
 	/**
@@ -240,6 +254,10 @@ public class MainForm extends JFrame
 		fileMenu.add(this._createImportSubmenu());
 		fileMenu.add(this._menuExport);
 		fileMenu.add(new JSeparator());
+		fileMenu.add(UIUtils.makeMenuItem("Diagnostics...", null, this._cmdButtonListener, COMMAND_SHOW_DIAGNOSTICS));
+		this._menuItemSweepOrphans = UIUtils.makeMenuItem("Sweep Orphaned Data", null, this._cmdButtonListener,
+				COMMAND_SWEEP_ORPHANS);
+		fileMenu.add(this._menuItemSweepOrphans);
 		fileMenu.add(UIUtils.makeMenuItem("Exit Program", "exit", this._cmdButtonListener, COMMAND_END_PROGRAM));
 		
 		return fileMenu;
@@ -413,6 +431,7 @@ public class MainForm extends JFrame
 		this._progressDialog.dispose();
 		this._newArchiveDialog.dispose();
 		this._importFinishedDialog.dispose();
+		this._diagnosticsDialog.dispose();
 	
 		ArchiveDb.getInstance().close();
 		this.dispose();
@@ -506,6 +525,17 @@ public class MainForm extends JFrame
 		this._setArchive(null);
 	}
 	
+	/**
+	 * Executes the Sweep Orphaned Data command. The sweep runs
+	 * in the background, as it may take a while on a large
+	 * database.
+	 */
+	protected void _doSweepOrphans()
+	{
+		this._menuItemSweepOrphans.setEnabled(false);
+		new SweepWorker().execute();
+	}
+	
 	/**
 	 * Executes one of the Import Archive commands that
 	 * depends on an import dialog.
@@ -802,7 +832,17 @@ public class MainForm extends JFrame
 		
 			// Get file, adjusting the extension if necessary
 			file = this._fileChooser.getSelectedFile();
-			if (!file.getName().toLowerCase().endsWith(".json")) file = new File(file.getPath()+".json");
+			String fileName = file.getName().toLowerCase();
+			if (!fileName.endsWith(".json") && !fileName.endsWith(".json"+IMArchiveJsonWriter.COMPRESSED_FILE_SUFFIX) &&
+					!fileName.endsWith(IMArchiveBinaryWriter.FILE_SUFFIX))
+			{
+				if (this._fileChooser.getFileFilter() == this._binaryFileFilter)
+					file = new File(file.getPath()+IMArchiveBinaryWriter.FILE_SUFFIX);
+				else if (this._fileChooser.getFileFilter() == this._compressedFileFilter)
+					file = new File(file.getPath()+".json"+IMArchiveJsonWriter.COMPRESSED_FILE_SUFFIX);
+				else
+					file = new File(file.getPath()+".json");
+			}
 		
 			// Check for overwriting
 			if (file.exists())
@@ -1031,6 +1071,8 @@ public class MainForm extends JFrame
 				else if (commandId.equals(MainForm.COMMAND_CONNECT)) { _doConnectToArchive(((JMenuItem)evt.getSource()).getText()); }
 				else if (commandId.equals(MainForm.COMMAND_DISCONNECT)) { _doDisconnect(); }
 				else if (commandId.equals(MainForm.COMMAND_END_PROGRAM)) { _onClose(); }
+				else if (commandId.equals(MainForm.COMMAND_SHOW_DIAGNOSTICS)) { _diagnosticsDialog.showDialog(); }
+				else if (commandId.equals(MainForm.COMMAND_SWEEP_ORPHANS)) { _doSweepOrphans(); }
 				else if (commandId.equals(MainForm.COMMAND_IMPORT_FROM_FILE)) { _doImportArchiveFromFile(); }
 				else if (commandId.equals(MainForm.COMMAND_IMPORT_FROM_ARCHIVE)) { _doImportFromArchive(((JMenuItem)evt.getSource()).getText()); }
 				else if (commandId.equals(MainForm.COMMAND_IMPORT_FROM_GAIM)) { _doArchiveImport(_gaimImportForm); }
@@ -1098,14 +1140,17 @@ public class MainForm extends JFrame
 		@Override
 		protected Object doInBackground() throws Exception
 		{
+			ProgressReporter progress = new ProgressReporter(this);
+			
 			try
 			{
-				this._returnValue = this._task.run(this);
+				this._returnValue = this._task.run(progress);
 			}
 			catch (Exception e)
 			{
 				this._returnValue = e;
 			}
+			progress.flush();
 			
 			return this._returnValue;
 		}
@@ -1129,11 +1174,13 @@ public class MainForm extends JFrame
 		 */
 		protected void process(List<Object> events)
 		{
-			for (Object event : events)
+			// Only the latest progress event is of interest
+			for (int i=events.size()-1; i>=0; i--)
 			{
-				if (event instanceof ProgressEvent)
+				if (events.get(i) instanceof ProgressEvent)
 				{
-					_progressDialog.setProgress((ProgressEvent)event);
+					_progressDialog.setProgress((ProgressEvent)events.get(i));
+					break;
 				}
 			}
 		}
@@ -1151,6 +1198,50 @@ public class MainForm extends JFrame
 		}
 	}
 	
+	/**
+	 * Internal class for a Swing worker that sweeps orphaned
+	 * data from the database (see ArchiveDb.sweepOrphans()) in
+	 * the background, while the program remains usable.
+	 */
+	protected class SweepWorker extends SwingWorker<Object,Object>
+	{
+		/**
+		 * Sweeps the database.
+		 * 
+		 * This procedure executes in the worker's private
+		 * thread.
+		 */
+		@Override
+		protected Object doInBackground() throws Exception
+		{
+			long start = System.nanoTime();
+			ArchiveDb.getInstance().sweepOrphans();
+			
+			return Long.valueOf((System.nanoTime() - start) / 1000000L);
+		}
+		
+		@Override
+		/**
+		 * Reports the result of the sweep.
+		 * 
+		 * This procedure executes in the Swing event dispatch thread. 
+		 */
+		protected void done()
+		{
+			_menuItemSweepOrphans.setEnabled(true);
+			
+			try
+			{
+				JOptionPane.showMessageDialog(MainForm.this, "Orphaned data swept in "+this.get()+" ms.",
+						"Sweep Orphaned Data", JOptionPane.INFORMATION_MESSAGE);
+			}
+			catch (Exception e)
+			{
+				_showErrorMessage("Could not sweep orphaned data:\n"+e.getMessage());
+			}
+		}
+	}
+	
 	/**
 	 * Internal interface for defining a general task
 	 * that can be run by the TaskWorker, such as
@@ -1190,9 +1281,31 @@ public class MainForm extends JFrame
 		@Override
 		public Object run(ProgressListener progressListener) throws Exception
 		{
+			if (IMArchiveBinaryReader.isBinaryArchive(this._file))
+			{
+				IMArchiveBinaryReader reader = new IMArchiveBinaryReader(this._file);
+				
+				try
+				{
+					return reader.readArchive(progressListener);
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+			
 			IMArchiveJsonReader reader = new IMArchiveJsonReader(this._file);
+			reader.setThreadCount(Runtime.getRuntime().availableProcessors());
 			
-			return reader.readArchive(progressListener);
+			try
+			{
+				return reader.readArchive(progressListener);
+			}
+			finally
+			{
+				reader.close();
+			}
 		}
 	}
 	
@@ -1220,7 +1333,17 @@ public class MainForm extends JFrame
 		@Override
 		public Object run(ProgressListener progressListener) throws Exception
 		{
+			if (this._file.getName().toLowerCase().endsWith(IMArchiveBinaryWriter.FILE_SUFFIX))
+			{
+				IMArchiveBinaryWriter writer = new IMArchiveBinaryWriter(this._file);
+				writer.writeArchive(this._archive, progressListener);
+				writer.close();
+				
+				return null;
+			}
+			
 			IMArchiveJsonWriter writer = new IMArchiveJsonWriter(this._file);
+			writer.setThreadCount(Runtime.getRuntime().availableProcessors());
 			writer.writeArchive(this._archive, progressListener);
 			writer.close();
 			
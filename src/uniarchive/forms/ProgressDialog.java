@@ -53,7 +53,7 @@ public class ProgressDialog extends JDialog
 	 */
 	public void setProgress(ProgressEvent progress)
 	{
-		this._progressLabel.setText(progress.comment);
+		this._progressLabel.setText(progress.comment + _describeThroughput(progress));
 		if (progress.totalItems > 0)
 		{
 			this._progressBar.setMaximum(progress.totalItems);
@@ -66,6 +66,25 @@ public class ProgressDialog extends JDialog
 		}
 	}
 	
+	/**
+	 * Gets a description of the data throughput reported
+	 * in a progress event.
+	 * 
+	 * @param progress A progress event
+	 * @return A string to be appended to the progress comment
+	 *         (empty if no throughput information is available)
+	 */
+	protected static String _describeThroughput(ProgressEvent progress)
+	{
+		if (progress.uncompressedRate < 0) return "";
+		
+		if (progress.compressedRate < 0)
+			return String.format(" (%.1f MB/s)", progress.uncompressedRate / 1048576);
+		
+		return String.format(" (%.1f MB/s, %.1f MB/s compressed)",
+				progress.uncompressedRate / 1048576, progress.compressedRate / 1048576);
+	}
+	
 	/**
 	 * Shows the progress dialog. You should
 	 * call this instead of setVisible as it features
@@ -654,11 +654,17 @@ public abstract class ImportDialog extends JDialog
 		 */
 		protected void process(List<Object> events)
 		{
+			// Progress events superseded by a later one in the same
+			// batch are skipped
+			Object latestProgress = null;
+			for (Object event : events)
+				if (event instanceof ProgressEvent) latestProgress = event;
+			
 			for (Object event : events)
 			{
 				if (event instanceof ProgressEvent)
 				{
-					_onImportProgress((ProgressEvent)event);
+					if (event == latestProgress) _onImportProgress((ProgressEvent)event);
 				}
 				else if (event instanceof ImportMessage)
 				{
@@ -0,0 +1,247 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A reader for binary files consisting of a sequence of
+ * checksummed blocks, as written by BinaryBlockWriter.
+ * 
+ * Blocks are read one at a time; the checksum of each block
+ * is verified before any of its contents are decoded.
+ */
+public class BinaryBlockReader
+{
+	protected static final int MAX_BLOCK_SIZE = 1 << 28;
+	
+	protected InputStream _input;
+	protected byte[] _payload = new byte[65536];
+	protected int _payloadSize = 0;
+	protected int _payloadPos = 0;
+	protected int _blockIndex = -1;
+	protected CRC32 _crc = new CRC32();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param input The stream from which the blocks are to be
+	 *              read
+	 * @param signature The signature expected at the start of
+	 *                  the stream
+	 */
+	public BinaryBlockReader(InputStream input, byte[] signature) throws IOException
+	{
+		this._input = input;
+		
+		byte[] actual = new byte[signature.length];
+		if ((_readFully(input, actual, actual.length) < actual.length) || !Arrays.equals(actual, signature))
+			throw new RuntimeException("Invalid file signature");
+	}
+	
+	/**
+	 * Reads the next block.
+	 * 
+	 * @return The type of the block, or -1 if the end of
+	 *         the stream was reached
+	 */
+	public int nextBlock() throws IOException
+	{
+		int first = this._input.read();
+		if (first == -1) return -1;
+		
+		this._blockIndex++;
+		int type = this._readStreamVarInt(first);
+		int size = this._readStreamVarInt(this._input.read());
+		if (size > MAX_BLOCK_SIZE) throw this.formatError("Block too large");
+		
+		if (size > this._payload.length) this._payload = new byte[Math.max(size, 2*this._payload.length)];
+		byte[] checksum = new byte[4];
+		if ((_readFully(this._input, this._payload, size) < size) || (_readFully(this._input, checksum, 4) < 4))
+			throw this.formatError("Truncated block");
+		
+		this._crc.reset();
+		this._crc.update(this._payload, 0, size);
+		int expected = ((checksum[0] & 0xff) << 24) | ((checksum[1] & 0xff) << 16) |
+			((checksum[2] & 0xff) << 8) | (checksum[3] & 0xff);
+		if ((int)this._crc.getValue() != expected) throw this.formatError("Checksum mismatch");
+		
+		this._payloadSize = size;
+		this._payloadPos = 0;
+		
+		return type;
+	}
+	
+	/**
+	 * Checks whether all the contents of the current block
+	 * have been read.
+	 * 
+	 * @return True if the end of the block was reached
+	 */
+	public boolean isBlockFinished()
+	{
+		return (this._payloadPos == this._payloadSize);
+	}
+	
+	/**
+	 * Reads a non-negative integer.
+	 * 
+	 * @return The value read
+	 */
+	public int readVarInt()
+	{
+		int value = 0;
+		
+		for (int shift=0; shift<32; shift+=7)
+		{
+			int b = this._readByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				if (value < 0) throw this.formatError("Invalid integer");
+				return value;
+			}
+		}
+		
+		throw this.formatError("Invalid integer");
+	}
+	
+	/**
+	 * Reads a signed long integer.
+	 * 
+	 * @return The value read
+	 */
+	public long readSignedVarLong()
+	{
+		long encoded = 0;
+		
+		for (int shift=0; shift<64; shift+=7)
+		{
+			int b = this._readByte();
+			encoded |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return (encoded >>> 1) ^ -(encoded & 1);
+		}
+		
+		throw this.formatError("Invalid integer");
+	}
+	
+	/**
+	 * Reads a boolean value.
+	 * 
+	 * @return The value read
+	 */
+	public boolean readBoolean()
+	{
+		int b = this._readByte();
+		if (b > 1) throw this.formatError("Invalid boolean");
+		
+		return (b == 1);
+	}
+	
+	/**
+	 * Reads a string.
+	 * 
+	 * @return The value read
+	 */
+	public String readString() throws IOException
+	{
+		int length = this.readVarInt();
+		if (length > this._payloadSize - this._payloadPos) throw this.formatError("Unexpected end of block");
+		
+		String value = new String(this._payload, this._payloadPos, length, "UTF-8");
+		this._payloadPos += length;
+		
+		return value;
+	}
+	
+	/**
+	 * Closes the underlying stream.
+	 */
+	public void close() throws IOException
+	{
+		this._input.close();
+	}
+	
+	/**
+	 * Creates an exception describing a format error in
+	 * the current block.
+	 * 
+	 * @param message A description of the error
+	 * @return A RuntimeException object
+	 */
+	public RuntimeException formatError(String message)
+	{
+		return new RuntimeException(message+" in block "+this._blockIndex);
+	}
+	
+	/**
+	 * Reads a byte from the current block.
+	 * 
+	 * @return The byte value (0-255)
+	 */
+	protected int _readByte()
+	{
+		if (this._payloadPos == this._payloadSize) throw this.formatError("Unexpected end of block");
+		
+		return this._payload[this._payloadPos++] & 0xff;
+	}
+	
+	/**
+	 * Reads a non-negative integer directly from the stream
+	 * (as found in block headers).
+	 * 
+	 * @param first The first byte of the value, already read
+	 * @return The value read
+	 */
+	protected int _readStreamVarInt(int first) throws IOException
+	{
+		int value = 0;
+		int b = first;
+		
+		for (int shift=0; shift<32; shift+=7)
+		{
+			if (b == -1) throw this.formatError("Truncated block");
+			
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				if (value < 0) throw this.formatError("Invalid block header");
+				return value;
+			}
+			
+			b = this._input.read();
+		}
+		
+		throw this.formatError("Invalid block header");
+	}
+	
+	/**
+	 * Reads a given number of bytes from a stream, unless
+	 * the end of the stream is reached first.
+	 * 
+	 * @param input The stream to read from
+	 * @param buffer The array that receives the bytes
+	 * @param length The number of bytes to read
+	 * @return The number of bytes actually read
+	 */
+	protected static int _readFully(InputStream input, byte[] buffer, int length) throws IOException
+	{
+		int total = 0;
+		
+		while (total < length)
+		{
+			int count = input.read(buffer, total, length - total);
+			if (count == -1) break;
+			total += count;
+		}
+		
+		return total;
+	}
+}
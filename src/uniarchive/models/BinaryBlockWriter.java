@@ -0,0 +1,208 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A writer for binary files consisting of a sequence of
+ * checksummed blocks, the counterpart of BinaryBlockReader.
+ * 
+ * The file starts with a fixed signature, followed by blocks
+ * of the form:
+ * 
+ *   type (varint), length (varint), payload, CRC32 of payload (4 bytes)
+ * 
+ * Each block is assembled in memory and written out when it is
+ * ended, so blocks should be kept reasonably small. Integers are
+ * written as variable-length quantities (7 bits per byte, least
+ * significant group first), and signed integers are zigzag-encoded
+ * so that small negative values also take few bytes. Strings are
+ * written as their UTF-8 length followed by their UTF-8 bytes.
+ */
+public class BinaryBlockWriter
+{
+	protected OutputStream _output;
+	protected byte[] _payload = new byte[65536];
+	protected int _payloadSize = 0;
+	protected int _blockType = -1;
+	protected CRC32 _crc = new CRC32();
+	protected byte[] _header = new byte[10];
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param output The stream to which the blocks are to be
+	 *               written
+	 * @param signature The signature to write at the start
+	 *                  of the stream
+	 */
+	public BinaryBlockWriter(OutputStream output, byte[] signature) throws IOException
+	{
+		this._output = output;
+		this._output.write(signature);
+	}
+	
+	/**
+	 * Begins a new block.
+	 * 
+	 * @param type The block type (a non-negative integer)
+	 */
+	public void startBlock(int type)
+	{
+		if (this._blockType != -1) throw new RuntimeException("Previous block was not ended");
+		if (type < 0) throw new RuntimeException("Invalid block type: "+type);
+		
+		this._blockType = type;
+		this._payloadSize = 0;
+	}
+	
+	/**
+	 * Ends the current block and writes it to the stream.
+	 */
+	public void endBlock() throws IOException
+	{
+		if (this._blockType == -1) throw new RuntimeException("No block was started");
+		
+		int headerSize = 0;
+		headerSize = _encodeVarInt(this._header, headerSize, this._blockType);
+		headerSize = _encodeVarInt(this._header, headerSize, this._payloadSize);
+		this._output.write(this._header, 0, headerSize);
+		this._output.write(this._payload, 0, this._payloadSize);
+		
+		this._crc.reset();
+		this._crc.update(this._payload, 0, this._payloadSize);
+		int crc = (int)this._crc.getValue();
+		this._output.write(crc >>> 24);
+		this._output.write(crc >>> 16);
+		this._output.write(crc >>> 8);
+		this._output.write(crc);
+		
+		this._blockType = -1;
+	}
+	
+	/**
+	 * Gets the size of the payload written so far in the
+	 * current block.
+	 * 
+	 * @return The size in bytes
+	 */
+	public int getBlockSize()
+	{
+		return this._payloadSize;
+	}
+	
+	/**
+	 * Writes a non-negative integer.
+	 * 
+	 * @param value The value to write
+	 */
+	public void writeVarInt(int value)
+	{
+		if (value < 0) throw new RuntimeException("Cannot write negative value as varint: "+value);
+		
+		this._ensureSpace(5);
+		this._payloadSize = _encodeVarInt(this._payload, this._payloadSize, value);
+	}
+	
+	/**
+	 * Writes a signed long integer.
+	 * 
+	 * @param value The value to write
+	 */
+	public void writeSignedVarLong(long value)
+	{
+		long encoded = (value << 1) ^ (value >> 63);
+		
+		this._ensureSpace(10);
+		while ((encoded & ~0x7fL) != 0)
+		{
+			this._payload[this._payloadSize++] = (byte)((encoded & 0x7f) | 0x80);
+			encoded >>>= 7;
+		}
+		this._payload[this._payloadSize++] = (byte)encoded;
+	}
+	
+	/**
+	 * Writes a boolean value.
+	 * 
+	 * @param value The value to write
+	 */
+	public void writeBoolean(boolean value)
+	{
+		this._ensureSpace(1);
+		this._payload[this._payloadSize++] = (byte)(value ? 1 : 0);
+	}
+	
+	/**
+	 * Writes a string.
+	 * 
+	 * @param value The value to write
+	 */
+	public void writeString(String value) throws IOException
+	{
+		byte[] bytes = value.getBytes("UTF-8");
+		
+		this.writeVarInt(bytes.length);
+		this._ensureSpace(bytes.length);
+		System.arraycopy(bytes, 0, this._payload, this._payloadSize, bytes.length);
+		this._payloadSize += bytes.length;
+	}
+	
+	/**
+	 * Flushes the underlying stream.
+	 */
+	public void flush() throws IOException
+	{
+		this._output.flush();
+	}
+	
+	/**
+	 * Closes the underlying stream.
+	 */
+	public void close() throws IOException
+	{
+		this._output.close();
+	}
+	
+	/**
+	 * Makes sure there is enough room in the payload
+	 * buffer for a given number of bytes.
+	 * 
+	 * @param size The number of bytes to be written
+	 */
+	protected void _ensureSpace(int size)
+	{
+		if (this._blockType == -1) throw new RuntimeException("No block was started");
+		
+		if (this._payloadSize + size > this._payload.length)
+			this._payload = Arrays.copyOf(this._payload, Math.max(2*this._payload.length, this._payloadSize + size));
+	}
+	
+	/**
+	 * Encodes a non-negative integer into a byte array.
+	 * 
+	 * @param buffer The byte array
+	 * @param offset The position at which the value is written
+	 * @param value The value to encode
+	 * @return The position after the encoded value
+	 */
+	protected static int _encodeVarInt(byte[] buffer, int offset, int value)
+	{
+		while ((value & ~0x7f) != 0)
+		{
+			buffer[offset++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte)value;
+		
+		return offset;
+	}
+}
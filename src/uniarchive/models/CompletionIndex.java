@@ -0,0 +1,216 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A class for indexing objects by name in a manner that
+ * allows quick case-insensitive lookup by prefix or by
+ * substring, as needed for type-ahead and autocompletion.
+ * 
+ * Prefix lookups use a sorted map of names. Substring lookups
+ * use an index of the trigrams (3-character sequences) in each
+ * name, so that only the names sharing the rarest trigram of
+ * the searched text need to be examined.
+ * 
+ * @param <T> The type of object to index
+ */
+public class CompletionIndex<T>
+{
+	protected TreeMap<String,List<T>> _itemsByKey;
+	protected Map<String,Set<String>> _keysByTrigram;
+	
+	/**
+	 * Constructor.
+	 */
+	public CompletionIndex()
+	{
+		this._itemsByKey = new TreeMap<String,List<T>>();
+		this._keysByTrigram = new HashMap<String,Set<String>>();
+	}
+	
+	/**
+	 * Files an item under a given name. Several items may
+	 * be filed under the same name.
+	 * 
+	 * @param name The name under which the item is filed
+	 * @param item The item to file
+	 */
+	public void addItem(String name, T item)
+	{
+		String key = _normalize(name);
+		
+		List<T> items = this._itemsByKey.get(key);
+		if (items == null)
+		{
+			items = new ArrayList<T>(1);
+			this._itemsByKey.put(key, items);
+			
+			for (int i=0; i+3<=key.length(); i++)
+			{
+				String trigram = key.substring(i, i+3);
+				Set<String> keys = this._keysByTrigram.get(trigram);
+				if (keys == null)
+				{
+					keys = new HashSet<String>();
+					this._keysByTrigram.put(trigram, keys);
+				}
+				keys.add(key);
+			}
+		}
+		
+		items.add(item);
+	}
+	
+	/**
+	 * Removes an item from under a given name. Items are
+	 * compared by identity.
+	 * 
+	 * @param name The name under which the item is filed
+	 * @param item The item to remove
+	 */
+	public void removeItem(String name, T item)
+	{
+		String key = _normalize(name);
+		
+		List<T> items = this._itemsByKey.get(key);
+		if (items == null) return;
+		
+		for (int i=0; i<items.size(); i++)
+			if (items.get(i) == item)
+			{
+				items.remove(i);
+				break;
+			}
+		
+		if (!items.isEmpty()) return;
+		
+		this._itemsByKey.remove(key);
+		for (int i=0; i+3<=key.length(); i++)
+		{
+			String trigram = key.substring(i, i+3);
+			Set<String> keys = this._keysByTrigram.get(trigram);
+			if (keys == null) continue;
+			
+			keys.remove(key);
+			if (keys.isEmpty()) this._keysByTrigram.remove(trigram);
+		}
+	}
+	
+	/**
+	 * Removes all filed items.
+	 */
+	public void clear()
+	{
+		this._itemsByKey.clear();
+		this._keysByTrigram.clear();
+	}
+	
+	/**
+	 * Finds the items whose names start with a given prefix.
+	 * 
+	 * @param prefix The prefix to look for (case-insensitive)
+	 * @param maxResults A limit on the number of results returned
+	 * @return A list of items, in alphabetical order of their
+	 *         names
+	 */
+	public List<T> findByPrefix(String prefix, int maxResults)
+	{
+		List<T> results = new ArrayList<T>();
+		
+		this._collectByPrefix(_normalize(prefix), maxResults, results);
+		
+		return results;
+	}
+	
+	/**
+	 * Finds the items whose names contain a given text. Items
+	 * whose names start with the text are listed first.
+	 * 
+	 * @param text The text to look for (case-insensitive)
+	 * @param maxResults A limit on the number of results returned
+	 * @return A list of items; those matching by prefix come
+	 *         first, and each part is in alphabetical order
+	 */
+	public List<T> findBySubstring(String text, int maxResults)
+	{
+		List<T> results = new ArrayList<T>();
+		String query = _normalize(text);
+		
+		this._collectByPrefix(query, maxResults, results);
+		if (results.size() >= maxResults) return results;
+		
+		// Gather the remaining candidate names. Texts shorter than a
+		// trigram require a scan over all names.
+		Iterable<String> candidates = this._itemsByKey.keySet();
+		if (query.length() >= 3)
+		{
+			Set<String> rarest = null;
+			for (int i=0; i+3<=query.length(); i++)
+			{
+				Set<String> keys = this._keysByTrigram.get(query.substring(i, i+3));
+				if (keys == null) return results;
+				if ((rarest == null) || (keys.size() < rarest.size())) rarest = keys;
+			}
+			candidates = new TreeSet<String>(rarest);
+		}
+		
+		for (String key : candidates)
+		{
+			if (key.startsWith(query) || !key.contains(query)) continue;
+			
+			for (T item : this._itemsByKey.get(key))
+			{
+				if (results.size() >= maxResults) return results;
+				results.add(item);
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Adds the items whose names start with a given prefix to
+	 * a list of results.
+	 * 
+	 * @param key The normalized prefix
+	 * @param maxResults The maximum size of the results list
+	 * @param results The list of results
+	 */
+	protected void _collectByPrefix(String key, int maxResults, List<T> results)
+	{
+		for (Map.Entry<String,List<T>> entry : this._itemsByKey.tailMap(key, true).entrySet())
+		{
+			if (!entry.getKey().startsWith(key)) break;
+			
+			for (T item : entry.getValue())
+			{
+				if (results.size() >= maxResults) return;
+				results.add(item);
+			}
+		}
+	}
+	
+	/**
+	 * Converts a name to the form used for indexing.
+	 * 
+	 * @param name A name
+	 * @return The normalized name
+	 */
+	protected static String _normalize(String name)
+	{
+		return name.toLowerCase();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream filter that counts the bytes passing
+ * through it, e.g. for measuring throughput.
+ */
+public class CountingInputStream extends FilterInputStream
+{
+	protected long _count = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param in The underlying input stream
+	 */
+	public CountingInputStream(InputStream in)
+	{
+		super(in);
+	}
+	
+	/**
+	 * Gets the number of bytes read so far.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getCount()
+	{
+		return this._count;
+	}
+	
+	@Override
+	public int read() throws IOException
+	{
+		int b = this.in.read();
+		if (b != -1) this._count++;
+		
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		int count = this.in.read(b, off, len);
+		if (count > 0) this._count += count;
+		
+		return count;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException
+	{
+		long count = this.in.skip(n);
+		this._count += count;
+		
+		return count;
+	}
+	
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+}
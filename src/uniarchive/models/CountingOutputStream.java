@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream filter that counts the bytes passing
+ * through it, e.g. for measuring throughput.
+ */
+public class CountingOutputStream extends FilterOutputStream
+{
+	protected long _count = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param out The underlying output stream
+	 */
+	public CountingOutputStream(OutputStream out)
+	{
+		super(out);
+	}
+	
+	/**
+	 * Gets the number of bytes written so far.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getCount()
+	{
+		return this._count;
+	}
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		this.out.write(b);
+		this._count++;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		this.out.write(b, off, len);
+		this._count += len;
+	}
+}
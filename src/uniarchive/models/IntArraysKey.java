@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.util.Arrays;
+
+/**
+ * Class for a cache key made of a label and several arrays of
+ * integers (e.g. ID filters). The key only keeps the arrays
+ * together with their lengths and a hash of their contents, so
+ * it is much more compact than the equivalent string, and cheap
+ * to look up.
+ * 
+ * Note: the arrays are not copied, so they must not be modified
+ * while the key is in use (see copy()).
+ */
+public class IntArraysKey
+{
+	protected final String _label;
+	protected final int[][] _arrays;
+	protected final int[] _lengths;
+	protected final int _hash;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param label A label for the non-array parts of the key
+	 * @param arrays Any number of arrays, which may be null
+	 */
+	public IntArraysKey(String label, int[]... arrays)
+	{
+		this._label = label;
+		this._arrays = arrays;
+		this._lengths = new int[arrays.length];
+		
+		int hash = label.hashCode();
+		for (int i=0; i<arrays.length; i++)
+		{
+			this._lengths[i] = (arrays[i] != null) ? arrays[i].length : -1;
+			hash = 31*(31*hash + this._lengths[i]) + Arrays.hashCode(arrays[i]);
+		}
+		this._hash = hash;
+	}
+	
+	/**
+	 * Gets a copy of this key that does not share its arrays
+	 * with the caller, for storing in a cache.
+	 * 
+	 * @return A new key
+	 */
+	public IntArraysKey copy()
+	{
+		int[][] arrays = new int[this._arrays.length][];
+		for (int i=0; i<arrays.length; i++)
+			arrays[i] = (this._arrays[i] != null) ? this._arrays[i].clone() : null;
+		
+		return new IntArraysKey(this._label, arrays);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return this._hash;
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (obj == this) return true;
+		if (!(obj instanceof IntArraysKey)) return false;
+		
+		IntArraysKey other = (IntArraysKey)obj;
+		if ((this._hash != other._hash) || !Arrays.equals(this._lengths, other._lengths)) return false;
+		if (!this._label.equals(other._label)) return false;
+		
+		for (int i=0; i<this._arrays.length; i++)
+			if (!Arrays.equals(this._arrays[i], other._arrays[i])) return false;
+		
+		return true;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return this._label+" "+Arrays.toString(this._lengths)+" #"+Integer.toHexString(this._hash);
+	}
+}
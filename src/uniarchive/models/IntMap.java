@@ -0,0 +1,225 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.util.Arrays;
+
+/**
+ * Class for a map from integers to objects, such as the items
+ * in an archive indexed by their SQL IDs. Unlike a Map<Integer,V>,
+ * it does not box the keys or allocate an entry per mapping.
+ * 
+ * The map uses open addressing with linear probing, and is kept
+ * at most half full. Null values are not supported (a null value
+ * marks an empty slot).
+ */
+public class IntMap<V>
+{
+	protected static final int MIN_CAPACITY = 16;
+	
+	int[] _keys;
+	Object[] _values;
+	int _size;
+	
+	/**
+	 * Constructor.
+	 */
+	public IntMap()
+	{
+		this(MIN_CAPACITY/2);
+	}
+	
+	/**
+	 * Constructor for a map that will hold a known number
+	 * of mappings without being resized.
+	 * 
+	 * @param expectedSize The expected number of mappings
+	 */
+	public IntMap(int expectedSize)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity < 2*expectedSize) capacity *= 2;
+		
+		this._keys = new int[capacity];
+		this._values = new Object[capacity];
+		this._size = 0;
+	}
+	
+	/**
+	 * Gets the value associated with a key.
+	 * 
+	 * @param key The key
+	 * @return The value, or null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		int mask = this._keys.length - 1;
+		for (int i=_hash(key) & mask; this._values[i] != null; i=(i+1) & mask)
+			if (this._keys[i] == key) return (V)this._values[i];
+		
+		return null;
+	}
+	
+	/**
+	 * Checks whether a key is present in the map.
+	 * 
+	 * @param key The key
+	 * @return True if the map contains the key
+	 */
+	public boolean containsKey(int key)
+	{
+		return (this.get(key) != null);
+	}
+	
+	/**
+	 * Associates a value with a key.
+	 * 
+	 * @param key The key
+	 * @param value The value (must not be null)
+	 * @return The value previously associated with the key,
+	 *         or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value)
+	{
+		if (value == null) throw new RuntimeException("IntMap does not support null values");
+		
+		int mask = this._keys.length - 1;
+		int i;
+		for (i=_hash(key) & mask; this._values[i] != null; i=(i+1) & mask)
+			if (this._keys[i] == key)
+			{
+				V previous = (V)this._values[i];
+				this._values[i] = value;
+				return previous;
+			}
+		
+		this._keys[i] = key;
+		this._values[i] = value;
+		this._size++;
+		if (2*this._size > this._keys.length) this._resize(2*this._keys.length);
+		
+		return null;
+	}
+	
+	/**
+	 * Removes a key from the map.
+	 * 
+	 * @param key The key
+	 * @return The value that was associated with the key,
+	 *         or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key)
+	{
+		int mask = this._keys.length - 1;
+		int i = _hash(key) & mask;
+		while (true)
+		{
+			if (this._values[i] == null) return null;
+			if (this._keys[i] == key) break;
+			i = (i+1) & mask;
+		}
+		
+		V previous = (V)this._values[i];
+		this._values[i] = null;
+		this._size--;
+		
+		// Move back any following entries that can no longer be
+		// reached from their home slot because of the new gap
+		for (int j=(i+1) & mask; this._values[j] != null; j=(j+1) & mask)
+		{
+			int home = _hash(this._keys[j]) & mask;
+			boolean reachable = (i <= j) ? ((home > i) && (home <= j)) : ((home > i) || (home <= j));
+			if (reachable) continue;
+			
+			this._keys[i] = this._keys[j];
+			this._values[i] = this._values[j];
+			this._values[j] = null;
+			i = j;
+		}
+		
+		return previous;
+	}
+	
+	/**
+	 * Gets the number of mappings in the map.
+	 * 
+	 * @return The number of mappings
+	 */
+	public int size()
+	{
+		return this._size;
+	}
+	
+	/**
+	 * Removes all the mappings in the map.
+	 */
+	public void clear()
+	{
+		Arrays.fill(this._values, null);
+		this._size = 0;
+	}
+	
+	/**
+	 * Returns an array with all the keys in the map, in no
+	 * particular order.
+	 * 
+	 * @return The keys, as an array
+	 */
+	public int[] keys()
+	{
+		int[] keys = new int[this._size];
+		
+		int count = 0;
+		for (int i=0; i<this._keys.length; i++)
+			if (this._values[i] != null) keys[count++] = this._keys[i];
+		
+		return keys;
+	}
+	
+	/**
+	 * Rehashes the map into a table of a given capacity.
+	 * 
+	 * @param capacity The new capacity (a power of 2)
+	 */
+	protected void _resize(int capacity)
+	{
+		int[] oldKeys = this._keys;
+		Object[] oldValues = this._values;
+		
+		this._keys = new int[capacity];
+		this._values = new Object[capacity];
+		
+		int mask = capacity - 1;
+		for (int i=0; i<oldKeys.length; i++)
+		{
+			if (oldValues[i] == null) continue;
+			
+			int j = _hash(oldKeys[i]) & mask;
+			while (this._values[j] != null) j = (j+1) & mask;
+			this._keys[j] = oldKeys[i];
+			this._values[j] = oldValues[i];
+		}
+	}
+	
+	/**
+	 * Scrambles the bits of a key, so that consecutive keys
+	 * (such as SQL IDs) do not end up in long runs of
+	 * adjacent slots.
+	 * 
+	 * @param key The key
+	 * @return A hash of the key
+	 */
+	static int _hash(int key)
+	{
+		int hash = key * 0x9E3779B9;
+		
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.util.Arrays;
+
+/**
+ * Class for a set of integers with constant-time lookups,
+ * without the memory overhead of a Set<Integer> (see also
+ * IntMap, which uses the same layout).
+ */
+public class IntSet
+{
+	protected static final int MIN_CAPACITY = 16;
+	
+	int[] _keys;
+	boolean[] _used;
+	int _size;
+	
+	/**
+	 * Constructor.
+	 */
+	public IntSet()
+	{
+		this._keys = new int[MIN_CAPACITY];
+		this._used = new boolean[MIN_CAPACITY];
+		this._size = 0;
+	}
+	
+	/**
+	 * Adds an integer to the set.
+	 * 
+	 * @param integer The integer to add
+	 * @return True if the integer was not already in the set
+	 */
+	public boolean add(int integer)
+	{
+		int mask = this._keys.length - 1;
+		int i;
+		for (i=IntMap._hash(integer) & mask; this._used[i]; i=(i+1) & mask)
+			if (this._keys[i] == integer) return false;
+		
+		this._keys[i] = integer;
+		this._used[i] = true;
+		this._size++;
+		if (2*this._size > this._keys.length) this._resize(2*this._keys.length);
+		
+		return true;
+	}
+	
+	/**
+	 * Checks whether an integer is present in the set.
+	 * 
+	 * @param integer The integer to search for
+	 * @return True if the set contains the integer
+	 */
+	public boolean contains(int integer)
+	{
+		int mask = this._keys.length - 1;
+		for (int i=IntMap._hash(integer) & mask; this._used[i]; i=(i+1) & mask)
+			if (this._keys[i] == integer) return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Gets the number of integers in the set.
+	 * 
+	 * @return The number of integers
+	 */
+	public int size()
+	{
+		return this._size;
+	}
+	
+	/**
+	 * Removes all the integers in the set.
+	 */
+	public void clear()
+	{
+		Arrays.fill(this._used, false);
+		this._size = 0;
+	}
+	
+	/**
+	 * Returns an array with all the integers, in no
+	 * particular order.
+	 * 
+	 * @return The set, as an array
+	 */
+	public int[] toArray()
+	{
+		int[] result = new int[this._size];
+		
+		int count = 0;
+		for (int i=0; i<this._keys.length; i++)
+			if (this._used[i]) result[count++] = this._keys[i];
+		
+		return result;
+	}
+	
+	/**
+	 * Rehashes the set into a table of a given capacity.
+	 * 
+	 * @param capacity The new capacity (a power of 2)
+	 */
+	protected void _resize(int capacity)
+	{
+		int[] oldKeys = this._keys;
+		boolean[] oldUsed = this._used;
+		
+		this._keys = new int[capacity];
+		this._used = new boolean[capacity];
+		
+		int mask = capacity - 1;
+		for (int i=0; i<oldKeys.length; i++)
+		{
+			if (!oldUsed[i]) continue;
+			
+			int j = IntMap._hash(oldKeys[i]) & mask;
+			while (this._used[j]) j = (j+1) & mask;
+			this._keys[j] = oldKeys[i];
+			this._used[j] = true;
+		}
+	}
+}
@@ -0,0 +1,464 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A minimal streaming (pull) parser for JSON text.
+ * 
+ * Unlike JSONTokener, which builds a complete object tree for
+ * every value, this parser returns the document as a sequence
+ * of tokens, one at a time, so that arbitrarily large documents
+ * can be processed in constant memory. Input is read through
+ * an internal buffer, so the reader need not be buffered.
+ */
+public class JsonPullParser
+{
+	public static enum Token { START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, FIELD_NAME,
+		STRING, NUMBER, TRUE, FALSE, NULL, END_DOCUMENT };
+	
+	protected static final int BUFFER_SIZE = 65536;
+	protected static final int MAX_DEPTH = 256;
+	
+	// Parser states within a container
+	protected static final int STATE_FIRST = 0;
+	protected static final int STATE_AFTER_ITEM = 1;
+	protected static final int STATE_AFTER_KEY = 2;
+	
+	protected Reader _reader;
+	protected char[] _buffer = new char[BUFFER_SIZE];
+	protected int _bufPos = 0;
+	protected int _bufLen = 0;
+	protected long _offset = 0;
+	
+	protected boolean[] _inObject = new boolean[MAX_DEPTH];
+	protected int _depth = 0;
+	protected int _state = STATE_FIRST;
+	
+	protected Token _token = null;
+	protected StringBuilder _text = new StringBuilder();
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param reader The reader from which the JSON text is to
+	 *               be read
+	 */
+	public JsonPullParser(Reader reader)
+	{
+		this._reader = reader;
+	}
+	
+	/**
+	 * Advances to the next token in the document.
+	 * 
+	 * @return The token read
+	 */
+	public Token next() throws IOException
+	{
+		int c = this._nextNonSpace();
+		
+		if (this._depth == 0)
+		{
+			if (this._state != STATE_AFTER_ITEM) return this._readValue(c);
+			
+			// Only whitespace may follow the top-level value
+			if (c != -1) throw this.syntaxError("Unexpected data after the end of the document");
+			
+			return (this._token = Token.END_DOCUMENT);
+		}
+		
+		boolean inObject = this._inObject[this._depth-1];
+		char closing = inObject ? '}' : ']';
+		
+		switch (this._state)
+		{
+		case STATE_AFTER_KEY:
+			if (c != ':') throw this.syntaxError("Expecting ':'");
+			return this._readValue(this._nextNonSpace());
+		case STATE_AFTER_ITEM:
+			if (c == closing) return this._close();
+			if (c != ',') throw this.syntaxError("Expecting ',' or '"+closing+"'");
+			c = this._nextNonSpace();
+			break;
+		default:
+			if (c == closing) return this._close();
+		}
+		
+		if (!inObject) return this._readValue(c);
+		
+		if (c != '"') throw this.syntaxError("Expecting field name");
+		this._readString();
+		this._state = STATE_AFTER_KEY;
+		
+		return (this._token = Token.FIELD_NAME);
+	}
+	
+	/**
+	 * Advances to the next token and checks that it is of
+	 * an expected type.
+	 * 
+	 * @param expected The expected token type
+	 */
+	public void expect(Token expected) throws IOException
+	{
+		if (this.next() != expected) throw this.syntaxError("Expecting "+expected+", found "+this._token);
+	}
+	
+	/**
+	 * Gets the last token read.
+	 * 
+	 * @return A token
+	 */
+	public Token getToken()
+	{
+		return this._token;
+	}
+	
+	/**
+	 * Gets the text of the last token read (this is only
+	 * meaningful for field names, strings and numbers).
+	 * 
+	 * @return The token text
+	 */
+	public String getText()
+	{
+		return this._text.toString();
+	}
+	
+	/**
+	 * Gets the value of the last token read as an integer.
+	 * 
+	 * @return The integer value
+	 */
+	public int getInt()
+	{
+		if (this._token != Token.NUMBER) throw this.syntaxError("Expecting number, found "+this._token);
+		
+		try
+		{
+			return Integer.parseInt(this._text.toString());
+		}
+		catch (NumberFormatException e)
+		{
+			return (int)Double.parseDouble(this._text.toString());
+		}
+	}
+	
+	/**
+	 * Gets the value of the last token read as a boolean.
+	 * 
+	 * @return The boolean value
+	 */
+	public boolean getBoolean()
+	{
+		if (this._token == Token.TRUE) return true;
+		if (this._token == Token.FALSE) return false;
+		
+		throw this.syntaxError("Expecting boolean, found "+this._token);
+	}
+	
+	/**
+	 * Reads the next value and returns it as a string.
+	 * 
+	 * @return The string value
+	 */
+	public String nextString() throws IOException
+	{
+		this.expect(Token.STRING);
+		
+		return this.getText();
+	}
+	
+	/**
+	 * Reads the next value and returns it as an integer.
+	 * 
+	 * @return The integer value
+	 */
+	public int nextInt() throws IOException
+	{
+		this.next();
+		
+		return this.getInt();
+	}
+	
+	/**
+	 * Reads the next value and returns it as a boolean.
+	 * 
+	 * @return The boolean value
+	 */
+	public boolean nextBoolean() throws IOException
+	{
+		this.next();
+		
+		return this.getBoolean();
+	}
+	
+	/**
+	 * Skips the next value entirely (including any nested
+	 * objects or arrays). This is typically called after
+	 * reading the name of a field that is not of interest.
+	 */
+	public void skipValue() throws IOException
+	{
+		Token token = this.next();
+		if ((token != Token.START_OBJECT) && (token != Token.START_ARRAY)) return;
+		
+		int depth = this._depth;
+		while (this._depth >= depth) this.next();
+	}
+	
+	/**
+	 * Reads the next element of the current array without
+	 * parsing it, and appends its raw JSON text to a buffer. The
+	 * element must be an object or array. This allows elements
+	 * to be extracted quickly and parsed later (e.g. on another
+	 * thread, by a different parser).
+	 * 
+	 * Note that the raw text is only checked for proper nesting
+	 * of objects, arrays and strings.
+	 * 
+	 * @param raw The buffer that is to receive the element text
+	 * @return START_OBJECT or START_ARRAY according to the type
+	 *         of element read, or END_ARRAY if the array ended
+	 *         (in which case nothing is appended)
+	 */
+	public Token nextRawValue(StringBuilder raw) throws IOException
+	{
+		if ((this._depth == 0) || this._inObject[this._depth-1])
+			throw this.syntaxError("Raw values can only be read from arrays");
+		
+		int c = this._nextNonSpace();
+		if (c == ']') return this._close();
+		if (this._state == STATE_AFTER_ITEM)
+		{
+			if (c != ',') throw this.syntaxError("Expecting ',' or ']'");
+			c = this._nextNonSpace();
+		}
+		if ((c != '{') && (c != '[')) throw this.syntaxError("Expecting object or array");
+		
+		raw.append((char)c);
+		int depth = 1;
+		boolean inString = false;
+		boolean escaped = false;
+		while (depth > 0)
+		{
+			if ((this._bufPos == this._bufLen) && !this._fill()) throw this.syntaxError("Unexpected end of document");
+			
+			int start = this._bufPos;
+			while ((this._bufPos < this._bufLen) && (depth > 0))
+			{
+				char ch = this._buffer[this._bufPos++];
+				
+				if (escaped) escaped = false;
+				else if (inString)
+				{
+					if (ch == '\\') escaped = true;
+					else if (ch == '"') inString = false;
+				}
+				else if (ch == '"') inString = true;
+				else if ((ch == '{') || (ch == '[')) depth++;
+				else if ((ch == '}') || (ch == ']')) depth--;
+			}
+			raw.append(this._buffer, start, this._bufPos - start);
+		}
+		
+		this._state = STATE_AFTER_ITEM;
+		
+		return (this._token = (c == '{') ? Token.START_OBJECT : Token.START_ARRAY);
+	}
+	
+	/**
+	 * Creates an exception describing a syntax error at the
+	 * current position.
+	 * 
+	 * @param message A description of the error
+	 * @return A RuntimeException object
+	 */
+	public RuntimeException syntaxError(String message)
+	{
+		return new RuntimeException(message+" at character "+(this._offset+this._bufPos));
+	}
+	
+	/**
+	 * Reads a value starting with a given character.
+	 * 
+	 * @param c The first character of the value
+	 * @return The token read
+	 */
+	protected Token _readValue(int c) throws IOException
+	{
+		this._state = STATE_AFTER_ITEM;
+		
+		switch (c)
+		{
+		case '{':
+		case '[':
+			if (this._depth == MAX_DEPTH) throw this.syntaxError("Nesting too deep");
+			this._inObject[this._depth++] = (c == '{');
+			this._state = STATE_FIRST;
+			return (this._token = (c == '{') ? Token.START_OBJECT : Token.START_ARRAY);
+		case '"':
+			this._readString();
+			return (this._token = Token.STRING);
+		case 't':
+			this._readLiteral("rue");
+			return (this._token = Token.TRUE);
+		case 'f':
+			this._readLiteral("alse");
+			return (this._token = Token.FALSE);
+		case 'n':
+			this._readLiteral("ull");
+			return (this._token = Token.NULL);
+		case -1:
+			throw this.syntaxError("Unexpected end of document");
+		}
+		
+		if ((c != '-') && ((c < '0') || (c > '9'))) throw this.syntaxError("Unexpected character '"+(char)c+"'");
+		
+		this._text.setLength(0);
+		this._text.append((char)c);
+		while (true)
+		{
+			c = this._peek();
+			if (((c < '0') || (c > '9')) && (c != '.') && (c != 'e') && (c != 'E') && (c != '+') && (c != '-')) break;
+			this._text.append((char)c);
+			this._bufPos++;
+		}
+		
+		return (this._token = Token.NUMBER);
+	}
+	
+	/**
+	 * Ends the current container.
+	 * 
+	 * @return The token read
+	 */
+	protected Token _close()
+	{
+		this._depth--;
+		this._state = STATE_AFTER_ITEM;
+		
+		return (this._token = this._inObject[this._depth] ? Token.END_OBJECT : Token.END_ARRAY);
+	}
+	
+	/**
+	 * Reads the rest of a string (after the opening quote)
+	 * into the text buffer, decoding any escapes.
+	 */
+	protected void _readString() throws IOException
+	{
+		this._text.setLength(0);
+		
+		while (true)
+		{
+			// Copy runs of plain characters directly from the buffer
+			if (this._bufPos == this._bufLen && !this._fill()) throw this.syntaxError("Unterminated string");
+			
+			int start = this._bufPos;
+			while ((this._bufPos < this._bufLen) && (this._buffer[this._bufPos] != '"') && (this._buffer[this._bufPos] != '\\'))
+				this._bufPos++;
+			this._text.append(this._buffer, start, this._bufPos - start);
+			if (this._bufPos == this._bufLen) continue;
+			
+			char c = this._buffer[this._bufPos++];
+			if (c == '"') return;
+			
+			c = (char)this._read();
+			switch (c)
+			{
+			case 'b': this._text.append('\b'); break;
+			case 't': this._text.append('\t'); break;
+			case 'n': this._text.append('\n'); break;
+			case 'f': this._text.append('\f'); break;
+			case 'r': this._text.append('\r'); break;
+			case 'u':
+				int code = 0;
+				for (int i=0; i<4; i++)
+				{
+					int digit = Character.digit(this._read(), 16);
+					if (digit < 0) throw this.syntaxError("Invalid unicode escape");
+					code = (code << 4) | digit;
+				}
+				this._text.append((char)code);
+				break;
+			default:
+				this._text.append(c);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the rest of a literal (true, false or null) and
+	 * checks that it is correct.
+	 * 
+	 * @param rest The remaining characters of the literal
+	 */
+	protected void _readLiteral(String rest) throws IOException
+	{
+		for (int i=0; i<rest.length(); i++)
+			if (this._read() != rest.charAt(i)) throw this.syntaxError("Invalid literal");
+	}
+	
+	/**
+	 * Reads the next character that is not whitespace.
+	 * 
+	 * @return The character read, or -1 at the end of the input
+	 */
+	protected int _nextNonSpace() throws IOException
+	{
+		while (true)
+		{
+			int c = this._read();
+			if ((c != ' ') && (c != '\t') && (c != '\n') && (c != '\r')) return c;
+		}
+	}
+	
+	/**
+	 * Reads the next character.
+	 * 
+	 * @return The character read, or -1 at the end of the input
+	 */
+	protected int _read() throws IOException
+	{
+		if ((this._bufPos == this._bufLen) && !this._fill()) return -1;
+		
+		return this._buffer[this._bufPos++];
+	}
+	
+	/**
+	 * Gets the next character without consuming it.
+	 * 
+	 * @return The next character, or -1 at the end of the input
+	 */
+	protected int _peek() throws IOException
+	{
+		if ((this._bufPos == this._bufLen) && !this._fill()) return -1;
+		
+		return this._buffer[this._bufPos];
+	}
+	
+	/**
+	 * Refills the input buffer.
+	 * 
+	 * @return True if any characters were read, false at the
+	 *         end of the input
+	 */
+	protected boolean _fill() throws IOException
+	{
+		this._offset += this._bufLen;
+		this._bufPos = 0;
+		this._bufLen = this._reader.read(this._buffer, 0, this._buffer.length);
+		
+		if (this._bufLen > 0) return true;
+		
+		this._bufLen = 0;
+		return false;
+	}
+}
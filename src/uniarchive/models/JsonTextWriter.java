@@ -0,0 +1,345 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A fast writer for JSON text, the counterpart of JsonPullParser.
+ * 
+ * Its interface follows that of org.json.JSONWriter and its
+ * output is identical (strings are escaped exactly as done by
+ * JSONObject.quote()), but values are escaped directly into an
+ * internal buffer instead of going through intermediate string
+ * objects, and no checks are made for duplicate keys.
+ */
+public class JsonTextWriter
+{
+	protected static final int BUFFER_SIZE = 65536;
+	protected static final int MAX_DEPTH = 256;
+	
+	protected static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	protected Writer _writer;
+	protected char[] _buffer = new char[BUFFER_SIZE];
+	protected int _bufPos = 0;
+	
+	protected boolean[] _inObject = new boolean[MAX_DEPTH];
+	protected int _depth = 0;
+	protected boolean _needComma = false;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param writer The writer to which the JSON text is to
+	 *               be sent
+	 */
+	public JsonTextWriter(Writer writer)
+	{
+		this._writer = writer;
+	}
+	
+	/**
+	 * Begins an object.
+	 * 
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter object() throws IOException
+	{
+		return this._open(true);
+	}
+	
+	/**
+	 * Ends the current object.
+	 * 
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter endObject() throws IOException
+	{
+		return this._close(true);
+	}
+	
+	/**
+	 * Begins an array.
+	 * 
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter array() throws IOException
+	{
+		return this._open(false);
+	}
+	
+	/**
+	 * Ends the current array.
+	 * 
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter endArray() throws IOException
+	{
+		return this._close(false);
+	}
+	
+	/**
+	 * Writes the key of an object field. This must be
+	 * followed by a value.
+	 * 
+	 * @param key The key
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter key(String key) throws IOException
+	{
+		if ((this._depth == 0) || !this._inObject[this._depth-1]) throw new RuntimeException("Misplaced key");
+		if (key == null) throw new RuntimeException("Null key");
+		
+		if (this._needComma) this._put(',');
+		this._putQuoted(key);
+		this._put(':');
+		this._needComma = false;
+		
+		return this;
+	}
+	
+	/**
+	 * Writes a string value.
+	 * 
+	 * @param value The value (may be null)
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter value(String value) throws IOException
+	{
+		this._startValue();
+		if (value == null) this._put("null"); else this._putQuoted(value);
+		
+		return this;
+	}
+	
+	/**
+	 * Writes an integer value.
+	 * 
+	 * @param value The value
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter value(long value) throws IOException
+	{
+		this._startValue();
+		this._put(Long.toString(value));
+		
+		return this;
+	}
+	
+	/**
+	 * Writes a boolean value.
+	 * 
+	 * @param value The value
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter value(boolean value) throws IOException
+	{
+		this._startValue();
+		this._put(value ? "true" : "false");
+		
+		return this;
+	}
+	
+	/**
+	 * Writes a string value given as an array of characters
+	 * that are known not to need escaping (e.g. a formatted
+	 * date). This avoids creating a string object.
+	 * 
+	 * @param chars The array containing the characters
+	 * @param offset The offset of the value in the array
+	 * @param length The length of the value
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter rawStringValue(char[] chars, int offset, int length) throws IOException
+	{
+		this._startValue();
+		this._put('"');
+		for (int i=0; i<length; i++) this._put(chars[offset+i]);
+		this._put('"');
+		
+		return this;
+	}
+	
+	/**
+	 * Writes one or more already serialized values (separated
+	 * by commas) as elements of the current array. This allows
+	 * parts of a document to be prepared separately (e.g. on
+	 * other threads) and then assembled.
+	 * 
+	 * @param text The array containing the JSON text
+	 * @param offset The offset of the text in the array
+	 * @param length The length of the text
+	 * @return This writer, for chaining calls
+	 */
+	public JsonTextWriter rawValues(char[] text, int offset, int length) throws IOException
+	{
+		if ((this._depth == 0) || this._inObject[this._depth-1]) throw new RuntimeException("Misplaced raw values");
+		if (length == 0) return this;
+		
+		this._startValue();
+		if (length > BUFFER_SIZE - this._bufPos)
+		{
+			this._flushBuffer();
+			this._writer.write(text, offset, length);
+			return this;
+		}
+		
+		System.arraycopy(text, offset, this._buffer, this._bufPos, length);
+		this._bufPos += length;
+		
+		return this;
+	}
+	
+	/**
+	 * Sends all buffered text to the underlying writer and
+	 * flushes it.
+	 */
+	public void flush() throws IOException
+	{
+		this._flushBuffer();
+		this._writer.flush();
+	}
+	
+	/**
+	 * Sends all buffered text to the underlying writer and
+	 * closes it.
+	 */
+	public void close() throws IOException
+	{
+		this._flushBuffer();
+		this._writer.close();
+	}
+	
+	/**
+	 * Begins an object or array.
+	 * 
+	 * @param isObject True for an object, false for an array
+	 * @return This writer, for chaining calls
+	 */
+	protected JsonTextWriter _open(boolean isObject) throws IOException
+	{
+		if (this._depth == MAX_DEPTH) throw new RuntimeException("Nesting too deep");
+		
+		this._startValue();
+		this._put(isObject ? '{' : '[');
+		this._inObject[this._depth++] = isObject;
+		this._needComma = false;
+		
+		return this;
+	}
+	
+	/**
+	 * Ends an object or array.
+	 * 
+	 * @param isObject True for an object, false for an array
+	 * @return This writer, for chaining calls
+	 */
+	protected JsonTextWriter _close(boolean isObject) throws IOException
+	{
+		if ((this._depth == 0) || (this._inObject[this._depth-1] != isObject))
+			throw new RuntimeException(isObject ? "Misplaced endObject" : "Misplaced endArray");
+		
+		this._depth--;
+		this._put(isObject ? '}' : ']');
+		this._needComma = true;
+		
+		return this;
+	}
+	
+	/**
+	 * Writes the separator before a value, if needed.
+	 */
+	protected void _startValue() throws IOException
+	{
+		if (this._needComma && (this._depth > 0) && !this._inObject[this._depth-1]) this._put(',');
+		this._needComma = true;
+	}
+	
+	/**
+	 * Writes a quoted and escaped string.
+	 * 
+	 * @param string The string to write
+	 */
+	protected void _putQuoted(String string) throws IOException
+	{
+		this._put('"');
+		
+		char prev = 0;
+		int length = string.length();
+		for (int i=0; i<length; i++)
+		{
+			char c = string.charAt(i);
+			
+			switch (c)
+			{
+			case '"':
+			case '\\':
+				this._put('\\');
+				this._put(c);
+				break;
+			case '/':
+				if (prev == '<') this._put('\\');
+				this._put(c);
+				break;
+			case '\b': this._put('\\'); this._put('b'); break;
+			case '\t': this._put('\\'); this._put('t'); break;
+			case '\n': this._put('\\'); this._put('n'); break;
+			case '\f': this._put('\\'); this._put('f'); break;
+			case '\r': this._put('\\'); this._put('r'); break;
+			default:
+				if ((c < ' ') || ((c >= '\u0080') && (c < '\u00a0')) || ((c >= '\u2000') && (c < '\u2100')))
+				{
+					this._put('\\');
+					this._put('u');
+					this._put(HEX_DIGITS[(c >> 12) & 15]);
+					this._put(HEX_DIGITS[(c >> 8) & 15]);
+					this._put(HEX_DIGITS[(c >> 4) & 15]);
+					this._put(HEX_DIGITS[c & 15]);
+				}
+				else this._put(c);
+			}
+			
+			prev = c;
+		}
+		
+		this._put('"');
+	}
+	
+	/**
+	 * Writes a string verbatim.
+	 * 
+	 * @param string The string to write
+	 */
+	protected void _put(String string) throws IOException
+	{
+		int length = string.length();
+		for (int i=0; i<length; i++) this._put(string.charAt(i));
+	}
+	
+	/**
+	 * Writes a character verbatim.
+	 * 
+	 * @param c The character to write
+	 */
+	protected void _put(char c) throws IOException
+	{
+		if (this._bufPos == BUFFER_SIZE) this._flushBuffer();
+		
+		this._buffer[this._bufPos++] = c;
+	}
+	
+	/**
+	 * Sends the buffered text to the underlying writer.
+	 */
+	protected void _flushBuffer() throws IOException
+	{
+		this._writer.write(this._buffer, 0, this._bufPos);
+		this._bufPos = 0;
+	}
+}
@@ -0,0 +1,533 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of performance metrics: counters, timers and
+ * histograms, identified by dotted names (e.g. "db.getReplies").
+ * 
+ * Metrics are created on first use and can be recorded from any
+ * thread. Recording is cheap (a few atomic operations, no locking
+ * and no allocation), so the instrumentation is always on; it can
+ * nevertheless be turned off with setEnabled().
+ * 
+ * Histograms keep their values in logarithmic buckets, each
+ * spanning 1/8 of a power of two, so percentiles are reported
+ * with a relative error of at most 12.5%.
+ */
+public abstract class Metrics
+{
+	public static final String REPORT_HEADER = "metric\ttype\tcount\ttotal\tmean\tp50\tp90\tp99\tmax";
+	
+	protected static final ConcurrentMap<String, Metric> _metrics = new ConcurrentHashMap<String, Metric>();
+	protected static volatile boolean _enabled = true;
+	
+	/**
+	 * Gets the counter with a given name, creating it if needed.
+	 * 
+	 * @param name The name of the counter
+	 * @return The counter
+	 */
+	public static Counter counter(String name)
+	{
+		Metric metric = _metrics.get(name);
+		if (metric == null) metric = _register(new Counter(name));
+		
+		return (Counter)metric;
+	}
+	
+	/**
+	 * Gets the histogram with a given name, creating it if needed.
+	 * 
+	 * @param name The name of the histogram
+	 * @return The histogram
+	 */
+	public static Histogram histogram(String name)
+	{
+		Metric metric = _metrics.get(name);
+		if (metric == null) metric = _register(new Histogram(name));
+		
+		return (Histogram)metric;
+	}
+	
+	/**
+	 * Gets the timer with a given name, creating it if needed.
+	 * 
+	 * @param name The name of the timer
+	 * @return The timer
+	 */
+	public static Timer timer(String name)
+	{
+		Metric metric = _metrics.get(name);
+		if (metric == null) metric = _register(new Timer(name));
+		
+		return (Timer)metric;
+	}
+	
+	/**
+	 * Turns the recording of metrics on or off.
+	 * 
+	 * @param enabled True if metrics are to be recorded
+	 */
+	public static void setEnabled(boolean enabled)
+	{
+		_enabled = enabled;
+	}
+	
+	/**
+	 * Checks whether metrics are being recorded.
+	 * 
+	 * @return True if metrics are being recorded
+	 */
+	public static boolean isEnabled()
+	{
+		return _enabled;
+	}
+	
+	/**
+	 * Resets all metrics to zero.
+	 */
+	public static void reset()
+	{
+		for (Metric metric : _metrics.values()) metric.reset();
+	}
+	
+	/**
+	 * Takes a snapshot of all the metrics that have recorded
+	 * anything.
+	 * 
+	 * @return A list of snapshots, sorted by metric name
+	 */
+	public static List<Snapshot> snapshot()
+	{
+		Map<String, Metric> sorted = new TreeMap<String, Metric>(_metrics);
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		
+		for (Metric metric : sorted.values())
+		{
+			Snapshot snapshot = metric.snapshot();
+			if (snapshot.count > 0) snapshots.add(snapshot);
+		}
+		
+		return snapshots;
+	}
+	
+	/**
+	 * Writes a snapshot of all metrics as tab-separated lines,
+	 * preceded by REPORT_HEADER. Times are given in milliseconds.
+	 * 
+	 * @param writer The writer to write to
+	 */
+	public static void writeReport(PrintWriter writer)
+	{
+		writer.println(REPORT_HEADER);
+		for (Snapshot snapshot : snapshot()) writer.println(snapshot.toLine());
+		writer.flush();
+	}
+	
+	/**
+	 * Writes a snapshot of all metrics to a file, in the format
+	 * of writeReport().
+	 * 
+	 * @param file The file
+	 */
+	public static void writeReport(File file) throws IOException
+	{
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try
+		{
+			writeReport(writer);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Adds a metric to the registry, unless another thread has
+	 * just added one with the same name.
+	 * 
+	 * @param metric The new metric
+	 * @return The registered metric
+	 */
+	protected static Metric _register(Metric metric)
+	{
+		Metric existing = _metrics.putIfAbsent(metric.name, metric);
+		if ((existing != null) && (existing.getClass() != metric.getClass()))
+			throw new RuntimeException("Metric '"+metric.name+"' is already registered with a different type");
+		
+		return (existing != null) ? existing : metric;
+	}
+	
+	/**
+	 * Base class for metrics.
+	 */
+	public static abstract class Metric
+	{
+		public final String name;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param name The name of the metric
+		 */
+		protected Metric(String name)
+		{
+			this.name = name;
+		}
+		
+		/**
+		 * Resets the metric to zero.
+		 */
+		public abstract void reset();
+		
+		/**
+		 * Takes a snapshot of the metric's current values.
+		 * 
+		 * @return A snapshot
+		 */
+		public abstract Snapshot snapshot();
+	}
+	
+	/**
+	 * A metric that counts events or quantities.
+	 */
+	public static class Counter extends Metric
+	{
+		protected AtomicLong _value = new AtomicLong();
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param name The name of the counter
+		 */
+		protected Counter(String name)
+		{
+			super(name);
+		}
+		
+		/**
+		 * Adds one to the counter.
+		 */
+		public void increment()
+		{
+			if (_enabled) this._value.incrementAndGet();
+		}
+		
+		/**
+		 * Adds a quantity to the counter.
+		 * 
+		 * @param amount The quantity to add
+		 */
+		public void add(long amount)
+		{
+			if (_enabled) this._value.addAndGet(amount);
+		}
+		
+		/**
+		 * Gets the value of the counter.
+		 * 
+		 * @return The value
+		 */
+		public long get()
+		{
+			return this._value.get();
+		}
+		
+		@Override
+		public void reset()
+		{
+			this._value.set(0);
+		}
+		
+		@Override
+		public Snapshot snapshot()
+		{
+			long value = this._value.get();
+			
+			return new Snapshot(this.name, "counter", value, value, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+		}
+	}
+	
+	/**
+	 * A metric that records the distribution of a quantity.
+	 */
+	public static class Histogram extends Metric
+	{
+		protected static final int SUB_BUCKET_BITS = 3;
+		protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		protected static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+		
+		protected AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+		protected AtomicLong _count = new AtomicLong();
+		protected AtomicLong _total = new AtomicLong();
+		protected AtomicLong _max = new AtomicLong();
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param name The name of the histogram
+		 */
+		protected Histogram(String name)
+		{
+			super(name);
+		}
+		
+		/**
+		 * Records a value.
+		 * 
+		 * @param value The value (negative values are recorded
+		 *              as zero)
+		 */
+		public void record(long value)
+		{
+			if (!_enabled) return;
+			if (value < 0) value = 0;
+			
+			this._buckets.incrementAndGet(_bucketIndex(value));
+			this._count.incrementAndGet();
+			this._total.addAndGet(value);
+			
+			long max;
+			while (value > (max = this._max.get()))
+				if (this._max.compareAndSet(max, value)) break;
+		}
+		
+		/**
+		 * Gets the number of values recorded.
+		 * 
+		 * @return The number of values
+		 */
+		public long getCount()
+		{
+			return this._count.get();
+		}
+		
+		/**
+		 * Estimates a percentile of the recorded values.
+		 * 
+		 * @param percent The percentile, between 0 and 100
+		 * @return The estimated value (0 if nothing was recorded)
+		 */
+		public long getPercentile(double percent)
+		{
+			long count = 0;
+			for (int i=0; i<BUCKET_COUNT; i++) count += this._buckets.get(i);
+			if (count == 0) return 0;
+			
+			long rank = Math.max(1, (long)Math.ceil(count * percent / 100.0));
+			long seen = 0;
+			for (int i=0; i<BUCKET_COUNT; i++)
+			{
+				seen += this._buckets.get(i);
+				if (seen >= rank) return Math.min(_bucketMiddle(i), this._max.get());
+			}
+			
+			return this._max.get();
+		}
+		
+		@Override
+		public void reset()
+		{
+			for (int i=0; i<BUCKET_COUNT; i++) this._buckets.set(i, 0);
+			this._count.set(0);
+			this._total.set(0);
+			this._max.set(0);
+		}
+		
+		@Override
+		public Snapshot snapshot()
+		{
+			return this._snapshot("histogram", 1.0);
+		}
+		
+		/**
+		 * Takes a snapshot, scaling the values by a given factor.
+		 * 
+		 * @param type The type of the metric, for display
+		 * @param scale The factor by which values are multiplied
+		 * @return A snapshot
+		 */
+		protected Snapshot _snapshot(String type, double scale)
+		{
+			long count = this._count.get();
+			long total = this._total.get();
+			
+			return new Snapshot(this.name, type, count, total * scale, (count > 0) ? total * scale / count : Double.NaN,
+					this.getPercentile(50) * scale, this.getPercentile(90) * scale, this.getPercentile(99) * scale,
+					this._max.get() * scale);
+		}
+		
+		/**
+		 * Gets the index of the bucket in which a value falls.
+		 * Values below SUB_BUCKETS have a bucket each; larger
+		 * values are grouped by their magnitude and the next
+		 * SUB_BUCKET_BITS bits.
+		 * 
+		 * @param value A non-negative value
+		 * @return The bucket index
+		 */
+		protected static int _bucketIndex(long value)
+		{
+			if (value < SUB_BUCKETS) return (int)value;
+			
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			
+			return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+		}
+		
+		/**
+		 * Gets the value in the middle of a bucket's range.
+		 * 
+		 * @param index The bucket index
+		 * @return The middle value
+		 */
+		protected static long _bucketMiddle(int index)
+		{
+			if (index < SUB_BUCKETS) return index;
+			
+			int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			long width = 1L << (exponent - SUB_BUCKET_BITS);
+			long lower = (SUB_BUCKETS + (index % SUB_BUCKETS)) * width;
+			
+			return lower + width / 2;
+		}
+	}
+	
+	/**
+	 * A metric that records the distribution of the duration of
+	 * an operation. Durations are measured in nanoseconds and
+	 * reported in milliseconds.
+	 * 
+	 * Usage: long start = timer.start(); ...; timer.stop(start);
+	 */
+	public static class Timer extends Histogram
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param name The name of the timer
+		 */
+		protected Timer(String name)
+		{
+			super(name);
+		}
+		
+		/**
+		 * Starts timing an operation.
+		 * 
+		 * @return The start time, to be passed to stop()
+		 */
+		public long start()
+		{
+			return _enabled ? System.nanoTime() : 0;
+		}
+		
+		/**
+		 * Finishes timing an operation and records its duration.
+		 * 
+		 * @param start The value returned by start()
+		 */
+		public void stop(long start)
+		{
+			if (_enabled && (start != 0)) this.record(System.nanoTime() - start);
+		}
+		
+		@Override
+		public Snapshot snapshot()
+		{
+			return this._snapshot("timer", 1e-6);
+		}
+	}
+	
+	/**
+	 * Structure class for the values of a metric at a given time.
+	 * For counters, the count and total are both the counter
+	 * value, and the other fields are NaN.
+	 */
+	public static class Snapshot
+	{
+		public final String name;
+		public final String type;
+		public final long count;
+		public final double total;
+		public final double mean;
+		public final double p50;
+		public final double p90;
+		public final double p99;
+		public final double max;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param name The name of the metric
+		 * @param type The type of the metric
+		 * @param count The number of values recorded
+		 * @param total The sum of the values recorded
+		 * @param mean The average value
+		 * @param p50 The median value
+		 * @param p90 The 90th percentile
+		 * @param p99 The 99th percentile
+		 * @param max The maximum value
+		 */
+		public Snapshot(String name, String type, long count, double total, double mean, double p50, double p90,
+				double p99, double max)
+		{
+			this.name = name;
+			this.type = type;
+			this.count = count;
+			this.total = total;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+		
+		/**
+		 * Formats the snapshot as a line of a metrics report.
+		 * 
+		 * @return The formatted line
+		 */
+		public String toLine()
+		{
+			return this.name+"\t"+this.type+"\t"+this.count+"\t"+_format(this.total)+"\t"+_format(this.mean)+"\t"+
+					_format(this.p50)+"\t"+_format(this.p90)+"\t"+_format(this.p99)+"\t"+_format(this.max);
+		}
+		
+		/**
+		 * Formats a value for a metrics report.
+		 * 
+		 * @param value The value
+		 * @return The formatted value ("-" for NaN)
+		 */
+		protected static String _format(double value)
+		{
+			if (Double.isNaN(value)) return "-";
+			if (value == Math.rint(value) && (Math.abs(value) < 1e15)) return Long.toString((long)value);
+			
+			return String.format(Locale.US, "%.3f", value);
+		}
+	}
+}
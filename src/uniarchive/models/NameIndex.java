@@ -7,9 +7,11 @@
 package uniarchive.models;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 import uniarchive.models.archive.IMService;
 
@@ -18,18 +20,45 @@ import uniarchive.models.archive.IMService;
  * A class for indexing objects in a manner that
  * allows quick lookup by service and name.
  * 
+ * Items are kept in a hash map per service, so lookups take
+ * constant time. The lists returned by the getAll*() functions
+ * are nevertheless sorted by service and then by name, as some
+ * callers present them to the user or process them in order.
+ * The complete list of items is sorted only when it is first
+ * requested after a change.
+ * 
  * @param <T> The type of object to index
  */
 public class NameIndex<T>
 {
 	protected Map<IMService,Map<String,T>> _map;
+	protected List<T> _sortedItems;
+	
+	/**
+	 * Interface for objects that create the items filed
+	 * by getOrAddItem() when none is found.
+	 * 
+	 * @param <T> The type of object to create
+	 */
+	public interface ItemFactory<T>
+	{
+		/**
+		 * Creates an item to be filed under a given service
+		 * and name.
+		 * 
+		 * @param service The service under which the item is filed
+		 * @param name The name under which the item is filed
+		 * @return A newly created item
+		 */
+		T createItem(IMService service, String name);
+	}
 	
 	/**
 	 * Constructor.
 	 */
 	public NameIndex()
 	{
-		_map = new TreeMap<IMService,Map<String,T>>();
+		_map = new EnumMap<IMService,Map<String,T>>(IMService.class);
 	}
 	
 	/**
@@ -52,9 +81,32 @@ public class NameIndex<T>
 	 */
 	public void addItem(IMService service, String name, T item)
 	{
-		if (!_map.containsKey(service)) _map.put(service, new TreeMap<String,T>());
+		this._getSubMap(service).put(name, item);
+		this._sortedItems = null;
+	}
+	
+	/**
+	 * Retrieves the item filed under a given service and name,
+	 * creating and filing it first if there is none.
+	 * 
+	 * @param service The service under which the item is filed
+	 * @param name The name under which the item is filed
+	 * @param factory An object that creates the item if needed
+	 * @return The item filed at those coordinates
+	 */
+	public T getOrAddItem(IMService service, String name, ItemFactory<T> factory)
+	{
+		Map<String,T> subMap = this._getSubMap(service);
+		
+		T item = subMap.get(name);
+		if ((item == null) && !subMap.containsKey(name))
+		{
+			item = factory.createItem(service, name);
+			subMap.put(name, item);
+			this._sortedItems = null;
+		}
 		
-		_map.get(service).put(name, item);
+		return item;
 	}
 	
 	/**
@@ -66,13 +118,12 @@ public class NameIndex<T>
 	 */
 	public T removeItem(IMService service, String name)
 	{
-		if (!this.itemExists(service, name)) return null;
-		
 		Map<String,T> subMap = _map.get(service);
-		T item = subMap.get(name);
+		if ((subMap == null) || !subMap.containsKey(name)) return null;
 		
-		subMap.remove(name);
+		T item = subMap.remove(name);
 		if (subMap.isEmpty()) _map.remove(service);
+		this._sortedItems = null;
 		
 		return item;
 	}
@@ -83,6 +134,7 @@ public class NameIndex<T>
 	public void clear()
 	{
 		this._map.clear();
+		this._sortedItems = null;
 	}
 	
 	/**
@@ -94,7 +146,9 @@ public class NameIndex<T>
 	 */
 	public boolean itemExists(IMService service, String name)
 	{
-		return _map.containsKey(service) && _map.get(service).containsKey(name);
+		Map<String,T> subMap = _map.get(service);
+		
+		return (subMap != null) && subMap.containsKey(name);
 	}
 	
 	/**
@@ -107,50 +161,82 @@ public class NameIndex<T>
 	 */
 	public T getItem(IMService service, String name)
 	{
-		if (!this.itemExists(service, name)) return null;
+		Map<String,T> subMap = _map.get(service);
 		
-		return _map.get(service).get(name);
+		return (subMap != null) ? subMap.get(name) : null;
 	}
 	
 	/**
-	 * Gets a list of all the items filed.
+	 * Gets a list of all the items filed, sorted by
+	 * service and then by name.
 	 * 
 	 * @return A list containing the items
 	 */
 	public List<T> getAllItems()
 	{
-		List<T> list = new ArrayList<T>();
-		
-		for (Map<String,T> subMap : _map.values())
-			list.addAll(subMap.values());
+		if (this._sortedItems == null)
+		{
+			List<T> list = new ArrayList<T>();
+			
+			for (IMService service : _map.keySet())
+				list.addAll(this.getAllItems(service));
+			
+			this._sortedItems = list;
+		}
 		
-		return list;
+		return new ArrayList<T>(this._sortedItems);
 	}
 	
 	/**
 	 * Gets a list of all the items filed under
-	 * a given service.
+	 * a given service, sorted by name.
 	 * 
 	 * @return A list containing the items
 	 */
 	public List<T> getAllItems(IMService service)
 	{
-		if (!_map.containsKey(service)) return new ArrayList<T>();
+		Map<String,T> subMap = _map.get(service);
+		List<T> list = new ArrayList<T>();
+		
+		for (String name : this.getAllNames(service)) list.add(subMap.get(name));
 		
-		return new ArrayList<T>(_map.get(service).values());
+		return list;
 	}
 	
 	/**
-	 * Gets a list of all the names filed under
+	 * Gets a sorted list of all the names filed under
 	 * a given service.
 	 * 
 	 * @return A list containing the names
 	 */
 	public List<String> getAllNames(IMService service)
 	{
-		if (!_map.containsKey(service)) return new ArrayList<String>();
+		Map<String,T> subMap = _map.get(service);
+		if (subMap == null) return new ArrayList<String>();
+		
+		List<String> names = new ArrayList<String>(subMap.keySet());
+		Collections.sort(names);
+		
+		return names;
+	}
+	
+	/**
+	 * Gets the map containing the items filed under a given
+	 * service, creating it if necessary.
+	 * 
+	 * @param service The service
+	 * @return A map from names to items
+	 */
+	protected Map<String,T> _getSubMap(IMService service)
+	{
+		Map<String,T> subMap = _map.get(service);
+		if (subMap == null)
+		{
+			subMap = new HashMap<String,T>();
+			_map.put(service, subMap);
+		}
 		
-		return new ArrayList<String>(_map.get(service).keySet());
+		return subMap;
 	}
 	
 	@Override
@@ -163,7 +249,7 @@ public class NameIndex<T>
 			buff.append(service.shortName);
 			buff.append(":\n");
 			
-			for (String name : _map.get(service).keySet())
+			for (String name : this.getAllNames(service))
 			{
 				Object item = _map.get(service).get(name);
 				
@@ -15,6 +15,8 @@ public class ProgressEvent
 	public final String comment;
 	public final int completedItems;
 	public final int totalItems;
+	public final double uncompressedRate;
+	public final double compressedRate;
 
 	/**
 	 * Constructor.
@@ -24,9 +26,31 @@ public class ProgressEvent
 	 * @param totalItems The number of items in total
 	 */
 	public ProgressEvent(String comment, int completedItems, int totalItems)
+	{
+		this(comment, completedItems, totalItems, -1.0, -1.0);
+	}
+
+	/**
+	 * Constructor for an event that also describes the
+	 * throughput of a job that reads or writes data.
+	 *
+	 * @param comment A description of the operation in progress
+	 * @param completedItems The number of completed items
+	 * @param totalItems The number of items in total
+	 * @param uncompressedRate The rate at which data is processed,
+	 *                         in bytes per second (or -1 if not
+	 *                         applicable)
+	 * @param compressedRate The rate at which compressed data is
+	 *                       read or written, in bytes per second
+	 *                       (or -1 if not applicable)
+	 */
+	public ProgressEvent(String comment, int completedItems, int totalItems,
+			double uncompressedRate, double compressedRate)
 	{
 		this.comment = comment;
 		this.completedItems = completedItems;
 		this.totalItems = totalItems;
+		this.uncompressedRate = uncompressedRate;
+		this.compressedRate = compressedRate;
 	}
 }
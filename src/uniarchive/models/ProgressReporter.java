@@ -0,0 +1,265 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models;
+
+/**
+ * Class for reporting the progress of a long-running job to
+ * a progress listener at a limited rate.
+ * 
+ * Progress updates are coalesced so that only the latest one
+ * is delivered, no more often than a given number of times per
+ * second. Updates that change the comment or complete the job
+ * are always delivered immediately. Checking an update against
+ * the rate limit does not allocate any objects, so report() can
+ * be safely called once for every processed item.
+ * 
+ * A job consisting of several phases can assign each phase a
+ * portion of the overall progress, either via setPhase() or by
+ * creating sub-task reporters that are handed to other routines.
+ * The listener will then see a single overall percentage.
+ * 
+ * Jobs that read or write data may also report the amount of
+ * data transferred, in which case the events delivered will
+ * include the average throughput.
+ */
+public class ProgressReporter implements ProgressListener
+{
+	public static final int DEFAULT_MAX_UPDATES_PER_SECOND = 30;
+	
+	/**
+	 * The scale on which the overall progress is expressed once
+	 * phases or sub-tasks are involved.
+	 */
+	protected static final int OVERALL_SCALE = 10000;
+	
+	protected ProgressReporter _root;
+	protected double _rangeStart;
+	protected double _rangeSize;
+	protected double _phaseStart;
+	protected double _phaseSize;
+	protected boolean _weighted;
+	
+	// These fields are only used in the root reporter
+	protected ProgressListener _listener;
+	protected long _minInterval;
+	protected long _lastDelivery;
+	protected boolean _pending = false;
+	protected String _comment = null;
+	protected int _completedItems = 0;
+	protected int _totalItems = -1;
+	protected long _transferStart = 0;
+	protected long _uncompressedBytes = -1;
+	protected long _compressedBytes = -1;
+	
+	/**
+	 * Constructor for a progress reporter with the default
+	 * update rate.
+	 * 
+	 * @param listener The listener that will receive the
+	 *                 progress events (may be null)
+	 */
+	public ProgressReporter(ProgressListener listener)
+	{
+		this(listener, DEFAULT_MAX_UPDATES_PER_SECOND);
+	}
+	
+	/**
+	 * Constructor for a progress reporter.
+	 * 
+	 * @param listener The listener that will receive the
+	 *                 progress events (may be null)
+	 * @param maxUpdatesPerSecond The maximum rate at which
+	 *                            events are delivered
+	 */
+	public ProgressReporter(ProgressListener listener, int maxUpdatesPerSecond)
+	{
+		this._root = this;
+		this._listener = listener;
+		this._minInterval = 1000000000L / Math.max(1, maxUpdatesPerSecond);
+		this._lastDelivery = System.nanoTime() - this._minInterval;
+		this._rangeStart = this._phaseStart = 0.0;
+		this._rangeSize = this._phaseSize = 1.0;
+		this._weighted = false;
+	}
+	
+	/**
+	 * Internal constructor for a sub-task reporter.
+	 * 
+	 * @param root The root reporter
+	 * @param rangeStart The start of the sub-task's portion of
+	 *                   the overall progress
+	 * @param rangeSize The size of the sub-task's portion of
+	 *                  the overall progress
+	 */
+	protected ProgressReporter(ProgressReporter root, double rangeStart, double rangeSize)
+	{
+		this._root = root;
+		this._rangeStart = this._phaseStart = rangeStart;
+		this._rangeSize = this._phaseSize = rangeSize;
+		this._weighted = true;
+	}
+	
+	/**
+	 * Gets a progress reporter for a given listener. If the
+	 * listener is itself a progress reporter, it is returned
+	 * as such, so that reporters are not stacked needlessly.
+	 * 
+	 * @param listener A progress listener (may be null)
+	 * @return A progress reporter
+	 */
+	public static ProgressReporter forListener(ProgressListener listener)
+	{
+		if (listener instanceof ProgressReporter) return (ProgressReporter)listener;
+		
+		return new ProgressReporter(listener);
+	}
+	
+	/**
+	 * Reports progress in the current phase of the job.
+	 * 
+	 * @param comment A description of the operation in progress
+	 * @param completedItems The number of completed items
+	 * @param totalItems The number of items in total (or a value
+	 *                   of 0 or less if it is not known)
+	 */
+	public void report(String comment, int completedItems, int totalItems)
+	{
+		if (!this._weighted)
+		{
+			this._root._update(comment, completedItems, totalItems);
+			return;
+		}
+		
+		if (totalItems <= 0)
+		{
+			this._root._update(comment, 0, -1);
+			return;
+		}
+		
+		double fraction = (double)Math.min(completedItems, totalItems) / totalItems;
+		this._root._update(comment,
+				(int)((this._phaseStart + this._phaseSize * fraction) * OVERALL_SCALE),
+				OVERALL_SCALE);
+	}
+	
+	/**
+	 * Reports the amount of data transferred so far. This is
+	 * delivered along with the next progress update.
+	 * 
+	 * @param uncompressedBytes The number of bytes of data
+	 *                          processed so far
+	 * @param compressedBytes The number of bytes actually read
+	 *                        or written so far, if the data is
+	 *                        compressed (or -1 otherwise)
+	 */
+	public void reportTransfer(long uncompressedBytes, long compressedBytes)
+	{
+		ProgressReporter root = this._root;
+		
+		if (root._uncompressedBytes == -1) root._transferStart = System.nanoTime();
+		root._uncompressedBytes = uncompressedBytes;
+		root._compressedBytes = compressedBytes;
+	}
+	
+	/**
+	 * Sets the portion of the overall progress covered by
+	 * subsequent reports (and sub-tasks).
+	 * 
+	 * @param start The start of the phase, as a fraction (0..1)
+	 *              of the progress covered by this reporter
+	 * @param end The end of the phase, as a fraction (0..1)
+	 *            of the progress covered by this reporter
+	 */
+	public void setPhase(double start, double end)
+	{
+		this._phaseStart = this._rangeStart + this._rangeSize * start;
+		this._phaseSize = this._rangeSize * (end - start);
+		this._weighted = true;
+	}
+	
+	/**
+	 * Creates a reporter for a sub-task that covers a portion
+	 * of the current phase.
+	 * 
+	 * @param start The start of the sub-task, as a fraction (0..1)
+	 *              of the current phase
+	 * @param end The end of the sub-task, as a fraction (0..1)
+	 *            of the current phase
+	 * @return A progress reporter for the sub-task
+	 */
+	public ProgressReporter subTask(double start, double end)
+	{
+		return new ProgressReporter(this._root,
+				this._phaseStart + this._phaseSize * start,
+				this._phaseSize * (end - start));
+	}
+	
+	/**
+	 * Delivers the latest progress update, if it was held
+	 * back due to the rate limit.
+	 */
+	public void flush()
+	{
+		ProgressReporter root = this._root;
+		
+		if (root._pending) root._deliver(System.nanoTime());
+	}
+	
+	@Override
+	public void onProgress(ProgressEvent progEvent)
+	{
+		this.report(progEvent.comment, progEvent.completedItems, progEvent.totalItems);
+	}
+	
+	/**
+	 * Records a progress update in the root reporter and
+	 * delivers it if the rate limit allows.
+	 * 
+	 * @param comment A description of the operation in progress
+	 * @param completedItems The number of completed items
+	 * @param totalItems The number of items in total
+	 */
+	protected void _update(String comment, int completedItems, int totalItems)
+	{
+		boolean urgent = ((totalItems > 0) != (this._totalItems > 0)) ||
+			((totalItems > 0) && (completedItems >= totalItems)) ||
+			((comment != this._comment) && ((comment == null) || !comment.equals(this._comment)));
+		
+		this._comment = comment;
+		this._completedItems = completedItems;
+		this._totalItems = totalItems;
+		this._pending = true;
+		
+		long now = System.nanoTime();
+		if (urgent || (now - this._lastDelivery >= this._minInterval)) this._deliver(now);
+	}
+	
+	/**
+	 * Delivers the latest progress update to the listener.
+	 * 
+	 * @param now The current time, as given by System.nanoTime()
+	 */
+	protected void _deliver(long now)
+	{
+		this._pending = false;
+		this._lastDelivery = now;
+		
+		if (this._listener == null) return;
+		
+		double uncompressedRate = -1.0;
+		double compressedRate = -1.0;
+		if ((this._uncompressedBytes != -1) && (now > this._transferStart))
+		{
+			double seconds = (now - this._transferStart) / 1e9;
+			uncompressedRate = this._uncompressedBytes / seconds;
+			if (this._compressedBytes != -1) compressedRate = this._compressedBytes / seconds;
+		}
+		
+		this._listener.onProgress(new ProgressEvent(this._comment, this._completedItems, this._totalItems,
+				uncompressedRate, compressedRate));
+	}
+}
@@ -16,45 +16,109 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 
+import uniarchive.models.IntArraysKey;
 import uniarchive.models.IntList;
+import uniarchive.models.IntMap;
+import uniarchive.models.Metrics;
 
 /**
  * Class for managing and performing operations on
  * an Sqlite database containing message archives.
+ * 
+ * The database may be used from several threads at once.
+ * All updates go through a single writer connection, which
+ * threads take turns in using (in the order in which they
+ * asked for it). A thread holds the writer for the duration
+ * of a transaction, or of a single update otherwise. Queries
+ * are run on read connections, each with its own prepared
+ * statements, so that searching and browsing can proceed in
+ * parallel, even while an import is writing. A thread that
+ * holds the writer runs its queries on it too, so that it
+ * sees its own uncommitted updates.
+ * 
+ * Every thread that runs queries gets a read connection of
+ * its own, rather than borrowing one from a shared pool: the
+ * version of Sqlite used by the driver keeps track of locks
+ * per thread, and stalls when a connection is handed over to
+ * another thread while the database is being written to.
+ * Result sets returned by this class must still be closed,
+ * as an open one keeps the writer from committing.
+ * 
+ * Note that Sqlite only lets the writer commit once no reader
+ * is in the middle of a query, and keeps new readers out in
+ * the meantime. Statements that find the database locked for
+ * longer than the driver's timeout are retried a few times
+ * (see _checkBusy()) before the error is reported.
  */
 public class ArchiveDb
 {
 	protected static final String MAIN_DB_FILE = "./uniarc.sqlite";
 	protected static final int MAX_IN_SIZE = 100;
+	protected static final int MAX_FILTER_SETS = 8;
+	protected static final int WRITER_CACHE_PAGES = 16384;
+	protected static final int BUSY_RETRIES = 10;
+	protected static final int BUSY_BACKOFF_MS = 20;
+	protected static final int SCHEMA_VERSION = 1;
+	
+	protected static final Metrics.Timer OPEN_TIMER = Metrics.timer("db.open");
+	protected static final Metrics.Timer SWEEP_TIMER = Metrics.timer("db.sweep_orphans");
 	
 	protected static ArchiveDb _instance;
 	
+	protected String _url;
 	protected Connection _conn;
-	protected Map<String, PreparedStatement> _statements;
-	protected Map<Integer, IMService> _idToService;
+	protected DbConnection _writer;
+	protected ReentrantLock _writeLock = new ReentrantLock(true);
+	protected Map<Thread, DbConnection> _readers = new HashMap<Thread, DbConnection>();
+	protected ThreadLocal<DbConnection> _threadReader = new ThreadLocal<DbConnection>();
+	protected Map<String, String> _statementSql;
+	protected Map<String, Metrics.Timer> _statementTimers;
+	protected IntMap<IMService> _idToService;
 	protected Map<IMService, Integer> _serviceToId;
+	protected int _transactionDepth = 0;
+	protected boolean _rollbackOnly = false;
+	protected int _lastConversationId;
 	
 	/**
 	 * Constructor.
 	 */
 	private ArchiveDb()
 	{
+		long start = OPEN_TIMER.start();
 		try
 		{
 			Class.forName("org.sqlite.JDBC");
 			File arcFile = new File(MAIN_DB_FILE);
-			_conn = DriverManager.getConnection("jdbc:sqlite:"+arcFile.getCanonicalPath());
+			_url = "jdbc:sqlite:"+arcFile.getCanonicalPath();
+			_conn = DriverManager.getConnection(_url);
+			
+			// A larger cache delays the point at which a big transaction must
+			// lock out the readers, which otherwise happens before the commit
+			Statement stat = _conn.createStatement();
+			stat.executeUpdate("PRAGMA cache_size="+WRITER_CACHE_PAGES);
+			stat.close();
+			
+			// Note: this must come before any temporary table is created
+			_writer = new DbConnection(_conn);
 			
 			this._initializeTables();
+			this._upgradeSchema();
 			this._initializeStatements();
 			this._initializeServiceMaps();
 			this._cleanup();
+			this._initializeConversationIds();
+			OPEN_TIMER.stop(start);
 		}
 		catch (Exception e)
 		{
@@ -67,7 +131,7 @@ public class ArchiveDb
 	 *  
 	 * @return The archive database object
 	 */
-	public static ArchiveDb getInstance()
+	public static synchronized ArchiveDb getInstance()
 	{
 		if (ArchiveDb._instance == null) ArchiveDb._instance = new ArchiveDb();
 		
@@ -75,16 +139,24 @@ public class ArchiveDb
 	}
 	
 	/**
-	 * Closes the connection to the database.
+	 * Closes the connections to the database.
 	 */
 	public void close()
 	{
 		try { _conn.close(); } catch (Exception e) {}
 		_conn = null;
+		
+		synchronized (this._readers)
+		{
+			for (DbConnection reader : this._readers.values()) reader.close();
+			this._readers.clear();
+		}
 	}
 	
 	/**
-	 * Gets the connection to the archive database.
+	 * Gets the writer connection to the archive database. It
+	 * should only be used within a transaction (see
+	 * startTransaction()).
 	 * 
 	 * @return An SQL connection.
 	 */
@@ -93,6 +165,104 @@ public class ArchiveDb
 		return _conn;
 	}
 	
+	/**
+	 * Starts a transaction, so that a series of updates is
+	 * committed all at once (this is much faster than having
+	 * each update committed by itself). Transactions may be
+	 * nested, in which case only the outermost one has effect.
+	 * 
+	 * The calling thread holds the writer connection until the
+	 * outermost transaction ends, so every call must be matched
+	 * by a call to endTransaction(), even if an error occurs.
+	 */
+	public void startTransaction() throws SQLException
+	{
+		this._writeLock.lock();
+		try
+		{
+			if (this._transactionDepth == 0) _conn.setAutoCommit(false);
+			this._transactionDepth++;
+		}
+		catch (SQLException e)
+		{
+			this._writeLock.unlock();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Ends a transaction started with startTransaction(),
+	 * committing all the updates performed since.
+	 */
+	public void endTransaction() throws SQLException
+	{
+		this.endTransaction(true);
+	}
+	
+	/**
+	 * Ends a transaction started with startTransaction(),
+	 * either committing or rolling back the updates performed
+	 * since. Operations consisting of several updates call this
+	 * with commit=false when they fail, so that they take effect
+	 * either completely or not at all.
+	 * 
+	 * If the transaction is nested, rolling it back causes the
+	 * outermost transaction to be rolled back when it ends, as
+	 * SQLite does not support nested transactions. If the caller
+	 * of the outermost transaction asked for a commit, an
+	 * SQLException is then thrown after the rollback, so that
+	 * it does not mistake its updates for committed ones.
+	 * 
+	 * @param commit True to commit the updates, false to roll
+	 *               them back
+	 */
+	public void endTransaction(boolean commit) throws SQLException
+	{
+		try
+		{
+			if (!commit) this._rollbackOnly = true;
+			
+			this._transactionDepth--;
+			if (this._transactionDepth > 0) return;
+			
+			if (this._rollbackOnly)
+			{
+				this._rollbackOnly = false;
+				this._rollback();
+				if (commit) throw new SQLException("Transaction rolled back because a nested update failed");
+				return;
+			}
+			
+			try
+			{
+				for (int attempt=1; ; attempt++)
+				{
+					try { _conn.commit(); break; } catch (SQLException e) { this._checkBusy(e, attempt); }
+				}
+				_conn.setAutoCommit(true);
+			}
+			catch (SQLException e)
+			{
+				this._rollback();
+				throw e;
+			}
+		}
+		finally
+		{
+			this._writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Rolls back the current transaction on the writer connection
+	 * and returns it to autocommit mode. Any errors are ignored,
+	 * as this is only done when an operation has already failed.
+	 */
+	protected void _rollback()
+	{
+		try { _conn.rollback(); _conn.setAutoCommit(true); _writer.clearFilterSets(); } catch (SQLException e) {}
+	}
+	
 	/**
 	 * Returns the SQL id corresponding to an IMService
 	 * constant.
@@ -114,7 +284,7 @@ public class ArchiveDb
 	 */
 	public IMService getServiceById(int serviceId)
 	{
-		return _idToService.get(new Integer(serviceId));
+		return _idToService.get(serviceId);
 	}
 	
 	/**
@@ -143,12 +313,15 @@ public class ArchiveDb
 	{
 		ResultSet rset = this._execQuery("getArchiveByName", name);
 		
-		return (rset.next()) ? rset.getInt(1) : -1; 
+		int archiveId = (rset.next()) ? rset.getInt(1) : -1;
+		rset.close();
+		
+		return archiveId;
 	}
 	
 	/**
 	 * Gets the groups in an archive in a manner suitable
-	 * for loading all the data in an archive when a connection
+	 * for loading the groups in an archive when a connection
 	 * is first established.
 	 * 
 	 * The groups are guaranteed to be returned in the order
@@ -163,29 +336,181 @@ public class ArchiveDb
 	}
 	
 	/**
-	 * Gets all of the contacts in an archive in a manner suitable
-	 * for loading all the data in an archive when a connection
-	 * is first established.
+	 * Gets the number of contacts in each group of an archive,
+	 * so that it is known without loading the contacts.
 	 * 
 	 * @param archiveId The ID of the containing archive
+	 * @return A result set containing the ID and contact count
+	 *         of each group that has any contacts
+	 */
+	public ResultSet countGroupContacts(int archiveId) throws SQLException
+	{
+		return this._execQuery("countGroupContacts", archiveId);
+	}
+	
+	/**
+	 * Gets the contacts in a group, for loading them when
+	 * they are first needed.
+	 * 
+	 * @param groupId The ID of the group
 	 * @return A result set containing contact data
 	 */
-	public ResultSet loadContacts(int archiveId) throws SQLException
+	public ResultSet loadContacts(int groupId) throws SQLException
 	{
-		return this._execQuery("loadContacts", archiveId);
+		return this._execQuery("loadContacts", groupId);
 	}
 	
 	/**
-	 * Gets all of the accounts in an archive in a manner suitable
-	 * for loading all the data in an archive when a connection
-	 * is first established.
+	 * Gets the accounts of all the contacts in a group, for
+	 * loading them along with the contacts.
 	 * 
-	 * @param archiveId The ID of the containing archive
+	 * @param groupId The ID of the group
 	 * @return A result set containing account data
 	 */
-	public ResultSet loadAccounts(int archiveId) throws SQLException
+	public ResultSet loadAccounts(int groupId) throws SQLException
+	{
+		return this._execQuery("loadAccounts", groupId);
+	}
+	
+	/**
+	 * Gets a number of accounts by their IDs, regardless of the
+	 * group they are in.
+	 * 
+	 * @param accountIds An array of account IDs
+	 * @return A result set containing account data (without
+	 *         the contact ID)
+	 */
+	public ResultSet getAccounts(int[] accountIds) throws SQLException
 	{
-		return this._execQuery("loadAccounts", archiveId);
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
+		
+		return this._execSqlQuery(conn,
+				"SELECT id, service AS service_id, name"+
+				" FROM accounts WHERE "+this._inFilterSet("id", conn, accountIds, params),
+				params);
+	}
+	
+	/**
+	 * Gets the contacts of a number of accounts.
+	 * 
+	 * @param accountIds The IDs of the accounts
+	 * @return A result set with the account ID, contact ID and
+	 *         contact name for each account
+	 */
+	public ResultSet getAccountContacts(int[] accountIds) throws SQLException
+	{
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
+		
+		return this._execSqlQuery(conn,
+				"SELECT a.id AS account_id, c.id AS contact_id, c.name AS contact_name"+
+				" FROM accounts AS a INNER JOIN contacts AS c ON c.id=a.contact_id"+
+				" WHERE "+this._inFilterSet("a.id", conn, accountIds, params),
+				params);
+	}
+	
+	/**
+	 * Gets the group that contains a given contact.
+	 * 
+	 * @param contactId The ID of the contact
+	 * @return The ID of the group, or -1 if the contact
+	 *         does not exist
+	 */
+	public int getContactGroup(int contactId) throws SQLException
+	{
+		return this._execSingleIdQuery("getContactGroup", contactId);
+	}
+	
+	/**
+	 * Gets the group that contains the contact of a given account.
+	 * 
+	 * @param accountId The ID of the account
+	 * @return The ID of the group, or -1 if the account
+	 *         does not exist
+	 */
+	public int getAccountGroup(int accountId) throws SQLException
+	{
+		return this._execSingleIdQuery("getAccountGroup", accountId);
+	}
+	
+	/**
+	 * Searches for the contact with a given name in an archive.
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @param name The name of the contact
+	 * @return The ID of the group containing the contact, or -1
+	 *         if it does not exist
+	 */
+	public int findContactGroup(int archiveId, String name) throws SQLException
+	{
+		return this._execSingleIdQuery("findContactGroup", archiveId, name);
+	}
+	
+	/**
+	 * Searches for the account with a given service and name
+	 * in an archive.
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @param serviceId The ID of the service
+	 * @param name The name of the account
+	 * @return The ID of the group containing the account, or -1
+	 *         if it does not exist
+	 */
+	public int findAccountGroup(int archiveId, int serviceId, String name) throws SQLException
+	{
+		return this._execSingleIdQuery("findAccountGroup", archiveId, serviceId, name);
+	}
+	
+	/**
+	 * Searches for the contacts in an archive whose names match
+	 * a LIKE pattern (case-insensitive, for ASCII letters).
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @param pattern The pattern the names must match (with
+	 *                backslash as the escape character)
+	 * @param excludePattern If not null, names matching this
+	 *                       pattern are skipped
+	 * @param maxResults A limit on the number of results returned
+	 * @return A result set containing the ID, name and group ID
+	 *         of each contact, in alphabetical order of the names
+	 */
+	public ResultSet findContacts(int archiveId, String pattern, String excludePattern, int maxResults) throws SQLException
+	{
+		List<Object> params = new ArrayList<Object>();
+		params.add(archiveId);
+		
+		return this._execSqlQuery(this._getReader(),
+				"SELECT c.id AS id, c.name AS name, c.group_id AS group_id"+
+				" FROM contacts AS c INNER JOIN groups AS g ON g.id=c.group_id"+
+				" WHERE g.archive_id=?1 AND "+this._getNameCondition("c.name", pattern, excludePattern, params)+
+				" ORDER BY c.name COLLATE NOCASE LIMIT "+maxResults,
+				params);
+	}
+	
+	/**
+	 * Searches for the accounts in an archive whose names match
+	 * a LIKE pattern. See findContacts() for details.
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @param pattern The pattern the names must match
+	 * @param excludePattern If not null, names matching this
+	 *                       pattern are skipped
+	 * @param maxResults A limit on the number of results returned
+	 * @return A result set containing the ID, name and group ID
+	 *         of each account, in alphabetical order of the names
+	 */
+	public ResultSet findAccounts(int archiveId, String pattern, String excludePattern, int maxResults) throws SQLException
+	{
+		List<Object> params = new ArrayList<Object>();
+		params.add(archiveId);
+		
+		return this._execSqlQuery(this._getReader(),
+				"SELECT a.id AS id, a.name AS name, c.group_id AS group_id"+
+				" FROM accounts AS a INNER JOIN contacts AS c ON c.id=a.contact_id INNER JOIN groups AS g ON g.id=c.group_id"+
+				" WHERE g.archive_id=?1 AND "+this._getNameCondition("a.name", pattern, excludePattern, params)+
+				" ORDER BY a.name COLLATE NOCASE LIMIT "+maxResults,
+				params);
 	}
 	
 	/**
@@ -198,6 +523,10 @@ public class ArchiveDb
 	 * @param filterRemoteAccounts Ditto, for remote account IDs
 	 * @param filterConversations If non-empty, only conversations with these IDs
 	 *                            will be returned
+	 * @param dateFrom If not null, only conversations started at or after
+	 *                 this date will be returned
+	 * @param dateTo If not null, only conversations started before this
+	 *               date will be returned
 	 * @param sortKeys An array of column names specifying how the result set
 	 *                 should be ordered (it is first sorted by the first
 	 *                 column specified, then the second, etc.)
@@ -207,20 +536,54 @@ public class ArchiveDb
 	 *         the specified window
 	 */
 	public ResultSet getConversations(int archiveId, int[] filterLocalAccounts, int[] filterRemoteAccounts,
-			int[] filterConversations, String[] sortKeys, int offset, int limit) throws SQLException
+			int[] filterConversations, Date dateFrom, Date dateTo, String[] sortKeys, int offset, int limit) throws SQLException
 	{
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
 		StringBuilder buf = new StringBuilder();
 		
 		buf.append("SELECT v.id AS id, date_started, local_account_id, remote_account_id, is_conference ");
-		buf.append(this._getConversationsQuery(archiveId, filterLocalAccounts, filterRemoteAccounts, filterConversations));
+		buf.append(this._getConversationsQuery(conn, params, archiveId, filterLocalAccounts, filterRemoteAccounts,
+				filterConversations, dateFrom, dateTo));
 		for (int i=0; i<sortKeys.length; i++)
 		{
 			buf.append((i==0) ? " ORDER BY " : ", ");
 			buf.append(sortKeys[i]);
 		}
-		buf.append(" LIMIT ").append(limit).append(" OFFSET ").append(offset);
+		params.add(limit);
+		buf.append(" LIMIT ?").append(params.size());
+		params.add(offset);
+		buf.append(" OFFSET ?").append(params.size());
+		
+		return this._execSqlQuery(conn, buf.toString(), params);
+	}
+	
+	/**
+	 * Gets the data needed for sorting all the conversations
+	 * returned by a query, in no particular order.
+	 * 
+	 * @param archiveId The ID of the containing archive
+	 * @param filterLocalAccounts See getConversations() for details
+	 * @param filterRemoteAccounts See getConversations() for details
+	 * @param filterConversations See getConversations() for details
+	 * @param dateFrom See getConversations() for details
+	 * @param dateTo See getConversations() for details
+	 * @return A result set containing the ID, start date, remote
+	 *         account ID and name, remote contact name and type
+	 *         of each conversation
+	 */
+	public ResultSet getConversationsSortData(int archiveId, int[] filterLocalAccounts, int[] filterRemoteAccounts,
+			int[] filterConversations, Date dateFrom, Date dateTo) throws SQLException
+	{
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
 		
-		return _conn.createStatement().executeQuery(buf.toString());
+		return this._execSqlQuery(conn,
+				"SELECT v.id AS id, date_started, remote_account_id, is_conference, "+
+				"a.name AS account_name, c.name AS contact_name "+
+				this._getConversationsQuery(conn, params, archiveId, filterLocalAccounts, filterRemoteAccounts,
+						filterConversations, dateFrom, dateTo),
+				params);
 	}
 	
 	/**
@@ -232,18 +595,28 @@ public class ArchiveDb
 	 * @param filterRemoteAccounts Ditto, for remote account IDs
 	 * @param filterConversations If non-empty, only conversations with these IDs
 	 *                            will be returned
+	 * @param dateFrom If not null, only conversations started at or after
+	 *                 this date will be returned
+	 * @param dateTo If not null, only conversations started before this
+	 *               date will be returned
 	 * @return The number of items in the query result
 	 */
 	public int countConversations(int archiveId, int[] filterLocalAccounts, int[] filterRemoteAccounts,
-			int[] filterConversations) throws SQLException
+			int[] filterConversations, Date dateFrom, Date dateTo) throws SQLException
 	{
-		ResultSet rset = _conn.createStatement().executeQuery(
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
+		
+		ResultSet rset = this._execSqlQuery(conn,
 				"SELECT COUNT(*) "+
-				this._getConversationsQuery(archiveId, filterLocalAccounts, filterRemoteAccounts, filterConversations)		
-		);
+				this._getConversationsQuery(conn, params, archiveId, filterLocalAccounts, filterRemoteAccounts,
+						filterConversations, dateFrom, dateTo),
+				params);
 		rset.next();
+		int count = rset.getInt(1);
+		rset.close();
 		
-		return rset.getInt(1);
+		return count;
 	}
 	
 	/**
@@ -255,10 +628,13 @@ public class ArchiveDb
 	 */
 	public ResultSet getSpeakers(int[] conversationIds) throws SQLException
 	{
-		return _conn.createStatement().executeQuery(
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
+		
+		return this._execSqlQuery(conn,
 				"SELECT id, name, account_id, conversation_id"+
-				" FROM speakers WHERE conversation_id IN ("+this._implodeIds(conversationIds)+")"
-		);
+				" FROM speakers WHERE "+this._inFilterSet("conversation_id", conn, conversationIds, params),
+				params);
 	}
 	
 	/**
@@ -272,6 +648,198 @@ public class ArchiveDb
 		return this._execQuery("getReplies", conversationId);
 	}
 	
+	/**
+	 * Gets the replies in a number of conversations.
+	 * 
+	 * @param conversationIds An array of conversation IDs for which
+	 *                        the replies will be retrieved
+	 * @return A result set containing reply data, ordered by
+	 *         conversation ID and then by reply index
+	 */
+	public ResultSet getReplies(int[] conversationIds) throws SQLException
+	{
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
+		
+		return this._execSqlQuery(conn,
+				"SELECT id, idx, reply_date, speaker_id, content, conversation_id"+
+				" FROM replies WHERE "+this._inFilterSet("conversation_id", conn, conversationIds, params)+
+				" ORDER BY conversation_id, idx",
+				params);
+	}
+	
+	/**
+	 * Gets the packed reply blocks of a conversation (see
+	 * packReplies()). The replies in these blocks precede any
+	 * replies returned by getReplies().
+	 * 
+	 * @param conversationId The SQL ID of the conversation
+	 * @return A result set containing block data, ordered by
+	 *         the index of the first reply in each block
+	 */
+	public ResultSet getReplyBlocks(int conversationId) throws SQLException
+	{
+		return this._execQuery("getReplyBlocks", conversationId);
+	}
+	
+	/**
+	 * Gets the packed reply blocks of a number of conversations.
+	 * 
+	 * @param conversationIds An array of conversation IDs for which
+	 *                        the blocks will be retrieved
+	 * @return A result set containing block data, ordered by
+	 *         conversation ID and then by first reply index
+	 */
+	public ResultSet getReplyBlocks(int[] conversationIds) throws SQLException
+	{
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
+		
+		return this._execSqlQuery(conn,
+				"SELECT first_idx, reply_count, data, conversation_id"+
+				" FROM reply_blocks WHERE "+this._inFilterSet("conversation_id", conn, conversationIds, params)+
+				" ORDER BY conversation_id, first_idx",
+				params);
+	}
+	
+	/**
+	 * Gets the IDs of the conversations in an archive that have
+	 * replies stored as individual rows.
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @return An array of conversation IDs, in increasing order
+	 */
+	public int[] getConversationsWithReplyRows(int archiveId) throws SQLException
+	{
+		ResultSet rset = this._execQuery("getConversationsWithReplyRows", archiveId);
+		
+		IntList ids = new IntList();
+		while (rset.next()) ids.add(rset.getInt(1));
+		rset.close();
+		
+		return ids.toArray();
+	}
+	
+	/**
+	 * Gets the IDs of the conversations in an archive that have
+	 * packed reply blocks.
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @return An array of conversation IDs, in increasing order
+	 */
+	public int[] getConversationsWithReplyBlocks(int archiveId) throws SQLException
+	{
+		ResultSet rset = this._execQuery("getConversationsWithReplyBlocks", archiveId);
+		
+		IntList ids = new IntList();
+		while (rset.next()) ids.add(rset.getInt(1));
+		rset.close();
+		
+		return ids.toArray();
+	}
+	
+	/**
+	 * Packs the replies of a conversation that are stored as
+	 * individual rows into compressed blocks of up to
+	 * ReplyBlock.MAX_REPLIES replies each, and deletes the rows.
+	 * 
+	 * Packed replies take up much less space, as they share a
+	 * single row, index entry and page, and reading a whole
+	 * conversation touches fewer pages. Replies added later are
+	 * stored as rows again, after the blocks.
+	 * 
+	 * @param conversationId The SQL ID of the conversation
+	 * @return The number of replies packed
+	 */
+	public int packReplies(int conversationId) throws SQLException
+	{
+		this._writeLock.lock();
+		try
+		{
+			List<ReplyBlock> blocks = new ArrayList<ReplyBlock>();
+			ReplyBlock block = null;
+			int count = 0;
+			
+			ResultSet rset = this._execQuery("getReplies", conversationId);
+			while (rset.next())
+			{
+				int index = rset.getInt("idx");
+				if ((block == null) || block.isFull() || (index != block.firstIndex + block.size()))
+				{
+					block = new ReplyBlock(index);
+					blocks.add(block);
+				}
+				
+				long date = rset.getLong("reply_date");
+				int speakerId = rset.getInt("speaker_id");
+				if (rset.wasNull()) speakerId = -1;
+				block.add(date, speakerId, rset.getString("content"));
+				count++;
+			}
+			rset.close();
+			
+			for (ReplyBlock packed : blocks)
+				this._execUpdate("createReplyBlock", conversationId, packed.firstIndex, packed.size(), packed.encode());
+			this._execUpdate("deleteConversationReplies", conversationId);
+			
+			return count;
+		}
+		finally
+		{
+			this._writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Unpacks the reply blocks of a conversation back into
+	 * individual rows (the reverse of packReplies()).
+	 * 
+	 * @param conversationId The SQL ID of the conversation
+	 * @return The number of replies unpacked
+	 */
+	public int unpackReplies(int conversationId) throws SQLException
+	{
+		this._writeLock.lock();
+		try
+		{
+			List<ReplyBlock> blocks = new ArrayList<ReplyBlock>();
+			int count = 0;
+			
+			ResultSet rset = this._execQuery("getReplyBlocks", conversationId);
+			while (rset.next())
+				blocks.add(ReplyBlock.decode(rset.getInt("first_idx"), rset.getBytes("data"), rset.getInt("reply_count")));
+			rset.close();
+			
+			for (ReplyBlock block : blocks)
+				for (int i=0; i<block.size(); i++)
+				{
+					this.createReply(conversationId, block.firstIndex + i, new Date(block.getDate(i)),
+							block.getSpeakerId(i), block.getContent(i));
+					count++;
+				}
+			this._execUpdate("deleteConversationReplyBlocks", conversationId);
+			
+			return count;
+		}
+		finally
+		{
+			this._writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Gets the number of bytes in the database file that are
+	 * occupied by data, i.e. excluding free pages.
+	 * 
+	 * @return The number of bytes in use
+	 */
+	public long getUsedBytes() throws SQLException
+	{
+		long usedPages = this._execSingleNoQuery("getPageCount") - this._execSingleNoQuery("getFreePageCount");
+		
+		return usedPages * this._execSingleNoQuery("getPageSize");
+	}
+	
 	/**
 	 * Counts the groups in an archive.
 	 * 
@@ -294,6 +862,50 @@ public class ArchiveDb
 		return this._execSingleNoQuery("countConversations", archiveId);
 	}
 	
+	/**
+	 * Gets the IDs of the conversations in an archive that were
+	 * created after a given conversation.
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @param lastConversationId The ID of the given conversation
+	 * @return An array of conversation IDs, in increasing order
+	 */
+	public int[] getConversationIdsAfter(int archiveId, int lastConversationId) throws SQLException
+	{
+		ResultSet rset = this._execQuery("getConversationIdsAfter", archiveId, lastConversationId);
+		
+		IntList ids = new IntList();
+		while (rset.next()) ids.add(rset.getInt(1));
+		rset.close();
+		
+		return ids.toArray();
+	}
+	
+	/**
+	 * Gets the export checkpoint of an archive, i.e. the ID of
+	 * the last conversation included in its latest export.
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @return A conversation ID, or 0 if the archive has no
+	 *         checkpoint
+	 */
+	public int getExportCheckpoint(int archiveId) throws SQLException
+	{
+		return this._execSingleNoQuery("getExportCheckpoint", archiveId);
+	}
+	
+	/**
+	 * Sets the export checkpoint of an archive.
+	 * 
+	 * @param archiveId The ID of the archive
+	 * @param lastConversationId The ID of the last conversation
+	 *                           included in the export
+	 */
+	public void setExportCheckpoint(int archiveId, int lastConversationId) throws SQLException
+	{
+		this._execUpdate("setExportCheckpoint", archiveId, lastConversationId, System.currentTimeMillis());
+	}
+	
 	/**
 	 * Counts the replies in a conversation.
 	 * 
@@ -313,21 +925,27 @@ public class ArchiveDb
 	 */
 	public int countDependentConversations(int[] accountIds) throws SQLException
 	{
-		ResultSet rset = _conn.createStatement().executeQuery(
+		DbConnection conn = this._getReader();
+		List<Object> params = new ArrayList<Object>();
+		
+		ResultSet rset = this._execSqlQuery(conn,
 				"SELECT COUNT(*)"+
 				" FROM conversations AS c"+
-				" WHERE (c.remote_account_id IN ("+this._implodeIds(accountIds)+"))"+
-				" OR (c.local_account_id IN ("+this._implodeIds(accountIds)+"))"+
+				" WHERE ("+this._inFilterSet("c.remote_account_id", conn, accountIds, params)+")"+
+				" OR ("+this._inFilterSet("c.local_account_id", conn, accountIds, params)+")"+
 				" OR EXISTS("+
 				"  SELECT * FROM speakers AS s"+
 				"  WHERE"+
 				"  (s.conversation_id = c.id)"+
-				"  AND (s.account_id IN ("+this._implodeIds(accountIds)+"))"+
-				" )"
-		);
+				"  AND ("+this._inFilterSet("s.account_id", conn, accountIds, params)+")"+
+				" )",
+				params);
 		
 		rset.next();
-		return rset.getInt(1);
+		int count = rset.getInt(1);
+		rset.close();
+		
+		return count;
 	}
 	
 	/**
@@ -356,7 +974,19 @@ public class ArchiveDb
 	 */
 	public int createGroup(int archiveId, String name) throws SQLException
 	{
-		return this._execUpdate("createGroup", archiveId, this.countGroups(archiveId), name);
+		this.startTransaction();
+		boolean success = false;
+		try
+		{
+			int groupId = this._execUpdate("createGroup", archiveId, this.countGroups(archiveId), name);
+			success = true;
+			
+			return groupId;
+		}
+		finally
+		{
+			this.endTransaction(success);
+		}
 	}
 	
 	/**
@@ -396,11 +1026,22 @@ public class ArchiveDb
 	 */
 	public int createConversation(int archiveId, Date dateStarted, int localAccountId, int remoteAccountId, boolean isConference) throws SQLException
 	{
-		return this._execUpdate("createConversation", archiveId, dateStarted, localAccountId, remoteAccountId, isConference ? 1 : 0);
-	}
-	
-	/**
-	 * Creates a speaker in a conversation.
+		this._writeLock.lock();
+		try
+		{
+			this._lastConversationId++;
+			this._execUpdate("createConversation", this._lastConversationId, archiveId, dateStarted.getTime(), localAccountId, remoteAccountId, isConference ? 1 : 0);
+			
+			return this._lastConversationId;
+		}
+		finally
+		{
+			this._writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Creates a speaker in a conversation.
 	 * 
 	 * @param conversationId The ID of the containing conversation
 	 * @param name The name of the speaker
@@ -425,8 +1066,8 @@ public class ArchiveDb
 	public int createReply(int conversationId, int index, Date replyDate, int speakerId, String content) throws SQLException
 	{
 		if (speakerId != -1)
-			return this._execUpdate("createReply", conversationId, index, replyDate, speakerId, content);
-		return this._execUpdate("createReply", conversationId, index, replyDate, null, content);
+			return this._execUpdate("createReply", conversationId, index, replyDate.getTime(), speakerId, content);
+		return this._execUpdate("createReply", conversationId, index, replyDate.getTime(), null, content);
 	}
 	
 	/**
@@ -437,14 +1078,24 @@ public class ArchiveDb
 	 */
 	public void moveGroup(int groupId, int newIndex) throws SQLException
 	{
-		ResultSet rset = this._execQuery("getGroup", groupId);
-		
-		rset.next();
-		int oldIndex = rset.getInt("idx");
-		int archiveId = rset.getInt("archive_id");
-		rset.close();
-		
-		this._execUpdate("moveGroup", archiveId, oldIndex, newIndex);
+		this.startTransaction();
+		boolean success = false;
+		try
+		{
+			ResultSet rset = this._execQuery("getGroup", groupId);
+			
+			rset.next();
+			int oldIndex = rset.getInt("idx");
+			int archiveId = rset.getInt("archive_id");
+			rset.close();
+			
+			this._execUpdate("moveGroup", archiveId, oldIndex, newIndex);
+			success = true;
+		}
+		finally
+		{
+			this.endTransaction(success);
+		}
 	}
 	
 	/**
@@ -513,8 +1164,33 @@ public class ArchiveDb
 	{
 		if (groupIds.length == 0) return;
 		
-		Statement stat = _conn.createStatement();
-		ResultSet rset = stat.executeQuery("SELECT id FROM accounts WHERE (contact_id IN (SELECT id FROM contacts WHERE group_id IN ("+this._implodeIds(groupIds)+")))");
+		this.startTransaction();
+		boolean success = false;
+		try
+		{
+			this._deleteGroups(groupIds);
+			success = true;
+		}
+		finally
+		{
+			this.endTransaction(success);
+		}
+	}
+	
+	/**
+	 * Implements deleteGroups(). This must be called with the
+	 * writer connection held.
+	 * 
+	 * @param groupIds An array containing the IDs of the
+	 *                 groups to be deleted
+	 */
+	protected void _deleteGroups(int[] groupIds) throws SQLException
+	{
+		List<Object> params = new ArrayList<Object>();
+		ResultSet rset = this._execSqlQuery(this._writer,
+				"SELECT id FROM accounts WHERE (contact_id IN (SELECT id FROM contacts WHERE "+
+				this._inFilterSet("group_id", this._writer, groupIds, params)+"))",
+				params);
 		
 		IntList ids = new IntList();
 		while (rset.next()) ids.add(rset.getInt(1));
@@ -525,27 +1201,18 @@ public class ArchiveDb
 		
 		// Retrieve the archive ID and delete the groups
 		int archiveId = this._execSingleNoQuery("getGroupArchive", groupIds[0]);
-		stat.executeUpdate("DELETE FROM groups WHERE id IN ("+this._implodeIds(groupIds)+")");
+		params.clear();
+		this._execSqlUpdate("DELETE FROM groups WHERE "+this._inFilterSet("id", this._writer, groupIds, params), params);
 		
 		// Now reindex the groups
-		StringBuilder query1 = new StringBuilder("UPDATE groups SET idx = CASE");
-		StringBuilder query2 = new StringBuilder(" END WHERE id IN (");
-		
+		ids = new IntList();
 		rset = this._execQuery("loadGroups", archiveId);
-		int newIndex = 0;
-		while (rset.next())
-		{
-			int groupId = rset.getInt("id");
-			query1.append(" WHEN id=").append(groupId).append(" THEN ").append(newIndex);
-			if (newIndex > 0) query2.append(",");
-			query2.append(groupId);
-			newIndex++;
-		}
+		while (rset.next()) ids.add(rset.getInt("id"));
 		rset.close();
 		
-		query1.append(query2).append(")");
-		
-		if (newIndex>0) stat.executeUpdate(query1.toString());
+		int[] remainingIds = ids.toArray();
+		for (int i=0; i<remainingIds.length; i++)
+			this._execUpdate("setGroupIndex", remainingIds[i], i);
 	}
 	
 	/**
@@ -557,16 +1224,30 @@ public class ArchiveDb
 	 */
 	public void deleteContacts(int[] contactIds) throws SQLException
 	{
-		Statement stat = _conn.createStatement();
-		ResultSet rset = stat.executeQuery("SELECT id FROM accounts WHERE (contact_id IN ("+this._implodeIds(contactIds)+"))");
-		
-		IntList ids = new IntList();
-		while (rset.next()) ids.add(rset.getInt(1));
-		rset.close();
-		
-		this.deleteAccounts(ids.toArray());
-		
-		stat.executeUpdate("DELETE FROM contacts WHERE id IN ("+this._implodeIds(contactIds)+")");
+		this.startTransaction();
+		boolean success = false;
+		try
+		{
+			List<Object> params = new ArrayList<Object>();
+			ResultSet rset = this._execSqlQuery(this._writer,
+					"SELECT id FROM accounts WHERE "+this._inFilterSet("contact_id", this._writer, contactIds, params),
+					params);
+			
+			IntList ids = new IntList();
+			while (rset.next()) ids.add(rset.getInt(1));
+			rset.close();
+			
+			this.deleteAccounts(ids.toArray());
+			
+			params.clear();
+			this._execSqlUpdate("DELETE FROM contacts WHERE "+this._inFilterSet("id", this._writer, contactIds, params),
+					params);
+			success = true;
+		}
+		finally
+		{
+			this.endTransaction(success);
+		}
 	}
 	
 	/**
@@ -578,23 +1259,35 @@ public class ArchiveDb
 	 */
 	public void deleteAccounts(int[] accountIds) throws SQLException
 	{
-		String inClause = "IN ("+this._implodeIds(accountIds)+")";
-		
-		Statement stat = _conn.createStatement();
-		stat.executeUpdate("DELETE FROM accounts WHERE id "+inClause);
-		
-		// Delete conversations depending on these accounts
-		stat.executeUpdate(
-				"DELETE FROM conversations"+
-				" WHERE (remote_account_id "+inClause+")"+
-				" OR (local_account_id "+inClause+")"+
-				" OR EXISTS("+
-				"  SELECT * FROM speakers AS s"+
-				"  WHERE"+
-				"  (conversation_id = conversations.id)"+
-				"  AND (account_id "+inClause+")"+
-				" )"
-		);
+		this.startTransaction();
+		boolean success = false;
+		try
+		{
+			// Delete conversations depending on these accounts. Note that
+			// they are found through a union rather than a single query
+			// with the conditions OR-ed together, so that each part can
+			// use an index of its own.
+			List<Object> params = new ArrayList<Object>();
+			int convSetId = this._createFilterSet(
+					"SELECT id FROM conversations WHERE "+
+					this._inFilterSet("local_account_id", this._writer, accountIds, params)+
+					" UNION SELECT id FROM conversations WHERE "+
+					this._inFilterSet("remote_account_id", this._writer, accountIds, params)+
+					" UNION SELECT conversation_id FROM speakers WHERE "+
+					this._inFilterSet("account_id", this._writer, accountIds, params),
+					params);
+			this._deleteConversationSet(convSetId);
+			this._execUpdate("deleteFilterSet", convSetId);
+			
+			params.clear();
+			this._execSqlUpdate("DELETE FROM accounts WHERE "+this._inFilterSet("id", this._writer, accountIds, params),
+					params);
+			success = true;
+		}
+		finally
+		{
+			this.endTransaction(success);
+		}
 	}
 	
 	/**
@@ -604,8 +1297,19 @@ public class ArchiveDb
 	 */
 	public void deleteArchive(int archiveId) throws SQLException
 	{
-		this.zapArchiveData(archiveId);
-		this._execUpdate("deleteArchive", archiveId);
+		this.startTransaction();
+		boolean success = false;
+		try
+		{
+			this.zapArchiveData(archiveId);
+			this._execUpdate("deleteArchiveCheckpoint", archiveId);
+			this._execUpdate("deleteArchive", archiveId);
+			success = true;
+		}
+		finally
+		{
+			this.endTransaction(success);
+		}
 	}
 	
 	/**
@@ -616,12 +1320,25 @@ public class ArchiveDb
 	 */
 	public void zapArchiveData(int archiveId) throws SQLException
 	{
-		this._execUpdate("deleteArchiveReplies", archiveId);
-		this._execUpdate("deleteArchiveSpeakers", archiveId);
-		this._execUpdate("deleteArchiveConversations", archiveId);
-		this._execUpdate("deleteArchiveAccounts", archiveId);
-		this._execUpdate("deleteArchiveContacts", archiveId);
-		this._execUpdate("deleteArchiveGroups", archiveId);
+		this.startTransaction();
+		boolean success = false;
+		try
+		{
+			List<Object> params = new ArrayList<Object>();
+			params.add(archiveId);
+			int convSetId = this._createFilterSet("SELECT id FROM conversations WHERE archive_id=?1", params);
+			this._deleteConversationSet(convSetId);
+			this._execUpdate("deleteFilterSet", convSetId);
+			
+			this._execUpdate("deleteArchiveAccounts", archiveId);
+			this._execUpdate("deleteArchiveContacts", archiveId);
+			this._execUpdate("deleteArchiveGroups", archiveId);
+			success = true;
+		}
+		finally
+		{
+			this.endTransaction(success);
+		}
 	}
 	
 	/**
@@ -632,20 +1349,17 @@ public class ArchiveDb
 	 */
 	public void deleteConversations(int[] conversationIds) throws SQLException
 	{
-		if (conversationIds.length > MAX_IN_SIZE)
+		this.startTransaction();
+		boolean success = false;
+		try
 		{
-			int blocks = conversationIds.length/MAX_IN_SIZE;
-			for (int i=0; i<blocks; i++)
-				this.deleteConversations(Arrays.copyOfRange(conversationIds, MAX_IN_SIZE*i, MAX_IN_SIZE*(i+1)));
-			
-			this.deleteConversations(Arrays.copyOfRange(conversationIds, blocks*MAX_IN_SIZE, conversationIds.length));
-			return;
+			this._deleteConversationSet(this._writer.getFilterSet(conversationIds));
+			success = true;
+		}
+		finally
+		{
+			this.endTransaction(success);
 		}
-		
-		Statement stat = _conn.createStatement();
-		stat.executeUpdate("DELETE FROM replies WHERE conversation_id IN ("+this._implodeIds(conversationIds)+")");
-		stat.executeUpdate("DELETE FROM speakers WHERE conversation_id IN ("+this._implodeIds(conversationIds)+")");
-		stat.executeUpdate("DELETE FROM conversations WHERE id IN ("+this._implodeIds(conversationIds)+")");
 	}
 	
 	/**
@@ -695,50 +1409,158 @@ public class ArchiveDb
 	 * Gets the FROM and WHERE clauses for a conversations query
 	 * used in the getConversations() and countConversations() functions. 
 	 * 
+	 * @param conn The connection on which the query will be run
+	 * @param params A list to which the parameters of the query
+	 *               are added
 	 * @param archiveId The ID of the containing archive
 	 * @param filterLocalAccounts See getConversations() for details
 	 * @param filterRemoteAccounts See getConversations() for details
 	 * @param filterConversations See getConversations() for details
+	 * @param dateFrom See getConversations() for details
+	 * @param dateTo See getConversations() for details
 	 * @return An SQL string for the query (without fields, ORDER BY and
 	 *         LIMIT specifiers)
 	 */
-	protected String _getConversationsQuery(int archiveId, int[] filterLocalAccounts, int[] filterRemoteAccounts,
-			int[] filterConversations)
+	protected String _getConversationsQuery(DbConnection conn, List<Object> params, int archiveId,
+			int[] filterLocalAccounts, int[] filterRemoteAccounts, int[] filterConversations,
+			Date dateFrom, Date dateTo) throws SQLException
 	{
-		boolean hasLocal = (filterLocalAccounts.length > 0);
-		boolean hasRemote = (filterRemoteAccounts.length > 0);
-		boolean hasConv = (filterConversations.length > 0);
+		StringBuilder buf = new StringBuilder();
+		
+		buf.append("FROM conversations AS v");
+		buf.append(" INNER JOIN accounts AS a ON (a.id=v.remote_account_id)");
+		buf.append(" INNER JOIN contacts AS c ON (c.id=a.contact_id)");
+		buf.append(" WHERE ");
+		
+		int conditions = 0;
+		if (filterConversations.length > 0)
+		{
+			buf.append(this._inFilterSet("v.id", conn, filterConversations, params));
+			conditions++;
+		}
+		if (filterLocalAccounts.length > 0)
+		{
+			if (conditions++ > 0) buf.append(" AND ");
+			buf.append(this._inFilterSet("local_account_id", conn, filterLocalAccounts, params));
+		}
+		if (filterRemoteAccounts.length > 0)
+		{
+			if (conditions++ > 0) buf.append(" AND ");
+			buf.append(this._inFilterSet("remote_account_id", conn, filterRemoteAccounts, params));
+		}
 		
-		return
-			"FROM conversations AS v"+
-			" INNER JOIN accounts AS a ON (a.id=v.remote_account_id)"+
-			" INNER JOIN contacts AS c ON (c.id=a.contact_id)"+
-			" WHERE "+
-			(hasConv ? ("v.id IN ("+_implodeIds(filterConversations)+")") : "")+
-			((hasLocal && hasConv) ? " AND " : "")+
-			(hasLocal ? ("local_account_id IN ("+_implodeIds(filterLocalAccounts)+")") : "")+
-			((hasRemote && (hasLocal || hasConv)) ? " AND " : "")+
-			(hasRemote ? ("remote_account_id IN ("+_implodeIds(filterRemoteAccounts)+")") : "")+
-			((!hasLocal && !hasRemote && !hasConv) ? ("v.archive_id="+archiveId) : "");
+		// The archive condition is implied by the others, but it is also
+		// given along with a date range, so that the latter can be looked
+		// up in the conversations_archive_date index
+		if ((conditions == 0) || (dateFrom != null) || (dateTo != null))
+		{
+			if (conditions++ > 0) buf.append(" AND ");
+			params.add(archiveId);
+			buf.append("v.archive_id=?").append(params.size());
+		}
+		if (dateFrom != null)
+		{
+			params.add(dateFrom.getTime());
+			buf.append(" AND v.date_started>=?").append(params.size());
+		}
+		if (dateTo != null)
+		{
+			params.add(dateTo.getTime());
+			buf.append(" AND v.date_started<?").append(params.size());
+		}
+		
+		return buf.toString();
 	}
 	
 	/**
-	 * Formats a comma-separated string from an array of IDs.
+	 * Deletes the conversations in a filter set, along with their
+	 * speakers and replies. This must be called with the writer
+	 * connection held.
 	 * 
+	 * Note that the database does not enforce foreign keys, so
+	 * dependent rows must always be deleted explicitly, and each
+	 * of these deletions must be supported by an index.
+	 * 
+	 * @param convSetId The ID of a filter set on the writer
+	 *                  connection
+	 */
+	protected void _deleteConversationSet(int convSetId) throws SQLException
+	{
+		this._execUpdate("deleteSetReplies", convSetId);
+		this._execUpdate("deleteSetReplyBlocks", convSetId);
+		this._execUpdate("deleteSetSpeakers", convSetId);
+		this._execUpdate("deleteSetConversations", convSetId);
+	}
+	
+	/**
+	 * Creates a filter set on the writer connection containing
+	 * the IDs returned by a query. Unlike the sets obtained with
+	 * DbConnection.getFilterSet(), it is not kept, and must be
+	 * deleted (with the "deleteFilterSet" statement) once no
+	 * longer needed. This must be called with the writer
+	 * connection held.
+	 * 
+	 * @param sql The SQL text of a query returning a single column
+	 * @param params The parameters for the query (the ID of the
+	 *               new set is added to them)
+	 * @return The ID of the filter set
+	 */
+	protected int _createFilterSet(String sql, List<Object> params) throws SQLException
+	{
+		int setId = this._writer.newFilterSetId();
+		
+		params.add(setId);
+		this._execSqlUpdate("INSERT OR IGNORE INTO tmp_filter_ids(set_id,item_id) SELECT ?"+params.size()+", * FROM ("+
+				sql+")", params);
+		
+		return setId;
+	}
+	
+	/**
+	 * Gets an SQL condition that checks whether a column contains
+	 * any in a number of IDs. The IDs are loaded into a filter
+	 * set (see DbConnection) on the connection where the condition
+	 * will be used, so the SQL text does not depend on them.
+	 * 
+	 * @param column The column to check
+	 * @param conn The connection on which the condition will be used
 	 * @param ids An array of IDs
-	 * @return A string containing the IDs separated by commas
+	 * @param params The list of parameters of the statement, to
+	 *               which the ID of the filter set is added
+	 * @return An SQL condition
 	 */
-	protected String _implodeIds(int[] ids)
+	protected String _inFilterSet(String column, DbConnection conn, int[] ids, List<Object> params) throws SQLException
 	{
-		StringBuilder buf = new StringBuilder();
+		params.add(conn.getFilterSet(ids));
 		
-		for (int i=0; i<ids.length; i++)
+		return column+" IN (SELECT item_id FROM tmp_filter_ids WHERE set_id=?"+params.size()+")";
+	}
+	
+	/**
+	 * Gets an SQL condition that checks whether a name column
+	 * matches a LIKE pattern, and optionally does not match
+	 * another.
+	 * 
+	 * @param column The name column
+	 * @param pattern The pattern the names must match
+	 * @param excludePattern The pattern the names must not
+	 *                       match, or null
+	 * @param params The list of parameters of the statement, to
+	 *               which the patterns are added
+	 * @return An SQL condition
+	 */
+	protected String _getNameCondition(String column, String pattern, String excludePattern, List<Object> params)
+	{
+		params.add(pattern);
+		String condition = column+" LIKE ?"+params.size()+" ESCAPE '\\'";
+		
+		if (excludePattern != null)
 		{
-			if (i>0) buf.append(",");
-			buf.append(ids[i]);
+			params.add(excludePattern);
+			condition += " AND "+column+" NOT LIKE ?"+params.size()+" ESCAPE '\\'";
 		}
 		
-		return buf.toString();
+		return condition;
 	}
 	
 	/**
@@ -758,9 +1580,11 @@ public class ArchiveDb
 			new String[] { "contacts", "name TEXT NOT NULL, group_id INTEGER NOT NULL" },
 			new String[] { "accounts", "service INTEGER NOT NULL, name TEXT NOT NULL, contact_id INTEGER NOT NULL" },
 			new String[] { "services", "name TEXT UNIQUE NOT NULL, shortName TEXT UNIQUE NOT NULL" },
-			new String[] { "conversations", "date_started DATETIME NOT NULL, local_account_id INTEGER NOT NULL, remote_account_id INTEGER NOT NULL, is_conference INTEGER NOT NULL, archive_id NOT NULL" },
+			new String[] { "conversations", "date_started INTEGER NOT NULL, local_account_id INTEGER NOT NULL, remote_account_id INTEGER NOT NULL, is_conference INTEGER NOT NULL, archive_id NOT NULL" },
 			new String[] { "speakers", "name TEXT NOT NULL, account_id INTEGER NOT NULL, conversation_id INTEGER NOT NULL" },
-			new String[] { "replies", "idx INTEGER NOT NULL, reply_date DATETIME NOT NULL, speaker_id INTEGER, content TEXT, conversation_id INTEGER NOT NULL" },
+			new String[] { "replies", "idx INTEGER NOT NULL, reply_date INTEGER NOT NULL, speaker_id INTEGER, content TEXT, conversation_id INTEGER NOT NULL" },
+			new String[] { "reply_blocks", "conversation_id INTEGER NOT NULL, first_idx INTEGER NOT NULL, reply_count INTEGER NOT NULL, data BLOB NOT NULL" },
+			new String[] { "export_checkpoints", "archive_id INTEGER UNIQUE NOT NULL, last_conversation_id INTEGER NOT NULL, date_created INTEGER NOT NULL" },
 			// Temporary tables
 			new String[] { "tmp_unique_ids", "" }
 		};
@@ -769,13 +1593,18 @@ public class ArchiveDb
 			new String[] { "groups_archive", "groups(archive_id)" },
 			new String[] { "contacts_group", "contacts(group_id)" },
 			new String[] { "accounts_contact", "accounts(contact_id)" },
+			new String[] { "contacts_name", "contacts(name)" },
+			new String[] { "accounts_name", "accounts(name)" },
 			new String[] { "conversations_archive", "conversations(archive_id)" },
 			new String[] { "conversations_archive_date", "conversations(archive_id,date_started)" },
 			new String[] { "conversations_archive_local", "conversations(archive_id,local_account_id)" },
 			new String[] { "conversations_archive_remote", "conversations(archive_id,remote_account_id)" },
 			new String[] { "speakers_conversation", "speakers(conversation_id)" },
+			new String[] { "conversations_local", "conversations(local_account_id)" },
+			new String[] { "conversations_remote", "conversations(remote_account_id)" },
 			new String[] { "speakers_account", "speakers(account_id)" },
-			new String[] { "replies_conversation", "replies(conversation_id)" }
+			new String[] { "replies_conversation", "replies(conversation_id)" },
+			new String[] { "reply_blocks_conversation", "reply_blocks(conversation_id,first_idx)" }
 		};
 		
 		// Check what tables and indexes exist
@@ -815,6 +1644,62 @@ public class ArchiveDb
 			if (indexes.contains(idxSpec[0])) continue;
 			stat.executeUpdate("CREATE INDEX "+idxSpec[0]+" ON "+idxSpec[1]);
 		}
+		
+		stat.close();
+	}
+	
+	/**
+	 * Upgrades the data in a database written by an older version
+	 * of the program. The version of the data is kept in the
+	 * user_version field of the database header.
+	 * 
+	 * Version 1: all dates are stored as integer milliseconds since
+	 * the epoch, so that they compare, sort and are looked up in
+	 * indexes consistently. Dates stored in any other form (e.g. as
+	 * text, by other tools) are converted, assuming UTC. Dates that
+	 * cannot be parsed become 0.
+	 */
+	protected void _upgradeSchema() throws SQLException
+	{
+		final String[][] DATE_COLUMNS = {
+			new String[] { "conversations", "date_started" },
+			new String[] { "replies", "reply_date" },
+			new String[] { "export_checkpoints", "date_created" }
+		};
+		
+		Statement stat = _conn.createStatement();
+		ResultSet rset = stat.executeQuery("PRAGMA user_version");
+		int version = rset.next() ? rset.getInt(1) : 0;
+		rset.close();
+		
+		if (version < SCHEMA_VERSION)
+		{
+			_conn.setAutoCommit(false);
+			try
+			{
+				for (String[] column : DATE_COLUMNS)
+					stat.executeUpdate(
+							"UPDATE "+column[0]+" SET "+column[1]+"="+
+							"CASE typeof("+column[1]+") "+
+							"WHEN 'text' THEN IFNULL(CAST(strftime('%s',"+column[1]+") AS INTEGER)*1000, 0) "+
+							"ELSE IFNULL(CAST("+column[1]+" AS INTEGER), 0) END "+
+							"WHERE typeof("+column[1]+")<>'integer'");
+				
+				stat.executeUpdate("PRAGMA user_version="+SCHEMA_VERSION);
+				_conn.commit();
+			}
+			catch (SQLException e)
+			{
+				_conn.rollback();
+				throw e;
+			}
+			finally
+			{
+				_conn.setAutoCommit(true);
+			}
+		}
+		
+		stat.close();
 	}
 	
 	/**
@@ -831,29 +1716,68 @@ public class ArchiveDb
 					"FROM replies WHERE conversation_id=?1 "+
 					"ORDER BY idx"
 				},
+			new String[] { "getReplyBlocks",
+					"SELECT first_idx, reply_count, data "+
+					"FROM reply_blocks WHERE conversation_id=?1 "+
+					"ORDER BY first_idx"
+				},
+			new String[] { "getConversationsWithReplyRows",
+					"SELECT id FROM conversations AS v "+
+					"WHERE archive_id=?1 AND EXISTS (SELECT 1 FROM replies WHERE conversation_id=v.id) "+
+					"ORDER BY id"
+				},
+			new String[] { "getConversationsWithReplyBlocks",
+					"SELECT id FROM conversations AS v "+
+					"WHERE archive_id=?1 AND EXISTS (SELECT 1 FROM reply_blocks WHERE conversation_id=v.id) "+
+					"ORDER BY id"
+				},
 			new String[] { "getGroup", "SELECT idx, name, archive_id FROM groups WHERE id=?1" },
 			new String[] { "getGroupArchive", "SELECT archive_id FROM groups WHERE id=?1" },
 			new String[] { "loadGroups", "SELECT id, idx, name FROM groups WHERE archive_id=?1 ORDER BY idx" },
-			new String[] { "loadContacts",
-					"SELECT c.id AS id, c.name AS name, c.group_id AS group_id "+
+			new String[] { "countGroupContacts",
+					"SELECT c.group_id AS group_id, COUNT(*) AS contact_count "+
 					"FROM contacts AS c INNER JOIN groups AS g ON g.id=c.group_id "+
-					"WHERE g.archive_id=?1 "
+					"WHERE g.archive_id=?1 GROUP BY c.group_id"
 					},
+			new String[] { "loadContacts", "SELECT id, name FROM contacts WHERE group_id=?1" },
 			new String[] { "loadAccounts",
 					"SELECT a.id AS id, a.service AS service_id, a.name AS name, a.contact_id AS contact_id "+
-					"FROM accounts AS A INNER JOIN contacts AS c ON c.id=a.contact_id INNER JOIN groups AS g ON g.id=c.group_id "+
-					"WHERE g.archive_id=?1 "
+					"FROM accounts AS a INNER JOIN contacts AS c ON c.id=a.contact_id "+
+					"WHERE c.group_id=?1"
+					},
+			new String[] { "getContactGroup", "SELECT group_id FROM contacts WHERE id=?1" },
+			new String[] { "getAccountGroup",
+					"SELECT c.group_id FROM accounts AS a INNER JOIN contacts AS c ON c.id=a.contact_id WHERE a.id=?1"
+					},
+			new String[] { "findContactGroup",
+					"SELECT c.group_id FROM contacts AS c INNER JOIN groups AS g ON g.id=c.group_id "+
+					"WHERE g.archive_id=?1 AND c.name=?2"
+					},
+			new String[] { "findAccountGroup",
+					"SELECT c.group_id FROM accounts AS a INNER JOIN contacts AS c ON c.id=a.contact_id "+
+					"INNER JOIN groups AS g ON g.id=c.group_id "+
+					"WHERE g.archive_id=?1 AND a.service=?2 AND a.name=?3"
 					},
 			new String[] { "createUid", "INSERT INTO tmp_unique_ids DEFAULT VALUES" },
 			new String[] { "deleteUid", "DELETE FROM tmp_unique_ids WHERE id=?1" },
+			new String[] { "insertFilterItem", "INSERT OR IGNORE INTO tmp_filter_ids(set_id,item_id) VALUES (?1,?2)" },
+			new String[] { "deleteFilterSet", "DELETE FROM tmp_filter_ids WHERE set_id=?1" },
+			new String[] { "clearFilterSets", "DELETE FROM tmp_filter_ids" },
+			new String[] { "deleteSetReplies", "DELETE FROM replies WHERE conversation_id IN (SELECT item_id FROM tmp_filter_ids WHERE set_id=?1)" },
+			new String[] { "deleteSetReplyBlocks", "DELETE FROM reply_blocks WHERE conversation_id IN (SELECT item_id FROM tmp_filter_ids WHERE set_id=?1)" },
+			new String[] { "deleteConversationReplies", "DELETE FROM replies WHERE conversation_id=?1" },
+			new String[] { "deleteConversationReplyBlocks", "DELETE FROM reply_blocks WHERE conversation_id=?1" },
+			new String[] { "deleteSetSpeakers", "DELETE FROM speakers WHERE conversation_id IN (SELECT item_id FROM tmp_filter_ids WHERE set_id=?1)" },
+			new String[] { "deleteSetConversations", "DELETE FROM conversations WHERE id IN (SELECT item_id FROM tmp_filter_ids WHERE set_id=?1)" },
 			new String[] { "createService", "INSERT INTO services(name,shortName) VALUES (?1,?2)" },
 			new String[] { "createArchive", "INSERT INTO archives(name,is_temp) VALUES (?1,?2)" },
 			new String[] { "createGroup", "INSERT INTO groups(archive_id,idx,name) VALUES (?1,?2,?3)" },
 			new String[] { "createContact", "INSERT INTO contacts(group_id,name) VALUES (?1,?2)" },
 			new String[] { "createAccount", "INSERT INTO accounts(contact_id,service,name) VALUES (?1,?2,?3)" },
-			new String[] { "createConversation", "INSERT INTO conversations(archive_id,date_started,local_account_id,remote_account_id,is_conference) VALUES (?1,?2,?3,?4,?5)" },
+			new String[] { "createConversation", "INSERT INTO conversations(id,archive_id,date_started,local_account_id,remote_account_id,is_conference) VALUES (?1,?2,?3,?4,?5,?6)" },
 			new String[] { "createSpeaker", "INSERT INTO speakers(conversation_id,name,account_id) VALUES (?1,?2,?3)" },
 			new String[] { "createReply", "INSERT INTO replies(conversation_id,idx,reply_date,speaker_id,content) VALUES (?1,?2,?3,?4,?5)" },
+			new String[] { "createReplyBlock", "INSERT INTO reply_blocks(conversation_id,first_idx,reply_count,data) VALUES (?1,?2,?3,?4)" },
 			new String[] { "moveGroup",
 					"UPDATE groups "+
 					"SET idx = CASE WHEN idx=?2 THEN ?3 ELSE (CASE WHEN ?2>?3 THEN idx+1 ELSE idx-1 END) END "+
@@ -866,28 +1790,44 @@ public class ArchiveDb
 			new String[] { "renameAccount", "UPDATE accounts SET name=?2 WHERE id=?1" },
 			new String[] { "countGroups", "SELECT COUNT(*) FROM groups WHERE archive_id=?1" },
 			new String[] { "countConversations", "SELECT COUNT(*) FROM conversations WHERE archive_id=?1" },
-			new String[] { "countReplies", "SELECT COUNT(*) FROM replies WHERE conversation_id=?1" },
+			new String[] { "getConversationIdsAfter", "SELECT id FROM conversations WHERE archive_id=?1 AND id>?2 ORDER BY id" },
+			new String[] { "getPageCount", "PRAGMA page_count" },
+			new String[] { "getFreePageCount", "PRAGMA freelist_count" },
+			new String[] { "getPageSize", "PRAGMA page_size" },
+			new String[] { "getMaxConversationId", "SELECT MAX(id) FROM conversations" },
+			new String[] { "getExportCheckpoint", "SELECT MAX(last_conversation_id) FROM export_checkpoints WHERE archive_id=?1" },
+			new String[] { "getMaxExportCheckpoint", "SELECT MAX(last_conversation_id) FROM export_checkpoints" },
+			new String[] { "setExportCheckpoint", "INSERT OR REPLACE INTO export_checkpoints(archive_id,last_conversation_id,date_created) VALUES (?1,?2,?3)" },
+			new String[] { "countReplies",
+					"SELECT (SELECT COUNT(*) FROM replies WHERE conversation_id=?1) + "+
+					"(SELECT IFNULL(SUM(reply_count),0) FROM reply_blocks WHERE conversation_id=?1)"
+				},
 			new String[] { "setContactGroup", "UPDATE contacts SET group_id=?2 WHERE id=?1" },
 			new String[] { "setAccountContact", "UPDATE accounts SET contact_id=?2 WHERE id=?1" },
-			new String[] { "cleanupArchives", "DELETE FROM archives WHERE is_temp=1" },
-			new String[] { "cleanupGroups", "DELETE FROM groups WHERE archive_id NOT IN (SELECT id FROM archives)" },
-			new String[] { "cleanupConversations", "DELETE FROM conversations WHERE archive_id NOT IN (SELECT id FROM archives)" },
-			new String[] { "cleanupContacts", "DELETE FROM contacts WHERE group_id NOT IN (SELECT id FROM groups)" },
-			new String[] { "cleanupAccounts", "DELETE FROM accounts WHERE contact_id NOT IN (SELECT id FROM contacts)" },
-			new String[] { "cleanupSpeakers", "DELETE FROM speakers WHERE conversation_id NOT IN (SELECT id FROM conversations)" },
-			new String[] { "cleanupReplies", "DELETE FROM replies WHERE conversation_id NOT IN (SELECT id FROM conversations)" },
+			new String[] { "setGroupIndex", "UPDATE groups SET idx=?2 WHERE id=?1" },
+			new String[] { "getTempArchives", "SELECT id FROM archives WHERE is_temp=1" },
+			new String[] { "sweepGroups", "DELETE FROM groups WHERE archive_id NOT IN (SELECT id FROM archives)" },
+			new String[] { "sweepConversations", "DELETE FROM conversations WHERE archive_id NOT IN (SELECT id FROM archives)" },
+			new String[] { "sweepContacts", "DELETE FROM contacts WHERE group_id NOT IN (SELECT id FROM groups)" },
+			new String[] { "sweepAccounts", "DELETE FROM accounts WHERE contact_id NOT IN (SELECT id FROM contacts)" },
+			new String[] { "sweepSpeakers", "DELETE FROM speakers WHERE conversation_id NOT IN (SELECT id FROM conversations)" },
+			new String[] { "sweepReplies", "DELETE FROM replies WHERE conversation_id NOT IN (SELECT id FROM conversations)" },
+			new String[] { "sweepReplyBlocks", "DELETE FROM reply_blocks WHERE conversation_id NOT IN (SELECT id FROM conversations)" },
+			new String[] { "sweepCheckpoints", "DELETE FROM export_checkpoints WHERE archive_id NOT IN (SELECT id FROM archives)" },
 			new String[] { "deleteArchive", "DELETE FROM archives WHERE id=?1" },
-			new String[] { "deleteArchiveReplies", "DELETE FROM replies WHERE conversation_id IN (SELECT id FROM conversations WHERE archive_id=?1)" },
-			new String[] { "deleteArchiveSpeakers", "DELETE FROM speakers WHERE conversation_id IN (SELECT id FROM conversations WHERE archive_id=?1)" },
+			new String[] { "deleteArchiveCheckpoint", "DELETE FROM export_checkpoints WHERE archive_id=?1" },
 			new String[] { "deleteArchiveContacts", "DELETE FROM contacts WHERE group_id IN (SELECT id FROM groups WHERE archive_id=?1)" },
 			new String[] { "deleteArchiveAccounts", "DELETE FROM accounts WHERE contact_id IN (SELECT id FROM contacts WHERE group_id IN (SELECT id FROM groups WHERE archive_id=?1))" },
-			new String[] { "deleteArchiveConversations", "DELETE FROM conversations WHERE archive_id=?1" },
 			new String[] { "deleteArchiveGroups", "DELETE FROM groups WHERE archive_id=?1" }
 		};
 		
-		_statements = new TreeMap<String, PreparedStatement>();
+		_statementSql = new HashMap<String, String>();
+		_statementTimers = new HashMap<String, Metrics.Timer>();
 		for (String[] statSpec : INIT_DATA)
-			_statements.put(statSpec[0], _conn.prepareStatement(statSpec[1]));
+		{
+			_statementSql.put(statSpec[0], statSpec[1]);
+			_statementTimers.put(statSpec[0], Metrics.timer("db."+statSpec[0]));
+		}
 	}
 	
 	/**
@@ -899,7 +1839,7 @@ public class ArchiveDb
 	 */
 	protected void _initializeServiceMaps() throws SQLException
 	{
-		_idToService = new TreeMap<Integer, IMService>();
+		_idToService = new IntMap<IMService>();
 		_serviceToId = new TreeMap<IMService, Integer>();
 		
 		ResultSet rset = this._execQuery("getServices");
@@ -912,6 +1852,7 @@ public class ArchiveDb
 			_idToService.put(serviceId, service);
 			_serviceToId.put(service, serviceId);
 		}
+		rset.close();
 		
 		for (IMService service : IMService.values())
 		{
@@ -925,25 +1866,76 @@ public class ArchiveDb
 	}
 	
 	/**
-	 * Deletes all temporary data in the archive.
+	 * Deletes the temporary archives left in the database (e.g.
+	 * if the program was closed during an import).
+	 * 
+	 * This only involves the data of the temporary archives, so
+	 * it takes little time however large the database is. Any
+	 * other leftover data is removed by sweepOrphans().
 	 * 
 	 * WARNING: you must not call this while there are still
 	 * unnamed IMArchive objects open.
 	 */
 	protected void _cleanup() throws SQLException
 	{
-		this._execUpdate("cleanupArchives");
-		this._execUpdate("cleanupGroups");
-		this._execUpdate("cleanupContacts");
-		this._execUpdate("cleanupAccounts");
-		this._execUpdate("cleanupConversations");
-		this._execUpdate("cleanupSpeakers");
-		this._execUpdate("cleanupReplies");
+		ResultSet rset = this._execQuery("getTempArchives");
+		IntList ids = new IntList();
+		while (rset.next()) ids.add(rset.getInt(1));
+		rset.close();
+		
+		for (int archiveId : ids.toArray()) this.deleteArchive(archiveId);
+	}
+	
+	/**
+	 * Deletes all the data that does not belong to any archive
+	 * (groups of deleted archives, replies of deleted conversations,
+	 * etc.). None should normally exist, as deletions are done in
+	 * transactions, but databases written by older versions of the
+	 * program may contain some.
+	 * 
+	 * This scans entire tables, so it may take a long time on large
+	 * databases. Each table is swept separately, so other threads
+	 * may use the database in the meantime.
+	 */
+	public void sweepOrphans() throws SQLException
+	{
+		long start = SWEEP_TIMER.start();
+		
+		this._execUpdate("sweepGroups");
+		this._execUpdate("sweepContacts");
+		this._execUpdate("sweepAccounts");
+		this._execUpdate("sweepConversations");
+		this._execUpdate("sweepSpeakers");
+		this._execUpdate("sweepReplies");
+		this._execUpdate("sweepReplyBlocks");
+		this._execUpdate("sweepCheckpoints");
+		
+		SWEEP_TIMER.stop(start);
+	}
+	
+	/**
+	 * Determines the last conversation ID allocated so far.
+	 * 
+	 * Conversation IDs are allocated explicitly, so that they
+	 * keep increasing even when the most recent conversations
+	 * are deleted. Since export checkpoints refer to conversation
+	 * IDs, an ID below a checkpoint must never be given out again.
+	 */
+	protected void _initializeConversationIds() throws SQLException
+	{
+		this._lastConversationId = Math.max(
+				this._execSingleNoQuery("getMaxConversationId"),
+				this._execSingleNoQuery("getMaxExportCheckpoint"));
 	}
 	
 	/**
 	 * Executes a prepared query statement.
 	 * 
+	 * The execution time is recorded in the "db.{statementName}"
+	 * timer, as for the other _exec functions. Note that for
+	 * queries, this does not include fetching the rows after the
+	 * first one.
+	 * 
 	 * @param statementName The name of the statement to execute
 	 * @param parameters A variable number of parameters for the
 	 *                   statement
@@ -951,9 +1943,48 @@ public class ArchiveDb
 	 */
 	protected ResultSet _execQuery(String statementName, Object... parameters) throws SQLException
 	{
-		PreparedStatement pstat = _statements.get(statementName);
-		for (int i=0; i<parameters.length; i++) pstat.setObject(i+1, parameters[i]);
-		return pstat.executeQuery();
+		DbConnection conn = this._getReader();
+		PreparedStatement pstat = conn.getStatement(statementName);
+		Metrics.Timer timer = _statementTimers.get(statementName);
+		long start = timer.start();
+		for (int i=0; i<parameters.length; i++) _setParameter(pstat, i+1, parameters[i]);
+		ResultSet rset = conn.executeQuery(pstat);
+		timer.stop(start);
+		
+		return rset;
+	}
+	
+	/**
+	 * Executes a query built by the program (see
+	 * DbConnection.prepare()).
+	 * 
+	 * @param conn The connection on which to run the query, as
+	 *             returned by _getReader()
+	 * @param sql The SQL text of the query
+	 * @param params The parameters for the query
+	 * @return A result set
+	 */
+	protected ResultSet _execSqlQuery(DbConnection conn, String sql, List<Object> params) throws SQLException
+	{
+		PreparedStatement pstat = conn.prepare(sql);
+		for (int i=0; i<params.size(); i++) _setParameter(pstat, i+1, params.get(i));
+		
+		return conn.executeQuery(pstat);
+	}
+	
+	/**
+	 * Executes an update built by the program (see
+	 * DbConnection.prepare()). This must be called with the
+	 * writer connection held.
+	 * 
+	 * @param sql The SQL text of the update
+	 * @param params The parameters for the update
+	 */
+	protected void _execSqlUpdate(String sql, List<Object> params) throws SQLException
+	{
+		PreparedStatement pstat = this._writer.prepare(sql);
+		for (int i=0; i<params.size(); i++) _setParameter(pstat, i+1, params.get(i));
+		this._writer.executeUpdate(pstat);
 	}
 	
 	/**
@@ -967,12 +1998,39 @@ public class ArchiveDb
 	 */
 	protected int _execSingleNoQuery(String statementName, Object... parameters) throws SQLException
 	{
-		PreparedStatement pstat = _statements.get(statementName);
-		for (int i=0; i<parameters.length; i++) pstat.setObject(i+1, parameters[i]);
-		ResultSet rset = pstat.executeQuery();
+		DbConnection conn = this._getReader();
+		PreparedStatement pstat = conn.getStatement(statementName);
+		Metrics.Timer timer = _statementTimers.get(statementName);
+		long start = timer.start();
+		for (int i=0; i<parameters.length; i++) _setParameter(pstat, i+1, parameters[i]);
+		ResultSet rset = conn.executeQuery(pstat);
 		
 		rset.next();
-		return rset.getInt(1);
+		int result = rset.getInt(1);
+		rset.close();
+		timer.stop(start);
+		
+		return result;
+	}
+	
+	/**
+	 * Executes a prepared query statement that returns at most
+	 * one row containing an ID.
+	 * 
+	 * @param statementName The name of the statement to execute
+	 * @param parameters A variable number of parameters for the
+	 *                   statement
+	 * @return The ID returned by the query, or -1 if no row
+	 *         was returned
+	 */
+	protected int _execSingleIdQuery(String statementName, Object... parameters) throws SQLException
+	{
+		ResultSet rset = this._execQuery(statementName, parameters);
+		
+		int id = (rset.next()) ? rset.getInt(1) : -1;
+		rset.close();
+		
+		return id;
 	}
 	
 	/**
@@ -986,13 +2044,356 @@ public class ArchiveDb
 	 */
 	protected int _execUpdate(String statementName, Object... parameters) throws SQLException
 	{
-		PreparedStatement pstat = _statements.get(statementName);
-		for (int i=0; i<parameters.length; i++) pstat.setObject(i+1, parameters[i]);
-		pstat.executeUpdate();
+		this._writeLock.lock();
+		try
+		{
+			PreparedStatement pstat = this._writer.getStatement(statementName);
+			Metrics.Timer timer = _statementTimers.get(statementName);
+			long start = timer.start();
+			for (int i=0; i<parameters.length; i++) _setParameter(pstat, i+1, parameters[i]);
+			this._writer.executeUpdate(pstat);
+			
+			// Note: the result set must be closed, as a pending statement
+			// would prevent any enclosing transaction from committing
+			ResultSet rset = pstat.getGeneratedKeys();
+			int id = rset.next() ? rset.getInt(1) : -1;
+			rset.close();
+			timer.stop(start);
+			
+			return id;
+		}
+		finally
+		{
+			this._writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Sets a parameter of a prepared statement. Byte arrays are
+	 * bound as blobs, as the driver would store them as text
+	 * otherwise.
+	 * 
+	 * @param pstat The prepared statement
+	 * @param index The index of the parameter, starting at 1
+	 * @param value The value of the parameter
+	 */
+	protected static void _setParameter(PreparedStatement pstat, int index, Object value) throws SQLException
+	{
+		if (value instanceof byte[])
+			pstat.setBytes(index, (byte[])value);
+		else
+			pstat.setObject(index, value);
+	}
+	
+	/**
+	 * Executes a prepared query, retrying it if the database
+	 * is locked.
+	 * 
+	 * @param pstat The prepared statement
+	 * @return A result set
+	 */
+	protected ResultSet _executeQuery(PreparedStatement pstat) throws SQLException
+	{
+		for (int attempt=1; ; attempt++)
+		{
+			try { return pstat.executeQuery(); } catch (SQLException e) { this._checkBusy(e, attempt); }
+		}
+	}
+	
+	/**
+	 * Checks whether a failed statement may be retried, i.e.
+	 * whether it failed because the database was locked by
+	 * another connection, and it has not been retried too many
+	 * times already. If so, this waits a little before returning.
+	 * 
+	 * @param e The error that occurred
+	 * @param attempt The number of attempts made so far
+	 * @throws SQLException The error, if the statement may
+	 *                      not be retried
+	 */
+	protected void _checkBusy(SQLException e, int attempt) throws SQLException
+	{
+		if ((e.getMessage() == null) || !e.getMessage().contains("locked") || (attempt >= BUSY_RETRIES)) throw e;
+		
+		try
+		{
+			Thread.sleep(BUSY_BACKOFF_MS * attempt);
+		}
+		catch (InterruptedException e2)
+		{
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gets a connection for running queries on the current
+	 * thread. This is the writer if the thread holds it, or
+	 * else the thread's own read connection, which is opened
+	 * the first time it is needed.
+	 * 
+	 * @return A connection
+	 */
+	protected DbConnection _getReader() throws SQLException
+	{
+		if (this._writeLock.isHeldByCurrentThread()) return this._writer;
+		
+		DbConnection reader = this._threadReader.get();
+		if (reader == null)
+		{
+			reader = this._openReader();
+			this._threadReader.set(reader);
+		}
+		
+		return reader;
+	}
+	
+	/**
+	 * Opens a new read connection for the current thread. The
+	 * connections of threads that have since ended are closed
+	 * at this point.
+	 * 
+	 * @return The new connection
+	 */
+	protected DbConnection _openReader() throws SQLException
+	{
+		synchronized (this._readers)
+		{
+			Iterator<Map.Entry<Thread, DbConnection>> iter = this._readers.entrySet().iterator();
+			while (iter.hasNext())
+			{
+				Map.Entry<Thread, DbConnection> entry = iter.next();
+				if (entry.getKey().isAlive()) continue;
+				
+				entry.getValue().close();
+				iter.remove();
+			}
+			
+			DbConnection reader = new DbConnection(DriverManager.getConnection(_url));
+			this._readers.put(Thread.currentThread(), reader);
+			
+			return reader;
+		}
+	}
+	
+	/**
+	 * Internal class for a database connection along with its
+	 * prepared statements, which are created as they are first
+	 * used, and its filter sets.
+	 * 
+	 * A filter set is a set of IDs stored in the connection's
+	 * temporary tmp_filter_ids table, so that queries can refer
+	 * to it with a parameter (see _inFilterSet()) instead of
+	 * listing every ID in their text. The sets most recently
+	 * used are kept, so that queries repeated with the same
+	 * filter (e.g. when paging through conversations) need not
+	 * load it again.
+	 */
+	protected class DbConnection
+	{
+		public final Connection conn;
+		
+		// Prepared statements, by SQL text. There is usually one per
+		// text, but more are created if a statement is needed while
+		// the results of a previous execution are still being read.
+		protected Map<String, List<PreparedStatement>> _statements = new HashMap<String, List<PreparedStatement>>();
+		protected Map<PreparedStatement, ResultSet> _results = new IdentityHashMap<PreparedStatement, ResultSet>();
+		protected LinkedHashMap<IntArraysKey, Integer> _filterSets = new LinkedHashMap<IntArraysKey, Integer>(16, 0.75f, true);
+		protected int _lastFilterSetId = 0;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param conn The SQL connection
+		 */
+		public DbConnection(Connection conn) throws SQLException
+		{
+			this.conn = conn;
+			
+			// Note: temporary tables are kept in memory, so that loading a
+			// filter set outside of a transaction is still fast
+			Statement stat = conn.createStatement();
+			stat.executeUpdate("PRAGMA temp_store=MEMORY");
+			stat.executeUpdate("CREATE TEMPORARY TABLE IF NOT EXISTS tmp_filter_ids"+
+					"(set_id INTEGER NOT NULL, item_id INTEGER NOT NULL, PRIMARY KEY (set_id, item_id))");
+			stat.close();
+		}
 		
-		ResultSet rset = pstat.getGeneratedKeys();
-		if (rset.next()) return rset.getInt(1);
+		/**
+		 * Gets a prepared statement on this connection.
+		 * 
+		 * @param statementName The name of the statement
+		 * @return The prepared statement
+		 */
+		public PreparedStatement getStatement(String statementName) throws SQLException
+		{
+			String sql = _statementSql.get(statementName);
+			if (sql == null) throw new RuntimeException("Unknown statement '"+statementName+"'");
+			
+			return this.prepare(sql);
+		}
 		
-		return -1;
+		/**
+		 * Gets a prepared statement on this connection for an
+		 * SQL text built by the program. Statements are cached,
+		 * so the SQL should only vary in a limited number of
+		 * ways, with all the values passed as parameters.
+		 * 
+		 * A cached statement is only reused once the result set of
+		 * its last query (see executeQuery()) has been closed, so
+		 * that callers may run the same query while iterating over
+		 * the results of another.
+		 * 
+		 * @param sql The SQL text of the statement
+		 * @return The prepared statement
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException
+		{
+			List<PreparedStatement> statements = this._statements.get(sql);
+			if (statements == null)
+			{
+				statements = new ArrayList<PreparedStatement>(1);
+				this._statements.put(sql, statements);
+			}
+			
+			for (PreparedStatement pstat : statements)
+			{
+				ResultSet rset = this._results.get(pstat);
+				if ((rset == null) || rset.isClosed()) return pstat;
+			}
+			
+			PreparedStatement pstat = this.conn.prepareStatement(sql);
+			statements.add(pstat);
+			
+			return pstat;
+		}
+		
+		/**
+		 * Executes a query statement obtained from this connection,
+		 * retrying it if the database is locked. If the query fails,
+		 * the statement is discarded.
+		 * 
+		 * @param pstat The prepared statement
+		 * @return A result set
+		 */
+		public ResultSet executeQuery(PreparedStatement pstat) throws SQLException
+		{
+			try
+			{
+				ResultSet rset = _executeQuery(pstat);
+				this._results.put(pstat, rset);
+				
+				return rset;
+			}
+			catch (SQLException e)
+			{
+				this._discard(pstat);
+				throw e;
+			}
+		}
+		
+		/**
+		 * Executes an update statement obtained from this connection,
+		 * retrying it if the database is locked. If the update fails,
+		 * the statement is discarded.
+		 * 
+		 * @param pstat The prepared statement
+		 */
+		public void executeUpdate(PreparedStatement pstat) throws SQLException
+		{
+			try
+			{
+				for (int attempt=1; ; attempt++)
+				{
+					try { pstat.executeUpdate(); break; } catch (SQLException e) { _checkBusy(e, attempt); }
+				}
+			}
+			catch (SQLException e)
+			{
+				this._discard(pstat);
+				throw e;
+			}
+		}
+		
+		/**
+		 * Closes a statement and removes it from the cache. This is
+		 * done after a statement fails, as the driver may leave it
+		 * in an unusable state.
+		 * 
+		 * @param pstat The prepared statement
+		 */
+		protected void _discard(PreparedStatement pstat)
+		{
+			for (List<PreparedStatement> statements : this._statements.values()) statements.remove(pstat);
+			this._results.remove(pstat);
+			try { pstat.close(); } catch (SQLException e) {}
+		}
+		
+		/**
+		 * Gets the filter set containing a given array of IDs,
+		 * loading it into the database if it is not there already.
+		 * 
+		 * @param ids An array of IDs
+		 * @return The ID of the filter set
+		 */
+		public int getFilterSet(int[] ids) throws SQLException
+		{
+			IntArraysKey key = new IntArraysKey("", ids);
+			Integer setId = this._filterSets.get(key);
+			if (setId != null) return setId;
+			
+			// Make room for the new set
+			if (this._filterSets.size() >= MAX_FILTER_SETS)
+			{
+				Iterator<Integer> iter = this._filterSets.values().iterator();
+				PreparedStatement pstat = this.getStatement("deleteFilterSet");
+				pstat.setInt(1, iter.next());
+				pstat.executeUpdate();
+				iter.remove();
+			}
+			
+			setId = this.newFilterSetId();
+			
+			PreparedStatement pstat = this.getStatement("insertFilterItem");
+			pstat.setInt(1, setId);
+			for (int id : ids)
+			{
+				pstat.setInt(2, id);
+				pstat.executeUpdate();
+			}
+			
+			this._filterSets.put(key.copy(), setId);
+			
+			return setId;
+		}
+		
+		/**
+		 * Allocates an ID for a new filter set.
+		 * 
+		 * @return An ID not used by any other filter set on
+		 *         this connection
+		 */
+		public int newFilterSetId()
+		{
+			return ++this._lastFilterSetId;
+		}
+		
+		/**
+		 * Deletes all the filter sets on this connection. This must
+		 * be called when a transaction in which sets may have been
+		 * loaded is rolled back.
+		 */
+		public void clearFilterSets() throws SQLException
+		{
+			this._filterSets.clear();
+			this.getStatement("clearFilterSets").executeUpdate();
+		}
+		
+		/**
+		 * Closes the connection.
+		 */
+		public void close()
+		{
+			try { this.conn.close(); } catch (Exception e) {}
+		}
 	}
 }
@@ -7,6 +7,7 @@
 package uniarchive.models.archive;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -31,6 +32,11 @@ public class ConversationsQuery implements Cloneable
 	public List<Conversation> filterConversations;
 	public List<SortKey> sortKeys;
 	
+	/** If not null, only conversations started at or after this date are returned */
+	public Date dateFrom;
+	/** If not null, only conversations started before this date are returned */
+	public Date dateTo;
+	
 	/**
 	 * Constructor for a default query.
 	 */
@@ -57,6 +63,10 @@ public class ConversationsQuery implements Cloneable
 		cloned.filterContacts.addAll(this.filterContacts);
 		cloned.filterAccounts.addAll(this.filterAccounts);
 		cloned.filterConversations.addAll(this.filterConversations);
+		cloned.sortKeys.clear();
+		cloned.sortKeys.addAll(this.sortKeys);
+		cloned.dateFrom = this.dateFrom;
+		cloned.dateTo = this.dateTo;
 		
 		return cloned;
 	}
@@ -10,21 +10,32 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 
+import uniarchive.models.IntArraysKey;
 import uniarchive.models.IntList;
+import uniarchive.models.IntMap;
+import uniarchive.models.IntSet;
+import uniarchive.models.Metrics;
 import uniarchive.models.NameIndex;
 import uniarchive.models.OrderedList;
-import uniarchive.models.ProgressEvent;
 import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
 import uniarchive.models.SingletonList;
+import uniarchive.models.archive.ConversationsQuery.SortKey;
 import uniarchive.models.archive.IMArchive.Conversation.Reply;
 import uniarchive.models.archive.IMArchive.Conversation.Speaker;
 
@@ -40,6 +51,17 @@ public class IMArchive
 {
 	public static final String IDENTITIES_GROUP_NAME = "Identities";
 	
+	protected static final Metrics.Timer REPLACE_TIMER = Metrics.timer("archive.replace");
+	protected static final Metrics.Timer MERGE_TIMER = Metrics.timer("archive.merge");
+	protected static final Metrics.Timer SEARCH_TIMER = Metrics.timer("archive.search");
+	protected static final Metrics.Counter SEARCHED_CONVERSATIONS_COUNTER = Metrics.counter("archive.search.conversations");
+	protected static final Metrics.Timer PACK_TIMER = Metrics.timer("archive.pack_replies");
+	protected static final Metrics.Timer UNPACK_TIMER = Metrics.timer("archive.unpack_replies");
+	protected static final Metrics.Timer LOAD_GROUP_TIMER = Metrics.timer("archive.load_group");
+	protected static final Metrics.Counter UNLOADED_GROUPS_COUNTER = Metrics.counter("archive.unloaded_groups");
+	
+	protected static final int PACK_BATCH_SIZE = 100;
+	
 	protected ArchiveDb _db;
 	protected String _name;
 	protected int _sqlId;
@@ -47,10 +69,9 @@ public class IMArchive
 	
 	// Main tables
 	protected List<Group> _groups = new ArrayList<Group>();
-	protected Set<Contact> _contacts = new TreeSet<Contact>();
-	protected Set<Account> _accounts = new TreeSet<Account>();
 	
-	// Link tables
+	// Link tables (these, like the tables below, only contain
+	// the groups whose contents are loaded, see _loadGroup())
 	protected Map<Group,OrderedList<Contact>> _groupContacts = new TreeMap<Group,OrderedList<Contact>>();
 	protected Map<Contact,OrderedList<Account>> _contactAccounts = new TreeMap<Contact,OrderedList<Account>>();
 	
@@ -64,16 +85,38 @@ public class IMArchive
 	protected NameIndex<Account> _accountsByName = new NameIndex<Account>();
 	
 	// By-id index tables
-	protected Map<Integer,Group> _groupsById = new TreeMap<Integer,Group>();
-	protected Map<Integer,Contact> _contactsById = new TreeMap<Integer,Contact>();
-	protected Map<Integer,Account> _accountsById = new TreeMap<Integer,Account>();
+	protected IntMap<Group> _groupsById = new IntMap<Group>();
+	protected IntMap<Contact> _contactsById = new IntMap<Contact>();
+	protected IntMap<Account> _accountsById = new IntMap<Account>();
+	
+	// Note: _accountsById is also read by threads loading conversations
+	// in the background (see _getAccountsById()), so it must only be
+	// changed while holding its lock
+	
+	// Groups whose contacts and accounts are loaded, from the least
+	// to the most recently used, and contact counts for the others
+	protected static final int MAX_LOADED_ITEMS = 50000;
+	protected LinkedHashMap<Integer,Group> _loadedGroups = new LinkedHashMap<Integer,Group>(16, 0.75f, true);
+	protected IntMap<Integer> _contactCounts = new IntMap<Integer>();
+	
+	// IDs of the groups used by the UI, which are never unloaded
+	// (replaced as a whole, see setGroupsInUse())
+	protected volatile IntSet _groupsInUse = new IntSet();
 	
 	// Listeners
-	protected List<IMArchiveListener> _listeners = new ArrayList<IMArchiveListener>();
+	protected IMArchiveEventBus _eventBus = new IMArchiveEventBus();
 	
 	// Other data
 	protected int _inLargeChange = 0;
 	protected int _noDbUpdates = 0;
+	protected Map<Object,Object[]> _accountingSnapshot = null;
+	protected Map<Group,Integer> _contactCountsSnapshot = null;
+	
+	// Cache of conversation orderings that cannot be obtained
+	// efficiently from the database (see queryConversations)
+	protected static final int MAX_CACHED_ORDERINGS = 4;
+	protected LinkedHashMap<IntArraysKey,int[]> _orderingsCache = new LinkedHashMap<IntArraysKey,int[]>(16, 0.75f, true);
+	protected int _orderingsVersion = 0;
 	
 	/**
 	 * Constructor for a temporary archive.
@@ -121,13 +164,28 @@ public class IMArchive
 	}
 	
 	/**
-	 * Registers a listener for changes in this archive.
+	 * Registers a listener for changes in this archive. The
+	 * listener will be called on the Swing event dispatch
+	 * thread (see IMArchiveEventBus).
 	 * 
 	 * @param listener A listener object
 	 */
 	public void addListener(IMArchiveListener listener)
 	{
-		this._listeners.add(listener);
+		this._eventBus.addListener(listener, IMArchiveEventBus.EVENT_DISPATCH_THREAD);
+	}
+	
+	/**
+	 * Registers a listener for changes in this archive, that
+	 * will be called on a given executor.
+	 * 
+	 * @param listener A listener object
+	 * @param executor The executor on which the listener
+	 *                 will be called
+	 */
+	public void addListener(IMArchiveListener listener, Executor executor)
+	{
+		this._eventBus.addListener(listener, executor);
 	}
 	
 	/**
@@ -137,7 +195,7 @@ public class IMArchive
 	 */
 	public void removeListener(IMArchiveListener listener)
 	{
-		this._listeners.remove(listener);
+		this._eventBus.removeListener(listener);
 	}
 	
 	/**
@@ -179,6 +237,19 @@ public class IMArchive
 	 */
 	public Contact getContactByName(String name)
 	{
+		Contact contact = this._contactsByName.get(name);
+		if ((contact != null) || this._allGroupsLoaded()) return contact;
+		
+		try
+		{
+			this._loadGroup(this._db.findContactGroup(this._sqlId, name));
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e.toString());
+		}
+		this.trimLoadedGroups();
+		
 		return this._contactsByName.get(name);
 	}
 	
@@ -191,9 +262,198 @@ public class IMArchive
 	 */
 	public Account getAccountByName(IMService service, String name)
 	{
+		Account account = this._accountsByName.getItem(service, name);
+		if ((account != null) || this._allGroupsLoaded()) return account;
+		
+		try
+		{
+			this._loadGroup(this._db.findAccountGroup(this._sqlId, this._db.getServiceId(service), name));
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e.toString());
+		}
+		this.trimLoadedGroups();
+		
 		return this._accountsByName.getItem(service, name);
 	}
 	
+	/**
+	 * Finds the groups, contacts and accounts whose names start
+	 * with a given prefix (case-insensitive).
+	 * 
+	 * @param prefix The prefix to look for
+	 * @param maxResults A limit on the number of results returned
+	 * @return A list of items, in alphabetical order of their names
+	 */
+	public List<Object> findItemsByPrefix(String prefix, int maxResults)
+	{
+		return this._findItems(prefix, false, maxResults);
+	}
+	
+	/**
+	 * Finds the groups, contacts and accounts whose names contain
+	 * a given text (case-insensitive). Items whose names start
+	 * with the text are listed first.
+	 * 
+	 * @param text The text to look for
+	 * @param maxResults A limit on the number of results returned
+	 * @return A list of items
+	 */
+	public List<Object> findItemsByText(String text, int maxResults)
+	{
+		List<Object> results = this._findItems(text, false, maxResults);
+		if (results.size() < maxResults) results.addAll(this._findItems(text, true, maxResults - results.size()));
+		
+		return results;
+	}
+	
+	/**
+	 * Finds the groups, contacts and accounts whose names start
+	 * with, or contain, a given text (case-insensitive). The
+	 * contacts and accounts are looked up in the database, so
+	 * that they need not be loaded.
+	 * 
+	 * @param text The text to look for
+	 * @param inside If true, the items whose names contain the
+	 *               text other than at the start are returned,
+	 *               instead of those whose names start with it
+	 * @param maxResults A limit on the number of results returned
+	 * @return A list of items, in alphabetical order of their names
+	 */
+	protected List<Object> _findItems(String text, boolean inside, int maxResults)
+	{
+		try
+		{
+			return this.resolveFoundItems(this._lookupItems(text, inside, maxResults));
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e.toString());
+		}
+	}
+	
+	/**
+	 * Looks up the contacts and accounts whose names start with
+	 * a given prefix (case-insensitive) in the database.
+	 * 
+	 * This only accesses the database, so it may be called from
+	 * a background thread. The results must then be passed to
+	 * resolveFoundItems() in the thread that uses the archive.
+	 * 
+	 * @param prefix The prefix to look for
+	 * @param maxResults A limit on the number of results returned
+	 * @return The IDs of the items found
+	 */
+	public FoundItemIds lookupItemsByPrefix(String prefix, int maxResults) throws SQLException
+	{
+		return this._lookupItems(prefix, false, maxResults);
+	}
+	
+	/**
+	 * Looks up the contacts and accounts whose names start with,
+	 * or contain, a given text in the database (see _findItems()).
+	 * 
+	 * @param text The text to look for
+	 * @param inside If true, the items whose names contain the
+	 *               text other than at the start are returned,
+	 *               instead of those whose names start with it
+	 * @param maxResults A limit on the number of results returned
+	 * @return The IDs of the items found
+	 */
+	protected FoundItemIds _lookupItems(String text, boolean inside, int maxResults) throws SQLException
+	{
+		String escaped = text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+		String pattern = (inside ? "%" : "")+escaped+"%";
+		String excludePattern = inside ? escaped+"%" : null;
+		
+		ResultSet rset = this._db.findContacts(this._sqlId, pattern, excludePattern, maxResults);
+		IntList contactIds = new IntList();
+		IntList contactGroupIds = new IntList();
+		while (rset.next())
+		{
+			contactIds.add(rset.getInt("id"));
+			contactGroupIds.add(rset.getInt("group_id"));
+		}
+		rset.close();
+		
+		rset = this._db.findAccounts(this._sqlId, pattern, excludePattern, maxResults);
+		IntList accountIds = new IntList();
+		IntList accountGroupIds = new IntList();
+		while (rset.next())
+		{
+			accountIds.add(rset.getInt("id"));
+			accountGroupIds.add(rset.getInt("group_id"));
+		}
+		rset.close();
+		
+		return new FoundItemIds(text, inside, maxResults, contactIds.toArray(), contactGroupIds.toArray(),
+				accountIds.toArray(), accountGroupIds.toArray());
+	}
+	
+	/**
+	 * Gets the items found by a database lookup, along with the
+	 * groups matching the same text, loading the contents of
+	 * their groups as needed.
+	 * 
+	 * @param found The results of a lookup
+	 * @return A list of items, in alphabetical order of their names
+	 */
+	public List<Object> resolveFoundItems(FoundItemIds found)
+	{
+		final String key = found.text.toLowerCase();
+		boolean inside = found.inside;
+		List<Object> results = new ArrayList<Object>();
+		
+		for (Group group : this._groups)
+		{
+			String name = group.name.toLowerCase();
+			if (inside ? (!name.startsWith(key) && name.contains(key)) : name.startsWith(key)) results.add(group);
+		}
+		
+		for (int i=0; i<found.contactIds.length; i++)
+		{
+			this._loadGroup(found.contactGroupIds[i]);
+			Contact contact = this._contactsById.get(found.contactIds[i]);
+			if (contact != null) results.add(contact);
+		}
+		
+		for (int i=0; i<found.accountIds.length; i++)
+		{
+			this._loadGroup(found.accountGroupIds[i]);
+			Account account = this._accountsById.get(found.accountIds[i]);
+			if (account != null) results.add(account);
+		}
+		this.trimLoadedGroups();
+		
+		// Note: the sort is stable, so items with the same name
+		// are listed as groups, then contacts, then accounts
+		Collections.sort(results, new Comparator<Object>() {
+			public int compare(Object item1, Object item2)
+			{
+				return _getItemName(item1).toLowerCase().compareTo(_getItemName(item2).toLowerCase());
+			}
+		});
+		
+		while (results.size() > found.maxResults) results.remove(results.size()-1);
+		
+		return results;
+	}
+	
+	/**
+	 * Gets the name of a group, contact or account.
+	 * 
+	 * @param item A group, contact or account
+	 * @return The name of the item
+	 */
+	protected static String _getItemName(Object item)
+	{
+		if (item instanceof Group) return ((Group)item).name;
+		if (item instanceof Contact) return ((Contact)item).name;
+		
+		return ((Account)item).name;
+	}
+	
 	/**
 	 * Gets the groups defined in this archive.
 	 * 
@@ -236,11 +496,21 @@ public class IMArchive
 	/**
 	 * Gets all the contacts defined in this archive.
 	 * 
+	 * Note: this loads the contents of every group.
+	 * 
 	 * @return An (immutable) set of contacts
 	 */
 	public Set<Contact> getAllContacts()
 	{
-		return Collections.unmodifiableSet(this._contacts);
+		Set<Contact> contacts = new TreeSet<Contact>();
+		
+		for (Group group : this._groups)
+		{
+			contacts.addAll(this._loadGroup(group));
+			this.trimLoadedGroups();
+		}
+		
+		return Collections.unmodifiableSet(contacts);
 	}
 	
 	/**
@@ -261,11 +531,22 @@ public class IMArchive
 	/**
 	 * Gets all the accounts defined in this archive.
 	 * 
+	 * Note: this loads the contents of every group.
+	 * 
 	 * @return An (immutable) set of accounts
 	 */
 	public Set<Account> getAllAccounts()
 	{
-		return Collections.unmodifiableSet(this._accounts);
+		Set<Account> accounts = new TreeSet<Account>();
+		
+		for (Group group : this._groups)
+		{
+			for (Contact contact : this._loadGroup(group))
+				accounts.addAll(this._contactAccounts.get(contact));
+			this.trimLoadedGroups();
+		}
+		
+		return Collections.unmodifiableSet(accounts);
 	}
 		
 	/**
@@ -302,14 +583,28 @@ public class IMArchive
 	 * without loading all of them into memory.
 	 * 
 	 * @param query A conversations query
-	 * @param windowSize The window size (i.e. the maximum number
-	 *                   of conversations loaded into memory)
+	 * @param windowSize The window size (i.e. the number of
+	 *                   conversations fetched from the database
+	 *                   at a time)
 	 */
-	public List<Conversation> getConversationsAsWindowedList(ConversationsQuery query, int windowSize)
+	public WindowedConversationList getConversationsAsWindowedList(ConversationsQuery query, int windowSize)
 	{
 		return new WindowedConversationList(query, windowSize);
 	}
 	
+	/**
+	 * Like getConversationsAsWindowedList(query, windowSize), but
+	 * also specifies how many windows may be cached at a time.
+	 * 
+	 * @param query A conversations query
+	 * @param windowSize The window size
+	 * @param maxWindows The maximum number of windows kept in memory
+	 */
+	public WindowedConversationList getConversationsAsWindowedList(ConversationsQuery query, int windowSize, int maxWindows)
+	{
+		return new WindowedConversationList(query, windowSize, maxWindows);
+	}
+	
 	/**
 	 * Executes a query in this archive's conversation list and
 	 * returns a window in the results.
@@ -321,7 +616,23 @@ public class IMArchive
 	 */
 	public List<Conversation> queryConversations(ConversationsQuery query, int offset, int limit) throws SQLException
 	{
-		// Convert filter and sorting data
+		return this._queryConversations(this._resolveQuery(query), offset, limit);
+	}
+	
+	/**
+	 * Converts a query into a form that refers to accounts and
+	 * conversations only by their IDs.
+	 * 
+	 * Note: computing the accounts spanned by the filter may load
+	 * the contents of groups, so this must be called from the thread
+	 * that uses the archive (normally the Swing event dispatch thread).
+	 * The resolved query can then be executed from any thread.
+	 * 
+	 * @param query A conversations query
+	 * @return The resolved query
+	 */
+	protected ResolvedQuery _resolveQuery(ConversationsQuery query)
+	{
 		IntList filterIdent = new IntList();
 		IntList filterRegular = new IntList();
 		IntList filterConv = new IntList();
@@ -329,6 +640,23 @@ public class IMArchive
 		for (Account account : query.getRegularAccountsInFilter()) filterRegular.add(account.sqlId);
 		for (Conversation conv : query.filterConversations) filterConv.add(conv.sqlId);
 		
+		return new ResolvedQuery(filterIdent.toArray(), filterRegular.toArray(), filterConv.toArray(),
+				query.sortKeys, query.dateFrom, query.dateTo);
+	}
+	
+	/**
+	 * Executes a resolved query in this archive's conversation
+	 * list and returns a window in the results. This does not
+	 * access the in-memory indexes except under lock, so it may
+	 * be called from a background thread.
+	 * 
+	 * @param query A resolved query
+	 * @param offset The window offset
+	 * @param limit The window size
+	 * @return A list of conversations in the window
+	 */
+	protected List<Conversation> _queryConversations(ResolvedQuery query, int offset, int limit) throws SQLException
+	{
 		// Compute the ordering fields and process special ordering directives
 		String[] sortKeys = new String[query.sortKeys.size()];
 		for (int i=0; i<sortKeys.length; i++)
@@ -342,26 +670,147 @@ public class IMArchive
 			}
 		}
 		
-		// Get conversations (note: without speakers and replies)
+		// Get conversations (note: without speakers and replies). Orderings by
+		// contact or account name are not supported by any index and would
+		// require a full sort for every window, so they are computed once
+		// and the window is then selected from the ordered list of IDs.
+		
+		ResultSet rset;
+		int[] windowIds = null;
+		if (query.sortKeys.contains(SortKey.BY_CONTACT) || query.sortKeys.contains(SortKey.BY_ACCOUNT))
+		{
+			int[] orderedIds = this._getOrderedConversationIds(query.sortKeys,
+					query.filterIdent, query.filterRegular, query.filterConv, query.dateFrom, query.dateTo);
+			
+			int start = Math.min(offset, orderedIds.length);
+			int end = Math.min(offset + limit, orderedIds.length);
+			windowIds = Arrays.copyOfRange(orderedIds, start, end);
+			
+			rset = this._db.getConversations(this._sqlId, new int[0], new int[0], windowIds,
+					null, null, new String[0], 0, windowIds.length);
+		}
+		else
+		{
+			rset = this._db.getConversations(this._sqlId, query.filterIdent, query.filterRegular,
+					query.filterConv, query.dateFrom, query.dateTo, sortKeys, offset, limit);
+		}
+		
+		return this._loadConversations(rset, windowIds);
+	}
+	
+	/**
+	 * Gets the conversations created in this archive after a
+	 * given conversation (as identified by its SQL ID), in order
+	 * of creation. Speakers are loaded, but replies are not.
+	 * 
+	 * Note that conversations are never modified in place: any
+	 * conversation that is changed by a merge is deleted and
+	 * created anew. This list thus also covers conversations
+	 * changed since the given one was created.
+	 * 
+	 * @param lastConversationId The SQL ID of the given
+	 *                           conversation (0 for all
+	 *                           conversations)
+	 * @return A list of conversations
+	 */
+	public List<Conversation> getConversationsAddedAfter(int lastConversationId) throws SQLException
+	{
+		int[] ids = this._db.getConversationIdsAfter(this._sqlId, lastConversationId);
 		
-		ResultSet rset = this._db.getConversations(this._sqlId, filterIdent.toArray(), filterRegular.toArray(),
-				filterConv.toArray(), sortKeys, offset, limit);
+		List<Conversation> conversations = new ArrayList<Conversation>(ids.length);
+		for (int start=0; start<ids.length; start+=ArchiveDb.MAX_IN_SIZE)
+		{
+			int[] windowIds = Arrays.copyOfRange(ids, start, Math.min(start+ArchiveDb.MAX_IN_SIZE, ids.length));
+			
+			conversations.addAll(this._loadConversations(this._db.getConversations(this._sqlId,
+					new int[0], new int[0], windowIds, null, null, new String[0], 0, windowIds.length), windowIds));
+		}
 		
-		ArrayList<Conversation> convList = new ArrayList<Conversation>();
-		Map<Integer, Conversation> convById = new TreeMap<Integer, Conversation>();
+		return conversations;
+	}
+	
+	/**
+	 * Gets this archive's export checkpoint, i.e. the SQL ID of
+	 * the last conversation included in its latest export (see
+	 * IMArchiveJsonWriter.writeIncrement()).
+	 * 
+	 * @return A conversation ID, or 0 if the archive was never
+	 *         exported
+	 */
+	public int getExportCheckpoint() throws SQLException
+	{
+		return this._db.getExportCheckpoint(this._sqlId);
+	}
+	
+	/**
+	 * Records this archive's export checkpoint. This should be
+	 * called only once the export has been completely written.
+	 * 
+	 * @param lastConversationId The SQL ID of the last
+	 *                           conversation included in the
+	 *                           export
+	 */
+	public void setExportCheckpoint(int lastConversationId) throws SQLException
+	{
+		this._db.setExportCheckpoint(this._sqlId, lastConversationId);
+	}
+	
+	/**
+	 * Loads the conversations in a result set returned by
+	 * ArchiveDb.getConversations(), along with their speakers.
+	 * 
+	 * @param rset A result set (closed afterwards)
+	 * @param windowIds The IDs of the conversations in the order
+	 *                  in which they are to be returned, or null
+	 *                  to keep the order of the result set
+	 * @return A list of conversations
+	 */
+	protected List<Conversation> _loadConversations(ResultSet rset, int[] windowIds) throws SQLException
+	{
+		List<Date> dates = new ArrayList<Date>();
+		IntList ids = new IntList();
+		IntList localAccountIds = new IntList();
+		IntList remoteAccountIds = new IntList();
+		IntList conferenceFlags = new IntList();
 		while (rset.next())
 		{
-			Conversation conv = new Conversation(
-				rset.getDate("date_started"),
-				this._accountsById.get(new Integer(rset.getInt("local_account_id"))),
-				this._accountsById.get(new Integer(rset.getInt("remote_account_id"))),
-				(rset.getInt("is_conference") == 1),
-				rset.getInt("id")
-			);
+			dates.add(new Date(rset.getLong("date_started")));
+			ids.add(rset.getInt("id"));
+			localAccountIds.add(rset.getInt("local_account_id"));
+			remoteAccountIds.add(rset.getInt("remote_account_id"));
+			conferenceFlags.add(rset.getInt("is_conference"));
+		}
+		rset.close();
+		
+		IntMap<Account> accounts = this._getAccountsById(localAccountIds, remoteAccountIds);
+		IntMap<Contact> contacts = this._getContactsByAccountId(localAccountIds, remoteAccountIds);
+		
+		ArrayList<Conversation> convList = new ArrayList<Conversation>();
+		IntMap<Conversation> convById = new IntMap<Conversation>();
+		int[] convIdsArray = ids.toArray();
+		int[] localIds = localAccountIds.toArray();
+		int[] remoteIds = remoteAccountIds.toArray();
+		int[] flags = conferenceFlags.toArray();
+		for (int i=0; i<convIdsArray.length; i++)
+		{
+			Conversation conv = new Conversation(dates.get(i), accounts.get(localIds[i]), accounts.get(remoteIds[i]),
+					(flags[i] == 1), convIdsArray[i]);
 			
 			conv._replyCount = -1; // invalidate reply count
+			conv._localContact = contacts.get(localIds[i]);
+			conv._remoteContact = contacts.get(remoteIds[i]);
 			convList.add(conv);
-			convById.put(new Integer(conv.sqlId), conv);
+			convById.put(conv.sqlId, conv);
+		}
+		
+		if (windowIds != null)
+		{
+			convList.clear();
+			for (int id : windowIds)
+			{
+				Conversation conv = convById.get(id);
+				if (conv != null) convList.add(conv);
+			}
 		}
 		
 		// Gets speakers
@@ -369,20 +818,191 @@ public class IMArchive
 		int[] convIds = new int[convList.size()];
 		for (int i=0; i<convIds.length; i++) convIds[i] = convList.get(i).sqlId;
 		
+		List<String> speakerNames = new ArrayList<String>();
+		IntList speakerIds = new IntList();
+		IntList speakerAccountIds = new IntList();
+		IntList speakerConvIds = new IntList();
 		rset = this._db.getSpeakers(convIds);
 		while (rset.next())
 		{
-			Conversation conv = convById.get(new Integer(rset.getInt("conversation_id")));
-			
-			conv._loadSpeaker(
-					rset.getString("name"),
-					this._accountsById.get(new Integer(rset.getInt("account_id"))),
-					rset.getInt("id"));
+			speakerNames.add(rset.getString("name"));
+			speakerIds.add(rset.getInt("id"));
+			speakerAccountIds.add(rset.getInt("account_id"));
+			speakerConvIds.add(rset.getInt("conversation_id"));
 		}
+		rset.close();
+		
+		IntMap<Account> speakerAccounts = this._getAccountsById(speakerAccountIds);
+		
+		int[] speakerIdsArray = speakerIds.toArray();
+		int[] accountIds = speakerAccountIds.toArray();
+		int[] speakerConvIdsArray = speakerConvIds.toArray();
+		for (int i=0; i<speakerIdsArray.length; i++)
+			convById.get(speakerConvIdsArray[i])._loadSpeaker(speakerNames.get(i),
+					speakerAccounts.get(accountIds[i]), speakerIdsArray[i]);
 		
 		return convList;
 	}
 	
+	/**
+	 * Gets the accounts with a number of IDs, such as those
+	 * referenced by conversation rows. Accounts that are not
+	 * loaded are read from the database, but not added to the
+	 * in-memory indexes (as this may run in a background thread);
+	 * their contacts are loaded when first needed. The index is
+	 * only read while holding its lock.
+	 * 
+	 * @param idLists Lists of account IDs
+	 * @return A map from IDs to accounts
+	 */
+	protected IntMap<Account> _getAccountsById(IntList... idLists) throws SQLException
+	{
+		IntMap<Account> accounts = new IntMap<Account>();
+		IntSet missingIds = new IntSet();
+		
+		synchronized (this._accountsById)
+		{
+			for (IntList idList : idLists)
+				for (int id : idList.toArray())
+				{
+					if (accounts.containsKey(id) || missingIds.contains(id)) continue;
+					
+					Account account = this._accountsById.get(id);
+					if (account != null) accounts.put(id, account); else missingIds.add(id);
+				}
+		}
+		
+		if (missingIds.size() > 0)
+		{
+			ResultSet rset = this._db.getAccounts(missingIds.toArray());
+			while (rset.next())
+			{
+				Account account = new Account(this._db.getServiceById(rset.getInt("service_id")),
+						rset.getString("name"), rset.getInt("id"));
+				accounts.put(account.sqlId, account);
+			}
+			rset.close();
+		}
+		
+		return accounts;
+	}
+	
+	/**
+	 * Gets the contacts of a number of accounts, as read from the
+	 * database. The contacts are not looked up in (or added to) the
+	 * in-memory indexes, so no groups are loaded and this may run
+	 * in a background thread.
+	 * 
+	 * @param idLists Lists of account IDs
+	 * @return A map from account IDs to contacts
+	 */
+	protected IntMap<Contact> _getContactsByAccountId(IntList... idLists) throws SQLException
+	{
+		IntSet ids = new IntSet();
+		for (IntList idList : idLists)
+			for (int id : idList.toArray()) ids.add(id);
+		
+		IntMap<Contact> contactsById = new IntMap<Contact>();
+		IntMap<Contact> contacts = new IntMap<Contact>();
+		
+		ResultSet rset = this._db.getAccountContacts(ids.toArray());
+		while (rset.next())
+		{
+			int contactId = rset.getInt("contact_id");
+			Contact contact = contactsById.get(contactId);
+			if (contact == null)
+			{
+				contact = new Contact(rset.getString("contact_name"), contactId);
+				contactsById.put(contactId, contact);
+			}
+			contacts.put(rset.getInt("account_id"), contact);
+		}
+		rset.close();
+		
+		return contacts;
+	}
+	
+	/**
+	 * Gets the IDs of the conversations returned by a query, in
+	 * the order given by a list of sort keys. The ordering is
+	 * computed in memory, and is cached until the archive
+	 * changes.
+	 * 
+	 * @param sortKeys A list of sort keys
+	 * @param filterIdent The identity accounts filter
+	 * @param filterRegular The regular accounts filter
+	 * @param filterConv The conversations filter
+	 * @param dateFrom The start of the date range, or null
+	 * @param dateTo The end of the date range, or null
+	 * @return An array of conversation IDs
+	 */
+	protected int[] _getOrderedConversationIds(List<SortKey> sortKeys, int[] filterIdent,
+			int[] filterRegular, int[] filterConv, Date dateFrom, Date dateTo) throws SQLException
+	{
+		IntArraysKey cacheKey = new IntArraysKey(sortKeys+" "+
+			((dateFrom != null) ? dateFrom.getTime() : "")+"-"+((dateTo != null) ? dateTo.getTime() : ""),
+			filterIdent, filterRegular, filterConv);
+		
+		int version;
+		synchronized (this._orderingsCache)
+		{
+			int[] ids = this._orderingsCache.get(cacheKey);
+			if (ids != null) return ids;
+			
+			version = this._orderingsVersion;
+		}
+		
+		// Load sort data
+		List<SortEntry> entries = new ArrayList<SortEntry>();
+		ResultSet rset = this._db.getConversationsSortData(this._sqlId, filterIdent, filterRegular, filterConv,
+				dateFrom, dateTo);
+		while (rset.next())
+		{
+			entries.add(new SortEntry(rset.getInt("id"),
+					rset.getLong("date_started"),
+					rset.getString("account_name"),
+					rset.getString("contact_name"),
+					rset.getInt("is_conference")));
+		}
+		rset.close();
+		
+		Collections.sort(entries, new SortEntryComparator(sortKeys));
+		
+		int[] ids = new int[entries.size()];
+		for (int i=0; i<ids.length; i++) ids[i] = entries.get(i).id;
+		
+		// Store the ordering, unless the archive has changed meanwhile
+		synchronized (this._orderingsCache)
+		{
+			if (version == this._orderingsVersion)
+			{
+				this._orderingsCache.put(cacheKey.copy(), ids);
+				
+				Iterator<IntArraysKey> iter = this._orderingsCache.keySet().iterator();
+				while (this._orderingsCache.size() > MAX_CACHED_ORDERINGS)
+				{
+					iter.next();
+					iter.remove();
+				}
+			}
+		}
+		
+		return ids;
+	}
+	
+	/**
+	 * Discards all cached conversation orderings. This must be
+	 * called whenever conversations or their accounts change.
+	 */
+	protected void _invalidateOrderings()
+	{
+		synchronized (this._orderingsCache)
+		{
+			this._orderingsCache.clear();
+			this._orderingsVersion++;
+		}
+	}
+	
 	/**
 	 * Gets the number of results returned by a query in the
 	 * conversations list.
@@ -392,15 +1012,20 @@ public class IMArchive
 	 */
 	public int countConversationsInQuery(ConversationsQuery query) throws SQLException
 	{
-		// Convert filter data
-		IntList filterIdent = new IntList();
-		IntList filterRegular = new IntList();
-		IntList filterConv = new IntList();
-		for (Account account : query.getIdentityAccountsInFilter()) filterIdent.add(account.sqlId);
-		for (Account account : query.getRegularAccountsInFilter()) filterRegular.add(account.sqlId);
-		for (Conversation conv : query.filterConversations) filterConv.add(conv.sqlId);
-		
-		return this._db.countConversations(this._sqlId, filterIdent.toArray(), filterRegular.toArray(), filterConv.toArray());
+		return this._countConversations(this._resolveQuery(query));
+	}
+	
+	/**
+	 * Gets the number of results returned by a resolved query.
+	 * This may be called from a background thread.
+	 * 
+	 * @param query A resolved query
+	 * @return The number of conversations returned
+	 */
+	protected int _countConversations(ResolvedQuery query) throws SQLException
+	{
+		return this._db.countConversations(this._sqlId, query.filterIdent, query.filterRegular, query.filterConv,
+				query.dateFrom, query.dateTo);
 	}
 	
 	/**
@@ -414,9 +1039,55 @@ public class IMArchive
 	{
 		int[] ids = new int[accounts.size()];
 		
-		for (int i=0; i<ids.length; i++) ids[i] = accounts.get(i).sqlId;
+		for (int i=0; i<ids.length; i++) ids[i] = accounts.get(i).sqlId;
+		
+		return this._db.countDependentConversations(ids);
+	}
+	
+	/**
+	 * Gets the replies in a number of conversations at once. This
+	 * is much faster than calling getReplies() on each conversation
+	 * when processing many small conversations.
+	 * 
+	 * @param conversations A list of conversations
+	 * @return A list containing the replies of each conversation,
+	 *         in the same order as the conversations
+	 */
+	public List<List<Reply>> getReplies(List<Conversation> conversations) throws SQLException
+	{
+		List<List<Reply>> replies = new ArrayList<List<Reply>>(conversations.size());
+		IntMap<Conversation> convById = new IntMap<Conversation>(conversations.size());
+		IntMap<List<Reply>> repliesById = new IntMap<List<Reply>>(conversations.size());
+		int[] ids = new int[conversations.size()];
+		for (int i=0; i<ids.length; i++)
+		{
+			ids[i] = conversations.get(i).sqlId;
+			replies.add(new ArrayList<Reply>());
+			convById.put(ids[i], conversations.get(i));
+			repliesById.put(ids[i], replies.get(i));
+		}
+		if (ids.length == 0) return replies;
+		
+		// Packed replies always precede the ones stored as rows
+		ResultSet rset = this._db.getReplyBlocks(ids);
+		while (rset.next())
+		{
+			int convId = rset.getInt("conversation_id");
+			
+			convById.get(convId)._loadReplyBlock(rset, repliesById.get(convId));
+		}
+		rset.close();
+		
+		rset = this._db.getReplies(ids);
+		while (rset.next())
+		{
+			int convId = rset.getInt("conversation_id");
+			
+			repliesById.get(convId).add(convById.get(convId)._loadReply(rset));
+		}
+		rset.close();
 		
-		return this._db.countDependentConversations(ids);
+		return replies;
 	}
 	
 	/**
@@ -437,10 +1108,11 @@ public class IMArchive
 		newGroup = new Group(groupName, sqlId);
 		this._groups.add(newGroup);
 		this._groupsByName.put(groupName, newGroup);
-		this._groupsById.put(new Integer(sqlId), newGroup);
+		this._groupsById.put(sqlId, newGroup);
 		this._groupContacts.put(newGroup, new OrderedList<Contact>());
+		this._loadedGroups.put(sqlId, newGroup);
 		
-		if (this._inLargeChange == 0) this._fireChangeEvent(IMArchiveEvent.Type.ADDED_ITEMS, newGroup);
+		if (this._inLargeChange == 0) this._fireChangeEvent(new IMArchiveEvent(IMArchiveEvent.Type.ADDED_ITEMS, newGroup, this._sqlId));
 		
 		return newGroup;
 	}
@@ -460,6 +1132,7 @@ public class IMArchive
 		int sqlId = this._db.createConversation(this._sqlId, dateStarted, localAccount.sqlId, remoteAccount.sqlId, isConference);
 	
 		Conversation newConv = new Conversation(dateStarted, localAccount, remoteAccount, isConference, sqlId);
+		this._invalidateOrderings();
 		
 		if (this._inLargeChange == 0) this._fireChangeEvent(IMArchiveEvent.Type.ADDED_ITEMS, newConv);
 		
@@ -501,29 +1174,30 @@ public class IMArchive
 	{
 		this._db.zapArchiveData(this._sqlId);
 		
-		this._startLargeChange();
+		this._startMajorChange();
 		
 		this._groups.clear();
 		this._groupsById.clear();
 		this._groupsByName.clear();
 		this._groupContacts.clear();
+		this._loadedGroups.clear();
+		this._contactCounts.clear();
 		
-		this._contacts.clear();
 		this._contactsById.clear();
 		this._contactsByName.clear();
 		this._contactAccounts.clear();
 		this._contactGroups.clear();
 		
-		this._accounts.clear();
-		this._accountsById.clear();
+		synchronized (this._accountsById)
+		{
+			this._accountsById.clear();
+		}
 		this._accountsByName.clear();
 		this._accountContacts.clear();
 		
 		this.createGroup(IDENTITIES_GROUP_NAME);
 		
-		this._endLargeChange();
-		
-		if (this._inLargeChange == 0) this._fireChangeEvent(IMArchiveEvent.Type.MAJOR_CHANGE, this);
+		this._endMajorChange();
 	}
 	
 	/**
@@ -553,16 +1227,19 @@ public class IMArchive
 	{
 		if (archive.getSqlId() == this._sqlId) return;
 		
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		long start = REPLACE_TIMER.start();
+		
 		try
 		{
-			this._startLargeChange();
+			this._startMajorChange();
 			
 			// Delete all data in the archive
-			if (listener != null) listener.onProgress(new ProgressEvent("Deleting current archive data...", 0, -1));
+			progress.report("Deleting current archive data...", 0, -1);
 			this.zapData();
 			
 			// Copy all groups, contacts and accounts
-			if (listener != null) listener.onProgress(new ProgressEvent("Copying accounting data...", 0, -1));
+			progress.report("Copying accounting data...", 0, -1);
 			for (Group remoteGroup : archive.getGroups())
 			{
 				Group localGroup = this.createGroup(remoteGroup.name);
@@ -583,7 +1260,7 @@ public class IMArchive
 				
 				int processed = 0;
 				int total = remoteConversations.size();
-				if (listener != null) listener.onProgress(new ProgressEvent("Copying conversations...", processed, total));
+				progress.report("Copying conversations...", processed, total);
 				
 				for (Conversation remoteConv : remoteConversations)
 				{
@@ -603,7 +1280,7 @@ public class IMArchive
 								reply.text);
 					
 					processed++;
-					if (listener != null) listener.onProgress(new ProgressEvent("Copying conversations...", processed, total));
+					progress.report("Copying conversations...", processed, total);
 				}
 			}
 		}
@@ -613,9 +1290,8 @@ public class IMArchive
 		}
 		finally
 		{
-			this._endLargeChange();
-			
-			if (this._inLargeChange == 0) this._fireChangeEvent(IMArchiveEvent.Type.MAJOR_CHANGE, this);
+			this._endMajorChange();
+			REPLACE_TIMER.stop(start);
 		}
 	}
 	
@@ -644,12 +1320,15 @@ public class IMArchive
 	{
 		if (archive.getSqlId() == this._sqlId) return;
 		
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		long start = MERGE_TIMER.start();
+		
 		try
 		{
-			this._startLargeChange();
+			this._startMajorChange();
 			
 			// Merge groups, contacts and accounts
-			if (listener != null) listener.onProgress(new ProgressEvent("Merging accounting data...", 0, -1));
+			progress.report("Merging accounting data...", 0, -1);
 			
 			// First, copy all groups that are initially empty (only groups that become
 			// empty through the absorbtion of contacts will fail to appear in the final
@@ -743,11 +1422,11 @@ public class IMArchive
 				
 				int total = localConversations.size() + remoteConversations.size();
 				int processed = 0;
-				if (listener != null) listener.onProgress(new ProgressEvent("Merging conversations...", processed, total));
+				progress.report("Merging conversations...", processed, total);
 				
 				int remoteIndex = 0;
 				IntList dontKeepIds = new IntList();
-				IntList dontImportIds = new IntList();
+				IntSet dontImportIds = new IntSet();
 				for (Conversation localConv : localConversations)
 				{
 					Date localDate = localConv.dateStarted;
@@ -789,14 +1468,13 @@ public class IMArchive
 					}
 					
 					processed++;
-					if (listener != null) listener.onProgress(new ProgressEvent("Merging conversations...", processed, total));
+					progress.report("Merging conversations...", processed, total);
 				}
 				
 				// Delete the overwritten conversations
 				this._db.deleteConversations(dontKeepIds.toArray());
 				
 				// Now copy the new conversations
-				dontImportIds.sort();
 				for (Conversation remoteConv : remoteConversations)
 				{
 					if (!dontImportIds.contains(remoteConv.sqlId))
@@ -818,7 +1496,7 @@ public class IMArchive
 					}
 					
 					processed++;
-					if (listener != null) listener.onProgress(new ProgressEvent("Merging conversations...", processed, total));
+					progress.report("Merging conversations...", processed, total);
 				}
 			}
 		}
@@ -828,9 +1506,8 @@ public class IMArchive
 		}
 		finally
 		{
-			this._endLargeChange();
-			
-			if (this._inLargeChange == 0) this._fireChangeEvent(IMArchiveEvent.Type.MAJOR_CHANGE, this);
+			this._endMajorChange();
+			MERGE_TIMER.stop(start);
 		}
 	}
 	
@@ -847,19 +1524,37 @@ public class IMArchive
 	 */
 	public List<Conversation> searchConversations(ConversationsQuery query, Pattern pattern,
 			int maxResults, ProgressListener listener) throws SQLException
+	{
+		return this.searchConversations(this.getConversations(query), pattern, maxResults, listener);
+	}
+	
+	/**
+	 * Like searchConversations(query, pattern, maxResults, listener),
+	 * but searches a given list of conversations. If the list is
+	 * obtained via getConversations(), the search itself may run
+	 * in a background thread.
+	 * 
+	 * @param conversations The conversations to search
+	 * @param pattern A regex pattern to look for in the reply text
+	 * @param maxResults A limit on the number of results returned
+	 * @param listener An entity that will be notified of any
+	 *                 progress in the operation. May be null.
+	 */
+	public List<Conversation> searchConversations(List<Conversation> conversations, Pattern pattern,
+			int maxResults, ProgressListener listener) throws SQLException
 	{
 		List<Conversation> results = new ArrayList<Conversation>();
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		long start = SEARCH_TIMER.start();
 		
-		listener.onProgress(new ProgressEvent("Searching...", 0, 1));
-		
-		List<Conversation> conversations = this.getConversations(query);
+		progress.report("Searching...", 0, 1);
 		
 		int processed = 0;
 		int total = conversations.size();
 		
 		for (Conversation conv : conversations)
 		{
-			listener.onProgress(new ProgressEvent("Searching...", processed, total));
+			progress.report("Searching...", processed, total);
 			processed++;
 			
 			for (Reply reply : conv.getReplies())
@@ -871,7 +1566,9 @@ public class IMArchive
 			
 			if (results.size() >= maxResults) break;
 		}
-		listener.onProgress(new ProgressEvent("Searching...", total, total));
+		progress.report("Searching...", total, total);
+		SEARCHED_CONVERSATIONS_COUNTER.add(processed);
+		SEARCH_TIMER.stop(start);
 		
 		return results;
 	}
@@ -880,97 +1577,531 @@ public class IMArchive
 	 * Loads the in-memory indexes of this structure with
 	 * the corresponding data in the underlying database
 	 * object.
+	 * 
+	 * Only the groups (and the contents of the Identities
+	 * group) are loaded at this point. The contacts and
+	 * accounts in other groups are loaded when first
+	 * needed (see _loadGroup()).
 	 */
 	protected void _loadArchive() throws SQLException
 	{
 		try
 		{
-			this._startLargeChange();
-			
-			// Load groups
+			this._startMajorChange();
 			
 			this._groups.clear();
 			this._groupsById.clear();
 			this._groupsByName.clear();
 			this._groupContacts.clear();
+			this._loadedGroups.clear();
+			this._contactCounts.clear();
+			
+			this._contactsById.clear();
+			this._contactsByName.clear();
+			this._contactAccounts.clear();
+			this._contactGroups.clear();
+			
+			synchronized (this._accountsById)
+			{
+				this._accountsById.clear();
+			}
+			this._accountsByName.clear();
+			this._accountContacts.clear();
 			
 			ResultSet rset = this._db.loadGroups(this._sqlId);
 			while (rset.next())
 			{
 				Group group = new Group(rset.getString("name"), rset.getInt("id"));
 				this._groups.add(group);
-				this._groupsById.put(new Integer(group.sqlId), group);
+				this._groupsById.put(group.sqlId, group);
 				this._groupsByName.put(group.name, group);
-				this._groupContacts.put(group, new OrderedList<Contact>());
 			}
+			rset.close();
 			
-			// Load contacts
+			rset = this._db.countGroupContacts(this._sqlId);
+			while (rset.next()) this._contactCounts.put(rset.getInt("group_id"), rset.getInt("contact_count"));
+			rset.close();
 			
-			this._contacts.clear();
-			this._contactsById.clear();
-			this._contactsByName.clear();
-			this._contactAccounts.clear();
-			this._contactGroups.clear();
+			// The identities are needed by nearly every conversation
+			this._loadGroup(this.getIdentitiesGroup());
+		}
+		finally
+		{
+			this._endMajorChange();
+		}
+	}
+	
+	/**
+	 * Loads the contacts in a group, along with their accounts,
+	 * if they are not already loaded. Either way, the group
+	 * becomes the most recently used one.
+	 * 
+	 * @param group A group
+	 * @return The (internal) list of contacts in the group
+	 */
+	protected OrderedList<Contact> _loadGroup(Group group)
+	{
+		OrderedList<Contact> contacts = this._groupContacts.get(group);
+		if (contacts != null)
+		{
+			this._loadedGroups.get(group.sqlId);
+			return contacts;
+		}
+		if (!this._groupsById.containsKey(group.sqlId)) return new OrderedList<Contact>(); // deleted
+		
+		long start = LOAD_GROUP_TIMER.start();
+		try
+		{
+			contacts = new OrderedList<Contact>();
+			
+			ResultSet rset = this._db.loadContacts(group.sqlId);
+			while (rset.next())
+			{
+				Contact contact = new Contact(rset.getString("name"), rset.getInt("id"));
+				this._contactsById.put(contact.sqlId, contact);
+				this._contactsByName.put(contact.name, contact);
+				this._contactAccounts.put(contact, new OrderedList<Account>());
+				this._contactGroups.put(contact, group);
+				contacts.add(contact);
+			}
+			rset.close();
+			
+			rset = this._db.loadAccounts(group.sqlId);
+			while (rset.next())
+			{
+				Account account = new Account(this._db.getServiceById(rset.getInt("service_id")), rset.getString("name"), rset.getInt("id"));
+				synchronized (this._accountsById)
+				{
+					this._accountsById.put(account.sqlId, account);
+				}
+				this._accountsByName.addItem(account.service, account.name, account);
+				
+				Contact parentContact = this._contactsById.get(rset.getInt("contact_id"));
+				this._contactAccounts.get(parentContact).add(account);
+				this._accountContacts.put(account, parentContact);
+			}
+			rset.close();
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e.toString());
+		}
+		finally
+		{
+			LOAD_GROUP_TIMER.stop(start);
+		}
+		
+		this._groupContacts.put(group, contacts);
+		this._loadedGroups.put(group.sqlId, group);
+		this._contactCounts.remove(group.sqlId);
+		
+		return contacts;
+	}
+	
+	/**
+	 * Loads the contents of the group with a given ID.
+	 * 
+	 * @param groupId The ID of the group, or -1, in which
+	 *                case nothing happens
+	 */
+	protected void _loadGroup(int groupId)
+	{
+		Group group = this._groupsById.get(groupId);
+		
+		if (group != null) this._loadGroup(group);
+	}
+	
+	/**
+	 * Unloads the contacts in a group, along with their
+	 * accounts. Any references to them that are still held
+	 * remain valid, as the items are looked up again by ID
+	 * when needed.
+	 * 
+	 * @param group A group whose contents are loaded
+	 */
+	protected void _unloadGroup(Group group)
+	{
+		OrderedList<Contact> contacts = this._groupContacts.remove(group);
+		
+		for (Contact contact : contacts)
+		{
+			for (Account account : this._contactAccounts.remove(contact))
+			{
+				synchronized (this._accountsById)
+				{
+					this._accountsById.remove(account.sqlId);
+				}
+				this._accountsByName.removeItem(account.service, account.name);
+				this._accountContacts.remove(account);
+			}
+			
+			this._contactsById.remove(contact.sqlId);
+			this._contactsByName.remove(contact.name);
+			this._contactGroups.remove(contact);
+		}
+		
+		this._contactCounts.put(group.sqlId, contacts.size());
+		UNLOADED_GROUPS_COUNTER.increment();
+	}
+	
+	/**
+	 * Declares the groups whose contents are in use by the UI
+	 * (e.g. those expanded in a tree view), which will be kept
+	 * loaded, and unloads other groups if too many are loaded.
+	 * 
+	 * @param groups A set of groups
+	 */
+	public void setGroupsInUse(Set<Group> groups)
+	{
+		IntSet ids = new IntSet();
+		for (Group group : groups) ids.add(group.sqlId);
+		
+		this._groupsInUse = ids;
+		this.trimLoadedGroups();
+	}
+	
+	/**
+	 * Unloads the least recently used groups until the number
+	 * of loaded contacts and accounts is within the limit. The
+	 * most recently used group, the Identities group and the
+	 * groups in use (see setGroupsInUse()) are always kept, and
+	 * nothing is unloaded during a large change.
+	 * 
+	 * Groups are never unloaded when their contents are merely
+	 * accessed (e.g. by a tree model painting its nodes). This
+	 * is called instead at defined points: after lookups and
+	 * bulk reads that load groups, at the end of a major change,
+	 * and by the UI after it has consumed a window of
+	 * conversations or changed the groups in use.
+	 */
+	public void trimLoadedGroups()
+	{
+		if (this._inLargeChange > 0) return;
+		
+		IntSet keep = this._groupsInUse;
+		int remaining = this._loadedGroups.size();
+		Iterator<Group> iter = this._loadedGroups.values().iterator();
+		while ((--remaining > 0) && (this._contactsById.size() + this._accountsById.size() > MAX_LOADED_ITEMS))
+		{
+			Group group = iter.next();
+			if (group.isIdentitiesGroup() || keep.contains(group.sqlId)) continue;
+			
+			iter.remove();
+			this._unloadGroup(group);
+		}
+	}
+	
+	/**
+	 * Checks whether the contents of all groups are loaded,
+	 * in which case any contact or account not found in the
+	 * in-memory indexes does not exist.
+	 * 
+	 * @return True if all groups are loaded
+	 */
+	protected boolean _allGroupsLoaded()
+	{
+		return (this._loadedGroups.size() == this._groups.size());
+	}
+	
+	/**
+	 * Gets the loaded instance of a contact, loading its group
+	 * if necessary.
+	 * 
+	 * @param contact A contact, possibly one whose group has
+	 *                been unloaded since it was obtained
+	 * @return The loaded contact, or null if it no longer exists
+	 */
+	protected Contact _getLoadedContact(Contact contact)
+	{
+		Contact loaded = this._contactsById.get(contact.sqlId);
+		if (loaded != null)
+		{
+			this._loadedGroups.get(this._contactGroups.get(loaded).sqlId);
+			return loaded;
+		}
+		
+		try
+		{
+			this._loadGroup(this._db.getContactGroup(contact.sqlId));
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e.toString());
+		}
+		
+		return this._contactsById.get(contact.sqlId);
+	}
+	
+	/**
+	 * Gets the loaded instance of an account, loading its group
+	 * if necessary.
+	 * 
+	 * @param account An account, possibly one obtained without
+	 *                loading its group (see _getAccountsById())
+	 * @return The loaded account, or null if it no longer exists
+	 */
+	protected Account _getLoadedAccount(Account account)
+	{
+		Account loaded = this._accountsById.get(account.sqlId);
+		if (loaded != null)
+		{
+			this._loadedGroups.get(this._contactGroups.get(this._accountContacts.get(loaded)).sqlId);
+			return loaded;
+		}
+		
+		try
+		{
+			this._loadGroup(this._db.getAccountGroup(account.sqlId));
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e.toString());
+		}
+		
+		return this._accountsById.get(account.sqlId);
+	}
+
+	/**
+	 * Enters a state in which changes in the archive
+	 * are not reported immediately via events, but
+	 * rather expressed in a single "major change"
+	 * event at the end.
+	 */
+	protected void _startLargeChange()
+	{
+		this._inLargeChange++;
+	}
+	
+	/**
+	 * Exits the "large change" state.
+	 */
+	protected void _endLargeChange()
+	{
+		this._inLargeChange--;
+	}
+	
+	/**
+	 * Enters a "large change" state that will be reported
+	 * as a MAJOR_CHANGE event at the end. If this is the
+	 * outermost large change, a snapshot of the accounting
+	 * structure is taken so that a change log can be
+	 * attached to the final event.
+	 */
+	protected void _startMajorChange()
+	{
+		if ((this._inLargeChange == 0) && !this._eventBus.isEmpty())
+		{
+			this._accountingSnapshot = this._takeAccountingSnapshot();
+			this._contactCountsSnapshot = this._takeContactCountsSnapshot();
+		}
+		
+		this._startLargeChange();
+	}
+	
+	/**
+	 * Exits a state entered through _startMajorChange(), and
+	 * fires the MAJOR_CHANGE event if this was the outermost
+	 * large change.
+	 */
+	protected void _endMajorChange()
+	{
+		this._endLargeChange();
+		
+		if (this._inLargeChange != 0) return;
+		
+		IMArchiveChangeLog changeLog = null;
+		if (this._accountingSnapshot != null)
+		{
+			changeLog = this._computeChangeLog(this._accountingSnapshot, this._contactCountsSnapshot);
+			this._accountingSnapshot = null;
+			this._contactCountsSnapshot = null;
+		}
+		
+		this._fireChangeEvent(new IMArchiveEvent(IMArchiveEvent.Type.MAJOR_CHANGE, new SingletonList<Object>(this), changeLog));
+		
+		this.trimLoadedGroups();
+	}
+	
+	/**
+	 * Records the children of every node in the accounting
+	 * structure (the archive, its groups and its contacts).
+	 * 
+	 * @return A map from each node to an array of its children
+	 */
+	protected Map<Object,Object[]> _takeAccountingSnapshot()
+	{
+		Map<Object,Object[]> snapshot = new IdentityHashMap<Object,Object[]>();
+		
+		snapshot.put(this, this._groups.toArray());
+		for (Map.Entry<Group,OrderedList<Contact>> entry : this._groupContacts.entrySet())
+			snapshot.put(entry.getKey(), entry.getValue().toArray());
+		for (Map.Entry<Contact,OrderedList<Account>> entry : this._contactAccounts.entrySet())
+			snapshot.put(entry.getKey(), entry.getValue().toArray());
+		
+		return snapshot;
+	}
+	
+	/**
+	 * Records the number of contacts in every group, including
+	 * the groups whose contents are not loaded.
+	 * 
+	 * @return A map from each group to its number of contacts
+	 */
+	protected Map<Group,Integer> _takeContactCountsSnapshot()
+	{
+		Map<Group,Integer> snapshot = new IdentityHashMap<Group,Integer>();
+		
+		for (Group group : this._groups) snapshot.put(group, group.getContactCount());
+		
+		return snapshot;
+	}
+	
+	/**
+	 * Computes the changes in the accounting structure since
+	 * a snapshot was taken.
+	 * 
+	 * @param snapshot A snapshot obtained from _takeAccountingSnapshot()
+	 * @param contactCounts A snapshot obtained from _takeContactCountsSnapshot()
+	 * @return A change log
+	 */
+	protected IMArchiveChangeLog _computeChangeLog(Map<Object,Object[]> snapshot, Map<Group,Integer> contactCounts)
+	{
+		IMArchiveChangeLog changeLog = new IMArchiveChangeLog();
+		
+		// Note: nodes that did not exist in the snapshot are new, and
+		// their children are implicitly included when they are inserted
+		changeLog.addChildrenDiff(this, snapshot.get(this), this._groups.toArray());
+		// The same goes for groups whose contents were not loaded (their
+		// children have not been seen by listeners yet)
+		for (Group group : this._groups)
+		{
+			Object[] oldContacts = snapshot.get(group);
+			OrderedList<Contact> contacts = this._groupContacts.get(group);
+			if ((oldContacts != null) && (contacts != null)) changeLog.addChildrenDiff(group, oldContacts, contacts.toArray());
+		}
+		for (Group group : this._groups)
+		{
+			OrderedList<Contact> contacts = this._groupContacts.get(group);
+			if (contacts == null) continue;
+			
+			for (Contact contact : contacts)
+			{
+				Object[] oldAccounts = snapshot.get(contact);
+				if (oldAccounts != null) changeLog.addChildrenDiff(contact, oldAccounts, this._contactAccounts.get(contact).toArray());
+			}
+		}
+		// Groups display their number of contacts, which may change
+		// whether or not their contents are loaded
+		IntList changedIndexes = new IntList();
+		List<Object> changedGroups = new ArrayList<Object>();
+		for (int i=0; i<this._groups.size(); i++)
+		{
+			Group group = this._groups.get(i);
+			Integer oldCount = contactCounts.get(group);
+			if ((oldCount != null) && (oldCount.intValue() != group.getContactCount()))
+			{
+				changedIndexes.add(i);
+				changedGroups.add(group);
+			}
+		}
+		changeLog.addChangedChildren(this, changedIndexes.toArray(), changedGroups.toArray());
+		
+		return changeLog;
+	}
+	
+	/**
+	 * Packs the replies in this archive into compressed blocks,
+	 * which take up much less space in the database and are
+	 * faster to read (see ArchiveDb.packReplies()). This does
+	 * not change the contents of the archive.
+	 * 
+	 * @param listener An entity that will be notified of any
+	 *                 progress in the operation. May be null.
+	 * @return The number of replies packed
+	 */
+	public int packReplies(ProgressListener listener) throws SQLException
+	{
+		return this._repackReplies(true, listener);
+	}
+	
+	/**
+	 * Unpacks the replies in this archive that were packed by
+	 * packReplies(), so that each is stored in a row of its own
+	 * again.
+	 * 
+	 * @param listener An entity that will be notified of any
+	 *                 progress in the operation. May be null.
+	 * @return The number of replies unpacked
+	 */
+	public int unpackReplies(ProgressListener listener) throws SQLException
+	{
+		return this._repackReplies(false, listener);
+	}
+	
+	/**
+	 * Packs or unpacks the replies in this archive, committing
+	 * the changes every PACK_BATCH_SIZE conversations.
+	 * 
+	 * @param pack True to pack the replies, false to unpack them
+	 * @param listener An entity that will be notified of any
+	 *                 progress in the operation. May be null.
+	 * @return The number of replies processed
+	 */
+	protected int _repackReplies(boolean pack, ProgressListener listener) throws SQLException
+	{
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		String comment = pack ? "Packing replies..." : "Unpacking replies...";
+		Metrics.Timer timer = pack ? PACK_TIMER : UNPACK_TIMER;
+		long start = timer.start();
+		
+		progress.report(comment, 0, -1);
+		int[] ids = pack ?
+				this._db.getConversationsWithReplyRows(this._sqlId) :
+				this._db.getConversationsWithReplyBlocks(this._sqlId);
+		
+		int count = 0;
+		for (int i=0; i<ids.length; i+=PACK_BATCH_SIZE)
+		{
+			progress.report(comment, i, ids.length);
 			
-			rset = this._db.loadContacts(this._sqlId);
-			while (rset.next())
+			this._db.startTransaction();
+			boolean success = false;
+			try
 			{
-				Contact contact = new Contact(rset.getString("name"), rset.getInt("id"));
-				this._contacts.add(contact);
-				this._contactsById.put(new Integer(contact.sqlId), contact);
-				this._contactsByName.put(contact.name, contact);
-				this._contactAccounts.put(contact, new OrderedList<Account>());
-				
-				Group parentGroup = this._groupsById.get(new Integer(rset.getInt("group_id")));
-				this._groupContacts.get(parentGroup).add(contact);
-				this._contactGroups.put(contact, parentGroup);
+				for (int j=i; j<Math.min(i+PACK_BATCH_SIZE, ids.length); j++)
+					count += pack ? this._db.packReplies(ids[j]) : this._db.unpackReplies(ids[j]);
+				success = true;
 			}
-			
-			// Load accounts
-			
-			this._accounts.clear();
-			this._accountsById.clear();
-			this._accountsByName.clear();
-			this._accountContacts.clear();
-			
-			rset = this._db.loadAccounts(this._sqlId);
-			while (rset.next())
+			finally
 			{
-				Account account = new Account(this._db.getServiceById(rset.getInt("service_id")), rset.getString("name"), rset.getInt("id"));
-				this._accounts.add(account);
-				this._accountsById.put(new Integer(account.sqlId), account);
-				this._accountsByName.addItem(account.service, account.name, account);
-				
-				Contact parentContact = this._contactsById.get(new Integer(rset.getInt("contact_id")));
-				this._contactAccounts.get(parentContact).add(account);
-				this._accountContacts.put(account, parentContact);
+				this._db.endTransaction(success);
 			}
 		}
-		finally
-		{
-			this._endLargeChange();
-			
-			if (this._inLargeChange == 0) this._fireChangeEvent(IMArchiveEvent.Type.MAJOR_CHANGE, this);
-		}
+		progress.report(comment, ids.length, ids.length);
+		timer.stop(start);
+		
+		return count;
 	}
-
+	
 	/**
-	 * Enters a state in which changes in the archive
-	 * are not reported immediately via events, but
-	 * rather expressed in a single "major change"
-	 * event at the end.
+	 * Starts a bulk update, during which changes to the archive
+	 * are committed to the database in a single transaction.
+	 * This greatly speeds up the insertion of many items, such
+	 * as when loading an archive. Every call must be matched by
+	 * a call to endBulkUpdate().
 	 */
-	protected void _startLargeChange()
+	public void startBulkUpdate() throws SQLException
 	{
-		this._inLargeChange++;
+		this._db.startTransaction();
 	}
 	
 	/**
-	 * Exits the "large change" state.
+	 * Ends a bulk update, committing the changes performed
+	 * since startBulkUpdate() was called.
 	 */
-	protected void _endLargeChange()
+	public void endBulkUpdate() throws SQLException
 	{
-		this._inLargeChange--;
+		this._db.endTransaction();
 	}
 	
 	/**
@@ -999,14 +2130,21 @@ public class IMArchive
 	 */
 	protected void _fireChangeEvent(IMArchiveEvent.Type type, List<Object> items)
 	{
-		IMArchiveEvent event = new IMArchiveEvent(type, items);
+		this._fireChangeEvent(new IMArchiveEvent(type, items));
+	}
+	
+	/**
+	 * Notifies any registered listeners of a change in the
+	 * archive content. The listeners are called asynchronously
+	 * (see IMArchiveEventBus).
+	 * 
+	 * @param event An event describing the change
+	 */
+	protected void _fireChangeEvent(IMArchiveEvent event)
+	{
+		this._invalidateOrderings();
 		
-		// Note: we will iterate over a copy of the listeners list,
-		// as one possible response to the event is to unregister
-		// listeners (e.g. controls will disconnect if the archive
-		// is being deleted)
-		IMArchiveListener[] listeners = this._listeners.toArray(new IMArchiveListener[this._listeners.size()]);
-		for (IMArchiveListener listener : listeners) listener.archiveChanged(event);
+		this._eventBus.fireEvent(event);
 	}
 	
 	/**
@@ -1049,13 +2187,40 @@ public class IMArchive
 		}
 		
 		/**
-		 * Gets this group's contacts.
+		 * Gets this group's contacts, loading them if necessary.
 		 *
 		 * @return An (immutable) list of contacts.
 		 */
 		public List<Contact> getContacts()
 		{
-			return Collections.unmodifiableList(_groupContacts.get(this));
+			return Collections.unmodifiableList(_loadGroup(this));
+		}
+		
+		/**
+		 * Gets the number of contacts in this group, without
+		 * loading them.
+		 * 
+		 * @return The number of contacts
+		 */
+		public int getContactCount()
+		{
+			OrderedList<Contact> contacts = _groupContacts.get(this);
+			if (contacts != null) return contacts.size();
+			
+			Integer count = _contactCounts.get(this.sqlId);
+			
+			return (count != null) ? count : 0;
+		}
+		
+		/**
+		 * Checks whether the contacts in this group (and their
+		 * accounts) are currently loaded.
+		 * 
+		 * @return True if the contents of the group are loaded
+		 */
+		public boolean isLoaded()
+		{
+			return _groupContacts.containsKey(this);
 		}
 		
 		/**
@@ -1082,19 +2247,20 @@ public class IMArchive
 		{
 			Contact newContact = getContactByName(contactName);
 			if (newContact != null) return newContact;
+			
+			OrderedList<Contact> contacts = _loadGroup(this);
 
 			int sqlId = _db.createContact(this.sqlId, contactName);
 			
 			newContact = new Contact(contactName, sqlId);
-			_contacts.add(newContact);
 			_contactsByName.put(contactName, newContact);
-			_contactsById.put(new Integer(sqlId), newContact);
+			_contactsById.put(sqlId, newContact);
 			_contactAccounts.put(newContact, new OrderedList<Account>());
 			
-			_groupContacts.get(this).add(newContact);
+			contacts.add(newContact);
 			_contactGroups.put(newContact, this);
 			
-			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.ADDED_ITEMS, newContact);
+			if (_inLargeChange == 0) _fireChangeEvent(new IMArchiveEvent(IMArchiveEvent.Type.ADDED_ITEMS, newContact, this.sqlId));
 			
 			return newContact;
 		}
@@ -1145,17 +2311,20 @@ public class IMArchive
 			if (group.isIdentitiesGroup()) throw new RuntimeException("The Identities group may not be merged into another.");
 			if (group.equals(this)) return;
 			
+			OrderedList<Contact> contacts = _loadGroup(this);
+			OrderedList<Contact> mergedContacts = _loadGroup(group);
+			
 			_db.mergeGroup(group.sqlId, this.sqlId);
 			
-			List<Object> items = new ArrayList<Object>(_groupContacts.get(group));
+			List<Object> items = new ArrayList<Object>(mergedContacts);
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.MOVING_ITEMS, items);
 			
-			for (Contact contact : _groupContacts.get(group))
+			for (Contact contact : mergedContacts)
 			{
-				_groupContacts.get(this).add(contact);
+				contacts.add(contact);
 				_contactGroups.put(contact, this);
 			}
-			_groupContacts.get(group).clear();
+			mergedContacts.clear();
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.MOVED_ITEMS, items);
 			
@@ -1186,10 +2355,13 @@ public class IMArchive
 			_groupsByName.remove(this.name);
 			_groupsByName.put(newName, newGroup);
 			_groupsById.put(this.sqlId, newGroup);
-			OrderedList<Contact> contacts = _groupContacts.get(this);
-			_groupContacts.remove(this);
-			_groupContacts.put(newGroup, contacts);
-			for (Contact contact : contacts) _contactGroups.put(contact, newGroup);
+			OrderedList<Contact> contacts = _groupContacts.remove(this);
+			if (contacts != null)
+			{
+				_groupContacts.put(newGroup, contacts);
+				_loadedGroups.put(this.sqlId, newGroup);
+				for (Contact contact : contacts) _contactGroups.put(contact, newGroup);
+			}
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.UPDATED_ITEMS, newGroup);
 			
@@ -1210,10 +2382,15 @@ public class IMArchive
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.DELETING_ITEMS, this);
 
+			// Note: if the group is not loaded, neither are any
+			// of its contacts
 			_startLargeChange();
 			_startNoDbUpdates();
-			List<Contact> contacts = new ArrayList<Contact>(this.getContacts());
-			for (Contact contact : contacts) contact.delete();
+			if (this.isLoaded())
+			{
+				List<Contact> contacts = new ArrayList<Contact>(_groupContacts.get(this));
+				for (Contact contact : contacts) contact.delete();
+			}
 			_endNoDbUpdates();
 			_endLargeChange();
 			
@@ -1221,6 +2398,8 @@ public class IMArchive
 			_groupsByName.remove(this.name);
 			_groupsById.remove(this.sqlId);
 			_groupContacts.remove(this);
+			_loadedGroups.remove(this.sqlId);
+			_contactCounts.remove(this.sqlId);
 			
 			if (_inLargeChange == 0)
 			{
@@ -1282,7 +2461,9 @@ public class IMArchive
 		 */
 		public Group getGroup()
 		{
-			return _contactGroups.get(this);
+			Contact contact = _getLoadedContact(this);
+			
+			return (contact != null) ? _contactGroups.get(contact) : null;
 		}
 		
 		/**
@@ -1298,13 +2479,24 @@ public class IMArchive
 		}
 		
 		/**
-		 * Gets this contact's accounts.
+		 * Gets this contact's accounts, loading them if necessary.
 		 * 
 		 * @return An (immutable) list of accounts
 		 */
 		public List<Account> getAccounts()
 		{
-			return Collections.unmodifiableList(_contactAccounts.get(this));
+			return Collections.unmodifiableList(this._getAccounts());
+		}
+		
+		/**
+		 * Gets this contact's accounts, loading them if
+		 * necessary.
+		 * 
+		 * @return The (internal) list of accounts
+		 */
+		protected OrderedList<Account> _getAccounts()
+		{
+			return _contactAccounts.get(_getLoadedContact(this));
 		}
 		
 		/**
@@ -1322,16 +2514,20 @@ public class IMArchive
 			Account newAccount = getAccountByName(service, name);
 			if (newAccount != null) return newAccount;
 			
+			Contact contact = _getLoadedContact(this);
+			
 			int sqlId = _db.createAccount(this.sqlId, _db.getServiceId(service), name);
 			
 			newAccount = new Account(service, name, sqlId);
-			_accounts.add(newAccount);
 			_accountsByName.addItem(newAccount.service, newAccount.name, newAccount);
-			_accountsById.put(new Integer(sqlId), newAccount);
-			_contactAccounts.get(this).add(newAccount);
-			_accountContacts.put(newAccount, this);
+			synchronized (_accountsById)
+			{
+				_accountsById.put(sqlId, newAccount);
+			}
+			_contactAccounts.get(contact).add(newAccount);
+			_accountContacts.put(newAccount, contact);
 			
-			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.ADDED_ITEMS, newAccount);
+			if (_inLargeChange == 0) _fireChangeEvent(new IMArchiveEvent(IMArchiveEvent.Type.ADDED_ITEMS, newAccount, contact.sqlId));
 			
 			return newAccount;
 		}
@@ -1349,13 +2545,16 @@ public class IMArchive
 			Group parent = this.getGroup();
 			if (parent.equals(newGroup)) return;
 			
+			Contact contact = _getLoadedContact(this);
+			OrderedList<Contact> newContacts = _loadGroup(newGroup);
+			
 			_db.setContactGroup(this.sqlId, newGroup.sqlId);
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.MOVING_ITEMS, this);
 			
-			_groupContacts.get(parent).remove(this);
-			_groupContacts.get(newGroup).add(this);
-			_contactGroups.put(this, newGroup);
+			_groupContacts.get(parent).remove(contact);
+			newContacts.add(contact);
+			_contactGroups.put(contact, newGroup);
 			
 			if (_inLargeChange == 0)
 			{
@@ -1376,17 +2575,21 @@ public class IMArchive
 			
 			if (contact.equals(this)) return;
 			
+			OrderedList<Account> accounts = this._getAccounts();
+			OrderedList<Account> mergedAccounts = contact._getAccounts();
+			Contact self = _getLoadedContact(this);
+			
 			_db.mergeContact(contact.sqlId, this.sqlId);
 			
-			List<Object> items = new ArrayList<Object>(_contactAccounts.get(contact));
+			List<Object> items = new ArrayList<Object>(mergedAccounts);
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.MOVING_ITEMS, items);
 			
-			for (Account account : _contactAccounts.get(contact))
+			for (Account account : mergedAccounts)
 			{
-				_contactAccounts.get(this).add(account);
-				_accountContacts.put(account, this);
+				accounts.add(account);
+				_accountContacts.put(account, self);
 			}
-			_contactAccounts.get(contact).clear();
+			mergedAccounts.clear();
 			
 			if (_inLargeChange == 0)
 			{
@@ -1410,14 +2613,13 @@ public class IMArchive
 			if (newName.isEmpty()) throw new RuntimeException("You must specify a non-empty name.");
 			if (getContactByName(newName) != null) throw new RuntimeException("That name is already taken.");
 			
+			Group parent = this.getGroup();
+			
 			_db.renameContact(this.sqlId, newName);
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.UPDATING_ITEMS, this);
 			
-			Group parent = this.getGroup();
 			Contact newContact = new Contact(newName, this.sqlId);
-			_contacts.remove(this);
-			_contacts.add(newContact);
 			_contactsByName.remove(this.name);
 			_contactsByName.put(newName, newContact);
 			_contactsById.put(this.sqlId, newContact);
@@ -1445,21 +2647,22 @@ public class IMArchive
 		 */
 		public void delete() throws SQLException
 		{
+			Group parent = this.getGroup();
+			
 			_db.deleteContacts(new int[] { this.sqlId });
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.DELETING_ITEMS, this);
 
 			_startLargeChange();
 			_startNoDbUpdates();
-			List<Account> accounts = new ArrayList<Account>(this.getAccounts());
+			List<Account> accounts = new ArrayList<Account>(this._getAccounts());
 			for (Account account : accounts) account.delete();
 			_endNoDbUpdates();
 			_endLargeChange();
 			
-			_contacts.remove(this);
 			_contactsByName.remove(this.name);
 			_contactsById.remove(this.sqlId);
-			_groupContacts.get(this.getGroup()).remove(this);
+			_groupContacts.get(parent).remove(this);
 			_contactGroups.remove(this);
 			_contactAccounts.remove(this);
 			
@@ -1527,7 +2730,9 @@ public class IMArchive
 		 */
 		public Contact getContact()
 		{
-			return _accountContacts.get(this);
+			Account account = _getLoadedAccount(this);
+			
+			return (account != null) ? _accountContacts.get(account) : null;
 		}
 		
 		/**
@@ -1554,13 +2759,17 @@ public class IMArchive
 			Contact parent = this.getContact();
 			if (parent.equals(newContact)) return;
 			
+			Account account = _getLoadedAccount(this);
+			OrderedList<Account> newAccounts = newContact._getAccounts();
+			newContact = _getLoadedContact(newContact);
+			
 			_db.setContactGroup(this.sqlId, newContact.sqlId);
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.MOVING_ITEMS, this);
 			
-			_contactAccounts.get(parent).remove(this);
-			_contactAccounts.get(newContact).add(this);
-			_accountContacts.put(this, newContact);
+			_contactAccounts.get(parent).remove(account);
+			newAccounts.add(account);
+			_accountContacts.put(account, newContact);
 			
 			if (_inLargeChange == 0)
 			{
@@ -1582,18 +2791,20 @@ public class IMArchive
 			if (newName.isEmpty()) throw new RuntimeException("You must specify a non-empty name.");
 			if (getContactByName(newName) != null) throw new RuntimeException("That name is already taken.");
 			
+			Contact contact = this.getContact();
+			
 			_db.renameAccount(this.sqlId, newName);
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.UPDATING_ITEMS, this);
 			
 			Account newAccount = new Account(this.service, newName, this.sqlId);
-			_accounts.remove(this);
-			_accounts.add(newAccount);
 			_accountsByName.removeItem(this.service, this.name);
 			_accountsByName.addItem(this.service, newName, newAccount);
-			_accountsById.put(this.sqlId, newAccount);
+			synchronized (_accountsById)
+			{
+				_accountsById.put(this.sqlId, newAccount);
+			}
 			
-			Contact contact = _accountContacts.get(this);
 			_contactAccounts.get(contact).remove(this);
 			_contactAccounts.get(contact).add(newAccount);
 			_accountContacts.remove(this);
@@ -1613,14 +2824,18 @@ public class IMArchive
 		 */
 		public void delete() throws SQLException
 		{
+			Contact contact = this.getContact();
+			
 			if (_noDbUpdates == 0) _db.deleteAccounts(new int[] { this.sqlId });
 			
 			if (_inLargeChange == 0) _fireChangeEvent(IMArchiveEvent.Type.DELETING_ITEMS, this);
 			
-			_accounts.remove(this);
 			_accountsByName.removeItem(this.service, this.name);
-			_accountsById.remove(this.sqlId);
-			_contactAccounts.get(this.getContact()).remove(this);
+			synchronized (_accountsById)
+			{
+				_accountsById.remove(this.sqlId);
+			}
+			_contactAccounts.get(contact).remove(this);
 			_accountContacts.remove(this);
 			
 			if (_inLargeChange == 0)
@@ -1663,6 +2878,8 @@ public class IMArchive
 		
 		protected List<Speaker> _speakers;
 		protected int _replyCount;
+		protected Contact _localContact = null;
+		protected Contact _remoteContact = null;
 
 		/**
 		 * Constructor.
@@ -1694,6 +2911,31 @@ public class IMArchive
 			return _archiveSelf;
 		}
 		
+		/**
+		 * Gets the contact of the local account. For conversations
+		 * returned by a query, this is the contact as it was when the
+		 * conversation was loaded, and getting it never loads a group.
+		 * 
+		 * @return The contact, or null if the account no longer
+		 *         belongs to any contact
+		 */
+		public Contact getLocalContact()
+		{
+			return (this._localContact != null) ? this._localContact : this.localAccount.getContact();
+		}
+		
+		/**
+		 * Gets the contact of the remote account (see
+		 * getLocalContact()).
+		 * 
+		 * @return The contact, or null if the account no longer
+		 *         belongs to any contact
+		 */
+		public Contact getRemoteContact()
+		{
+			return (this._remoteContact != null) ? this._remoteContact : this.remoteAccount.getContact();
+		}
+		
 		/**
 		 * Gets the speakers in this conversation.
 		 * 
@@ -1723,23 +2965,57 @@ public class IMArchive
 		 */
 		public List<Reply> getReplies() throws SQLException
 		{
-			ResultSet rset = _db.getReplies(this.sqlId);
-			
 			List<Reply> replies = new ArrayList<Reply>();
-			while (rset.next())
-			{
-				Reply reply = new Reply(
-						rset.getDate("reply_date"),
-						this.getSpeakerById(rset.getInt("speaker_id")),
-						rset.getString("content"),
-						rset.getInt("id"));
-				
-				replies.add(reply);
-			}
+			
+			// Packed replies always precede the ones stored as rows
+			ResultSet rset = _db.getReplyBlocks(this.sqlId);
+			while (rset.next()) this._loadReplyBlock(rset, replies);
+			rset.close();
+			
+			rset = _db.getReplies(this.sqlId);
+			while (rset.next()) replies.add(this._loadReply(rset));
+			rset.close();
 			
 			return replies;
 		}
 		
+		/**
+		 * Creates a reply object from the current row of
+		 * a replies result set.
+		 * 
+		 * @param rset A result set containing reply data
+		 * @return A reference to the reply
+		 */
+		protected Reply _loadReply(ResultSet rset) throws SQLException
+		{
+			return new Reply(
+					new Date(rset.getLong("reply_date")),
+					this.getSpeakerById(rset.getInt("speaker_id")),
+					rset.getString("content"),
+					rset.getInt("id"));
+		}
+		
+		/**
+		 * Creates reply objects from the current row of a
+		 * reply blocks result set. Packed replies have no
+		 * SQL ID of their own, so theirs is set to -1.
+		 * 
+		 * @param rset A result set containing block data
+		 * @param replies The list to which the replies are
+		 *                to be added
+		 */
+		protected void _loadReplyBlock(ResultSet rset, List<Reply> replies) throws SQLException
+		{
+			ReplyBlock block = ReplyBlock.decode(rset.getInt("first_idx"), rset.getBytes("data"), rset.getInt("reply_count"));
+			
+			for (int i=0; i<block.size(); i++)
+				replies.add(new Reply(
+						new Date(block.getDate(i)),
+						this.getSpeakerById(block.getSpeakerId(i)),
+						block.getContent(i),
+						-1));
+		}
+		
 		/**
 		 * Adds a speaker to this conversation.
 		 * 
@@ -2003,54 +3279,326 @@ public class IMArchive
 	 * Class for a lazy list that allows accessing the results of a
 	 * conversations query while keeping only a limited number of
 	 * them in memory at all times.
+	 * 
+	 * The results are fetched in fixed-size windows, of which a
+	 * bounded number are kept in a cache (least recently used
+	 * windows are evicted first). The cache may be queried without
+	 * triggering a load via peek(), and windows may be loaded
+	 * explicitly via loadWindow(), so that the list can also
+	 * be driven from a background thread. The query is resolved
+	 * when the list is created (see _resolveQuery()), so the list
+	 * must be created by the thread that uses the archive, and
+	 * later changes to the query object do not affect it.
 	 */
 	public class WindowedConversationList extends AbstractList<Conversation>
 	{
-		protected ConversationsQuery _query;
-		protected int _windowSize;
-		protected List<Conversation> _window = new ArrayList<Conversation>(0);
-		protected int _windowBase = 0;
+		public static final int DEFAULT_MAX_WINDOWS = 4;
+		
+		protected final ResolvedQuery _query;
+		protected final int _windowSize;
+		protected final int _maxWindows;
+		protected Map<Integer, List<Conversation>> _windows;
 		protected int _cachedConvCount = -1;
 		
+		/**
+		 * Constructor.
+		 * 
+		 * @param query A conversations query
+		 * @param windowSize The number of conversations in a window
+		 */
 		public WindowedConversationList(ConversationsQuery query, int windowSize)
 		{
-			this._query = query;
+			this(query, windowSize, DEFAULT_MAX_WINDOWS);
+		}
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param query A conversations query
+		 * @param windowSize The number of conversations in a window
+		 * @param maxWindows The maximum number of windows kept in memory
+		 */
+		public WindowedConversationList(ConversationsQuery query, int windowSize, int maxWindows)
+		{
+			this._query = _resolveQuery(query);
 			this._windowSize = windowSize;
+			this._maxWindows = Math.max(1, maxWindows);
+			this._windows = new LinkedHashMap<Integer, List<Conversation>>(2*this._maxWindows, 0.75f, true);
+		}
+		
+		/**
+		 * Gets the number of conversations in a window.
+		 * 
+		 * @return The window size
+		 */
+		public int getWindowSize()
+		{
+			return this._windowSize;
+		}
+		
+		/**
+		 * Gets the index of the first conversation in the window
+		 * that contains a given index.
+		 * 
+		 * @param index A conversation index
+		 * @return The base index of the containing window
+		 */
+		public int getWindowBase(int index)
+		{
+			return index-(index % this._windowSize);
+		}
+		
+		/**
+		 * Gets a conversation only if the window containing it is
+		 * already loaded. This never accesses the database.
+		 * 
+		 * @param index A conversation index
+		 * @return The conversation, or null if it is not in memory
+		 */
+		public synchronized Conversation peek(int index)
+		{
+			List<Conversation> window = this._windows.get(this.getWindowBase(index));
+			if (window == null) return null;
+			
+			int offset = index-this.getWindowBase(index);
+			return (offset < window.size()) ? window.get(offset) : null;
+		}
+		
+		/**
+		 * Checks whether the window containing a given index is
+		 * currently loaded.
+		 * 
+		 * @param index A conversation index
+		 * @return True if the window is in memory, false otherwise
+		 */
+		public synchronized boolean isWindowLoaded(int index)
+		{
+			return this._windows.containsKey(this.getWindowBase(index));
+		}
+		
+		/**
+		 * Loads the window containing a given index into the cache,
+		 * evicting the least recently used window if necessary.
+		 * 
+		 * Note: the database query is performed without holding the
+		 * lock on this list, so that peek() calls from other threads
+		 * do not block while a window is loading.
+		 * 
+		 * @param index A conversation index
+		 * @return The number of conversations in the loaded window
+		 */
+		public int loadWindow(int index) throws SQLException
+		{
+			int base = this.getWindowBase(index);
+			
+			List<Conversation> window = _queryConversations(this._query, base, this._windowSize);
+			
+			synchronized (this)
+			{
+				this._windows.put(base, window);
+				
+				Iterator<Integer> iter = this._windows.keySet().iterator();
+				while (this._windows.size() > this._maxWindows)
+				{
+					iter.next();
+					iter.remove();
+				}
+			}
+			
+			return window.size();
 		}
 		
 		@Override
 		public Conversation get(int index)
 		{
-			if ((index >= this._windowBase) && (index < this._windowBase+this._window.size()))
-				return this._window.get(index-this._windowBase);
+			Conversation conv = this.peek(index);
+			if (conv != null) return conv;
 			
 			try
 			{
-				this._windowBase = index-(index % this._windowSize);
-				this._window = queryConversations(this._query, this._windowBase, _windowSize);
-				
-				return this._window.get(index-this._windowBase);
+				this.loadWindow(index);
 			}
-			catch (Exception e)
+			catch (SQLException e)
 			{
-				return null;
+				throw new RuntimeException("Cannot load conversations:\n"+e.getMessage());
 			}
+			
+			conv = this.peek(index);
+			if (conv == null) throw new IndexOutOfBoundsException("Index: "+index);
+			
+			return conv;
 		}
 
 		@Override
-		public int size()
+		public synchronized int size()
 		{
 			if (this._cachedConvCount != -1) return this._cachedConvCount;
 			
 			try
 			{
-				this._cachedConvCount = countConversationsInQuery(this._query);
+				this._cachedConvCount = _countConversations(this._query);
 				return this._cachedConvCount;
 			}
-			catch (Exception e)
+			catch (SQLException e)
+			{
+				throw new RuntimeException("Cannot count conversations:\n"+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Structure class for the contacts and accounts found by a
+	 * name lookup in the database (see lookupItemsByPrefix()),
+	 * identified by their IDs and those of their groups.
+	 */
+	public static class FoundItemIds
+	{
+		public final String text;
+		public final boolean inside;
+		public final int maxResults;
+		public final int[] contactIds;
+		public final int[] contactGroupIds;
+		public final int[] accountIds;
+		public final int[] accountGroupIds;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param text The text looked up
+		 * @param inside Whether the text was looked up inside
+		 *               the names, rather than at their start
+		 * @param maxResults The limit on the number of results
+		 * @param contactIds The IDs of the contacts found
+		 * @param contactGroupIds The IDs of their groups
+		 * @param accountIds The IDs of the accounts found
+		 * @param accountGroupIds The IDs of their groups
+		 */
+		public FoundItemIds(String text, boolean inside, int maxResults, int[] contactIds,
+				int[] contactGroupIds, int[] accountIds, int[] accountGroupIds)
+		{
+			this.text = text;
+			this.inside = inside;
+			this.maxResults = maxResults;
+			this.contactIds = contactIds;
+			this.contactGroupIds = contactGroupIds;
+			this.accountIds = accountIds;
+			this.accountGroupIds = accountGroupIds;
+		}
+	}
+	
+	/**
+	 * Internal class for a conversations query whose filter has
+	 * been converted to account and conversation IDs (see
+	 * _resolveQuery()). Instances are immutable, and thus may be
+	 * shared with background threads.
+	 */
+	protected static class ResolvedQuery
+	{
+		public final int[] filterIdent;
+		public final int[] filterRegular;
+		public final int[] filterConv;
+		public final List<SortKey> sortKeys;
+		public final Date dateFrom;
+		public final Date dateTo;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param filterIdent The identity accounts filter
+		 * @param filterRegular The regular accounts filter
+		 * @param filterConv The conversations filter
+		 * @param sortKeys A list of sort keys (copied)
+		 * @param dateFrom The start of the date range, or null
+		 * @param dateTo The end of the date range, or null
+		 */
+		public ResolvedQuery(int[] filterIdent, int[] filterRegular, int[] filterConv,
+				List<SortKey> sortKeys, Date dateFrom, Date dateTo)
+		{
+			this.filterIdent = filterIdent;
+			this.filterRegular = filterRegular;
+			this.filterConv = filterConv;
+			this.sortKeys = Collections.unmodifiableList(new ArrayList<SortKey>(sortKeys));
+			this.dateFrom = (dateFrom != null) ? new Date(dateFrom.getTime()) : null;
+			this.dateTo = (dateTo != null) ? new Date(dateTo.getTime()) : null;
+		}
+	}
+	
+	/**
+	 * Internal class holding the data needed to sort a
+	 * conversation in memory.
+	 */
+	protected static class SortEntry
+	{
+		public final int id;
+		public final long date;
+		public final String accountName;
+		public final String contactName;
+		public final int isConference;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param id The conversation ID
+		 * @param date The conversation start date, in milliseconds
+		 * @param accountName The name of the remote account
+		 * @param contactName The name of the remote contact
+		 * @param isConference 1 if the conversation is a conference, 0 otherwise
+		 */
+		public SortEntry(int id, long date, String accountName, String contactName, int isConference)
+		{
+			this.id = id;
+			this.date = date;
+			this.accountName = accountName;
+			this.contactName = contactName;
+			this.isConference = isConference;
+		}
+	}
+	
+	/**
+	 * Internal class for a comparator that orders sort entries
+	 * according to a list of sort keys. Ties are broken by ID,
+	 * so that the ordering is stable across queries.
+	 * 
+	 * Names are compared with String.compareTo(), which gives the
+	 * same ordering as an ORDER BY on the name columns, using their
+	 * default BINARY collation. SQLite compares the UTF-8 bytes of
+	 * the text, which follows the code points, except that the
+	 * driver stores characters outside the Basic Multilingual Plane
+	 * as separately encoded surrogates (CESU-8), so that they sort
+	 * by their UTF-16 code units, just as in Java. Case-insensitive
+	 * (NOCASE) orderings would not match this.
+	 */
+	protected static class SortEntryComparator implements Comparator<SortEntry>
+	{
+		protected SortKey[] _sortKeys;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param sortKeys A list of sort keys
+		 */
+		public SortEntryComparator(List<SortKey> sortKeys)
+		{
+			this._sortKeys = sortKeys.toArray(new SortKey[sortKeys.size()]);
+		}
+		
+		@Override
+		public int compare(SortEntry a, SortEntry b)
+		{
+			for (SortKey key : this._sortKeys)
 			{
-				return 0;
+				int result = 0;
+				switch (key)
+				{
+				case BY_ACCOUNT: result = a.accountName.compareTo(b.accountName); break;
+				case BY_CONTACT: result = a.contactName.compareTo(b.contactName); break;
+				case BY_DATE: result = (a.date < b.date) ? -1 : ((a.date > b.date) ? 1 : 0); break;
+				case BY_TYPE: result = a.isConference - b.isConference; break;
+				}
+				if (result != 0) return result;
 			}
-		}		
+			
+			return a.id - b.id;
+		}
 	}
 }
@@ -0,0 +1,332 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models.archive;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import uniarchive.models.BinaryBlockReader;
+import uniarchive.models.CountingInputStream;
+import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
+import uniarchive.models.archive.IMArchive.Account;
+import uniarchive.models.archive.IMArchive.Contact;
+import uniarchive.models.archive.IMArchive.Conversation;
+import uniarchive.models.archive.IMArchive.Group;
+import uniarchive.models.archive.IMArchive.Conversation.Speaker;
+
+/**
+ * A helper object for loading an IMArchive saved in binary
+ * format by an IMArchiveBinaryWriter (see that class for a
+ * description of the format).
+ * 
+ * The file is read one block at a time, so that memory use
+ * does not depend on the size of the archive.
+ */
+public class IMArchiveBinaryReader
+{
+	protected static final int BLOCKS_PER_TRANSACTION = 10;
+	protected static final int INPUT_BUFFER_SIZE = 262144;
+	
+	protected BinaryBlockReader _reader;
+	protected CountingInputStream _counter;
+	protected List<Account> _accounts = new ArrayList<Account>();
+	protected List<String> _speakerNames = new ArrayList<String>();
+	
+	/**
+	 * Constructor for reading an archive from file.
+	 * 
+	 * @param file The file containing the archive
+	 */
+	public IMArchiveBinaryReader(File file) throws IOException
+	{
+		this(new BufferedInputStream(new FileInputStream(file), INPUT_BUFFER_SIZE));
+	}
+	
+	/**
+	 * Constructor for reading an archive from an already
+	 * created input stream.
+	 * 
+	 * @param input The stream from which the archive is
+	 *              to be read
+	 */
+	public IMArchiveBinaryReader(InputStream input) throws IOException
+	{
+		this._counter = new CountingInputStream(input);
+		
+		try
+		{
+			this._reader = new BinaryBlockReader(this._counter, IMArchiveBinaryWriter.FILE_SIGNATURE);
+		}
+		catch (RuntimeException e)
+		{
+			input.close();
+			throw new RuntimeException("Not an IM archive in binary format");
+		}
+	}
+	
+	/**
+	 * Checks whether a file contains an archive in binary
+	 * format.
+	 * 
+	 * @param file A file
+	 * @return True if the file starts with the signature
+	 *         of a binary archive
+	 */
+	public static boolean isBinaryArchive(File file) throws IOException
+	{
+		byte[] signature = new byte[IMArchiveBinaryWriter.FILE_SIGNATURE.length];
+		
+		InputStream input = new FileInputStream(file);
+		try
+		{
+			int count = 0;
+			while (count < signature.length)
+			{
+				int read = input.read(signature, count, signature.length - count);
+				if (read == -1) return false;
+				count += read;
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		
+		return Arrays.equals(signature, IMArchiveBinaryWriter.FILE_SIGNATURE);
+	}
+	
+	/**
+	 * Closes the reading stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		this._reader.close();
+	}
+	
+	/**
+	 * Reads an archive.
+	 * 
+	 * @param listener An entity that will be notified of any
+	 *                 progress in reading the archive. May be
+	 *                 null.
+	 * @return The read archive
+	 */
+	public IMArchive readArchive(ProgressListener listener) throws Exception
+	{
+		IMArchive archive = new IMArchive();
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		
+		progress.report("Loading archive...", 0, -1);
+		
+		archive.startBulkUpdate();
+		try
+		{
+			if (this._reader.nextBlock() != IMArchiveBinaryWriter.BLOCK_ACCOUNTING)
+				throw this._reader.formatError("Expecting accounting data");
+			int total = this._readAccountingBlock(archive);
+			
+			int processed = 0;
+			int blocks = 0;
+			progress.report("Loading archive...", processed, total);
+			
+			while (true)
+			{
+				int blockType = this._reader.nextBlock();
+				
+				if (blockType == IMArchiveBinaryWriter.BLOCK_END)
+				{
+					if (this._reader.readVarInt() != processed) throw this._reader.formatError("Conversation count mismatch");
+					break;
+				}
+				if (blockType == -1) throw new RuntimeException("Truncated archive");
+				if (blockType != IMArchiveBinaryWriter.BLOCK_CONVERSATIONS) continue;
+				
+				processed += this._readConversationsBlock(archive);
+				progress.reportTransfer(this._counter.getCount(), -1);
+				progress.report("Loading archive...", processed, total);
+				
+				// Commit periodically, so as to keep the transaction small
+				blocks++;
+				if (blocks % BLOCKS_PER_TRANSACTION == 0)
+				{
+					archive.endBulkUpdate();
+					archive.startBulkUpdate();
+				}
+			}
+		}
+		finally
+		{
+			archive.endBulkUpdate();
+		}
+		
+		return archive;
+	}
+	
+	/**
+	 * Reads the accounting block and loads the identities,
+	 * groups, contacts and accounts within.
+	 * 
+	 * @param archive The archive that is to receive the data
+	 * @return The number of conversations in the archive
+	 */
+	protected int _readAccountingBlock(IMArchive archive) throws Exception
+	{
+		this._accounts.clear();
+		
+		int total = this._reader.readVarInt();
+		
+		int identitiesCount = this._reader.readVarInt();
+		for (int i=0; i<identitiesCount; i++)
+		{
+			String name = this._reader.readString();
+			if (archive.getContactByName(name) != null) throw new RuntimeException("Duplicate identity '"+name+"'");
+			
+			this._readAccounts(archive.createIdentity(name));
+		}
+		
+		int groupsCount = this._reader.readVarInt();
+		for (int i=0; i<groupsCount; i++)
+		{
+			String groupName = this._reader.readString();
+			if (archive.getGroupByName(groupName) != null) throw new RuntimeException("Duplicate group '"+groupName+"'");
+			Group group = archive.createGroup(groupName);
+			
+			int contactsCount = this._reader.readVarInt();
+			for (int j=0; j<contactsCount; j++)
+			{
+				String name = this._reader.readString();
+				if (archive.getContactByName(name) != null) throw new RuntimeException("Duplicate contact '"+name+"'");
+				
+				this._readAccounts(group.createContact(name));
+			}
+		}
+		
+		if (!this._reader.isBlockFinished()) throw this._reader.formatError("Unexpected data");
+		
+		return total;
+	}
+	
+	/**
+	 * Reads and loads the accounts of a contact.
+	 * 
+	 * @param contact The contact/identity that is to receive the accounts
+	 */
+	protected void _readAccounts(Contact contact) throws Exception
+	{
+		int accountsCount = this._reader.readVarInt();
+		for (int i=0; i<accountsCount; i++)
+		{
+			String serviceName = this._reader.readString();
+			String name = this._reader.readString();
+			
+			IMService service = IMService.fromShortName(serviceName);
+			if (service == null) throw this._reader.formatError("Unknown service '"+serviceName+"'");
+			if (contact.getArchive().getAccountByName(service, name) != null)
+				throw new RuntimeException("Duplicate account '"+service+":"+name+"'");
+			
+			this._accounts.add(contact.createAccount(service, name));
+		}
+	}
+	
+	/**
+	 * Reads a block of conversations and loads them,
+	 * speakers and replies included.
+	 * 
+	 * @param archive The archive that is to receive the conversations
+	 * @return The number of conversations read
+	 */
+	protected int _readConversationsBlock(IMArchive archive) throws Exception
+	{
+		this._speakerNames.clear();
+		
+		int count = this._reader.readVarInt();
+		long prevDate = 0;
+		for (int i=0; i<count; i++)
+		{
+			long dateStarted = prevDate + this._reader.readSignedVarLong();
+			prevDate = dateStarted;
+			Account localAccount = this._readAccountRef();
+			Account remoteAccount = this._readAccountRef();
+			boolean isConference = this._reader.readBoolean();
+			
+			Conversation conv = archive.createConversation(new Date(dateStarted), localAccount, remoteAccount, isConference);
+			
+			int speakersCount = this._reader.readVarInt();
+			List<Speaker> speakers = new ArrayList<Speaker>(speakersCount);
+			for (int j=0; j<speakersCount; j++)
+			{
+				String name = this._readSpeakerName();
+				Account account = this._readAccountRef();
+				if (conv.getSpeakerByName(name) != null) throw new RuntimeException("Duplicate speaker '"+name+"'");
+				
+				speakers.add(conv.addSpeaker(name, account));
+			}
+			
+			long prevReplyDate = dateStarted;
+			int repliesCount = this._reader.readVarInt();
+			for (int j=0; j<repliesCount; j++)
+			{
+				long date = prevReplyDate + this._reader.readSignedVarLong();
+				prevReplyDate = date;
+				int speakerId = this._reader.readVarInt();
+				if (speakerId > speakers.size()) throw this._reader.formatError("Invalid speaker ID");
+				String content = this._reader.readString();
+				
+				conv.addReply(new Date(date), (speakerId != 0) ? speakers.get(speakerId-1) : null, content);
+			}
+		}
+		
+		if (!this._reader.isBlockFinished()) throw this._reader.formatError("Unexpected data");
+		
+		return count;
+	}
+	
+	/**
+	 * Reads a reference to an account.
+	 * 
+	 * @return The account referenced
+	 */
+	protected Account _readAccountRef()
+	{
+		int index = this._reader.readVarInt();
+		if (index >= this._accounts.size()) throw this._reader.formatError("Invalid account reference");
+		
+		return this._accounts.get(index);
+	}
+	
+	/**
+	 * Reads a speaker name, which may be a reference to the
+	 * block's dictionary.
+	 * 
+	 * @return The speaker name
+	 */
+	protected String _readSpeakerName() throws IOException
+	{
+		int ref = this._reader.readVarInt();
+		if (ref == 0)
+		{
+			String name = this._reader.readString();
+			this._speakerNames.add(name);
+			
+			return name;
+		}
+		
+		if (ref > this._speakerNames.size()) throw this._reader.formatError("Invalid speaker name reference");
+		
+		return this._speakerNames.get(ref-1);
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uniarchive.models.BinaryBlockWriter;
+import uniarchive.models.CountingOutputStream;
+import uniarchive.models.IntMap;
+import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
+import uniarchive.models.archive.IMArchive.Account;
+import uniarchive.models.archive.IMArchive.Contact;
+import uniarchive.models.archive.IMArchive.Conversation;
+import uniarchive.models.archive.IMArchive.Group;
+import uniarchive.models.archive.IMArchive.Conversation.Reply;
+import uniarchive.models.archive.IMArchive.Conversation.Speaker;
+
+/**
+ * A helper object for saving an IMArchive in a compact binary
+ * format, suitable for backups and for transferring archives
+ * between machines. The archive can be read back with an
+ * IMArchiveBinaryReader.
+ * 
+ * The file is a sequence of checksummed blocks (see
+ * BinaryBlockWriter for the block structure):
+ * 
+ * - an ACCOUNTING block, containing the number of conversations,
+ *   followed by the identities and groups with their contacts
+ *   and accounts. Accounts are implicitly numbered in the order
+ *   in which they appear, and are referred to by these numbers
+ *   in the rest of the file.
+ * - any number of CONVERSATIONS blocks, each containing a count
+ *   and the data for up to CONVERSATIONS_PER_BLOCK conversations.
+ *   Start dates are stored as deltas from the previous
+ *   conversation in the block, and reply dates as deltas from the
+ *   previous reply. Speaker names are stored in a dictionary that
+ *   is local to the block: a reference of 0 is followed by a new
+ *   name, while a reference of N denotes the N-th name defined
+ *   in the block. Thus each block can be decoded independently
+ *   of the others, given the accounting data.
+ * - an END block, containing the total number of conversations
+ *   written, so that truncated files are detected.
+ */
+public class IMArchiveBinaryWriter
+{
+	public static final byte[] FILE_SIGNATURE = { 'U', 'N', 'I', 'A', 'R', 'C', 'B', 1 };
+	public static final String FILE_SUFFIX = ".uab";
+	
+	public static final int BLOCK_ACCOUNTING = 1;
+	public static final int BLOCK_CONVERSATIONS = 2;
+	public static final int BLOCK_END = 3;
+	
+	protected static final int CONVERSATIONS_PER_BLOCK = 100;
+	protected static final int OUTPUT_BUFFER_SIZE = 262144;
+	
+	protected BinaryBlockWriter _writer;
+	protected CountingOutputStream _counter;
+	protected IntMap<Integer> _accountIndexes = new IntMap<Integer>();
+	protected Map<String,Integer> _speakerNames = new HashMap<String,Integer>();
+	
+	/**
+	 * Constructor for writing an archive to a new file.
+	 * 
+	 * @param file The file to which the archive is to
+	 *             be written
+	 */
+	public IMArchiveBinaryWriter(File file) throws IOException
+	{
+		this(new BufferedOutputStream(new FileOutputStream(file), OUTPUT_BUFFER_SIZE));
+	}
+	
+	/**
+	 * Constructor for writing an archive to an already
+	 * created output stream.
+	 * 
+	 * @param output The stream to which the archive is
+	 *               to be written
+	 */
+	public IMArchiveBinaryWriter(OutputStream output) throws IOException
+	{
+		this._counter = new CountingOutputStream(output);
+		this._writer = new BinaryBlockWriter(this._counter, FILE_SIGNATURE);
+	}
+	
+	/**
+	 * Flushes the writing stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException
+	{
+		this._writer.flush();
+	}
+	
+	/**
+	 * Closes the writing stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		this._writer.close();
+	}
+	
+	/**
+	 * Writes an archive in binary format.
+	 * 
+	 * @param archive The IM archive to write
+	 * @param listener An object that will be notified of any progress
+	 *                 in writing the archive. May be null.
+	 */
+	public void writeArchive(IMArchive archive, ProgressListener listener) throws Exception
+	{
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		
+		progress.report("Saving archive...", 0, -1);
+		
+		List<Conversation> conversations = archive.getConversations();
+		int processed = 0;
+		int total = conversations.size();
+		
+		// Write accounting
+		this._accountIndexes.clear();
+		this._writer.startBlock(BLOCK_ACCOUNTING);
+		this._writer.writeVarInt(total);
+		List<Contact> identities = archive.getIdentitiesGroup().getContacts();
+		this._writer.writeVarInt(identities.size());
+		for (Contact identity : identities) this._writeContact(identity);
+		List<Group> groups = archive.getRegularGroups();
+		this._writer.writeVarInt(groups.size());
+		for (Group group : groups)
+		{
+			this._writer.writeString(group.name);
+			List<Contact> contacts = group.getContacts();
+			this._writer.writeVarInt(contacts.size());
+			for (Contact contact : contacts) this._writeContact(contact);
+		}
+		this._writer.endBlock();
+		
+		// Write conversations
+		progress.report("Saving archive...", processed, total);
+		List<Conversation> batch = new ArrayList<Conversation>(CONVERSATIONS_PER_BLOCK);
+		for (Conversation conv : conversations)
+		{
+			batch.add(conv);
+			if (batch.size() < CONVERSATIONS_PER_BLOCK) continue;
+			
+			processed += this._writeConversationsBlock(archive, batch);
+			progress.reportTransfer(this._counter.getCount(), -1);
+			progress.report("Saving archive...", processed, total);
+		}
+		if (!batch.isEmpty()) processed += this._writeConversationsBlock(archive, batch);
+		
+		this._writer.startBlock(BLOCK_END);
+		this._writer.writeVarInt(processed);
+		this._writer.endBlock();
+		
+		progress.reportTransfer(this._counter.getCount(), -1);
+		progress.report("Saving archive...", processed, total);
+	}
+	
+	/**
+	 * Writes a contact, accounts included, and assigns
+	 * numbers to the accounts.
+	 * 
+	 * @param contact The contact to write
+	 */
+	protected void _writeContact(Contact contact) throws IOException
+	{
+		this._writer.writeString(contact.name);
+		
+		List<Account> accounts = contact.getAccounts();
+		this._writer.writeVarInt(accounts.size());
+		for (Account account : accounts)
+		{
+			this._writer.writeString(account.service.shortName);
+			this._writer.writeString(account.name);
+			this._accountIndexes.put(account.sqlId, this._accountIndexes.size());
+		}
+	}
+	
+	/**
+	 * Writes a block of conversations, fetching all their
+	 * replies at once. The batch is cleared afterwards.
+	 * 
+	 * @param archive The archive containing the conversations
+	 * @param batch A list of conversations
+	 * @return The number of conversations written
+	 */
+	protected int _writeConversationsBlock(IMArchive archive, List<Conversation> batch) throws Exception
+	{
+		List<List<Reply>> replies = archive.getReplies(batch);
+		
+		this._speakerNames.clear();
+		this._writer.startBlock(BLOCK_CONVERSATIONS);
+		this._writer.writeVarInt(batch.size());
+		
+		long prevDate = 0;
+		for (int i=0; i<batch.size(); i++)
+		{
+			Conversation conv = batch.get(i);
+			
+			this._writer.writeSignedVarLong(conv.dateStarted.getTime() - prevDate);
+			prevDate = conv.dateStarted.getTime();
+			this._writer.writeVarInt(this._getAccountIndex(conv.localAccount));
+			this._writer.writeVarInt(this._getAccountIndex(conv.remoteAccount));
+			this._writer.writeBoolean(conv.isConference);
+			
+			List<Speaker> speakers = conv.getSpeakers();
+			this._writer.writeVarInt(speakers.size());
+			for (Speaker speaker : speakers)
+			{
+				this._writeSpeakerName(speaker.name);
+				this._writer.writeVarInt(this._getAccountIndex(speaker.account));
+			}
+			
+			long prevReplyDate = prevDate;
+			this._writer.writeVarInt(replies.get(i).size());
+			for (Reply reply : replies.get(i))
+			{
+				this._writer.writeSignedVarLong(reply.date.getTime() - prevReplyDate);
+				prevReplyDate = reply.date.getTime();
+				this._writer.writeVarInt((reply.speaker == null) ? 0 : reply.speaker.getIndex()+1);
+				this._writer.writeString(reply.text);
+			}
+		}
+		
+		this._writer.endBlock();
+		
+		int count = batch.size();
+		batch.clear();
+		
+		return count;
+	}
+	
+	/**
+	 * Writes a speaker name, as a reference to the block's
+	 * dictionary if it has already appeared in the block.
+	 * 
+	 * @param name The speaker name
+	 */
+	protected void _writeSpeakerName(String name) throws IOException
+	{
+		Integer index = this._speakerNames.get(name);
+		if (index != null)
+		{
+			this._writer.writeVarInt(index+1);
+			return;
+		}
+		
+		this._writer.writeVarInt(0);
+		this._writer.writeString(name);
+		this._speakerNames.put(name, this._speakerNames.size());
+	}
+	
+	/**
+	 * Gets the number assigned to an account.
+	 * 
+	 * @param account An account
+	 * @return The account number
+	 */
+	protected int _getAccountIndex(Account account)
+	{
+		Integer index = this._accountIndexes.get(account.sqlId);
+		if (index == null) throw new RuntimeException("Account '"+account.name+"' is not in the archive");
+		
+		return index;
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models.archive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import uniarchive.models.IntList;
+
+/**
+ * Class for a compact description of the changes in the
+ * accounting structure (groups, contacts and accounts) of an
+ * archive over the course of a large change.
+ * 
+ * The changes are expressed as a list of entries, one for each
+ * node in the accounting tree (the archive, a group or a contact)
+ * whose list of children has changed. Nodes are compared by
+ * identity, so that renamed items (which are replaced by new
+ * objects) appear as removed and re-inserted. Further entries
+ * list the children that were kept but whose appearance has
+ * changed (e.g. groups whose number of contacts has changed).
+ */
+public class IMArchiveChangeLog
+{
+	public final List<Entry> entries;
+	
+	/**
+	 * Constructor for an empty change log.
+	 */
+	public IMArchiveChangeLog()
+	{
+		this.entries = new ArrayList<Entry>();
+	}
+	
+	/**
+	 * Checks whether this change log describes no changes.
+	 * 
+	 * @return True if the log is empty, false otherwise
+	 */
+	public boolean isEmpty()
+	{
+		return this.entries.isEmpty();
+	}
+	
+	/**
+	 * Compares the old and new children lists of a node
+	 * and records an entry if they differ.
+	 * 
+	 * @param parent The node whose children are compared
+	 * @param oldChildren The children of the node before the change
+	 * @param newChildren The children of the node after the change
+	 */
+	void addChildrenDiff(Object parent, Object[] oldChildren, Object[] newChildren)
+	{
+		Set<Object> oldSet = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		Set<Object> newSet = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		for (Object item : oldChildren) oldSet.add(item);
+		for (Object item : newChildren) newSet.add(item);
+		
+		IntList removedIndexes = new IntList();
+		List<Object> removedItems = new ArrayList<Object>();
+		List<Object> oldCommon = new ArrayList<Object>();
+		for (int i=0; i<oldChildren.length; i++)
+		{
+			if (newSet.contains(oldChildren[i]))
+			{
+				oldCommon.add(oldChildren[i]);
+				continue;
+			}
+			removedIndexes.add(i);
+			removedItems.add(oldChildren[i]);
+		}
+		
+		IntList insertedIndexes = new IntList();
+		List<Object> insertedItems = new ArrayList<Object>();
+		List<Object> newCommon = new ArrayList<Object>();
+		for (int i=0; i<newChildren.length; i++)
+		{
+			if (oldSet.contains(newChildren[i]))
+			{
+				newCommon.add(newChildren[i]);
+				continue;
+			}
+			insertedIndexes.add(i);
+			insertedItems.add(newChildren[i]);
+		}
+		
+		// Items present both before and after the change must keep
+		// their relative order, otherwise the node is marked as
+		// reordered (and will have to be refreshed entirely)
+		boolean reordered = false;
+		for (int i=0; i<oldCommon.size(); i++)
+			if (oldCommon.get(i) != newCommon.get(i))
+			{
+				reordered = true;
+				break;
+			}
+		
+		if (removedItems.isEmpty() && insertedItems.isEmpty() && !reordered) return;
+		
+		this.entries.add(new Entry(parent,
+				removedIndexes.toArray(), removedItems.toArray(),
+				insertedIndexes.toArray(), insertedItems.toArray(),
+				reordered, new int[0], new Object[0]));
+	}
+	
+	/**
+	 * Records an entry for children of a node that were kept
+	 * but have changed in appearance.
+	 * 
+	 * @param parent The node whose children have changed
+	 * @param changedIndexes The indexes of the changed children,
+	 *                       relative to the new children list
+	 *                       (ascending)
+	 * @param changedItems The changed children
+	 */
+	void addChangedChildren(Object parent, int[] changedIndexes, Object[] changedItems)
+	{
+		if (changedItems.length == 0) return;
+		
+		this.entries.add(new Entry(parent, new int[0], new Object[0], new int[0], new Object[0],
+				false, changedIndexes, changedItems));
+	}
+	
+	/**
+	 * Class describing the changes in the children of a
+	 * single node.
+	 */
+	public static class Entry
+	{
+		public final Object parent;
+		public final int[] removedIndexes;
+		public final Object[] removedItems;
+		public final int[] insertedIndexes;
+		public final Object[] insertedItems;
+		public final boolean reordered;
+		public final int[] changedIndexes;
+		public final Object[] changedItems;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param parent The node whose children have changed
+		 * @param removedIndexes The indexes of the removed children, relative
+		 *                       to the old children list (ascending)
+		 * @param removedItems The removed children
+		 * @param insertedIndexes The indexes of the inserted children, relative
+		 *                        to the new children list (ascending)
+		 * @param insertedItems The inserted children
+		 * @param reordered True if the children that were kept have
+		 *                  changed their relative order
+		 * @param changedIndexes The indexes of the children that were
+		 *                       kept but have changed in appearance,
+		 *                       relative to the new children list
+		 *                       (ascending)
+		 * @param changedItems The changed children
+		 */
+		public Entry(Object parent, int[] removedIndexes, Object[] removedItems,
+				int[] insertedIndexes, Object[] insertedItems, boolean reordered,
+				int[] changedIndexes, Object[] changedItems)
+		{
+			this.parent = parent;
+			this.removedIndexes = removedIndexes;
+			this.removedItems = removedItems;
+			this.insertedIndexes = insertedIndexes;
+			this.insertedItems = insertedItems;
+			this.reordered = reordered;
+			this.changedIndexes = changedIndexes;
+			this.changedItems = changedItems;
+		}
+	}
+}
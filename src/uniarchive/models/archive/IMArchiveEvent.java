@@ -31,6 +31,9 @@ public class IMArchiveEvent
 	
 	public Type type;
 	public List<Object> items = null;
+	public IMArchiveChangeLog changeLog = null;
+	/** The SQL ID of the parent of the items (e.g. the group of added contacts), or -1 if not given */
+	public int parentId = -1;
 	
 	/**
 	 * Constructor.
@@ -44,6 +47,22 @@ public class IMArchiveEvent
 		this.items = items;
 	}
 	
+	/**
+	 * Constructor for an event that carries a log of the
+	 * changes in the accounting structure (used for
+	 * MAJOR_CHANGE events).
+	 *
+	 * @param type The type of the event
+	 * @param items The items involved
+	 * @param changeLog A change log, or null if none is available
+	 */
+	public IMArchiveEvent(Type type, List<Object> items, IMArchiveChangeLog changeLog)
+	{
+		this.type = type;
+		this.items = items;
+		this.changeLog = changeLog;
+	}
+	
 	/**
 	 * Constructor for a single-item event.
 	 *
@@ -56,6 +75,20 @@ public class IMArchiveEvent
 		this.items = new SingletonList<Object>(item);
 	}
 	
+	/**
+	 * Constructor for a single-item event that also specifies
+	 * the parent of the item.
+	 *
+	 * @param type The type of the event
+	 * @param item The item involved
+	 * @param parentId The SQL ID of the item's parent
+	 */
+	public IMArchiveEvent(Type type, Object item, int parentId)
+	{
+		this(type, item);
+		this.parentId = parentId;
+	}
+	
 	/**
 	 * Checks whether this event refers to no items.
 	 * 
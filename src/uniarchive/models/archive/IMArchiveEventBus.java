@@ -0,0 +1,299 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models.archive;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import javax.swing.SwingUtilities;
+
+import uniarchive.models.Metrics;
+import uniarchive.models.archive.IMArchive.Conversation;
+
+/**
+ * Class that delivers the events of an IM archive to its
+ * listeners.
+ * 
+ * Each listener is registered together with an executor on which
+ * its events are delivered, in the order in which they were fired.
+ * Events are queued separately for each listener, so the thread
+ * firing them never waits for the listeners to process them. While
+ * events are waiting in a listener's queue, bursts of similar events
+ * (e.g. ADDED_ITEMS events for several conversations, or several
+ * UPDATED_CONVERSATIONS events) are coalesced into a single event.
+ * 
+ * The change log of a MAJOR_CHANGE event describes the archive as it
+ * was right after the change. If other events are queued behind the
+ * MAJOR_CHANGE event by the time it is delivered, the archive may have
+ * changed again, so the event is delivered without its change log and
+ * listeners must refresh their view of the whole archive instead.
+ * Consecutive MAJOR_CHANGE events are merged the same way.
+ * 
+ * UI listeners are delivered their events on the Swing event
+ * dispatch thread (see EVENT_DISPATCH_THREAD). If an event is fired
+ * from that thread, any events still pending for the listener are
+ * delivered first, and then the event itself, all before the firing
+ * call returns. This is required for the DELETING_ITEMS, MOVING_ITEMS
+ * and UPDATING_ITEMS events, which UI models process by examining
+ * the archive before the change.
+ */
+public class IMArchiveEventBus
+{
+	protected static final Metrics.Counter QUEUED_EVENTS_COUNTER = Metrics.counter("archive.events.queued");
+	protected static final Metrics.Counter COALESCED_EVENTS_COUNTER = Metrics.counter("archive.events.coalesced");
+	
+	/**
+	 * Executor that runs tasks on the Swing event dispatch thread.
+	 */
+	public static final Executor EVENT_DISPATCH_THREAD = new Executor() {
+		@Override
+		public void execute(Runnable task)
+		{
+			SwingUtilities.invokeLater(task);
+		}
+	};
+	
+	protected List<Subscriber> _subscribers = new CopyOnWriteArrayList<Subscriber>();
+	
+	/**
+	 * Registers a listener whose events will be delivered
+	 * on a given executor.
+	 * 
+	 * @param listener The listener
+	 * @param executor The executor on which the listener
+	 *                 will be called
+	 */
+	public void addListener(IMArchiveListener listener, Executor executor)
+	{
+		this._subscribers.add(new Subscriber(listener, executor));
+	}
+	
+	/**
+	 * Unregisters a listener. Any events still pending for
+	 * it will not be delivered.
+	 * 
+	 * @param listener The listener
+	 */
+	public void removeListener(IMArchiveListener listener)
+	{
+		for (Subscriber subscriber : this._subscribers)
+		{
+			if (subscriber.listener == listener)
+			{
+				subscriber.removed = true;
+				this._subscribers.remove(subscriber);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether any listeners are registered.
+	 * 
+	 * @return True if there are no listeners
+	 */
+	public boolean isEmpty()
+	{
+		return this._subscribers.isEmpty();
+	}
+	
+	/**
+	 * Sends an event to all registered listeners.
+	 * 
+	 * @param event An event describing a change in the archive
+	 */
+	public void fireEvent(IMArchiveEvent event)
+	{
+		if (this._subscribers.isEmpty()) return;
+		
+		Object parent = _getCoalescingParent(event);
+		
+		for (Subscriber subscriber : this._subscribers) subscriber.post(event, parent);
+	}
+	
+	/**
+	 * Gets a key that identifies the parent that all the items of an
+	 * event must share for the event to be coalesced with others.
+	 * 
+	 * Note: the key is computed from the parent ID given when the
+	 * event was fired, without examining the items, as this may
+	 * run on any thread.
+	 * 
+	 * @param event An event
+	 * @return A key for the parent of the items in the event (the
+	 *         class of the items, for conversations), or null if
+	 *         the event cannot be coalesced
+	 */
+	protected static Object _getCoalescingParent(IMArchiveEvent event)
+	{
+		if (event.type == IMArchiveEvent.Type.UPDATED_CONVERSATIONS) return IMArchiveEvent.Type.UPDATED_CONVERSATIONS;
+		if (event.type == IMArchiveEvent.Type.MAJOR_CHANGE) return IMArchiveEvent.Type.MAJOR_CHANGE;
+		if ((event.type != IMArchiveEvent.Type.ADDED_ITEMS) || event.isEmpty()) return null;
+		
+		Object item = event.items.get(0);
+		if (item instanceof Conversation) return Conversation.class;
+		if (event.parentId == -1) return null;
+		
+		return item.getClass().getName()+":"+event.parentId;
+	}
+	
+	/**
+	 * Internal class for a registered listener and the queue
+	 * of events pending delivery to it.
+	 */
+	protected static class Subscriber implements Runnable
+	{
+		public final IMArchiveListener listener;
+		public final Executor executor;
+		public volatile boolean removed = false;
+		
+		protected LinkedList<IMArchiveEvent> _queue = new LinkedList<IMArchiveEvent>();
+		protected Object _lastParent = null;
+		protected boolean _scheduled = false;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param listener The listener
+		 * @param executor The executor on which the listener is called
+		 */
+		public Subscriber(IMArchiveListener listener, Executor executor)
+		{
+			this.listener = listener;
+			this.executor = executor;
+		}
+		
+		/**
+		 * Queues an event for delivery to the listener.
+		 * 
+		 * @param event The event
+		 * @param parent The parent of the event's items, as returned
+		 *               by _getCoalescingParent()
+		 */
+		public void post(IMArchiveEvent event, Object parent)
+		{
+			if ((this.executor == EVENT_DISPATCH_THREAD) && SwingUtilities.isEventDispatchThread())
+			{
+				// Deliver immediately, after any events fired earlier from
+				// other threads (see the class description). This also
+				// applies to events fired by the listener itself while
+				// handling another event.
+				this.run();
+				if (!this.removed) this.listener.archiveChanged(event);
+				return;
+			}
+			
+			synchronized (this)
+			{
+				this._enqueue(event, parent);
+				QUEUED_EVENTS_COUNTER.increment();
+				
+				if (this._scheduled) return;
+				this._scheduled = true;
+			}
+			
+			this.executor.execute(this);
+		}
+		
+		/**
+		 * Delivers all the events pending for the listener.
+		 * 
+		 * This procedure executes on the listener's executor.
+		 */
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				IMArchiveEvent event;
+				synchronized (this)
+				{
+					event = this._queue.poll();
+					if (event == null)
+					{
+						this._scheduled = false;
+						this._lastParent = null;
+						return;
+					}
+					if (this._queue.isEmpty()) this._lastParent = null;
+					else event = _withoutChangeLog(event);
+				}
+				
+				try
+				{
+					if (!this.removed) this.listener.archiveChanged(event);
+				}
+				catch (RuntimeException e)
+				{
+					// Make sure the remaining events are still delivered
+					synchronized (this)
+					{
+						this._scheduled = false;
+						if (this._queue.isEmpty()) throw e;
+						this._scheduled = true;
+					}
+					this.executor.execute(this);
+					throw e;
+				}
+			}
+		}
+		
+		/**
+		 * Adds an event at the end of the queue, coalescing it
+		 * with the last event in the queue if possible.
+		 * 
+		 * Note: must be called while holding the lock.
+		 * 
+		 * @param event The event
+		 * @param parent The parent of the event's items
+		 */
+		protected void _enqueue(IMArchiveEvent event, Object parent)
+		{
+			IMArchiveEvent last = this._queue.peekLast();
+			
+			if ((last != null) && (parent != null) && (last.type == event.type) && parent.equals(this._lastParent))
+			{
+				if (event.type == IMArchiveEvent.Type.ADDED_ITEMS)
+				{
+					List<Object> items = new ArrayList<Object>(last.items.size() + event.items.size());
+					items.addAll(last.items);
+					items.addAll(event.items);
+					
+					IMArchiveEvent merged = new IMArchiveEvent(event.type, items);
+					merged.parentId = event.parentId;
+					this._queue.set(this._queue.size() - 1, merged);
+				}
+				else if (event.type == IMArchiveEvent.Type.MAJOR_CHANGE)
+				{
+					this._queue.set(this._queue.size() - 1, _withoutChangeLog(event));
+				}
+				COALESCED_EVENTS_COUNTER.increment();
+				return;
+			}
+			
+			this._queue.add(event);
+			this._lastParent = parent;
+		}
+		
+		/**
+		 * Gets a version of a MAJOR_CHANGE event without its change
+		 * log, for when the log may no longer match the archive.
+		 * 
+		 * @param event An event
+		 * @return The event, or a copy of it without the change log
+		 */
+		protected static IMArchiveEvent _withoutChangeLog(IMArchiveEvent event)
+		{
+			if (event.changeLog == null) return event;
+			
+			return new IMArchiveEvent(event.type, event.items, null);
+		}
+	}
+}
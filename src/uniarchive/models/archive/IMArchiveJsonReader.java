@@ -6,20 +6,33 @@
 
 package uniarchive.models.archive;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
-import uniarchive.models.ProgressEvent;
+import uniarchive.models.CountingInputStream;
+import uniarchive.models.JsonPullParser;
+import uniarchive.models.Metrics;
 import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
+import uniarchive.models.JsonPullParser.Token;
 import uniarchive.models.archive.IMArchive.Account;
 import uniarchive.models.archive.IMArchive.Contact;
 import uniarchive.models.archive.IMArchive.Conversation;
@@ -29,10 +42,59 @@ import uniarchive.models.archive.IMArchive.Conversation.Speaker;
 /**
  * A helper object for loading an IMArchive (or parts of it)
  * in JSON format from a file or through a writer.
+ * 
+ * The data is read in a streaming fashion, token by token, and
+ * each reply is stored as soon as it is read, so that memory use
+ * does not depend on the size of the archive or of any single
+ * conversation.
+ * 
+ * Files compressed in gzip format (as written by IMArchiveJsonWriter
+ * with compression enabled) are recognized and decompressed
+ * automatically.
+ * 
+ * Conversations may also be parsed on several threads (see
+ * setThreadCount()). The raw text of each batch of conversations
+ * is then extracted and parsed by a worker thread, while the
+ * parsed conversations are stored in the database, in their
+ * original order, by the calling thread. In this mode, each
+ * conversation is held in memory in its entirety before being
+ * stored.
+ * 
+ * Increments written by IMArchiveJsonWriter.writeIncrement() can
+ * be applied onto an existing archive via mergeIncrement().
  */
 public class IMArchiveJsonReader
 {
-	protected JSONTokener _reader;
+	protected static final int CONVERSATIONS_PER_TRANSACTION = 1000;
+	
+	protected static final int INPUT_BUFFER_SIZE = 262144;
+	
+	/**
+	 * The number of conversations parsed together by a worker
+	 * thread, when parsing in parallel.
+	 */
+	protected static final int CONVERSATIONS_PER_BATCH = 100;
+	
+	/**
+	 * The maximum number of batches (per thread) that may be
+	 * parsed ahead of the conversations being stored.
+	 */
+	protected static final int MAX_PENDING_BATCHES_PER_THREAD = 4;
+	
+	protected static final Metrics.Timer READ_TIMER = Metrics.timer("json.read");
+	
+	protected JsonPullParser _parser;
+	protected int _threadCount = 1;
+	protected boolean _incremental = false;
+	
+	// The input stream and byte counters (only used when reading from a file)
+	protected InputStream _input = null;
+	protected CountingInputStream _dataCounter = null;
+	protected CountingInputStream _compressedCounter = null;
+	
+	// Date formats (these are not thread-safe, but neither is this reader)
+	protected SimpleDateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSSS");
+	protected SimpleDateFormat _shortDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 	
 	/**
 	 * Constructor for reading a standalone archive
@@ -42,7 +104,26 @@ public class IMArchiveJsonReader
 	 */
 	public IMArchiveJsonReader(File file) throws IOException
 	{
-		this(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		InputStream input = new BufferedInputStream(new FileInputStream(file), INPUT_BUFFER_SIZE);
+		this._input = input;
+		
+		try
+		{
+			if (_isCompressedStream(input))
+			{
+				this._compressedCounter = new CountingInputStream(input);
+				input = new GZIPInputStream(this._compressedCounter, INPUT_BUFFER_SIZE);
+				this._input = input;
+			}
+			this._dataCounter = new CountingInputStream(input);
+			
+			this._parser = new JsonPullParser(new InputStreamReader(this._dataCounter, "UTF-8"));
+		}
+		catch (IOException e)
+		{
+			this._input.close();
+			throw e;
+		}
 	}
 	
 	/**
@@ -55,19 +136,42 @@ public class IMArchiveJsonReader
 	 */
 	public IMArchiveJsonReader(Reader reader)
 	{
-		this._reader = new JSONTokener(reader);
+		this(new JsonPullParser(reader));
+	}
+	
+	/**
+	 * Constructor for reading archive data from an
+	 * already created JsonPullParser.
+	 * 
+	 * @param parser A parser from which archive
+	 *               data is to be read.
+	 */
+	public IMArchiveJsonReader(JsonPullParser parser)
+	{
+		this._parser = parser;
+	}
+	
+	/**
+	 * Sets the number of threads used for parsing
+	 * conversations when reading a whole archive.
+	 * 
+	 * @param threadCount The number of threads (1 for
+	 *                    reading sequentially)
+	 */
+	public void setThreadCount(int threadCount)
+	{
+		this._threadCount = Math.max(1, threadCount);
 	}
 	
 	/**
-	 * Constructor for reading archive data to an
-	 * already created JSONTokener.
+	 * Closes the file being read, if the reader was
+	 * created for a file.
 	 * 
-	 * @param tokener A tokener from which archive
-	 *                data is to be read.
+	 * @throws IOException
 	 */
-	public IMArchiveJsonReader(JSONTokener tokener)
+	public void close() throws IOException
 	{
-		this._reader = tokener;
+		if (this._input != null) this._input.close();
 	}
 	
 	/**
@@ -82,208 +186,631 @@ public class IMArchiveJsonReader
 	{
 		IMArchive archive = new IMArchive();
 		int total = -1;
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		long start = READ_TIMER.start();
 	
-		if (listener != null) listener.onProgress(new ProgressEvent("Loading archive...", 0, -1));
-		
-		// Note: the master archive object must be tokenized
-		// manually, as it would be difficult to fit into memory
-		// if it were read all at once.
-	
-		if (this._reader.nextClean() != '{') throw this._reader.syntaxError("Expecting '{'");
+		progress.report("Loading archive...", 0, -1);
 		
-		while (true)
+		archive.startBulkUpdate();
+		try
 		{
-			String key = this._reader.nextValue().toString();
-			
-			if (this._reader.nextClean() != ':') throw this._reader.syntaxError("Expecting ':'");
-			
-			if (key.equals("identities"))
-			{
-				Object data = this._reader.nextValue();
-				if (!(data instanceof JSONArray)) throw this._reader.syntaxError("Expecting array of identity objects");
-				JSONArray array = (JSONArray)data;
-				for (int i=0; i<array.length(); i++) this.loadIdentity(archive, array.getJSONObject(i));
-			}
-			else if (key.equals("groups"))
-			{
-				Object data = this._reader.nextValue();
-				if (!(data instanceof JSONArray)) throw this._reader.syntaxError("Expecting array of group objects");
-				JSONArray array = (JSONArray)data;
-				for (int i=0; i<array.length(); i++) this.loadGroup(archive, array.getJSONObject(i));
-			}
-			else if (key.equals("conversationsCount"))
+			this._parser.expect(Token.START_OBJECT);
+			while (this._parser.next() != Token.END_OBJECT)
 			{
-				Object data = this._reader.nextValue();
-				if (!(data instanceof Number)) throw this._reader.syntaxError("Expecting number for conversation count");
-				total = ((Number)data).intValue();
-			}
-			else if (key.equals("conversations"))
-			{
-				if (this._reader.nextClean() != '[') throw this._reader.syntaxError("Expecting '['");
-				
-				int processed = 0;
-				if (listener != null) listener.onProgress(new ProgressEvent("Loading archive...", processed, total));
+				String key = this._parser.getText();
 				
-				if (this._reader.nextClean() != ']')
+				if (key.equals("incremental"))
+				{
+					this._incremental = this._parser.nextBoolean();
+				}
+				else if (key.equals("identities"))
+				{
+					this._parser.expect(Token.START_ARRAY);
+					while (this._parser.next() != Token.END_ARRAY) this.readIdentity(archive);
+				}
+				else if (key.equals("groups"))
+				{
+					this._parser.expect(Token.START_ARRAY);
+					while (this._parser.next() != Token.END_ARRAY) this.readGroup(archive);
+				}
+				else if (key.equals("conversationsCount"))
 				{
-					this._reader.back();
-					while (true)
+					total = this._parser.nextInt();
+				}
+				else if (key.equals("conversations") && (this._threadCount > 1))
+				{
+					this._parser.expect(Token.START_ARRAY);
+					this._readConversationsParallel(archive, progress, total);
+				}
+				else if (key.equals("conversations"))
+				{
+					this._parser.expect(Token.START_ARRAY);
+					
+					int processed = 0;
+					progress.report("Loading archive...", processed, total);
+					
+					while (this._parser.next() != Token.END_ARRAY)
 					{
-						Object data = this._reader.nextValue();
-						if (!(data instanceof JSONObject)) throw new RuntimeException("Expecting conversation object");
-						
-						this.loadConversation(archive, (JSONObject)data);
-						
-						char c = this._reader.nextClean();
-						if (c == ']') break;
-						if (c != ',') throw this._reader.syntaxError("Expecting ',' or ']'");
+						this.readConversation(archive);
 						
 						processed++;
-						if (listener != null) listener.onProgress(new ProgressEvent("Loading archive...", processed, total));
+						this._reportTransfer(progress);
+						progress.report("Loading archive...", processed, total);
+						
+						// Commit periodically, so as to keep the transaction small
+						if (processed % CONVERSATIONS_PER_TRANSACTION == 0)
+						{
+							archive.endBulkUpdate();
+							archive.startBulkUpdate();
+						}
 					}
 				}
+				else
+				{
+					throw this._parser.syntaxError("Unsupported key '"+key+"'");
+				}
 			}
-			else
-			{
-				throw this._reader.syntaxError("Unsupported key '"+key+"'");
-			}
-			
-			char c = this._reader.nextClean();
-			if (c == '}') break;
-			if (c != ',') throw this._reader.syntaxError("Expecting ',' or '}'");
+			this._parser.expect(Token.END_DOCUMENT);
+		}
+		finally
+		{
+			archive.endBulkUpdate();
 		}
+		READ_TIMER.stop(start);
 		
 		return archive;
 	}
 	
 	/**
-	 * Decodes and loads a JSON object that represents an identity.
+	 * Reads an archive increment (or a whole archive) and merges
+	 * it onto an existing archive, as done by IMArchive.mergeData().
+	 * 
+	 * @param archive The archive onto which the data is merged
+	 * @param listener An entity that will be notified of any
+	 *                 progress in the operation. May be null.
+	 */
+	public void mergeIncrement(IMArchive archive, ProgressListener listener) throws Exception
+	{
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		
+		IMArchive increment = this.readArchive(progress.subTask(0.0, 0.5));
+		try
+		{
+			archive.mergeData(increment, progress.subTask(0.5, 1.0));
+		}
+		finally
+		{
+			increment.delete();
+		}
+	}
+	
+	/**
+	 * Checks whether the data read was marked as an increment
+	 * rather than a whole archive.
+	 * 
+	 * @return True if the data is an archive increment
+	 */
+	public boolean isIncremental()
+	{
+		return this._incremental;
+	}
+	
+	/**
+	 * Checks whether a stream contains gzip-compressed data,
+	 * without consuming any of it.
+	 * 
+	 * @param input A stream supporting mark() and reset()
+	 * @return True if the stream starts with the gzip signature
+	 */
+	protected static boolean _isCompressedStream(InputStream input) throws IOException
+	{
+		input.mark(2);
+		int b1 = input.read();
+		int b2 = input.read();
+		input.reset();
+		
+		return (b1 == (GZIPInputStream.GZIP_MAGIC & 0xff)) && (b2 == (GZIPInputStream.GZIP_MAGIC >> 8));
+	}
+	
+	/**
+	 * Reports the amount of data read so far to a progress
+	 * reporter, if reading from a file.
+	 * 
+	 * @param progress A progress reporter
+	 */
+	protected void _reportTransfer(ProgressReporter progress)
+	{
+		if (this._dataCounter == null) return;
+		
+		progress.reportTransfer(this._dataCounter.getCount(),
+				(this._compressedCounter != null) ? this._compressedCounter.getCount() : -1);
+	}
+	
+	/**
+	 * Reads and loads an identity. The parser must be
+	 * positioned at the start of the identity object.
 	 * 
 	 * @param archive The archive that is to receive the identity
-	 * @param identObj The JSON object that encodes the identity
 	 */
-	public void loadIdentity(IMArchive archive, JSONObject identObj) throws Exception
+	public void readIdentity(IMArchive archive) throws Exception
 	{
-		String name = identObj.getString("name");
-		JSONArray accountsArr = identObj.getJSONArray("accounts");
+		String name = null;
+		List<String[]> accounts = new ArrayList<String[]>();
+		
+		this._checkObjectStart();
+		while (this._parser.next() != Token.END_OBJECT)
+		{
+			String key = this._parser.getText();
+			
+			if (key.equals("name")) name = this._parser.nextString();
+			else if (key.equals("accounts")) this._readAccountsArray(accounts);
+			else this._parser.skipValue();
+		}
 		
 		// Sanity check
+		if (name == null) throw this._parser.syntaxError("Identity without a name");
 		if (archive.getContactByName(name) != null) throw new RuntimeException("Duplicate identity '"+name+"'");
 		
 		Contact identity = archive.createIdentity(name);
-		for (int i=0; i<accountsArr.length(); i++) this.loadAccount(identity, accountsArr.getJSONObject(i));
+		for (String[] account : accounts) this._loadAccount(identity, account);
 	}
 	
 	/**
-	 * Decodes and loads a JSON object that represents a group.
+	 * Reads and loads a group. The parser must be positioned
+	 * at the start of the group object.
 	 * 
 	 * @param archive The archive that is to receive the group
-	 * @param groupObj The JSON object that encodes the group
 	 */
-	public void loadGroup(IMArchive archive, JSONObject groupObj) throws Exception
+	public void readGroup(IMArchive archive) throws Exception
 	{
-		String name = groupObj.getString("name");
-		JSONArray contactsArr = groupObj.getJSONArray("contacts");
+		Group group = null;
 		
-		// Sanity check
-		if (archive.getGroupByName(name) != null) throw new RuntimeException("Duplicate group '"+name+"'");
+		this._checkObjectStart();
+		while (this._parser.next() != Token.END_OBJECT)
+		{
+			String key = this._parser.getText();
+			
+			if (key.equals("name"))
+			{
+				String name = this._parser.nextString();
+				
+				// Sanity check
+				if (archive.getGroupByName(name) != null) throw new RuntimeException("Duplicate group '"+name+"'");
+				
+				group = archive.createGroup(name);
+			}
+			else if (key.equals("contacts"))
+			{
+				if (group == null) throw this._parser.syntaxError("Group name must precede contacts");
+				
+				this._parser.expect(Token.START_ARRAY);
+				while (this._parser.next() != Token.END_ARRAY) this.readContact(group);
+			}
+			else this._parser.skipValue();
+		}
 		
-		Group group = archive.createGroup(name);
-		for (int i=0; i<contactsArr.length(); i++) this.loadContact(group, contactsArr.getJSONObject(i));
+		if (group == null) throw this._parser.syntaxError("Group without a name");
 	}
 	
 	/**
-	 * Decodes and loads a JSON object that represents a contact.
+	 * Reads and loads a contact. The parser must be positioned
+	 * at the start of the contact object.
 	 * 
 	 * @param group The group that is to receive the contact
-	 * @param contactObj The JSON object that encodes the contact
 	 */
-	public void loadContact(Group group, JSONObject contactObj) throws Exception
+	public void readContact(Group group) throws Exception
 	{
-		String name = contactObj.getString("name");
-		JSONArray accountsArr = contactObj.getJSONArray("accounts");
+		String name = null;
+		List<String[]> accounts = new ArrayList<String[]>();
+		
+		this._checkObjectStart();
+		while (this._parser.next() != Token.END_OBJECT)
+		{
+			String key = this._parser.getText();
+			
+			if (key.equals("name")) name = this._parser.nextString();
+			else if (key.equals("accounts")) this._readAccountsArray(accounts);
+			else this._parser.skipValue();
+		}
 		
 		// Sanity check
+		if (name == null) throw this._parser.syntaxError("Contact without a name");
 		if (group.getArchive().getContactByName(name) != null) throw new RuntimeException("Duplicate contact '"+name+"'");
 		
 		Contact contact = group.createContact(name);
-		for (int i=0; i<accountsArr.length(); i++) this.loadAccount(contact, accountsArr.getJSONObject(i));
+		for (String[] account : accounts) this._loadAccount(contact, account);
 	}
 	
 	/**
-	 * Decodes and loads a JSON object that represents an account.
+	 * Reads and loads a conversation, speakers and replies
+	 * included. The parser must be positioned at the start
+	 * of the conversation object.
 	 * 
-	 * @param contact The contact/identity that is to receive the account
-	 * @param accountObj The JSON object that encodes the account
+	 * Note: the conversation header fields must precede the
+	 * speakers and replies (as is the case for all files
+	 * written by IMArchiveJsonWriter), so that these can be
+	 * stored as soon as they are read.
+	 * 
+	 * @param archive The archive that is to receive the conversation
 	 */
-	public void loadAccount(Contact contact, JSONObject accountObj) throws Exception
+	public void readConversation(IMArchive archive) throws Exception
 	{
-		IMService service = IMService.fromShortName(accountObj.getString("service"));
-		String name = accountObj.getString("name");
+		Date dateStarted = null;
+		Account localAccount = null;
+		Account remoteAccount = null;
+		Boolean isConference = null;
+		Conversation conv = null;
 		
-		// Sanity check
-		if (contact.getArchive().getAccountByName(service, name) != null)
-			throw new RuntimeException("Duplicate account '"+service+":"+name+"'");
+		this._checkObjectStart();
+		while (this._parser.next() != Token.END_OBJECT)
+		{
+			String key = this._parser.getText();
+			
+			if (key.equals("dateStarted")) dateStarted = this._strToDate(this._parser.nextString());
+			else if (key.equals("localAccountId")) localAccount = this._getAccountForId(archive, this._parser.nextString());
+			else if (key.equals("remoteAccountId")) remoteAccount = this._getAccountForId(archive, this._parser.nextString());
+			else if (key.equals("isConference")) isConference = this._parser.nextBoolean();
+			else if (key.equals("speakers") || key.equals("replies"))
+			{
+				if (conv == null)
+				{
+					if ((dateStarted == null) || (localAccount == null) || (remoteAccount == null) || (isConference == null))
+						throw this._parser.syntaxError("Conversation header must precede speakers and replies");
+					
+					conv = archive.createConversation(dateStarted, localAccount, remoteAccount, isConference);
+				}
+				
+				this._parser.expect(Token.START_ARRAY);
+				if (key.equals("speakers"))
+				{
+					while (this._parser.next() != Token.END_ARRAY) this.readSpeaker(conv);
+				}
+				else
+				{
+					while (this._parser.next() != Token.END_ARRAY) this.readReply(conv);
+				}
+			}
+			else this._parser.skipValue();
+		}
 		
-		contact.createAccount(service, name);
+		if (conv == null) throw this._parser.syntaxError("Conversation without speakers or replies");
 	}
 	
 	/**
-	 * Decodes and loads a JSON object that represents a conversation.
+	 * Reads and loads a speaker. The parser must be positioned
+	 * at the start of the speaker object.
+	 * 
+	 * @param conversation The conversation that is to receive the speaker
+	 */
+	public void readSpeaker(Conversation conversation) throws Exception
+	{
+		this._storeSpeaker(conversation, this._parseSpeaker());
+	}
+	
+	/**
+	 * Reads and loads a reply. The parser must be positioned
+	 * at the start of the reply object.
+	 * 
+	 * @param conversation The conversation that is to receive the reply
+	 */
+	public void readReply(Conversation conversation) throws Exception
+	{
+		this._storeReply(conversation, this._parseReply());
+	}
+	
+	/**
+	 * Reads the conversations array in parallel, storing the
+	 * conversations in the archive. The parser must be positioned
+	 * after the start of the array.
+	 * 
+	 * @param archive The archive that is to receive the conversations
+	 * @param progress The progress reporter for the operation
+	 * @param total The total number of conversations (or -1 if
+	 *              unknown)
+	 */
+	protected void _readConversationsParallel(IMArchive archive, ProgressReporter progress, int total) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(this._threadCount);
+		LinkedList<Future<List<ParsedConversation>>> pending = new LinkedList<Future<List<ParsedConversation>>>();
+		int processed = 0;
+		
+		progress.report("Loading archive...", processed, total);
+		try
+		{
+			boolean finished = false;
+			while (!finished || !pending.isEmpty())
+			{
+				// Extract the next batch and hand it to a worker thread
+				if (!finished)
+				{
+					StringBuilder raw = new StringBuilder();
+					raw.append('[');
+					int count = 0;
+					while (count < CONVERSATIONS_PER_BATCH)
+					{
+						if (count > 0) raw.append(',');
+						if (this._parser.nextRawValue(raw) == Token.END_ARRAY)
+						{
+							finished = true;
+							break;
+						}
+						if (this._parser.getToken() != Token.START_OBJECT)
+							throw this._parser.syntaxError("Expecting conversation object");
+						count++;
+					}
+					if (count > 0)
+					{
+						if (finished) raw.setLength(raw.length()-1);
+						raw.append(']');
+						
+						final String text = raw.toString();
+						pending.add(executor.submit(new Callable<List<ParsedConversation>>() {
+							@Override
+							public List<ParsedConversation> call() throws Exception
+							{
+								return _parseConversations(text);
+							}
+						}));
+					}
+					
+					if (!finished && (pending.size() <= MAX_PENDING_BATCHES_PER_THREAD * this._threadCount)) continue;
+				}
+				if (pending.isEmpty()) continue;
+				
+				// Store the oldest parsed batch
+				List<ParsedConversation> batch;
+				try
+				{
+					batch = pending.removeFirst().get();
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+				
+				for (ParsedConversation parsed : batch)
+				{
+					this._storeConversation(archive, parsed);
+					
+					processed++;
+					this._reportTransfer(progress);
+					progress.report("Loading archive...", processed, total);
+					
+					// Commit periodically, so as to keep the transaction small
+					if (processed % CONVERSATIONS_PER_TRANSACTION == 0)
+					{
+						archive.endBulkUpdate();
+						archive.startBulkUpdate();
+					}
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Parses a batch of conversations without storing them.
+	 * This may be called on any thread, as it uses a separate
+	 * reader and does not access the database.
+	 * 
+	 * @param text The JSON text of an array of conversations
+	 * @return A list of parsed conversations
+	 */
+	protected static List<ParsedConversation> _parseConversations(String text) throws Exception
+	{
+		IMArchiveJsonReader reader = new IMArchiveJsonReader(new StringReader(text));
+		List<ParsedConversation> conversations = new ArrayList<ParsedConversation>(CONVERSATIONS_PER_BATCH);
+		
+		reader._parser.expect(Token.START_ARRAY);
+		while (reader._parser.next() != Token.END_ARRAY) conversations.add(reader._parseConversation());
+		reader._parser.expect(Token.END_DOCUMENT);
+		
+		return conversations;
+	}
+	
+	/**
+	 * Parses a conversation, speakers and replies included,
+	 * without storing it. The parser must be positioned at the
+	 * start of the conversation object.
+	 * 
+	 * @return The parsed conversation
+	 */
+	protected ParsedConversation _parseConversation() throws Exception
+	{
+		ParsedConversation parsed = new ParsedConversation();
+		
+		this._checkObjectStart();
+		while (this._parser.next() != Token.END_OBJECT)
+		{
+			String key = this._parser.getText();
+			
+			if (key.equals("dateStarted")) parsed.dateStarted = this._strToDate(this._parser.nextString());
+			else if (key.equals("localAccountId")) parsed.localAccountId = this._parser.nextString();
+			else if (key.equals("remoteAccountId")) parsed.remoteAccountId = this._parser.nextString();
+			else if (key.equals("isConference")) parsed.isConference = this._parser.nextBoolean();
+			else if (key.equals("speakers"))
+			{
+				this._parser.expect(Token.START_ARRAY);
+				while (this._parser.next() != Token.END_ARRAY) parsed.speakers.add(this._parseSpeaker());
+			}
+			else if (key.equals("replies"))
+			{
+				this._parser.expect(Token.START_ARRAY);
+				while (this._parser.next() != Token.END_ARRAY) parsed.replies.add(this._parseReply());
+			}
+			else this._parser.skipValue();
+		}
+		
+		if ((parsed.dateStarted == null) || (parsed.localAccountId == null) || (parsed.remoteAccountId == null) ||
+				(parsed.isConference == null))
+			throw this._parser.syntaxError("Incomplete conversation");
+		
+		return parsed;
+	}
+	
+	/**
+	 * Parses a speaker without storing it. The parser must
+	 * be positioned at the start of the speaker object.
+	 * 
+	 * @return The (name, account ID) pair describing the speaker
+	 */
+	protected String[] _parseSpeaker() throws IOException
+	{
+		String[] speaker = new String[2];
+		
+		this._checkObjectStart();
+		while (this._parser.next() != Token.END_OBJECT)
+		{
+			String key = this._parser.getText();
+			
+			if (key.equals("name")) speaker[0] = this._parser.nextString();
+			else if (key.equals("accountId")) speaker[1] = this._parser.nextString();
+			else this._parser.skipValue();
+		}
+		
+		if ((speaker[0] == null) || (speaker[1] == null)) throw this._parser.syntaxError("Incomplete speaker");
+		
+		return speaker;
+	}
+	
+	/**
+	 * Parses a reply without storing it. The parser must be
+	 * positioned at the start of the reply object.
+	 * 
+	 * @return The parsed reply
+	 */
+	protected ParsedReply _parseReply() throws IOException
+	{
+		Date date = null;
+		int speakerId = -1;
+		String content = null;
+		
+		this._checkObjectStart();
+		while (this._parser.next() != Token.END_OBJECT)
+		{
+			String key = this._parser.getText();
+			
+			if (key.equals("date")) date = this._strToDate(this._parser.nextString());
+			else if (key.equals("speaker")) speakerId = this._parser.nextInt();
+			else if (key.equals("text")) content = this._parser.nextString();
+			else this._parser.skipValue();
+		}
+		
+		if ((date == null) || (content == null)) throw this._parser.syntaxError("Incomplete reply");
+		
+		return new ParsedReply(date, speakerId, content);
+	}
+	
+	/**
+	 * Stores a parsed conversation in an archive.
 	 * 
 	 * @param archive The archive that is to receive the conversation
-	 * @param convObj The JSON object that encodes the conversation
+	 * @param parsed The parsed conversation
 	 */
-	public void loadConversation(IMArchive archive, JSONObject convObj) throws Exception
+	protected void _storeConversation(IMArchive archive, ParsedConversation parsed) throws Exception
 	{
-		Date dateStarted = this._strToDate(convObj.getString("dateStarted"));
-		Account localAccount = this._getAccountForId(archive, convObj.getString("localAccountId"));
-		Account remoteAccount = this._getAccountForId(archive, convObj.getString("remoteAccountId"));
-		boolean isConference = convObj.getBoolean("isConference");
-		JSONArray speakerArr = convObj.getJSONArray("speakers");
-		JSONArray repliesArr = convObj.getJSONArray("replies");
-		
-		Conversation conv = archive.createConversation(dateStarted, localAccount, remoteAccount, isConference);
-		for (int i=0; i<speakerArr.length(); i++) this.loadSpeaker(conv, speakerArr.getJSONObject(i));
-		for (int i=0; i<repliesArr.length(); i++) this.loadReply(conv, repliesArr.getJSONObject(i));
+		Conversation conv = archive.createConversation(parsed.dateStarted,
+				this._getAccountForId(archive, parsed.localAccountId),
+				this._getAccountForId(archive, parsed.remoteAccountId),
+				parsed.isConference);
+		
+		for (String[] speaker : parsed.speakers) this._storeSpeaker(conv, speaker);
+		for (ParsedReply reply : parsed.replies) this._storeReply(conv, reply);
 	}
 	
 	/**
-	 * Decodes and loads a JSON object that represents a speaker.
+	 * Stores a parsed speaker in a conversation.
 	 * 
 	 * @param conversation The conversation that is to receive the speaker
-	 * @param speakerObj The JSON object that encodes the speaker
+	 * @param speaker The (name, account ID) pair describing the speaker
 	 */
-	public void loadSpeaker(Conversation conversation, JSONObject speakerObj) throws Exception
+	protected void _storeSpeaker(Conversation conversation, String[] speaker) throws Exception
 	{
-		String name = speakerObj.getString("name");
-		Account account = this._getAccountForId(conversation.getArchive(), speakerObj.getString("accountId"));
+		Account account = this._getAccountForId(conversation.getArchive(), speaker[1]);
 		
 		// Sanity check
-		if (conversation.getSpeakerByName(name) != null) throw new RuntimeException("Duplicate speaker '"+name+"'");
+		if (conversation.getSpeakerByName(speaker[0]) != null)
+			throw new RuntimeException("Duplicate speaker '"+speaker[0]+"'");
 		
-		conversation.addSpeaker(name, account);
+		conversation.addSpeaker(speaker[0], account);
 	}
 	
 	/**
-	 * Decodes and loads a JSON object that represents a reply.
+	 * Stores a parsed reply in a conversation.
 	 * 
 	 * @param conversation The conversation that is to receive the reply
-	 * @param replyObj The JSON object that encodes the reply
+	 * @param reply The parsed reply
 	 */
-	public void loadReply(Conversation conversation, JSONObject replyObj) throws Exception
+	protected void _storeReply(Conversation conversation, ParsedReply reply) throws Exception
 	{
-		Date date = this._strToDate(replyObj.getString("date"));
-		int speakerId = replyObj.getInt("speaker");
-		String content = replyObj.getString("text");
-		
 		// Sanity check
-		if ((speakerId < 0) || (speakerId > conversation.getSpeakers().size()))
+		if ((reply.speakerId < 0) || (reply.speakerId > conversation.getSpeakers().size()))
 			throw new RuntimeException("Invalid speaker ID");
 		
-		Speaker speaker = (speakerId != 0) ? conversation.getSpeakers().get(speakerId-1) : null;
-
-		conversation.addReply(date, speaker, content);
+		Speaker speaker = (reply.speakerId != 0) ? conversation.getSpeakers().get(reply.speakerId-1) : null;
+		
+		conversation.addReply(reply.date, speaker, reply.text);
+	}
+	
+	/**
+	 * Reads an array of account objects into a list of
+	 * (service, name) pairs. The parser must be positioned
+	 * before the start of the array.
+	 * 
+	 * @param accounts The list that is to receive the accounts
+	 */
+	protected void _readAccountsArray(List<String[]> accounts) throws IOException
+	{
+		this._parser.expect(Token.START_ARRAY);
+		while (this._parser.next() != Token.END_ARRAY)
+		{
+			String[] account = new String[2];
+			
+			this._checkObjectStart();
+			while (this._parser.next() != Token.END_OBJECT)
+			{
+				String key = this._parser.getText();
+				
+				if (key.equals("service")) account[0] = this._parser.nextString();
+				else if (key.equals("name")) account[1] = this._parser.nextString();
+				else this._parser.skipValue();
+			}
+			
+			if ((account[0] == null) || (account[1] == null)) throw this._parser.syntaxError("Incomplete account");
+			accounts.add(account);
+		}
+	}
+	
+	/**
+	 * Loads an account into a contact.
+	 * 
+	 * @param contact The contact/identity that is to receive the account
+	 * @param account The (service, name) pair describing the account
+	 */
+	protected void _loadAccount(Contact contact, String[] account) throws Exception
+	{
+		IMService service = IMService.fromShortName(account[0]);
+		String name = account[1];
+		
+		// Sanity check
+		if (contact.getArchive().getAccountByName(service, name) != null)
+			throw new RuntimeException("Duplicate account '"+service+":"+name+"'");
+		
+		contact.createAccount(service, name);
+	}
+	
+	/**
+	 * Checks that the last token read is the start of an
+	 * object.
+	 */
+	protected void _checkObjectStart()
+	{
+		if (this._parser.getToken() != Token.START_OBJECT)
+			throw this._parser.syntaxError("Expecting object, found "+this._parser.getToken());
 	}
 	
 	/**
@@ -312,17 +839,50 @@ public class IMArchiveJsonReader
 	 */
 	protected Date _strToDate(String dateStr)
 	{
-		final SimpleDateFormat format1 = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSSS");
-		final SimpleDateFormat format2 = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		Date date = this._dateFormat.parse(dateStr, new ParsePosition(0));
+		if (date == null) date = this._shortDateFormat.parse(dateStr, new ParsePosition(0));
+		if (date == null) throw new RuntimeException("Cannot parse date '"+dateStr+"'");
 		
-		try { return format1.parse(dateStr); }
-		catch (Exception e)
+		return date;
+	}
+	
+	/**
+	 * Structure class for a conversation that has been parsed
+	 * but not yet stored.
+	 */
+	protected static class ParsedConversation
+	{
+		public Date dateStarted = null;
+		public String localAccountId = null;
+		public String remoteAccountId = null;
+		public Boolean isConference = null;
+		public List<String[]> speakers = new ArrayList<String[]>();
+		public List<ParsedReply> replies = new ArrayList<ParsedReply>();
+	}
+	
+	/**
+	 * Structure class for a reply that has been parsed but
+	 * not yet stored.
+	 */
+	protected static class ParsedReply
+	{
+		public final Date date;
+		public final int speakerId;
+		public final String text;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param date The date of the reply
+		 * @param speakerId The 1-based index of the speaker, or 0
+		 *                  for system replies
+		 * @param text The content of the reply
+		 */
+		public ParsedReply(Date date, int speakerId, String text)
 		{
-			try { return format2.parse(dateStr); }
-			catch (Exception e2)
-			{
-				throw new RuntimeException("Cannot parse date '"+dateStr+"'");
-			}
+			this.date = date;
+			this.speakerId = speakerId;
+			this.text = text;
 		}
 	}
 }
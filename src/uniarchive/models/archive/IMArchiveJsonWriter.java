@@ -6,20 +6,32 @@
 
 package uniarchive.models.archive;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
-import org.json.JSONWriter;
-
-import uniarchive.models.ProgressEvent;
+import uniarchive.models.CountingOutputStream;
+import uniarchive.models.JsonTextWriter;
+import uniarchive.models.Metrics;
 import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
 import uniarchive.models.archive.IMArchive.Account;
 import uniarchive.models.archive.IMArchive.Contact;
 import uniarchive.models.archive.IMArchive.Conversation;
@@ -30,22 +42,103 @@ import uniarchive.models.archive.IMArchive.Conversation.Speaker;
 /**
  * A helper object for saving an IMArchive (or parts of it)
  * in JSON format to a file or through a writer.
+ * 
+ * When writing a whole archive, replies are fetched for
+ * batches of conversations at a time, and dates are formatted
+ * without creating a new formatter for each one.
+ * 
+ * Files may optionally be written in compressed (gzip) format.
+ * IMArchiveJsonReader recognizes such files automatically.
+ * 
+ * Conversations may also be serialized on several threads (see
+ * setThreadCount()). Each batch of conversations is then turned
+ * into JSON text by a worker thread, and the results are added
+ * to the output in their original order. The output is the same
+ * regardless of the number of threads.
+ * 
+ * Instead of a whole archive, an increment may also be written
+ * (see writeIncrement()), containing only the conversations added
+ * since the archive's last export. IMArchiveJsonReader can merge
+ * such an increment onto a copy of the archive.
  */
 public class IMArchiveJsonWriter
 {
-	protected BufferedWriter _underWriter;
-	protected JSONWriter _writer;
+	/**
+	 * The number of conversations whose replies are fetched
+	 * from the database in a single query.
+	 */
+	protected static final int CONVERSATIONS_PER_BATCH = 100;
+	
+	protected static final int OUTPUT_BUFFER_SIZE = 262144;
+	
+	/**
+	 * The maximum number of serialized batches (per thread) that
+	 * may wait to be written, when serializing in parallel.
+	 */
+	protected static final int MAX_PENDING_BATCHES_PER_THREAD = 4;
+	
+	public static final String COMPRESSED_FILE_SUFFIX = ".gz";
+	public static final int NO_COMPRESSION = 0;
+	public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+	public static final int MAX_COMPRESSION_LEVEL = 9;
+	
+	protected static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss:SSSS";
+	
+	protected static final Metrics.Timer WRITE_TIMER = Metrics.timer("json.write");
+	protected static final Metrics.Counter CONVERSATIONS_COUNTER = Metrics.counter("json.write.conversations");
+	
+	protected JsonTextWriter _writer;
+	protected int _threadCount = 1;
+	
+	// Byte counters for measuring throughput (only used when writing to a file)
+	protected CountingOutputStream _dataCounter = null;
+	protected CountingOutputStream _compressedCounter = null;
+	
+	// Date formatting state. The characters up to and including the
+	// minute are reused for all dates within the same minute.
+	protected Calendar _calendar = Calendar.getInstance();
+	protected SimpleDateFormat _fallbackFormat = new SimpleDateFormat(DATE_FORMAT);
+	protected char[] _dateChars = new char[DATE_FORMAT.length()];
+	protected long _minuteStart = 1;
+	protected long _minuteEnd = 0;
 	
 	/**
 	 * Constructor for writing a standalone archive
-	 * to a new file.
+	 * to a new file. The file is compressed if its name
+	 * ends in COMPRESSED_FILE_SUFFIX.
 	 * 
 	 * @param file The file to which the archive is to
 	 *             be written
 	 */
 	public IMArchiveJsonWriter(File file) throws IOException
 	{
-		this(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		this(file, isCompressedFileName(file) ? DEFAULT_COMPRESSION_LEVEL : NO_COMPRESSION);
+	}
+	
+	/**
+	 * Constructor for writing a standalone archive
+	 * to a new file, with a given level of compression.
+	 * 
+	 * @param file The file to which the archive is to
+	 *             be written
+	 * @param compressionLevel The compression level (1 to
+	 *                         MAX_COMPRESSION_LEVEL), or
+	 *                         NO_COMPRESSION for plain JSON
+	 */
+	public IMArchiveJsonWriter(File file, int compressionLevel) throws IOException
+	{
+		if ((compressionLevel < NO_COMPRESSION) || (compressionLevel > MAX_COMPRESSION_LEVEL))
+			throw new RuntimeException("Invalid compression level: "+compressionLevel);
+		
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file), OUTPUT_BUFFER_SIZE);
+		if (compressionLevel != NO_COMPRESSION)
+		{
+			this._compressedCounter = new CountingOutputStream(output);
+			output = _openCompressedStream(this._compressedCounter, compressionLevel);
+		}
+		this._dataCounter = new CountingOutputStream(output);
+		
+		this._writer = new JsonTextWriter(new OutputStreamWriter(this._dataCounter, "UTF-8"));
 	}
 	
 	/**
@@ -59,27 +152,33 @@ public class IMArchiveJsonWriter
 	 */
 	public IMArchiveJsonWriter(Writer writer)
 	{
-		this._underWriter = new BufferedWriter(writer);
-		this._writer = new JSONWriter(this._underWriter);
+		this(new JsonTextWriter(writer));
 	}
 	
 	/**
 	 * Constructor for writing archive data to an
-	 * already created JSONWriter. Note that if this
-	 * constructor is used, you will be unable to
-	 * flush or close the writer from this object,
-	 * as the JSONWriter does not offer access to
-	 * its underlying stream.
+	 * already created JsonTextWriter.
 	 * 
 	 * @param writer A writer to which the data is
 	 *               to be sent
 	 */
-	public IMArchiveJsonWriter(JSONWriter writer)
+	public IMArchiveJsonWriter(JsonTextWriter writer)
 	{
-		this._underWriter = null;
 		this._writer = writer;
 	}
 	
+	/**
+	 * Sets the number of threads used for serializing
+	 * conversations when writing a whole archive.
+	 * 
+	 * @param threadCount The number of threads (1 for
+	 *                    writing sequentially)
+	 */
+	public void setThreadCount(int threadCount)
+	{
+		this._threadCount = Math.max(1, threadCount);
+	}
+	
 	/**
 	 * Flushes the writing stream.
 	 * 
@@ -87,7 +186,7 @@ public class IMArchiveJsonWriter
 	 */
 	public void flush() throws IOException
 	{
-		if (this._underWriter != null) this._underWriter.flush();
+		this._writer.flush();
 	}
 	
 	/**
@@ -97,7 +196,7 @@ public class IMArchiveJsonWriter
 	 */
 	public void close() throws IOException
 	{
-		if (this._underWriter != null) this._underWriter.close();
+		this._writer.close();
 	}
 	
 	/**
@@ -109,10 +208,60 @@ public class IMArchiveJsonWriter
 	 */
 	public void writeArchive(IMArchive archive, ProgressListener listener) throws Exception
 	{
-		if (listener != null) listener.onProgress(new ProgressEvent("Saving archive...", 0, -1));
+		this._writeArchive(archive, archive.getConversations(), false, listener);
+	}
+	
+	/**
+	 * Writes an increment of an archive in JSON format, i.e. the
+	 * accounting data and the conversations that were added or
+	 * changed since the archive's export checkpoint.
+	 * 
+	 * The accounting data is always written in full, as it is
+	 * needed for interpreting the conversations and is small in
+	 * comparison. Deleted conversations and accounting items are
+	 * not recorded, in keeping with the semantics of
+	 * IMArchive.mergeData().
+	 * 
+	 * The checkpoint is not updated by this function. Once the
+	 * output has been completely written and closed, the returned
+	 * value should be recorded with IMArchive.setExportCheckpoint().
+	 * 
+	 * @param archive The IM archive to write
+	 * @param listener An object that will be notified of any progress
+	 *                 in writing the archive. May be null.
+	 * @return The new export checkpoint for the archive
+	 */
+	public int writeIncrement(IMArchive archive, ProgressListener listener) throws Exception
+	{
+		int checkpoint = archive.getExportCheckpoint();
+		List<Conversation> conversations = archive.getConversationsAddedAfter(checkpoint);
+		
+		this._writeArchive(archive, conversations, true, listener);
+		
+		return conversations.isEmpty() ? checkpoint : conversations.get(conversations.size()-1).sqlId;
+	}
+	
+	/**
+	 * Writes an archive, or an increment thereof, in JSON format.
+	 * 
+	 * @param archive The IM archive to write
+	 * @param conversations The conversations to write
+	 * @param incremental True if writing an increment
+	 * @param listener An object that will be notified of any progress
+	 *                 in writing the archive. May be null.
+	 */
+	protected void _writeArchive(IMArchive archive, List<Conversation> conversations, boolean incremental,
+			ProgressListener listener) throws Exception
+	{
+		ProgressReporter progress = ProgressReporter.forListener(listener);
+		long start = WRITE_TIMER.start();
+		
+		progress.report("Saving archive...", 0, -1);
 		
 		this._writer.object();
 		
+		if (incremental) this._writer.key("incremental").value(true);
+		
 		// Write identities
 		this._writer.key("identities").array();
 		for (Contact identity : archive.getIdentitiesGroup().getContacts()) this.writeContact(identity);
@@ -124,21 +273,41 @@ public class IMArchiveJsonWriter
 		this._writer.endArray();
 		
 		// Writer conversations
-		List<Conversation> conversations = archive.getConversations();
 		int processed = 0;
 		int total = conversations.size();
 		this._writer.key("conversationsCount").value(total);
 		this._writer.key("conversations").array();
-		if (listener != null) listener.onProgress(new ProgressEvent("Saving archive...", processed, total));
-		for (Conversation conv : conversations)
+		this._reportTransfer(progress);
+		progress.report("Saving archive...", processed, total);
+		List<Conversation> batch = new ArrayList<Conversation>(CONVERSATIONS_PER_BATCH);
+		ExecutorService executor = (this._threadCount > 1) ? Executors.newFixedThreadPool(this._threadCount) : null;
+		LinkedList<Future<SerializedBatch>> pending = new LinkedList<Future<SerializedBatch>>();
+		try
+		{
+			for (Conversation conv : conversations)
+			{
+				batch.add(conv);
+				if (batch.size() < CONVERSATIONS_PER_BATCH) continue;
+				
+				processed += this._writeConversationsBatch(archive, batch, executor, pending);
+				this._reportTransfer(progress);
+				progress.report("Saving archive...", processed, total);
+			}
+			processed += this._writeConversationsBatch(archive, batch, executor, pending);
+			while (!pending.isEmpty()) processed += this._writePendingBatch(pending);
+		}
+		finally
 		{
-			this.writeConversation(conv);
-			processed++;
-			if (listener != null) listener.onProgress(new ProgressEvent("Saving archive...", processed, total));
+			if (executor != null) executor.shutdownNow();
 		}
+		this._reportTransfer(progress);
+		progress.report("Saving archive...", processed, total);
 		this._writer.endArray();
 		
 		this._writer.endObject();
+		
+		CONVERSATIONS_COUNTER.add(processed);
+		WRITE_TIMER.stop(start);
 	}
 	
 	/**
@@ -198,9 +367,22 @@ public class IMArchiveJsonWriter
 	 * @param conv The conversation to write
 	 */
 	public void writeConversation(Conversation conv) throws Exception
+	{
+		this.writeConversation(conv, conv.getReplies());
+	}
+	
+	/**
+	 * Writes a conversation in JSON format, given its
+	 * already fetched replies.
+	 * 
+	 * @param conv The conversation to write
+	 * @param replies The replies in the conversation
+	 */
+	public void writeConversation(Conversation conv, List<Reply> replies) throws Exception
 	{
 		this._writer.object();
-		this._writer.key("dateStarted").value(this._dateToStr(conv.dateStarted));
+		this._writer.key("dateStarted");
+		this._writeDate(conv.dateStarted);
 		this._writer.key("localAccountId").value(this._getAccountId(conv.localAccount));
 		this._writer.key("remoteAccountId").value(this._getAccountId(conv.remoteAccount));
 		this._writer.key("isConference").value(conv.isConference);
@@ -212,7 +394,7 @@ public class IMArchiveJsonWriter
 		
 		// Write replies
 		this._writer.key("replies").array();
-		for (Reply reply : conv.getReplies()) this.writeReply(reply);
+		for (Reply reply : replies) this.writeReply(reply);
 		this._writer.endArray();
 		
 		this._writer.endObject();
@@ -239,12 +421,153 @@ public class IMArchiveJsonWriter
 	public void writeReply(Reply reply) throws Exception
 	{
 		this._writer.object();
-		this._writer.key("date").value(this._dateToStr(reply.date));
+		this._writer.key("date");
+		this._writeDate(reply.date);
 		this._writer.key("speaker").value(reply.speaker == null ? 0 : reply.speaker.getIndex()+1);
 		this._writer.key("text").value(reply.text);
 		this._writer.endObject();
 	}
 	
+	/**
+	 * Checks whether a file name indicates that the file
+	 * is compressed.
+	 * 
+	 * @param file A file
+	 * @return True if the file name ends in COMPRESSED_FILE_SUFFIX
+	 */
+	public static boolean isCompressedFileName(File file)
+	{
+		return file.getName().toLowerCase().endsWith(COMPRESSED_FILE_SUFFIX);
+	}
+	
+	/**
+	 * Creates a stream that compresses data in gzip format
+	 * with a given compression level.
+	 * 
+	 * @param output The stream to which compressed data is sent
+	 * @param level The compression level (1-9)
+	 * @return An output stream
+	 */
+	protected static OutputStream _openCompressedStream(OutputStream output, final int level) throws IOException
+	{
+		return new GZIPOutputStream(output, OUTPUT_BUFFER_SIZE) {
+			{
+				this.def.setLevel(level);
+			}
+		};
+	}
+	
+	/**
+	 * Reports the amount of data written so far to a
+	 * progress reporter, if writing to a file.
+	 * 
+	 * @param progress A progress reporter
+	 */
+	protected void _reportTransfer(ProgressReporter progress)
+	{
+		if (this._dataCounter == null) return;
+		
+		progress.reportTransfer(this._dataCounter.getCount(),
+				(this._compressedCounter != null) ? this._compressedCounter.getCount() : -1);
+	}
+	
+	/**
+	 * Writes a batch of conversations, fetching all their
+	 * replies at once. The batch is cleared afterwards.
+	 * 
+	 * If an executor is given, the batch is serialized on one
+	 * of its threads and added to the list of pending batches,
+	 * and only the oldest pending batches are written, as needed
+	 * to keep the list within MAX_PENDING_BATCHES_PER_THREAD.
+	 * 
+	 * @param archive The archive containing the conversations
+	 * @param batch A list of conversations
+	 * @param executor The executor for parallel serialization
+	 *                 (null to write the batch directly)
+	 * @param pending The list of pending batches
+	 * @return The number of conversations written
+	 */
+	protected int _writeConversationsBatch(IMArchive archive, List<Conversation> batch, ExecutorService executor,
+			LinkedList<Future<SerializedBatch>> pending) throws Exception
+	{
+		final List<List<Reply>> replies = archive.getReplies(batch);
+		
+		if (executor == null)
+		{
+			for (int i=0; i<batch.size(); i++) this.writeConversation(batch.get(i), replies.get(i));
+			
+			int count = batch.size();
+			batch.clear();
+			
+			return count;
+		}
+		
+		final List<Conversation> conversations = new ArrayList<Conversation>(batch);
+		batch.clear();
+		pending.add(executor.submit(new Callable<SerializedBatch>() {
+			@Override
+			public SerializedBatch call() throws Exception
+			{
+				return _serializeConversations(conversations, replies);
+			}
+		}));
+		
+		int count = 0;
+		while (pending.size() > MAX_PENDING_BATCHES_PER_THREAD * this._threadCount)
+			count += this._writePendingBatch(pending);
+		
+		return count;
+	}
+	
+	/**
+	 * Serializes a batch of conversations to JSON text. This
+	 * may be called on any thread, as it does not access the
+	 * database or the state of this writer.
+	 * 
+	 * @param conversations A list of conversations
+	 * @param replies The replies in each conversation
+	 * @return The serialized batch
+	 */
+	protected static SerializedBatch _serializeConversations(List<Conversation> conversations,
+			List<List<Reply>> replies) throws Exception
+	{
+		CharArrayWriter output = new CharArrayWriter();
+		IMArchiveJsonWriter writer = new IMArchiveJsonWriter(output);
+		
+		writer._writer.array();
+		for (int i=0; i<conversations.size(); i++) writer.writeConversation(conversations.get(i), replies.get(i));
+		writer._writer.endArray();
+		writer.flush();
+		
+		return new SerializedBatch(output.toCharArray(), conversations.size());
+	}
+	
+	/**
+	 * Waits for the oldest pending batch to be serialized
+	 * and writes it.
+	 * 
+	 * @param pending The list of pending batches
+	 * @return The number of conversations written
+	 */
+	protected int _writePendingBatch(LinkedList<Future<SerializedBatch>> pending) throws Exception
+	{
+		SerializedBatch batch;
+		try
+		{
+			batch = pending.removeFirst().get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		
+		// Leave out the enclosing brackets
+		this._writer.rawValues(batch.text, 1, batch.text.length-2);
+		
+		return batch.count;
+	}
+	
 	/**
 	 * Gets a textual identifier for an account.
 	 * 
@@ -257,16 +580,89 @@ public class IMArchiveJsonWriter
 	}
 	
 	/**
-	 * Converts a date to string format.
+	 * Writes a date as a string value in a MySQL-like format,
+	 * with millisecond resolution. The output is the same as
+	 * that of a SimpleDateFormat with the DATE_FORMAT pattern.
 	 * 
 	 * @param date A date
-	 * @return A string representing the date in a MySQL-like
-	 *         format, with millisecond resolution 
 	 */
-	protected String _dateToStr(Date date)
+	protected void _writeDate(Date date) throws IOException
 	{
-		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSSS");
+		long time = date.getTime();
+		
+		if ((time < this._minuteStart) || (time >= this._minuteEnd))
+		{
+			this._calendar.setTimeInMillis(time);
+			
+			int year = this._calendar.get(Calendar.YEAR);
+			if (year > 9999)
+			{
+				this._writer.value(this._fallbackFormat.format(date));
+				return;
+			}
+			
+			_putDigits(this._dateChars, 0, year, 4);
+			this._dateChars[4] = '-';
+			_putDigits(this._dateChars, 5, this._calendar.get(Calendar.MONTH)+1, 2);
+			this._dateChars[7] = '-';
+			_putDigits(this._dateChars, 8, this._calendar.get(Calendar.DAY_OF_MONTH), 2);
+			this._dateChars[10] = ' ';
+			_putDigits(this._dateChars, 11, this._calendar.get(Calendar.HOUR_OF_DAY), 2);
+			this._dateChars[13] = ':';
+			_putDigits(this._dateChars, 14, this._calendar.get(Calendar.MINUTE), 2);
+			this._dateChars[16] = ':';
+			this._dateChars[19] = ':';
+			
+			this._minuteStart = time -
+				1000L * this._calendar.get(Calendar.SECOND) - this._calendar.get(Calendar.MILLISECOND);
+			this._minuteEnd = this._minuteStart + 60000L;
+		}
 		
-		return format.format(date);
+		int millis = (int)(time - this._minuteStart);
+		_putDigits(this._dateChars, 17, millis / 1000, 2);
+		_putDigits(this._dateChars, 20, millis % 1000, 4);
+		
+		this._writer.rawStringValue(this._dateChars, 0, this._dateChars.length);
+	}
+	
+	/**
+	 * Writes the decimal digits of a number, zero-padded
+	 * to a given width, into a character array.
+	 * 
+	 * @param chars The character array
+	 * @param offset The position at which to write the digits
+	 * @param value The (non-negative) number to write
+	 * @param width The number of digits to write
+	 */
+	protected static void _putDigits(char[] chars, int offset, int value, int width)
+	{
+		for (int i=offset+width-1; i>=offset; i--)
+		{
+			chars[i] = (char)('0' + value % 10);
+			value /= 10;
+		}
+	}
+	
+	/**
+	 * Structure class for a batch of conversations that
+	 * has been serialized to JSON text.
+	 */
+	protected static class SerializedBatch
+	{
+		public final char[] text;
+		public final int count;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param text The JSON text of an array containing
+		 *             the conversations
+		 * @param count The number of conversations
+		 */
+		public SerializedBatch(char[] text, int count)
+		{
+			this.text = text;
+			this.count = count;
+		}
 	}
 }
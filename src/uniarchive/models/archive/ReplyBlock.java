@@ -0,0 +1,245 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Class for a run of consecutive replies in a conversation,
+ * stored in the database as a single compressed row of the
+ * reply_blocks table (see ArchiveDb.packReplies()).
+ * 
+ * The encoded form consists of the length of the uncompressed
+ * data (4 bytes), followed by the data compressed with Deflate.
+ * The uncompressed data contains, for each reply, the difference
+ * between its date and that of the previous reply (8 bytes),
+ * the SQL ID of its speaker (4 bytes, -1 for system replies)
+ * and the length of its UTF-8 content (4 bytes, -1 for null
+ * content) followed by the content itself.
+ */
+public class ReplyBlock
+{
+	public static final int MAX_REPLIES = 256;
+	
+	public final int firstIndex;
+	
+	protected long[] _dates = new long[16];
+	protected int[] _speakerIds = new int[16];
+	protected String[] _contents = new String[16];
+	protected int _size = 0;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param firstIndex The index of the first reply in the
+	 *                   block within its conversation
+	 */
+	public ReplyBlock(int firstIndex)
+	{
+		this.firstIndex = firstIndex;
+	}
+	
+	/**
+	 * Adds a reply at the end of the block.
+	 * 
+	 * @param date The date of the reply, in milliseconds
+	 * @param speakerId The SQL ID of the speaker, or -1
+	 *                  for system replies
+	 * @param content The content of the reply
+	 */
+	public void add(long date, int speakerId, String content)
+	{
+		if (this.isFull()) throw new RuntimeException("Reply block is full");
+		
+		if (this._size == this._dates.length)
+		{
+			int capacity = Math.min(2*this._size, MAX_REPLIES);
+			
+			this._dates = Arrays.copyOf(this._dates, capacity);
+			this._speakerIds = Arrays.copyOf(this._speakerIds, capacity);
+			this._contents = Arrays.copyOf(this._contents, capacity);
+		}
+		
+		this._dates[this._size] = date;
+		this._speakerIds[this._size] = speakerId;
+		this._contents[this._size] = content;
+		this._size++;
+	}
+	
+	/**
+	 * Checks whether the block can accept no more replies.
+	 * 
+	 * @return True if the block is full
+	 */
+	public boolean isFull()
+	{
+		return (this._size >= MAX_REPLIES);
+	}
+	
+	/**
+	 * Gets the number of replies in the block.
+	 * 
+	 * @return The number of replies
+	 */
+	public int size()
+	{
+		return this._size;
+	}
+	
+	/**
+	 * Gets the date of a reply in the block.
+	 * 
+	 * @param index The index of the reply within the block
+	 * @return The date, in milliseconds
+	 */
+	public long getDate(int index)
+	{
+		return this._dates[index];
+	}
+	
+	/**
+	 * Gets the speaker ID of a reply in the block.
+	 * 
+	 * @param index The index of the reply within the block
+	 * @return The SQL ID of the speaker, or -1 for system replies
+	 */
+	public int getSpeakerId(int index)
+	{
+		return this._speakerIds[index];
+	}
+	
+	/**
+	 * Gets the content of a reply in the block.
+	 * 
+	 * @param index The index of the reply within the block
+	 * @return The content of the reply
+	 */
+	public String getContent(int index)
+	{
+		return this._contents[index];
+	}
+	
+	/**
+	 * Encodes the replies in the block.
+	 * 
+	 * @return The encoded data
+	 */
+	public byte[] encode()
+	{
+		try
+		{
+			ByteArrayOutputStream rawBuffer = new ByteArrayOutputStream(64 * this._size);
+			DataOutputStream raw = new DataOutputStream(rawBuffer);
+			
+			long prevDate = 0;
+			for (int i=0; i<this._size; i++)
+			{
+				raw.writeLong(this._dates[i] - prevDate);
+				prevDate = this._dates[i];
+				raw.writeInt(this._speakerIds[i]);
+				if (this._contents[i] == null)
+				{
+					raw.writeInt(-1);
+				}
+				else
+				{
+					byte[] content = this._contents[i].getBytes("UTF-8");
+					raw.writeInt(content.length);
+					raw.write(content);
+				}
+			}
+			raw.flush();
+			
+			byte[] input = rawBuffer.toByteArray();
+			byte[] output = new byte[input.length + input.length/1000 + 64];
+			
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+			deflater.setInput(input);
+			deflater.finish();
+			int length = deflater.deflate(output, 4, output.length - 4);
+			boolean complete = deflater.finished();
+			deflater.end();
+			if (!complete) throw new RuntimeException("Reply block does not compress");
+			
+			output[0] = (byte)(input.length >>> 24);
+			output[1] = (byte)(input.length >>> 16);
+			output[2] = (byte)(input.length >>> 8);
+			output[3] = (byte)input.length;
+			
+			return Arrays.copyOf(output, 4 + length);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e.toString());
+		}
+	}
+	
+	/**
+	 * Decodes a block of replies.
+	 * 
+	 * @param firstIndex The index of the first reply in the
+	 *                   block within its conversation
+	 * @param data The encoded data, as returned by encode()
+	 * @param count The number of replies in the block
+	 * @return A newly created block
+	 */
+	public static ReplyBlock decode(int firstIndex, byte[] data, int count)
+	{
+		try
+		{
+			int rawLength = ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16) |
+				((data[2] & 0xff) << 8) | (data[3] & 0xff);
+			byte[] rawData = new byte[rawLength];
+			
+			Inflater inflater = new Inflater();
+			inflater.setInput(data, 4, data.length - 4);
+			int length = inflater.inflate(rawData);
+			inflater.end();
+			if (length != rawLength) throw new RuntimeException("Reply block is truncated");
+			
+			DataInputStream raw = new DataInputStream(new ByteArrayInputStream(rawData));
+			ReplyBlock block = new ReplyBlock(firstIndex);
+			block._dates = new long[count];
+			block._speakerIds = new int[count];
+			block._contents = new String[count];
+			
+			long date = 0;
+			for (int i=0; i<count; i++)
+			{
+				date += raw.readLong();
+				int speakerId = raw.readInt();
+				int contentLength = raw.readInt();
+				String content = null;
+				if (contentLength != -1)
+				{
+					content = new String(rawData, rawLength - raw.available(), contentLength, "UTF-8");
+					raw.skipBytes(contentLength);
+				}
+				
+				block.add(date, speakerId, content);
+			}
+			
+			return block;
+		}
+		catch (DataFormatException e)
+		{
+			throw new RuntimeException("Reply block is corrupt: "+e.getMessage());
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Reply block is corrupt: "+e.getMessage());
+		}
+	}
+}
@@ -97,7 +97,7 @@ public class DigsbyConversationInfo implements Iterable<RawReply>
 	public static List<DigsbyConversationInfo> loadFromFile(File conversationFile)
 	{
 		final String PAT_SEP = Pattern.quote(File.separator);
-		final String PAT_ACCOUNT_NAME = "[a-z0-9_.-@]+";
+		final String PAT_ACCOUNT_NAME = "[a-z0-9_.@-]+";
 		final String PAT_SERVICE_NAME = "[a-z-]+";
 		final Pattern PAT_CONV_FILENAME = Pattern.compile(
 				PAT_SEP+"("+PAT_SERVICE_NAME+")"+
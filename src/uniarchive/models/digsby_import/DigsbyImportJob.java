@@ -12,8 +12,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 
-import uniarchive.models.ProgressEvent;
+import uniarchive.models.Metrics;
 import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
 import uniarchive.models.archive.IMArchive;
 import uniarchive.models.archive.IMArchive.Conversation;
 import uniarchive.models.archive.IMArchive.Group;
@@ -23,8 +24,13 @@ import uniarchive.models.archive.IMArchive.Group;
  */
 public class DigsbyImportJob
 {
+	protected static final Metrics.Timer SCAN_TIMER = Metrics.timer("import.digsby.scan");
+	protected static final Metrics.Timer ANALYZE_TIMER = Metrics.timer("import.digsby.analyze");
+	protected static final Metrics.Timer CONVERT_TIMER = Metrics.timer("import.digsby.convert");
+	protected static final Metrics.Counter CONVERSATIONS_COUNTER = Metrics.counter("import.digsby.conversations");
+	
 	protected File _archivePath;
-	protected ProgressListener _progressListener;
+	protected ProgressReporter _progress;
 	
 	/**
 	 * Constructor for a Digsby import job.
@@ -36,7 +42,7 @@ public class DigsbyImportJob
 	public DigsbyImportJob(File archivePath, ProgressListener progressListener)
 	{
 		this._archivePath = archivePath;
-		this._progressListener = progressListener;
+		this._progress = ProgressReporter.forListener(progressListener);
 		
 		this._notifyProgress("Awaiting start command", 0, 0);
 	}
@@ -49,7 +55,25 @@ public class DigsbyImportJob
 	 */
 	public IMArchive run() throws Exception
 	{
-		return this._convertArchive(this._loadConversations(this._scanForConversations()));
+		// Each phase is given a share of the overall progress that
+		// roughly matches its usual duration
+		this._progress.setPhase(0.0, 0.1);
+		long start = SCAN_TIMER.start();
+		List<File> convFiles = this._scanForConversations();
+		SCAN_TIMER.stop(start);
+		
+		this._progress.setPhase(0.1, 0.6);
+		start = ANALYZE_TIMER.start();
+		List<DigsbyConversationInfo> conversations = this._loadConversations(convFiles);
+		ANALYZE_TIMER.stop(start);
+		
+		this._progress.setPhase(0.6, 1.0);
+		start = CONVERT_TIMER.start();
+		IMArchive archive = this._convertArchive(conversations);
+		CONVERT_TIMER.stop(start);
+		CONVERSATIONS_COUNTER.add(conversations.size());
+		
+		return archive;
 	}
 	
 	/**
@@ -62,9 +86,7 @@ public class DigsbyImportJob
 	 */
 	protected void _notifyProgress(String comment, int completedItems, int totalItems)
 	{
-		if (this._progressListener == null) return;
-		
-		this._progressListener.onProgress(new ProgressEvent(comment, completedItems, totalItems));
+		this._progress.report(comment, completedItems, totalItems);
 	}
 	
 	/**
@@ -17,14 +17,16 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
+import uniarchive.models.Metrics;
 import uniarchive.models.NameIndex;
-import uniarchive.models.ProgressEvent;
 import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
 import uniarchive.models.archive.FreeAccount;
 import uniarchive.models.archive.IMArchive;
 import uniarchive.models.archive.IMArchive.Contact;
 import uniarchive.models.archive.IMArchive.Conversation;
 import uniarchive.models.archive.IMArchive.Group;
+import uniarchive.models.archive.IMService;
 import uniarchive.models.import_common.Alias;
 import uniarchive.models.import_common.ConfirmLocalNamesQuery;
 import uniarchive.models.import_common.UnresolvedAliasesQuery;
@@ -34,8 +36,15 @@ import uniarchive.models.import_common.UnresolvedAliasesQuery;
  */
 public class GaimImportJob
 {
+	protected static final Metrics.Timer SCAN_TIMER = Metrics.timer("import.gaim.scan");
+	protected static final Metrics.Timer ANALYZE_TIMER = Metrics.timer("import.gaim.analyze");
+	protected static final Metrics.Timer CONVERT_TIMER = Metrics.timer("import.gaim.convert");
+	protected static final Metrics.Timer ACCOUNTS_TIMER = Metrics.timer("import.gaim.accounts");
+	protected static final Metrics.Timer SPEAKERS_TIMER = Metrics.timer("import.gaim.speakers");
+	protected static final Metrics.Counter CONVERSATIONS_COUNTER = Metrics.counter("import.gaim.conversations");
+	
 	protected File _archivePath;
-	protected ProgressListener _progressListener;
+	protected ProgressReporter _progress;
 	
 	protected List<GaimConversationInfo> _conversations;
 	protected NameIndex<ImportedAccountInfo> _accounts;
@@ -51,7 +60,7 @@ public class GaimImportJob
 	public GaimImportJob(File archivePath, ProgressListener progressListener)
 	{
 		this._archivePath = archivePath;
-		this._progressListener = progressListener;
+		this._progress = ProgressReporter.forListener(progressListener);
 		
 		this._notifyProgress("Awaiting start command", 0, 0);
 	}
@@ -64,7 +73,16 @@ public class GaimImportJob
 	 */
 	public ConfirmLocalNamesQuery runPhase1() throws Exception
 	{
-		this._loadConversations(this._scanForConversations());
+		this._progress.setPhase(0.0, 0.2);
+		long start = SCAN_TIMER.start();
+		List<File> convFiles = this._scanForConversations();
+		SCAN_TIMER.stop(start);
+		
+		this._progress.setPhase(0.2, 1.0);
+		start = ANALYZE_TIMER.start();
+		this._loadConversations(convFiles);
+		ANALYZE_TIMER.stop(start);
+		
 		Set<String> remoteNames = this._gatherNames();
 		Set<String> localNames = this._guessLocalNames();
 		remoteNames.removeAll(localNames);
@@ -84,7 +102,9 @@ public class GaimImportJob
 	{
 		this._localNames = new TreeSet<String>(localNames);
 		
+		long start = ACCOUNTS_TIMER.start();
 		this._gatherAccountInfo();
+		ACCOUNTS_TIMER.stop(start);
 		
 		return new ConfirmAccountsQuery(this._accounts.getAllItems());
 	}
@@ -97,7 +117,10 @@ public class GaimImportJob
 	 */
 	public UnresolvedAliasesQuery runPhase3() throws Exception
 	{
+		long start = SPEAKERS_TIMER.start();
 		List<Alias> unresolved = this._identifySpeakers();
+		SPEAKERS_TIMER.stop(start);
+		
 		List<FreeAccount> accounts = new ArrayList<FreeAccount>();
 		for (ImportedAccountInfo info : this._accounts.getAllItems())
 			accounts.add(info.account);
@@ -118,7 +141,13 @@ public class GaimImportJob
 		this._finalizeSpeakerIdentification(resolvedAliases);
 		this._mergeResolvedAliasAccounts(resolvedAliases);
 		
-		return this._convertArchive();
+		this._progress.setPhase(0.0, 1.0);
+		long start = CONVERT_TIMER.start();
+		IMArchive archive = this._convertArchive();
+		CONVERT_TIMER.stop(start);
+		CONVERSATIONS_COUNTER.add(this._conversations.size());
+		
+		return archive;
 	}
 	
 	/**
@@ -131,9 +160,7 @@ public class GaimImportJob
 	 */
 	protected void _notifyProgress(String comment, int completedItems, int totalItems)
 	{
-		if (this._progressListener == null) return;
-		
-		this._progressListener.onProgress(new ProgressEvent(comment, completedItems, totalItems));
+		this._progress.report(comment, completedItems, totalItems);
 	}
 	
 	/**
@@ -281,7 +308,13 @@ public class GaimImportJob
 	 */
 	protected void _gatherAccountInfo()
 	{
-		NameIndex<Set<String>> aliasesIndex = new NameIndex<Set<String>>();
+		final NameIndex<Set<String>> aliasesIndex = new NameIndex<Set<String>>();
+		NameIndex.ItemFactory<Set<String>> newAliasSet = new NameIndex.ItemFactory<Set<String>>() {
+			public Set<String> createItem(IMService service, String name)
+			{
+				return new TreeSet<String>();
+			}
+		};
 		
 		// Compute aliases table
 		for (GaimConversationInfo conv : this._conversations)
@@ -295,9 +328,7 @@ public class GaimImportJob
 				
 				String accName = this._localNames.contains(name) ? conv.localAccountName : conv.remoteAccountName;
 				
-				if (!aliasesIndex.itemExists(conv.service, accName))
-					aliasesIndex.addItem(conv.service, accName, new TreeSet<String>());
-				aliasesIndex.getItem(conv.service, accName).add(name);
+				aliasesIndex.getOrAddItem(conv.service, accName, newAliasSet).add(name);
 			}
 		}
 		
@@ -305,22 +336,25 @@ public class GaimImportJob
 		this._accounts = new NameIndex<ImportedAccountInfo>();
 		for (int i=0; i<2; i++)
 		{
+			final boolean isLocal = (i==0);
+			NameIndex.ItemFactory<ImportedAccountInfo> newAccountInfo = new NameIndex.ItemFactory<ImportedAccountInfo>() {
+				public ImportedAccountInfo createItem(IMService service, String name)
+				{
+					Set<String> aliases = aliasesIndex.getItem(service, name);
+					if (aliases == null) aliases = new TreeSet<String>();
+					
+					return new ImportedAccountInfo(new FreeAccount(service, name), aliases, isLocal);
+				}
+			};
+			
 			// Note: do not refactor this loop. There's a very specific
 			// reason why all local accounts must be added first (a local
 			// account may also appear as a remote account)
 			for (GaimConversationInfo conv : this._conversations)
 			{
-				String accName = (i==0) ? conv.localAccountName : conv.remoteAccountName;
+				String accName = isLocal ? conv.localAccountName : conv.remoteAccountName;
 				
-				if (!this._accounts.itemExists(conv.service, accName))
-				{
-					Set<String> aliases = aliasesIndex.getItem(conv.service, accName);
-					if (aliases == null) aliases = new TreeSet<String>();
-					
-					this._accounts.addItem(conv.service, accName, new ImportedAccountInfo(
-							new FreeAccount(conv.service, accName), aliases, (i==0))
-							);
-				}
+				this._accounts.getOrAddItem(conv.service, accName, newAccountInfo);
 			}
 		}
 	}
@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2009-2011  Cristian Dinu <goc9000@gmail.com>
+ * 
+ * Licensed under the GPL-3.
+ */
+
+package uniarchive.models.import_common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import uniarchive.models.archive.FreeAccount;
+import uniarchive.models.archive.IMService;
+
+/**
+ * Class for answering the queries of an import job without
+ * user interaction, according to a set of rules read from a
+ * text file. The file contains one rule per line:
+ * 
+ *   local NAME                   NAME is a local name
+ *   remote NAME                  NAME is a remote name
+ *   alias SERVICE:NAME = SERVICE:ACCOUNT
+ *                                The alias NAME resolves to ACCOUNT
+ *   alias * = same-name          Any other unresolved alias resolves
+ *                                to the account of the same name
+ * 
+ * Empty lines and lines starting with '#' are ignored. Names
+ * not mentioned in the rules keep the classification guessed
+ * by the import job.
+ */
+public class ImportRules
+{
+	protected Set<String> _localNames = new TreeSet<String>();
+	protected Set<String> _remoteNames = new TreeSet<String>();
+	protected Map<String,FreeAccount> _aliases = new TreeMap<String,FreeAccount>();
+	protected boolean _resolveBySameName = false;
+	
+	/**
+	 * Constructor for an empty set of rules.
+	 */
+	public ImportRules()
+	{
+	}
+	
+	/**
+	 * Constructor for a set of rules read from a file.
+	 * 
+	 * @param file A rules file (in UTF-8 encoding)
+	 */
+	public ImportRules(File file) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try
+		{
+			String line;
+			int lineNo = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNo++;
+				try
+				{
+					this.addRule(line);
+				}
+				catch (RuntimeException e)
+				{
+					throw new RuntimeException(file.getName()+", line "+lineNo+": "+e.getMessage());
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Adds a rule, given as a line in the format of a rules
+	 * file.
+	 * 
+	 * @param line The text of the rule
+	 */
+	public void addRule(String line)
+	{
+		line = line.trim();
+		if ((line.length() == 0) || line.startsWith("#")) return;
+		
+		int space = line.indexOf(' ');
+		String keyword = (space == -1) ? line : line.substring(0, space);
+		String argument = (space == -1) ? "" : line.substring(space+1).trim();
+		if (argument.length() == 0) throw new RuntimeException("Incomplete rule '"+line+"'");
+		
+		if (keyword.equals("local"))
+		{
+			this._localNames.add(argument);
+			this._remoteNames.remove(argument);
+		}
+		else if (keyword.equals("remote"))
+		{
+			this._remoteNames.add(argument);
+			this._localNames.remove(argument);
+		}
+		else if (keyword.equals("alias"))
+		{
+			int equals = argument.lastIndexOf('=');
+			if (equals == -1) throw new RuntimeException("Expecting '=' in rule '"+line+"'");
+			String alias = argument.substring(0, equals).trim();
+			String target = argument.substring(equals+1).trim();
+			
+			if (alias.equals("*"))
+			{
+				if (!target.equals("same-name")) throw new RuntimeException("Unsupported default resolution '"+target+"'");
+				this._resolveBySameName = true;
+			}
+			else
+			{
+				FreeAccount aliasAccount = _parseAccount(alias);
+				this._aliases.put(aliasAccount.toString(), _parseAccount(target));
+			}
+		}
+		else throw new RuntimeException("Unknown rule '"+keyword+"'");
+	}
+	
+	/**
+	 * Answers a Confirm Local Names query.
+	 * 
+	 * @param query The query
+	 * @return The list of local names
+	 */
+	public List<String> answer(ConfirmLocalNamesQuery query)
+	{
+		Set<String> localNames = new TreeSet<String>(query.localNames);
+		
+		for (String name : this._localNames)
+			if (query.remoteNames.contains(name)) localNames.add(name);
+		localNames.removeAll(this._remoteNames);
+		
+		return new ArrayList<String>(localNames);
+	}
+	
+	/**
+	 * Answers an Unresolved Aliases query.
+	 * 
+	 * @param query The query
+	 * @return The list of aliases, all of them resolved
+	 */
+	public List<Alias> answer(UnresolvedAliasesQuery query)
+	{
+		List<Alias> resolved = new ArrayList<Alias>();
+		List<String> unresolved = new ArrayList<String>();
+		
+		for (Alias alias : query.aliases)
+		{
+			FreeAccount resolution = this._aliases.get(new FreeAccount(alias.service, alias.name).toString());
+			if (resolution == null) resolution = alias.resolution;
+			if ((resolution == null) && this._resolveBySameName) resolution = new FreeAccount(alias.service, alias.name);
+			
+			if (resolution == null) unresolved.add(alias.service.shortName+":"+alias.name);
+			resolved.add(new Alias(alias.service, alias.name, resolution));
+		}
+		
+		if (!unresolved.isEmpty())
+		{
+			StringBuilder message = new StringBuilder("No rules for resolving the aliases:");
+			for (String alias : unresolved) message.append("\n  ").append(alias);
+			throw new RuntimeException(message.toString());
+		}
+		
+		return resolved;
+	}
+	
+	/**
+	 * Parses an account specification of the form SERVICE:NAME.
+	 * 
+	 * @param spec The account specification
+	 * @return A free account
+	 */
+	protected static FreeAccount _parseAccount(String spec)
+	{
+		int colon = spec.indexOf(':');
+		if (colon == -1) throw new RuntimeException("Expecting SERVICE:NAME, found '"+spec+"'");
+		
+		IMService service = IMService.fromShortName(spec.substring(0, colon).trim());
+		if (service == null) throw new RuntimeException("Unknown service '"+spec.substring(0, colon)+"'");
+		String name = spec.substring(colon+1).trim();
+		if (name.length() == 0) throw new RuntimeException("Empty account name in '"+spec+"'");
+		
+		return new FreeAccount(service, name);
+	}
+}
@@ -8,6 +8,7 @@ package uniarchive.models.msn_import;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -18,6 +19,8 @@ import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import uniarchive.models.IntMap;
+
 /**
  * Class/structure for storing information regarding a MSN
  * conversation.
@@ -97,10 +100,10 @@ public class MsnConversationInfo implements Iterable<RawReply>
 			
 			// Now start reading replies and gather information
 			// about existing conversations
-			Map<Integer,Set<String>> speakers = new TreeMap<Integer,Set<String>>();
-			Map<Integer,Map<String,Set<String>>> interactions = new TreeMap<Integer,Map<String,Set<String>>>();
-			Map<Integer,Date> startDates = new TreeMap<Integer,Date>();
-			Map<Integer,Boolean> isConference = new TreeMap<Integer,Boolean>();
+			IntMap<Set<String>> speakers = new IntMap<Set<String>>();
+			IntMap<Map<String,Set<String>>> interactions = new IntMap<Map<String,Set<String>>>();
+			IntMap<Date> startDates = new IntMap<Date>();
+			IntMap<Boolean> isConference = new IntMap<Boolean>();
 			
 			MsnConversationReader reader = new MsnConversationReader(conversationFile, -1);
 			while (reader.hasNext())
@@ -132,8 +135,10 @@ public class MsnConversationInfo implements Iterable<RawReply>
 				}
 			}
 			
-			// Now create said conversations
-			for (Integer sessId : startDates.keySet())
+			// Now create said conversations, in order of session ID
+			int[] sessIds = startDates.keys();
+			Arrays.sort(sessIds);
+			for (int sessId : sessIds)
 			{
 				conversations.add(new MsnConversationInfo(
 						startDates.get(sessId),
@@ -142,7 +147,7 @@ public class MsnConversationInfo implements Iterable<RawReply>
 						speakers.get(sessId),
 						interactions.get(sessId),
 						conversationFile,
-						sessId.intValue()));
+						sessId));
 			}
 
 			return conversations;
@@ -18,8 +18,9 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
-import uniarchive.models.ProgressEvent;
+import uniarchive.models.Metrics;
 import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
 import uniarchive.models.archive.FreeAccount;
 import uniarchive.models.archive.IMArchive;
 import uniarchive.models.archive.IMService;
@@ -38,8 +39,13 @@ import uniarchive.models.import_common.UnresolvedAliasesQuery;
  */
 public class MsnImportJob
 {
+	protected static final Metrics.Timer SCAN_TIMER = Metrics.timer("import.msn.scan");
+	protected static final Metrics.Timer ANALYZE_TIMER = Metrics.timer("import.msn.analyze");
+	protected static final Metrics.Timer CONVERT_TIMER = Metrics.timer("import.msn.convert");
+	protected static final Metrics.Counter CONVERSATIONS_COUNTER = Metrics.counter("import.msn.conversations");
+	
 	protected File _archivePath;
-	protected ProgressListener _progressListener;
+	protected ProgressReporter _progress;
 	
 	protected List<MsnConversationInfo> _conversations;
 	protected Set<String> _names;
@@ -56,7 +62,7 @@ public class MsnImportJob
 	public MsnImportJob(File archivePath, ProgressListener progressListener)
 	{
 		this._archivePath = archivePath;
-		this._progressListener = progressListener;
+		this._progress = ProgressReporter.forListener(progressListener);
 		
 		this._notifyProgress("Awaiting start command", 0, 0);
 	}
@@ -69,7 +75,16 @@ public class MsnImportJob
 	 */
 	public ConfirmLocalNamesQuery runPhase1() throws Exception
 	{
-		this._conversations = this._loadConversations(this._scanForConversations());
+		this._progress.setPhase(0.0, 0.2);
+		long start = SCAN_TIMER.start();
+		List<File> convFiles = this._scanForConversations();
+		SCAN_TIMER.stop(start);
+		
+		this._progress.setPhase(0.2, 1.0);
+		start = ANALYZE_TIMER.start();
+		this._conversations = this._loadConversations(convFiles);
+		ANALYZE_TIMER.stop(start);
+		
 		this._names = this._gatherNames();
 		
 		Set<String> remoteNames = new TreeSet<String>(this._names);
@@ -138,7 +153,13 @@ public class MsnImportJob
 		}
 		
 		// Accounts OK, create archive
-		return this._convertArchive();
+		this._progress.setPhase(0.0, 1.0);
+		long start = CONVERT_TIMER.start();
+		IMArchive archive = this._convertArchive();
+		CONVERT_TIMER.stop(start);
+		CONVERSATIONS_COUNTER.add(this._conversations.size());
+		
+		return archive;
 	}
 	
 	/**
@@ -151,9 +172,7 @@ public class MsnImportJob
 	 */
 	protected void _notifyProgress(String comment, int completedItems, int totalItems)
 	{
-		if (this._progressListener == null) return;
-		
-		this._progressListener.onProgress(new ProgressEvent(comment, completedItems, totalItems));
+		this._progress.report(comment, completedItems, totalItems);
 	}
 	
 	/**
@@ -16,8 +16,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -33,11 +35,18 @@ import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
 import javax.swing.JSeparator;
 import javax.swing.JTree;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.TransferHandler;
 import javax.swing.event.CellEditorListener;
 import javax.swing.event.ChangeEvent;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeExpansionListener;
 import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
+import javax.swing.event.TreeSelectionEvent;
+import javax.swing.event.TreeSelectionListener;
+import javax.swing.text.Position;
 import javax.swing.tree.DefaultTreeCellEditor;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import javax.swing.tree.TreeModel;
@@ -47,12 +56,14 @@ import uniarchive.forms.ArchiveOperationsDialog;
 import uniarchive.graphics.IconManager;
 import uniarchive.models.SingletonList;
 import uniarchive.models.archive.IMArchive;
+import uniarchive.models.archive.IMArchiveChangeLog;
 import uniarchive.models.archive.IMArchiveEvent;
 import uniarchive.models.archive.IMArchiveListener;
 import uniarchive.models.archive.IMService;
 import uniarchive.models.archive.IMArchive.Account;
 import uniarchive.models.archive.IMArchive.Contact;
 import uniarchive.models.archive.IMArchive.Conversation;
+import uniarchive.models.archive.IMArchive.FoundItemIds;
 import uniarchive.models.archive.IMArchive.Group;
 
 /**
@@ -77,6 +88,9 @@ public class ArchiveGroupsView extends JTree
 	protected static final String COMMAND_MERGE_SELECTED = "mergeSelected";
 	protected static final String COMMAND_RENAME_ITEM = "renameItem";
 	
+	protected static final int MAX_TYPE_AHEAD_MATCHES = 256;
+	protected static final int TYPE_AHEAD_DELAY_MS = 300;
+	
 	protected final static Object NULL_ARCHIVE = "No archive connected";
 	
 	protected static XferHandler _commonXferHandler = new XferHandler();
@@ -99,6 +113,9 @@ public class ArchiveGroupsView extends JTree
 	
 	protected CommandButtonListener _cmdButtonListener = new CommandButtonListener();
 	
+	protected Timer _typeAheadTimer;
+	protected String _typeAheadPrefix = null;
+	
 	/**
 	 * Constructor.
 	 */
@@ -134,6 +151,40 @@ public class ArchiveGroupsView extends JTree
 			}			
 		});
 		
+		this._typeAheadTimer = new Timer(TYPE_AHEAD_DELAY_MS, new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent evt)
+			{
+				_startTypeAheadLookup();
+			}
+		});
+		this._typeAheadTimer.setRepeats(false);
+		
+		this.addTreeExpansionListener(new TreeExpansionListener()
+		{
+			@Override
+			public void treeExpanded(TreeExpansionEvent ev)
+			{
+				_updateGroupsInUse();
+			}
+			
+			@Override
+			public void treeCollapsed(TreeExpansionEvent ev)
+			{
+				_updateGroupsInUse();
+			}
+		});
+		
+		this.addTreeSelectionListener(new TreeSelectionListener()
+		{
+			@Override
+			public void valueChanged(TreeSelectionEvent ev)
+			{
+				_updateGroupsInUse();
+			}
+		});
+		
 		this._createPopupMenu();
 	}
 	
@@ -160,8 +211,10 @@ public class ArchiveGroupsView extends JTree
 	}
 	
 	/**
-	 * Makes sure all groups in this tree are
-	 * expanded.
+	 * Makes sure all groups in this tree whose contacts
+	 * are loaded are expanded. The other groups are left
+	 * collapsed, so that their contacts will only be loaded
+	 * when the user expands them.
 	 */
 	public void expandGroups()
 	{
@@ -172,8 +225,150 @@ public class ArchiveGroupsView extends JTree
 		TreePath root = new TreePath(archive);
 		for (Group group : archive.getGroups())
 		{
-			this.expandPath(root.pathByAddingChild(group));
+			if (group.isLoaded()) this.expandPath(root.pathByAddingChild(group));
+		}
+	}
+	
+	/**
+	 * Tells the archive which groups are in use by this tree,
+	 * i.e. those that are expanded or contain selected items
+	 * (which determine the current conversations query). These
+	 * are kept loaded; the others may be unloaded.
+	 */
+	protected void _updateGroupsInUse()
+	{
+		IMArchive archive = this.getArchive();
+		if (archive == null) return;
+		
+		Set<Group> keep = new TreeSet<Group>();
+		
+		Enumeration<TreePath> paths = this.getExpandedDescendants(new TreePath(archive));
+		while ((paths != null) && paths.hasMoreElements())
+		{
+			TreePath path = paths.nextElement();
+			if (path.getPathCount() > 1) keep.add((Group)path.getPathComponent(1));
+		}
+		
+		TreePath[] selectedPaths = this.getSelectionPaths();
+		if (selectedPaths != null)
+			for (TreePath path : selectedPaths)
+				if (path.getPathCount() > 1) keep.add((Group)path.getPathComponent(1));
+		
+		archive.setGroupsInUse(keep);
+	}
+	
+	/**
+	 * Gets a key that identifies an item across major changes
+	 * in the archive (during which it may be replaced by a new
+	 * object, e.g. if it is renamed).
+	 * 
+	 * @param item A group, contact or account
+	 * @return A key string, or null for other items
+	 */
+	protected String _getItemKey(Object item)
+	{
+		if (item instanceof Group) return "g"+((Group)item).sqlId;
+		if (item instanceof Contact) return "c"+((Contact)item).sqlId;
+		if (item instanceof Account) return "a"+((Account)item).sqlId;
+		
+		return null;
+	}
+	
+	/**
+	 * Gets the keys of all the expanded items in this tree.
+	 * 
+	 * @return A set of item keys
+	 */
+	protected Set<String> _getExpandedItemKeys()
+	{
+		Set<String> keys = new TreeSet<String>();
+		
+		Enumeration<TreePath> paths = this.getExpandedDescendants(new TreePath(this.getModel().getRoot()));
+		if (paths == null) return keys;
+		
+		while (paths.hasMoreElements())
+		{
+			String key = this._getItemKey(paths.nextElement().getLastPathComponent());
+			if (key != null) keys.add(key);
+		}
+		
+		return keys;
+	}
+	
+	/**
+	 * Gets the keys of all the selected items in this tree.
+	 * 
+	 * @return A set of item keys
+	 */
+	protected Set<String> _getSelectedItemKeys()
+	{
+		Set<String> keys = new TreeSet<String>();
+		
+		TreePath[] paths = this.getSelectionPaths();
+		if (paths == null) return keys;
+		
+		for (TreePath path : paths)
+		{
+			String key = this._getItemKey(path.getLastPathComponent());
+			if (key != null) keys.add(key);
+		}
+		
+		return keys;
+	}
+	
+	/**
+	 * Re-expands and re-selects items after a major change,
+	 * according to keys recorded before the change. Items
+	 * that were untouched by the change retain their state
+	 * anyway; this takes care of items that were replaced
+	 * or moved.
+	 * 
+	 * @param expandedKeys The keys of previously expanded items
+	 * @param selectedKeys The keys of previously selected items
+	 */
+	protected void _restoreItemState(Set<String> expandedKeys, Set<String> selectedKeys)
+	{
+		IMArchive archive = this.getArchive();
+		if ((archive == null) || (expandedKeys.isEmpty() && selectedKeys.isEmpty())) return;
+		
+		boolean needContacts = false;
+		boolean needAccounts = false;
+		for (String key : expandedKeys) needContacts |= key.startsWith("c");
+		for (String key : selectedKeys)
+		{
+			needContacts |= key.startsWith("c");
+			needAccounts |= key.startsWith("a");
+		}
+		
+		List<TreePath> selectedPaths = new ArrayList<TreePath>();
+		TreePath root = new TreePath(archive);
+		for (Group group : archive.getGroups())
+		{
+			TreePath groupPath = root.pathByAddingChild(group);
+			if (expandedKeys.contains(this._getItemKey(group))) this.expandPath(groupPath);
+			if (selectedKeys.contains(this._getItemKey(group))) selectedPaths.add(groupPath);
+			
+			if (!needContacts && !needAccounts) continue;
+			if (!group.isLoaded()) continue;
+			
+			for (Contact contact : group.getContacts())
+			{
+				TreePath contactPath = groupPath.pathByAddingChild(contact);
+				if (expandedKeys.contains(this._getItemKey(contact))) this.expandPath(contactPath);
+				if (selectedKeys.contains(this._getItemKey(contact))) selectedPaths.add(contactPath);
+				
+				if (!needAccounts) continue;
+				
+				for (Account account : contact.getAccounts())
+					if (selectedKeys.contains(this._getItemKey(account)))
+						selectedPaths.add(contactPath.pathByAddingChild(account));
+			}
 		}
+		
+		// Only touch the selection if some of it was lost, so as not
+		// to trigger needless selection events
+		if (selectedPaths.size() > this.getSelectionCount())
+			this.setSelectionPaths(selectedPaths.toArray(new TreePath[selectedPaths.size()]));
 	}
 	
 	/**
@@ -477,6 +672,75 @@ public class ArchiveGroupsView extends JTree
 		this.scrollPathToVisible(path);
 	}
 	
+	@Override
+	/**
+	 * Finds the item to be selected when the user types a prefix
+	 * in the tree. Visible rows are matched right away, as in the
+	 * default implementation. If none matches, the prefix is also
+	 * looked up in the archive, so as to find items in collapsed
+	 * groups and contacts (these will be expanded when the item is
+	 * selected). The lookup runs in the background, once the user
+	 * has stopped typing for a while.
+	 * 
+	 * @param prefix The text typed so far
+	 * @param startingRow The row from which to start searching
+	 * @param bias The search direction
+	 * @return The path to the matching visible item, or null if
+	 *         none exists
+	 */
+	public TreePath getNextMatch(String prefix, int startingRow, Position.Bias bias)
+	{
+		TreePath path = super.getNextMatch(prefix, startingRow, bias);
+		
+		if ((path == null) && (this.getArchive() != null))
+		{
+			this._typeAheadPrefix = prefix;
+			this._typeAheadTimer.restart();
+		}
+		else
+		{
+			this._typeAheadPrefix = null;
+			this._typeAheadTimer.stop();
+		}
+		
+		return path;
+	}
+	
+	/**
+	 * Starts looking up the last type-ahead prefix that did
+	 * not match any visible row.
+	 */
+	protected void _startTypeAheadLookup()
+	{
+		IMArchive archive = this.getArchive();
+		if ((archive == null) || (this._typeAheadPrefix == null)) return;
+		
+		new TypeAheadLookup(archive, this._typeAheadPrefix).execute();
+	}
+	
+	/**
+	 * Reacts to the completion of a type-ahead lookup by
+	 * focusing the first item found, unless the user has
+	 * typed something else in the meantime.
+	 * 
+	 * @param lookup The completed lookup
+	 */
+	protected void _onTypeAheadLookupDone(TypeAheadLookup lookup)
+	{
+		if (!lookup.prefix.equals(this._typeAheadPrefix) || (lookup.archive != this.getArchive())) return;
+		this._typeAheadPrefix = null;
+		
+		if (lookup.getResult() == null) return;
+		
+		for (Object item : lookup.archive.resolveFoundItems(lookup.getResult()))
+		{
+			if (this.getItemPath(item) == null) continue;
+			
+			this.focusItem(item);
+			return;
+		}
+	}
+	
 	@Override
 	public String convertValueToText(Object value, boolean selected,
 			boolean expanded, boolean leaf, int row, boolean hasFocus)
@@ -1162,6 +1426,72 @@ public class ArchiveGroupsView extends JTree
 		}
 	}
 	
+	/**
+	 * Internal class for a Swing worker that looks up the items
+	 * matching a type-ahead prefix in the archive database.
+	 */
+	protected class TypeAheadLookup extends SwingWorker<Object,Object>
+	{
+		public final IMArchive archive;
+		public final String prefix;
+		
+		protected FoundItemIds _result = null;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param archive The archive in which to look up the prefix
+		 * @param prefix The prefix typed by the user
+		 */
+		public TypeAheadLookup(IMArchive archive, String prefix)
+		{
+			this.archive = archive;
+			this.prefix = prefix;
+		}
+		
+		/**
+		 * Gets the result of the lookup.
+		 * 
+		 * @return The items found, or null if the lookup failed
+		 */
+		public FoundItemIds getResult()
+		{
+			return this._result;
+		}
+		
+		/**
+		 * Executes the worker's actual job.
+		 * 
+		 * This procedure executes in the worker's private
+		 * thread.
+		 */
+		@Override
+		protected Object doInBackground() throws Exception
+		{
+			try
+			{
+				this._result = this.archive.lookupItemsByPrefix(this.prefix, MAX_TYPE_AHEAD_MATCHES);
+			}
+			catch (SQLException e)
+			{
+				// Type-ahead is only a convenience, so failures are not reported
+			}
+			
+			return null;
+		}
+		
+		@Override
+		/**
+		 * Executes GUI operations at the end of this worker's task.
+		 * 
+		 * This procedure executes in the Swing event dispatch thread. 
+		 */
+		protected void done()
+		{
+			_onTypeAheadLookupDone(this);
+		}
+	}
+	
 	/**
 	 * Internal class for rendering cells in this tree
 	 * widget.
@@ -1198,7 +1528,7 @@ public class ArchiveGroupsView extends JTree
 			
 			String text = null;
 			if (value instanceof IMArchive) { text = "Archive"; }
-			else if (value instanceof Group) { text = ((Group)value).name+" ("+((Group)value).getContacts().size()+")"; }
+			else if (value instanceof Group) { text = ((Group)value).name+" ("+((Group)value).getContactCount()+")"; }
 			else if (value instanceof Contact) { text = ((Contact)value).name; }
 			else if (value instanceof Account) { text = ((Account)value).name; }
 			else text = value.toString();
@@ -1331,6 +1661,8 @@ public class ArchiveGroupsView extends JTree
 		@Override
 		public int getChildCount(Object node)
 		{
+			if (node instanceof Group) return ((Group)node).getContactCount();
+			
 			return this.getChildren(node).size();
 		}
 
@@ -1445,7 +1777,28 @@ public class ArchiveGroupsView extends JTree
 			switch (event.type)
 			{
 			case MAJOR_CHANGE:
-				this._fireTreeStructureChanged(event.items.get(0));
+				if ((event.changeLog != null) && (event.items.get(0) == this._archive))
+				{
+					// Apply the changes incrementally, then restore the
+					// state of any items that were replaced or moved
+					Set<String> expandedKeys = _getExpandedItemKeys();
+					Set<String> selectedKeys = _getSelectedItemKeys();
+					
+					this._applyChangeLog(event.changeLog);
+					
+					_restoreItemState(expandedKeys, selectedKeys);
+				}
+				else
+				{
+					// The change log is missing or stale, so rebuild
+					// the whole tree
+					Set<String> expandedKeys = _getExpandedItemKeys();
+					Set<String> selectedKeys = _getSelectedItemKeys();
+					
+					this._fireTreeStructureChanged(event.items.get(0));
+					
+					_restoreItemState(expandedKeys, selectedKeys);
+				}
 				expandGroups();
 				break;
 			case ADDED_ITEMS:
@@ -1486,6 +1839,51 @@ public class ArchiveGroupsView extends JTree
 			}
 		}
 		
+		/**
+		 * Applies a change log issued at the end of a major
+		 * change in the archive, as a series of fine-grained
+		 * tree model events.
+		 * 
+		 * @param changeLog A change log describing the differences
+		 *                  between the old and new archive structure
+		 */
+		protected void _applyChangeLog(IMArchiveChangeLog changeLog)
+		{
+			for (IMArchiveChangeLog.Entry entry : changeLog.entries)
+			{
+				if (entry.reordered)
+				{
+					this._fireTreeStructureChanged(entry.parent);
+					continue;
+				}
+				
+				if (entry.removedItems.length > 0)
+					this._fireTreeNodesRemoved(entry.parent, entry.removedIndexes, entry.removedItems);
+				if (entry.insertedItems.length > 0)
+					this._fireTreeNodesInserted(entry.parent, entry.insertedIndexes, entry.insertedItems);
+				if (entry.changedItems.length > 0)
+					this._fireTreeNodesChanged(entry.parent, entry.changedIndexes, entry.changedItems);
+			}
+		}
+		
+		/**
+		 * Fires a 'tree nodes changed' event for any
+		 * interested listeners.
+		 * 
+		 * @param parent The parent of the changed nodes
+		 * @param itemIndexes An array of indices indicating
+		 *                    which items have changed
+		 * @param items An array of changed items
+		 */
+		protected void _fireTreeNodesChanged(Object parent, int[] itemIndexes, Object[] items)
+		{
+			Object[] path = this.getPath(parent);
+			TreeModelEvent event = new TreeModelEvent(this, path, itemIndexes, items);
+			
+			for (TreeModelListener listener : this._listeners)
+				listener.treeNodesChanged(event);
+		}
+		
 		/**
 		 * Fires a 'tree nodes inserted' event for any
 		 * interested listeners.
@@ -9,6 +9,7 @@ package uniarchive.widgets;
 import java.awt.Component;
 import java.util.List;
 
+import javax.swing.ComboBoxModel;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.DefaultListCellRenderer;
 import javax.swing.ImageIcon;
@@ -17,6 +18,7 @@ import javax.swing.JLabel;
 import javax.swing.JList;
 
 import uniarchive.graphics.IconManager;
+import uniarchive.models.CompletionIndex;
 import uniarchive.models.archive.IMArchive.Account;
 import uniarchive.models.archive.IMArchive.Contact;
 import uniarchive.models.archive.IMArchive.Group;
@@ -25,18 +27,23 @@ import uniarchive.models.archive.IMArchive.Group;
  * Class for a combobox that works with archive items
  * (groups, contacts, accounts, etc.)
  */
-public class ArchiveItemsCombo extends JComboBox
+public class ArchiveItemsCombo extends JComboBox<Object>
 {
 	private static final long serialVersionUID = 1L;
+	
+	protected static final long TYPE_AHEAD_TIMEOUT = 1000;
+	
+	protected CompletionIndex<Integer> _itemsIndex = new CompletionIndex<Integer>();
 
 	/**
 	 * Constructor.
 	 */
 	public ArchiveItemsCombo()
 	{
-		super(new DefaultComboBoxModel());
+		super(new DefaultComboBoxModel<Object>());
 		
 		this.setRenderer(new Renderer());
+		this.setKeySelectionManager(new TypeAheadManager());
 	}
 	
 	/**
@@ -47,10 +54,60 @@ public class ArchiveItemsCombo extends JComboBox
 	 */
 	public void setItems(List<?> items)
 	{
-		DefaultComboBoxModel model = (DefaultComboBoxModel)this.getModel();
+		DefaultComboBoxModel<Object> model = (DefaultComboBoxModel<Object>)this.getModel();
 		
 		model.removeAllElements();
-		for (Object item : items) model.addElement(item);
+		this._itemsIndex.clear();
+		for (Object item : items)
+		{
+			String name = getItemName(item);
+			if (name != null) this._itemsIndex.addItem(name, model.getSize());
+			model.addElement(item);
+		}
+	}
+	
+	/**
+	 * Gets the displayed name of an archive item.
+	 * 
+	 * @param item An archive item
+	 * @return The item name, or null if the item is not
+	 *         supported
+	 */
+	public static String getItemName(Object item)
+	{
+		if (item instanceof Group) return ((Group)item).name;
+		if (item instanceof Contact) return ((Contact)item).name;
+		if (item instanceof Account) return ((Account)item).name;
+		if (item instanceof DummyItem) return ((DummyItem)item).name;
+		
+		return null;
+	}
+	
+	/**
+	 * Internal class for a key selection manager that selects
+	 * items by the text typed in quick succession, rather than
+	 * by its first letter only.
+	 */
+	protected class TypeAheadManager implements KeySelectionManager
+	{
+		protected String _typed = "";
+		protected long _lastKeyTime = 0;
+		
+		@Override
+		public int selectionForKey(char key, ComboBoxModel<?> model)
+		{
+			long now = System.currentTimeMillis();
+			if (now - this._lastKeyTime > TYPE_AHEAD_TIMEOUT) this._typed = "";
+			this._lastKeyTime = now;
+			this._typed += key;
+			
+			// Prefer the cheap prefix lookup, as most of the time
+			// the user types the start of a name
+			List<Integer> matches = _itemsIndex.findByPrefix(this._typed, 1);
+			if (matches.isEmpty()) matches = _itemsIndex.findBySubstring(this._typed, 1);
+			
+			return matches.isEmpty() ? -1 : matches.get(0).intValue();
+		}
 	}
 	
 	/**
@@ -66,7 +123,7 @@ public class ArchiveItemsCombo extends JComboBox
 		protected ImageIcon _identitiesIcon = IconManager.getInstance().getIcon("identities");
 		
 		@Override
-		public Component getListCellRendererComponent(JList list, Object value,
+		public Component getListCellRendererComponent(JList<?> list, Object value,
 				int index, boolean isSelected, boolean cellHasFocus)
 		{
 			String text = null;
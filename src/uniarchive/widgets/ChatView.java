@@ -46,6 +46,7 @@ import javax.swing.text.html.StyleSheet;
 
 import uniarchive.graphics.Smiley;
 import uniarchive.graphics.SmileyManager;
+import uniarchive.models.Metrics;
 import uniarchive.models.archive.IMService;
 import uniarchive.models.archive.IMArchive.Account;
 import uniarchive.models.archive.IMArchive.Contact;
@@ -80,6 +81,11 @@ public class ChatView extends GridBagPanel
 		new Color(0.66f, 0.00f, 0.33f)
 	};
 	
+	protected static final Metrics.Timer LOAD_TIMER = Metrics.timer("chatview.load");
+	protected static final Metrics.Timer RENDER_BATCH_TIMER = Metrics.timer("chatview.render_batch");
+	protected static final Metrics.Timer DISPLAY_TIMER = Metrics.timer("chatview.display");
+	protected static final Metrics.Counter REPLIES_COUNTER = Metrics.counter("chatview.replies");
+	
 	protected JLabel _partiesLabel;
 	protected JLabel _dateLabel;
 	protected JLabel _serviceLabel;
@@ -150,11 +156,13 @@ public class ChatView extends GridBagPanel
 	{
 		this._displayWorker.stop();
 		
+		long start = LOAD_TIMER.start();
 		try
 		{
 			this._conversation = conv;
 			this._replies = (conv != null) ? conv.getReplies() : null;
 			this._speakerColors = (conv != null) ? this._colorizeSpeakers(conv) : null;
+			LOAD_TIMER.stop(start);
 		}
 		catch (Exception e)
 		{
@@ -1125,6 +1133,7 @@ public class ChatView extends GridBagPanel
 		protected boolean _active = false;
 		protected int _repliesDisplayed;
 		protected Date _prevDate;
+		protected long _startTime;
 		
 		/**
 		 * Constructor.
@@ -1164,6 +1173,7 @@ public class ChatView extends GridBagPanel
 				this._active = true;
 				this._repliesDisplayed = 0;
 				this._prevDate = _conversation.dateStarted;
+				this._startTime = DISPLAY_TIMER.start();
 				
 				// Render conversation header and the first batch of replies
 				doc.setInnerHTML(body, "<span style=\"font-size:0\">&nbsp;</span>");
@@ -1213,6 +1223,7 @@ public class ChatView extends GridBagPanel
 				return;
 			}
 			
+			long start = RENDER_BATCH_TIMER.start();
 			try
 			{
 				HTMLDocument doc = _getHtmlDoc();
@@ -1240,10 +1251,13 @@ public class ChatView extends GridBagPanel
 				}
 				
 				doc.insertBeforeEnd(body, html.toString());
+				RENDER_BATCH_TIMER.stop(start);
+				REPLIES_COUNTER.add(inBatch);
 					
 				if (this._repliesDisplayed == _replies.size())
 				{
 					// Job complete
+					DISPLAY_TIMER.stop(this._startTime);
 					this._done();
 				}
 			}
@@ -11,13 +11,15 @@ import java.awt.Dimension;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
 
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JTable;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
@@ -32,6 +34,7 @@ import uniarchive.models.archive.IMArchiveListener;
 import uniarchive.models.archive.IMArchive.Account;
 import uniarchive.models.archive.IMArchive.Contact;
 import uniarchive.models.archive.IMArchive.Conversation;
+import uniarchive.models.archive.IMArchive.WindowedConversationList;
 
 /**
  * Class for a tabular view of conversations in an archive.
@@ -40,6 +43,8 @@ public class ConversationsTable extends TableWithFillColumn
 {
 	private static final long serialVersionUID = 1L;
 	
+	protected static final String PLACEHOLDER_TEXT = "...";
+	
 	/**
 	 * Constructor.
 	 */
@@ -47,7 +52,7 @@ public class ConversationsTable extends TableWithFillColumn
 	{
 		super();
 		
-		Model model = new Model();
+		Model model = new Model(this);
 				
 		// Configure table properties
 		this.setAutoCreateColumnsFromModel(false);
@@ -234,6 +239,10 @@ public class ConversationsTable extends TableWithFillColumn
 			{
 				text = ((Contact)value).name;
 			}
+			else if (value == null)
+			{
+				text = PLACEHOLDER_TEXT; // row not yet loaded
+			}
 			
 			JLabel renderer = (JLabel)super.getTableCellRendererComponent(table, text, isSelected, hasFocus,
 					row, column);
@@ -264,7 +273,10 @@ public class ConversationsTable extends TableWithFillColumn
 					row, column);
 			
 			renderer.setHorizontalAlignment(JLabel.CENTER);
-			renderer.setIcon(((Boolean)value).booleanValue() ? _conferenceIcon : _chatIcon);
+			if (value == null)
+				renderer.setIcon(null); // placeholder for rows not yet loaded
+			else
+				renderer.setIcon(((Boolean)value).booleanValue() ? _conferenceIcon : _chatIcon);
 			
 			return renderer;
 		}
@@ -286,7 +298,8 @@ public class ConversationsTable extends TableWithFillColumn
 			
 			Date date = (Date)value;
 			
-			JLabel renderer = (JLabel)super.getTableCellRendererComponent(table, format.format(date),
+			JLabel renderer = (JLabel)super.getTableCellRendererComponent(table,
+					(date != null) ? format.format(date) : PLACEHOLDER_TEXT,
 					isSelected, hasFocus, row, column);
 			
 			return renderer;
@@ -295,6 +308,13 @@ public class ConversationsTable extends TableWithFillColumn
 	
 	/**
 	 * Internal class defining the model for the Conversations Table.
+	 * 
+	 * Conversations are fetched asynchronously, one window at a time.
+	 * Rows whose window is not yet loaded are reported as null values
+	 * (which the renderers display as placeholders), and a request for
+	 * the window is queued. Requests are coalesced per window and served
+	 * most-recent-first, so that the rows currently being painted take
+	 * priority over those the user has already scrolled past.
 	 */
 	protected static class Model extends AbstractTableModel implements IMArchiveListener
 	{
@@ -305,16 +325,29 @@ public class ConversationsTable extends TableWithFillColumn
 		public static final int COLUMN_INDEX_WITH = 2;
 		public static final int COLUMN_INDEX_IS_CONF = 3;
 		
+		protected static final int WINDOW_SIZE = 128;
+		protected static final int MAX_CACHED_WINDOWS = 16;
+		protected static final int MAX_PENDING_WINDOWS = 4;
+		
+		protected ConversationsTable _owner;
 		protected IMArchive _archive = null;
 		protected ConversationsQuery _query = new ConversationsQuery();
-		protected List<Conversation> _convList = null;
+		// Note: also read by the window loader thread
+		protected volatile WindowedConversationList _convList = null;
 		protected int _cachedConvListSize = 0;
 		
+		protected LinkedList<Integer> _pendingWindows = new LinkedList<Integer>();
+		protected WindowLoader _loader = null;
+		protected boolean _errorReported = false;
+		
 		/**
 		 * Constructor.
+		 * 
+		 * @param owner The table that displays this model
 		 */
-		public Model()
+		public Model(ConversationsTable owner)
 		{
+			this._owner = owner;
 		}
 		
 		/**
@@ -368,8 +401,29 @@ public class ConversationsTable extends TableWithFillColumn
 		 */
 		public void requery()
 		{
-			this._convList = (this._archive != null) ? this._archive.getConversations(this._query) : new ArrayList<Conversation>();
-			this._cachedConvListSize = this._convList.size();
+			synchronized (this._pendingWindows)
+			{
+				this._pendingWindows.clear();
+			}
+			
+			this._errorReported = false;
+			this._convList = null;
+			this._cachedConvListSize = 0;
+			
+			if (this._archive != null)
+			{
+				WindowedConversationList list = this._archive.getConversationsAsWindowedList(this._query, WINDOW_SIZE, MAX_CACHED_WINDOWS);
+				this._convList = list;
+				
+				try
+				{
+					this._cachedConvListSize = list.size();
+				}
+				catch (RuntimeException e)
+				{
+					this._reportError(e);
+				}
+			}
 			
 			this.fireTableDataChanged();
 		}
@@ -425,28 +479,50 @@ public class ConversationsTable extends TableWithFillColumn
 		}
 		
 		/**
-		 * Returns the record at a given index.
+		 * Returns the record at a given index, loading it
+		 * synchronously if it is not yet available.
 		 * 
 		 * @param index A zero-based record index
-		 * @return A Conversation record
+		 * @return A Conversation record, or null if it could
+		 *         not be loaded
 		 */
 		public Conversation getRecord(int index)
 		{	
-			if (this._convList == null) return null;
-				
-			return this._convList.get(index);
+			WindowedConversationList list = this._convList;
+			if (list == null) return null;
+			
+			Conversation record = list.peek(index);
+			if (record != null) return record;
+			
+			try
+			{
+				return list.get(index);
+			}
+			catch (RuntimeException e)
+			{
+				this._reportError(e);
+				return null;
+			}
 		}
 		
 		@Override
 		public Object getValueAt(int row, int column)
 		{
-			Conversation record = this.getRecord(row);
+			WindowedConversationList list = this._convList;
+			if (list == null) return null;
+			
+			Conversation record = list.peek(row);
+			if (record == null)
+			{
+				this._requestWindow(list, row);
+				return null;
+			}
 			
 			switch(column)
 			{
 				case COLUMN_INDEX_DATE: return record.dateStarted;
-				case COLUMN_INDEX_SELF: return record.localAccount.getContact();
-				case COLUMN_INDEX_WITH: return record.remoteAccount.getContact();
+				case COLUMN_INDEX_SELF: return record.getLocalContact();
+				case COLUMN_INDEX_WITH: return record.getRemoteContact();
 				case COLUMN_INDEX_IS_CONF: return Boolean.valueOf(record.isConference);
 				default: return null;
 			}
@@ -479,6 +555,191 @@ public class ConversationsTable extends TableWithFillColumn
 				this.requery();
 			}
 		}
+		
+		/**
+		 * Queues a request for loading the window containing a
+		 * given row, and starts the loader if it is not running.
+		 * 
+		 * @param list The current conversation list
+		 * @param row A row index
+		 */
+		protected void _requestWindow(WindowedConversationList list, int row)
+		{
+			Integer base = list.getWindowBase(row);
+			
+			synchronized (this._pendingWindows)
+			{
+				// Most recent requests are served first; stale ones
+				// are dropped if the user scrolls too quickly
+				this._pendingWindows.remove(base);
+				this._pendingWindows.addFirst(base);
+				while (this._pendingWindows.size() > MAX_PENDING_WINDOWS) this._pendingWindows.removeLast();
+			}
+			
+			if (this._loader == null)
+			{
+				this._loader = new WindowLoader(list);
+				this._loader.execute();
+			}
+		}
+		
+		/**
+		 * Reacts to the loading of a window of conversations.
+		 * 
+		 * @param window A structure describing the loaded window
+		 */
+		protected void _onWindowLoaded(LoadedWindow window)
+		{
+			WindowedConversationList list = this._convList;
+			if (window.list != list) return;
+			
+			if (window.error != null)
+			{
+				this._reportError(window.error);
+				return;
+			}
+			
+			int lastRow = Math.min(window.base+window.count, this._cachedConvListSize)-1;
+			if (lastRow >= window.base) this.fireTableRowsUpdated(window.base, lastRow);
+			
+			if (this._archive != null) this._archive.trimLoadedGroups();
+		}
+		
+		/**
+		 * Reacts to the loader finishing its job. If more requests
+		 * have arrived in the meantime (e.g. for a new query), a
+		 * new loader is started.
+		 */
+		protected void _onLoaderDone()
+		{
+			this._loader = null;
+			
+			WindowedConversationList list = this._convList;
+			if (list == null) return;
+			
+			synchronized (this._pendingWindows)
+			{
+				if (this._pendingWindows.isEmpty()) return;
+			}
+			
+			this._loader = new WindowLoader(list);
+			this._loader.execute();
+		}
+		
+		/**
+		 * Reports an error encountered while loading conversations.
+		 * Only the first error after a requery is shown to the user.
+		 * 
+		 * @param error The exception describing the error
+		 */
+		protected void _reportError(Exception error)
+		{
+			if (this._errorReported) return;
+			this._errorReported = true;
+			
+			JOptionPane.showMessageDialog((this._owner != null) ? this._owner.getTopLevelAncestor() : null,
+					"Could not load conversations:\n"+error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+		}
+		
+		/**
+		 * Structure class describing the result of loading a window.
+		 */
+		protected static class LoadedWindow
+		{
+			public final WindowedConversationList list;
+			public final int base;
+			public final int count;
+			public final Exception error;
+			
+			/**
+			 * Constructor.
+			 * 
+			 * @param list The list into which the window was loaded
+			 * @param base The index of the first row in the window
+			 * @param count The number of conversations loaded
+			 * @param error The error encountered, or null if none
+			 */
+			public LoadedWindow(WindowedConversationList list, int base, int count, Exception error)
+			{
+				this.list = list;
+				this.base = base;
+				this.count = count;
+				this.error = error;
+			}
+		}
+		
+		/**
+		 * Internal class for a Swing worker that loads the pending
+		 * windows of a conversation list in the background.
+		 */
+		protected class WindowLoader extends SwingWorker<Object,LoadedWindow>
+		{
+			protected final WindowedConversationList _list;
+			
+			/**
+			 * Constructor.
+			 * 
+			 * @param list The list whose windows will be loaded
+			 */
+			public WindowLoader(WindowedConversationList list)
+			{
+				this._list = list;
+			}
+			
+			/**
+			 * Executes the worker's actual job.
+			 * 
+			 * This procedure executes in the worker's private
+			 * thread.
+			 */
+			@Override
+			protected Object doInBackground() throws Exception
+			{
+				while (true)
+				{
+					Integer base;
+					synchronized (_pendingWindows)
+					{
+						if (_pendingWindows.isEmpty() || (this._list != _convList)) return null;
+						base = _pendingWindows.removeFirst();
+					}
+					
+					try
+					{
+						// Note: the window may have been loaded synchronously
+						// in the meantime, but its rows must still be repainted
+						int count = this._list.isWindowLoaded(base) ? this._list.getWindowSize() : this._list.loadWindow(base);
+						this.publish(new LoadedWindow(this._list, base, count, null));
+					}
+					catch (Exception e)
+					{
+						this.publish(new LoadedWindow(this._list, base, 0, e));
+						return null;
+					}
+				}
+			}
+			
+			@Override
+			/**
+			 * Reacts to windows loaded by the running job.
+			 * 
+			 * This procedure executes in the Swing event dispatch thread.
+			 */
+			protected void process(List<LoadedWindow> windows)
+			{
+				for (LoadedWindow window : windows) _onWindowLoaded(window);
+			}
+			
+			@Override
+			/**
+			 * Executes GUI operations at the end of this worker's task.
+			 * 
+			 * This procedure executes in the Swing event dispatch thread. 
+			 */
+			protected void done()
+			{
+				_onLoaderDone();
+			}
+		}
 	}
 }
-
@@ -26,6 +26,7 @@ import javax.swing.event.ListSelectionListener;
 import uniarchive.graphics.IconManager;
 import uniarchive.models.ProgressEvent;
 import uniarchive.models.ProgressListener;
+import uniarchive.models.ProgressReporter;
 import uniarchive.models.archive.ConversationsQuery;
 import uniarchive.models.archive.IMArchive;
 import uniarchive.models.archive.IMArchive.Conversation;
@@ -429,6 +430,8 @@ public class ConversationsView extends GridBagPanel
 	{
 		protected Object _result; 
 		protected Pattern _searchPattern;
+		protected IMArchive _archive;
+		protected List<Conversation> _conversations;
 		
 		/**
 		 * Constructor.
@@ -438,6 +441,17 @@ public class ConversationsView extends GridBagPanel
 		public SearchWorker(Pattern searchPattern)
 		{	
 			this._searchPattern = searchPattern;
+			
+			// Note: the query is resolved here, in the event dispatch
+			// thread, as this may load contacts from the archive
+			this._archive = _table.getArchive();
+			if (this._archive != null)
+			{
+				ConversationsQuery query = _table.getQuery().clone();
+				query.filterConversations.clear();
+				
+				this._conversations = this._archive.getConversations(query);
+			}
 		}
 		
 		/**
@@ -451,11 +465,8 @@ public class ConversationsView extends GridBagPanel
 		{
 			try
 			{
-				IMArchive archive = _table.getArchive();
-				ConversationsQuery query = _table.getQuery().clone();
-				query.filterConversations.clear();
-				
-				this._result = archive.searchConversations(query, this._searchPattern, MAX_SEARCH_RESULTS, this);
+				this._result = this._archive.searchConversations(this._conversations, this._searchPattern,
+						MAX_SEARCH_RESULTS, new ProgressReporter(this));
 			}
 			catch (Exception e)
 			{
@@ -484,11 +495,13 @@ public class ConversationsView extends GridBagPanel
 		 */
 		protected void process(List<Object> events)
 		{
-			for (Object event : events)
+			// Only the latest progress event is of interest
+			for (int i=events.size()-1; i>=0; i--)
 			{
-				if (event instanceof ProgressEvent)
+				if (events.get(i) instanceof ProgressEvent)
 				{
-					_onSearchProgress((ProgressEvent)event);
+					_onSearchProgress((ProgressEvent)events.get(i));
+					break;
 				}
 			}
 		}